@@ -46,6 +46,17 @@ public interface PeakListRow {
      */
     public Feature getPeak(RawDataFile rawData);
 
+    /**
+     * Returns the peak at given position, from 0 to getNumberOfPeaks() - 1.
+     * Unlike getPeaks(), this does not create an array.
+     */
+    public Feature getPeak(int position);
+
+    /**
+     * Returns the raw data file of the peak at given position
+     */
+    public RawDataFile getRawDataFile(int position);
+
     /**
      * Add a peak
      */
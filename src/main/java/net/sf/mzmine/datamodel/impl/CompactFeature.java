@@ -0,0 +1,394 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
+import net.sf.mzmine.util.PeakUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * Peak implementation storing its data points in primitive arrays. Scan
+ * numbers, m/z and intensity values of the data points are kept in parallel
+ * arrays and the raw data point ranges as their bounds, so a peak consists of
+ * a few objects regardless of its number of data points. Data points and
+ * ranges are created when requested.
+ *
+ * Scans without a data point, such as the scans around a chromatogram, are
+ * only kept in the scan numbers of the peak. If every scan has a data point,
+ * both share one array.
+ *
+ * Peak lists with many data files and rows should be built from compact
+ * features; any other feature can be converted by the copy constructor.
+ */
+public class CompactFeature implements Feature {
+
+    private FeatureStatus peakStatus;
+    private RawDataFile dataFile;
+
+    // Scan numbers of the peak, ascending
+    private final int scanNumbers[];
+
+    // Scan numbers, m/z and intensity values of the data points, ascending
+    private int dataPointScanNumbers[];
+    private double mzValues[];
+    private double intensityValues[];
+
+    // M/Z, RT, Height and Area
+    private double mz, rt, height, area;
+
+    // FWHM, Tailing factor, Asymmetry factor, NaN if not set
+    private double fwhm = Double.NaN, tf = Double.NaN, af = Double.NaN;
+
+    // Boundaries of the peak raw data points
+    private final double rtMin, rtMax, mzMin, mzMax, intensityMin,
+	    intensityMax;
+
+    // Number of representative scan
+    private int representativeScan;
+
+    // Number of most intense fragment scan
+    private int fragmentScanNumber;
+
+    // Isotope pattern. Null by default but can be set later by deisotoping
+    // method.
+    private IsotopePattern isotopePattern;
+    private int charge = 0;
+
+    /**
+     * Initializes a new peak using given values. The data point of each scan
+     * number may be null. A null range is replaced by the single value of the
+     * peak RT, m/z or height.
+     */
+    public CompactFeature(RawDataFile dataFile, double MZ, double RT,
+	    double height, double area, int[] scanNumbers,
+	    DataPoint[] dataPointsPerScan, FeatureStatus peakStatus,
+	    int representativeScan, int fragmentScanNumber,
+	    Range<Double> rtRange, Range<Double> mzRange,
+	    Range<Double> intensityRange) {
+
+	if (dataPointsPerScan.length == 0) {
+	    throw new IllegalArgumentException(
+		    "Cannot create a CompactFeature instance with no data points");
+	}
+
+	this.dataFile = dataFile;
+	this.mz = MZ;
+	this.rt = RT;
+	this.height = height;
+	this.area = area;
+	this.scanNumbers = scanNumbers;
+	this.peakStatus = peakStatus;
+	this.representativeScan = representativeScan;
+	this.fragmentScanNumber = fragmentScanNumber;
+
+	setDataPoints(dataPointsPerScan);
+
+	rtMin = lowerBound(rtRange, RT);
+	rtMax = upperBound(rtRange, RT);
+	mzMin = lowerBound(mzRange, MZ);
+	mzMax = upperBound(mzRange, MZ);
+	intensityMin = lowerBound(intensityRange, height);
+	intensityMax = upperBound(intensityRange, height);
+
+    }
+
+    /**
+     * Copy constructor. Also copies the isotope pattern and charge, so any
+     * feature can be replaced by its compact copy.
+     */
+    public CompactFeature(Feature p) {
+
+	this.dataFile = p.getDataFile();
+
+	this.mz = p.getMZ();
+	this.rt = p.getRT();
+	this.height = p.getHeight();
+	this.area = p.getArea();
+	QualityParameters.copyQualityParameters(p, this);
+
+	rtMin = lowerBound(p.getRawDataPointsRTRange(), rt);
+	rtMax = upperBound(p.getRawDataPointsRTRange(), rt);
+	mzMin = lowerBound(p.getRawDataPointsMZRange(), mz);
+	mzMax = upperBound(p.getRawDataPointsMZRange(), mz);
+	intensityMin = lowerBound(p.getRawDataPointsIntensityRange(), height);
+	intensityMax = upperBound(p.getRawDataPointsIntensityRange(), height);
+
+	this.scanNumbers = p.getScanNumbers();
+
+	DataPoint dataPointsPerScan[] = new DataPoint[scanNumbers.length];
+	for (int i = 0; i < scanNumbers.length; i++)
+	    dataPointsPerScan[i] = p.getDataPoint(scanNumbers[i]);
+	setDataPoints(dataPointsPerScan);
+
+	this.peakStatus = p.getFeatureStatus();
+
+	this.representativeScan = p.getRepresentativeScanNumber();
+	this.fragmentScanNumber = p.getMostIntenseFragmentScanNumber();
+
+	this.isotopePattern = p.getIsotopePattern();
+	this.charge = p.getCharge();
+
+    }
+
+    /**
+     * Stores the data points of the scans of this peak, skipping null data
+     * points
+     */
+    private void setDataPoints(DataPoint dataPointsPerScan[]) {
+
+	int numOfDataPoints = 0;
+	for (DataPoint dataPoint : dataPointsPerScan) {
+	    if (dataPoint != null)
+		numOfDataPoints++;
+	}
+
+	if (numOfDataPoints == scanNumbers.length)
+	    dataPointScanNumbers = scanNumbers;
+	else
+	    dataPointScanNumbers = new int[numOfDataPoints];
+	mzValues = new double[numOfDataPoints];
+	intensityValues = new double[numOfDataPoints];
+
+	int index = 0;
+	for (int i = 0; i < dataPointsPerScan.length; i++) {
+	    if (dataPointsPerScan[i] == null)
+		continue;
+	    dataPointScanNumbers[index] = scanNumbers[i];
+	    mzValues[index] = dataPointsPerScan[i].getMZ();
+	    intensityValues[index] = dataPointsPerScan[i].getIntensity();
+	    index++;
+	}
+
+    }
+
+    private static double lowerBound(Range<Double> range, double value) {
+	return range == null ? value : range.lowerEndpoint();
+    }
+
+    private static double upperBound(Range<Double> range, double value) {
+	return range == null ? value : range.upperEndpoint();
+    }
+
+    /**
+     * This method returns the status of the peak
+     */
+    public @Nonnull FeatureStatus getFeatureStatus() {
+	return peakStatus;
+    }
+
+    /**
+     * This method returns M/Z value of the peak
+     */
+    public double getMZ() {
+	return mz;
+    }
+
+    public void setMZ(double mz) {
+	this.mz = mz;
+    }
+
+    public void setRT(double rt) {
+	this.rt = rt;
+    }
+
+    /**
+     * This method returns retention time of the peak
+     */
+    public double getRT() {
+	return rt;
+    }
+
+    /**
+     * This method returns the raw height of the peak
+     */
+    public double getHeight() {
+	return height;
+    }
+
+    /**
+     * @param height
+     *            The height to set.
+     */
+    public void setHeight(double height) {
+	this.height = height;
+    }
+
+    /**
+     * This method returns the raw area of the peak
+     */
+    public double getArea() {
+	return area;
+    }
+
+    /**
+     * @param area
+     *            The area to set.
+     */
+    public void setArea(double area) {
+	this.area = area;
+    }
+
+    /**
+     * This method returns numbers of scans that contain this peak
+     */
+    public @Nonnull int[] getScanNumbers() {
+	return scanNumbers;
+    }
+
+    /**
+     * This method returns a representative datapoint of this peak in a given
+     * scan. The data point is created on each call, so it should be read once
+     * per scan.
+     */
+    public DataPoint getDataPoint(int scanNumber) {
+	int index = Arrays.binarySearch(dataPointScanNumbers, scanNumber);
+	if (index < 0)
+	    return null;
+	return new SimpleDataPoint(mzValues[index], intensityValues[index]);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.Feature#getDataFile()
+     */
+    public @Nonnull RawDataFile getDataFile() {
+	return dataFile;
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.Feature#setDataFile()
+     */
+    public void setDataFile(RawDataFile dataFile) {
+	this.dataFile = dataFile;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+	return PeakUtils.peakToString(this);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.Feature#getRawDataPointsIntensityRange()
+     */
+    public @Nonnull Range<Double> getRawDataPointsIntensityRange() {
+	return Range.closed(intensityMin, intensityMax);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.Feature#getRawDataPointsMZRange()
+     */
+    public @Nonnull Range<Double> getRawDataPointsMZRange() {
+	return Range.closed(mzMin, mzMax);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.Feature#getRawDataPointsRTRange()
+     */
+    public @Nonnull Range<Double> getRawDataPointsRTRange() {
+	return Range.closed(rtMin, rtMax);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.Feature#getRepresentativeScanNumber()
+     */
+    public int getRepresentativeScanNumber() {
+	return representativeScan;
+    }
+
+    public int getMostIntenseFragmentScanNumber() {
+	return fragmentScanNumber;
+    }
+
+    public IsotopePattern getIsotopePattern() {
+	return isotopePattern;
+    }
+
+    public void setIsotopePattern(@Nonnull IsotopePattern isotopePattern) {
+	this.isotopePattern = isotopePattern;
+    }
+
+    public int getCharge() {
+	return charge;
+    }
+
+    public void setCharge(int charge) {
+	this.charge = charge;
+    }
+
+    /**
+     * This method returns the full width at half maximum (FWHM) of the peak
+     */
+    public Double getFWHM() {
+	QualityParameters.ensureQualityParameters(this);
+	return Double.isNaN(fwhm) ? null : fwhm;
+    }
+
+    /**
+     * @param fwhm
+     *            The full width at half maximum (FWHM) to set.
+     */
+    public void setFWHM(Double fwhm) {
+	this.fwhm = fwhm == null ? Double.NaN : fwhm;
+    }
+
+    /**
+     * This method returns the tailing factor of the peak
+     */
+    public Double getTailingFactor() {
+	QualityParameters.ensureQualityParameters(this);
+	return Double.isNaN(tf) ? null : tf;
+    }
+
+    /**
+     * @param tf
+     *            The tailing factor to set.
+     */
+    public void setTailingFactor(Double tf) {
+	this.tf = tf == null ? Double.NaN : tf;
+    }
+
+    /**
+     * This method returns the asymmetry factor of the peak
+     */
+    public Double getAsymmetryFactor() {
+	QualityParameters.ensureQualityParameters(this);
+	return Double.isNaN(af) ? null : af;
+    }
+
+    /**
+     * @param af
+     *            The asymmetry factor to set.
+     */
+    public void setAsymmetryFactor(Double af) {
+	this.af = af == null ? Double.NaN : af;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+
+/**
+ * Assigns column numbers to raw data files. A SimplePeakList shares its index
+ * with its rows, which store their peaks by column. Rows which are not in a
+ * peak list create their own index.
+ */
+class RawDataFileIndex {
+
+    // Files are looked up in a hash map if there are more files than this
+    private static final int MAX_LINEAR_SEARCH = 16;
+
+    private RawDataFile files[];
+    private int numberOfFiles;
+    private HashMap<RawDataFile, Integer> columns;
+
+    /**
+     * Creates an empty index
+     */
+    RawDataFileIndex() {
+	files = new RawDataFile[1];
+    }
+
+    /**
+     * Creates an index of given files, in their order
+     */
+    RawDataFileIndex(RawDataFile files[]) {
+	this.files = new RawDataFile[Math.max(1, files.length)];
+	for (RawDataFile file : files)
+	    addFile(file);
+    }
+
+    int getNumberOfFiles() {
+	return numberOfFiles;
+    }
+
+    RawDataFile getFile(int column) {
+	return files[column];
+    }
+
+    /**
+     * Returns the column of given file, or -1 if it is not in the index
+     */
+    int getColumn(RawDataFile file) {
+	if (columns != null) {
+	    Integer column = columns.get(file);
+	    return column == null ? -1 : column;
+	}
+	for (int i = 0; i < numberOfFiles; i++) {
+	    if (files[i].equals(file))
+		return i;
+	}
+	return -1;
+    }
+
+    /**
+     * Adds a file to the end of the index and returns its column. Indexes
+     * shared by peak lists must not be modified.
+     */
+    int addFile(RawDataFile file) {
+
+	int column = getColumn(file);
+	if (column >= 0)
+	    return column;
+
+	if (numberOfFiles == files.length)
+	    files = Arrays.copyOf(files, files.length * 2);
+	column = numberOfFiles++;
+	files[column] = file;
+
+	if (columns != null) {
+	    columns.put(file, column);
+	} else if (numberOfFiles > MAX_LINEAR_SEARCH) {
+	    columns = new HashMap<RawDataFile, Integer>();
+	    for (int i = 0; i < numberOfFiles; i++)
+		columns.put(files[i], i);
+	}
+
+	return column;
+
+    }
+
+}
@@ -27,6 +27,7 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.util.PeakUtils;
 
 import com.google.common.collect.Range;
@@ -107,9 +108,7 @@ public class SimpleFeature implements Feature {
 	this.rt = p.getRT();
 	this.height = p.getHeight();
 	this.area = p.getArea();
-	this.fwhm = p.getFWHM();
-	this.tf = p.getTailingFactor();
-	this.af = p.getAsymmetryFactor();
+	QualityParameters.copyQualityParameters(p, this);
 
 	this.rtRange = p.getRawDataPointsRTRange();
 	this.mzRange = p.getRawDataPointsMZRange();
@@ -281,6 +280,7 @@ public class SimpleFeature implements Feature {
      * This method returns the full width at half maximum (FWHM) of the peak
      */
     public Double getFWHM() {
+        QualityParameters.ensureQualityParameters(this);
         return fwhm;
     }
 
@@ -296,6 +296,7 @@ public class SimpleFeature implements Feature {
      * This method returns the tailing factor of the peak
      */
     public Double getTailingFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return tf;
     }
 
@@ -311,6 +312,7 @@ public class SimpleFeature implements Feature {
      * This method returns the asymmetry factor of the peak
      */
     public Double getAsymmetryFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return af;
     }
 
@@ -22,9 +22,7 @@ package net.sf.mzmine.datamodel.impl;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
 import java.util.Vector;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -44,6 +42,7 @@ public class SimplePeakList implements PeakList {
 
     private String name;
     private RawDataFile[] dataFiles;
+    private RawDataFileIndex dataFileIndex;
     private ArrayList<PeakListRow> peakListRows;
     private double maxDataPointIntensity = 0;
     private Vector<PeakListAppliedMethod> descriptionOfAppliedTasks;
@@ -70,6 +69,7 @@ public class SimplePeakList implements PeakList {
 	    dataFile = dataFiles[i];
 	    this.dataFiles[i] = dataFile;
 	}
+	dataFileIndex = new RawDataFileIndex(this.dataFiles);
 	peakListRows = new ArrayList<PeakListRow>();
 	descriptionOfAppliedTasks = new Vector<PeakListAppliedMethod>();
 
@@ -173,12 +173,14 @@ public class SimplePeakList implements PeakList {
     }
 
     public void addRow(PeakListRow row) {
-	List<RawDataFile> myFiles = Arrays.asList(this.getRawDataFiles());
 	for (RawDataFile testFile : row.getRawDataFiles()) {
-	    if (!myFiles.contains(testFile))
+	    if (dataFileIndex.getColumn(testFile) < 0)
 		throw (new IllegalArgumentException("Data file " + testFile
 			+ " is not in this peak list"));
 	}
+	// Share the columns of the data files with the row
+	if (row instanceof SimplePeakListRow)
+	    ((SimplePeakListRow) row).setFileIndex(dataFileIndex);
 	peakListRows.add(row);
 	if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
 	    maxDataPointIntensity = row.getDataPointMaxIntensity();
@@ -300,7 +302,7 @@ public class SimplePeakList implements PeakList {
     }
 
     public boolean hasRawDataFile(RawDataFile hasFile) {
-	return Arrays.asList(dataFiles).contains(hasFile);
+	return dataFileIndex.getColumn(hasFile) >= 0;
     }
 
     public PeakListRow getPeakRow(Feature peak) {
@@ -20,11 +20,8 @@
 package net.sf.mzmine.datamodel.impl;
 
 import java.text.Format;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Vector;
 
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
@@ -32,17 +29,24 @@ import net.sf.mzmine.datamodel.PeakIdentity;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
-import net.sf.mzmine.util.PeakSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
 
 /**
- * Implementation of PeakListRow
+ * Implementation of PeakListRow. Peaks are stored in arrays, ordered by the
+ * column of their raw data file in the peak list. Until the row is added to a
+ * SimplePeakList, the files are numbered in the order their peaks are added.
  */
 public class SimplePeakListRow implements PeakListRow {
 
-    private Hashtable<RawDataFile, Feature> peaks;
-    private Vector<PeakIdentity> identities;
+    // Columns of the raw data files of the peaks, ascending, and the peaks.
+    // The file index is shared with the peak list the row was added to, so
+    // it must be replaced instead of modified.
+    private RawDataFileIndex fileIndex;
+    private boolean sharedFileIndex = false;
+    private int peakColumns[];
+    private Feature peaks[];
+    private int numberOfPeaks = 0;
+
+    private ArrayList<PeakIdentity> identities;
     private PeakIdentity preferredIdentity;
     private String comment;
     private int myID;
@@ -50,15 +54,21 @@ public class SimplePeakListRow implements PeakListRow {
 
     /**
      * These variables are used for caching the average values, so we don't need
-     * to calculate them again and again
+     * to calculate them again and again. The sums and charges are updated
+     * when a peak is added, and recalculated when a peak is replaced or
+     * removed.
      */
     private double averageRT, averageMZ, averageHeight, averageArea;
-    private int rowCharge;
+    private double rtSum, mzSum, heightSum, areaSum;
+    private int rowCharge, peakCharge;
+    private boolean differentCharges;
 
     public SimplePeakListRow(int myID) {
 	this.myID = myID;
-	peaks = new Hashtable<RawDataFile, Feature>();
-	identities = new Vector<PeakIdentity>();
+	fileIndex = new RawDataFileIndex();
+	peakColumns = new int[1];
+	peaks = new Feature[1];
+	identities = new ArrayList<PeakIdentity>();
     }
 
     /**
@@ -71,27 +81,71 @@ public class SimplePeakListRow implements PeakListRow {
     /**
      * Return peaks assigned to this row
      */
-    public Feature[] getPeaks() {
-	return peaks.values().toArray(new Feature[0]);
+    public synchronized Feature[] getPeaks() {
+	return Arrays.copyOf(peaks, numberOfPeaks);
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getPeak(int)
+     */
+    public synchronized Feature getPeak(int position) {
+	if (position >= numberOfPeaks)
+	    throw new IndexOutOfBoundsException("Peak " + position
+		    + " of a row with " + numberOfPeaks + " peaks");
+	return peaks[position];
     }
 
-    public void removePeak(RawDataFile file) {
-	this.peaks.remove(file);
+    public synchronized void removePeak(RawDataFile file) {
+	int position = findPosition(file);
+	if (position < 0)
+	    return;
+	numberOfPeaks--;
+	System.arraycopy(peakColumns, position + 1, peakColumns, position,
+		numberOfPeaks - position);
+	System.arraycopy(peaks, position + 1, peaks, position, numberOfPeaks
+		- position);
+	peaks[numberOfPeaks] = null;
 	calculateAverageValues();
     }
 
     /**
      * Returns opened raw data files with a peak on this row
      */
-    public RawDataFile[] getRawDataFiles() {
-	return peaks.keySet().toArray(new RawDataFile[0]);
+    public synchronized RawDataFile[] getRawDataFiles() {
+	RawDataFile files[] = new RawDataFile[numberOfPeaks];
+	for (int i = 0; i < numberOfPeaks; i++)
+	    files[i] = fileIndex.getFile(peakColumns[i]);
+	return files;
+    }
+
+    /**
+     * @see net.sf.mzmine.datamodel.PeakListRow#getRawDataFile(int)
+     */
+    public synchronized RawDataFile getRawDataFile(int position) {
+	if (position >= numberOfPeaks)
+	    throw new IndexOutOfBoundsException("Peak " + position
+		    + " of a row with " + numberOfPeaks + " peaks");
+	return fileIndex.getFile(peakColumns[position]);
     }
 
     /**
      * Returns peak for given raw data file
      */
-    public Feature getPeak(RawDataFile rawData) {
-	return peaks.get(rawData);
+    public synchronized Feature getPeak(RawDataFile rawData) {
+	int position = findPosition(rawData);
+	return position < 0 ? null : peaks[position];
+    }
+
+    /**
+     * Returns the position of the peak of given file, or -1 if there is none
+     */
+    private int findPosition(RawDataFile rawData) {
+	int column = fileIndex.getColumn(rawData);
+	if (column < 0)
+	    return -1;
+	int position = Arrays.binarySearch(peakColumns, 0, numberOfPeaks,
+		column);
+	return position < 0 ? -1 : position;
     }
 
     public synchronized void addPeak(RawDataFile rawData, Feature peak) {
@@ -100,11 +154,80 @@ public class SimplePeakListRow implements PeakListRow {
 	    throw new IllegalArgumentException(
 		    "Cannot add null peak to a peak list row");
 
-	peaks.put(rawData, peak);
+	int column = fileIndex.getColumn(rawData);
+	if (column < 0) {
+	    // Do not modify the index of the peak list, use a copy
+	    if (sharedFileIndex) {
+		RawDataFileIndex ownIndex = new RawDataFileIndex();
+		for (int i = 0; i < numberOfPeaks; i++)
+		    peakColumns[i] = ownIndex.addFile(fileIndex
+			    .getFile(peakColumns[i]));
+		fileIndex = ownIndex;
+		sharedFileIndex = false;
+	    }
+	    column = fileIndex.addFile(rawData);
+	}
+
 	if (peak.getRawDataPointsIntensityRange().upperEndpoint() > maxDataPointIntensity)
 	    maxDataPointIntensity = peak.getRawDataPointsIntensityRange()
 		    .upperEndpoint();
-	calculateAverageValues();
+
+	int position = Arrays.binarySearch(peakColumns, 0, numberOfPeaks,
+		column);
+	if (position >= 0) {
+	    peaks[position] = peak;
+	    calculateAverageValues();
+	    return;
+	}
+
+	position = -position - 1;
+	if (numberOfPeaks == peaks.length) {
+	    peakColumns = Arrays.copyOf(peakColumns, numberOfPeaks * 2 + 1);
+	    peaks = Arrays.copyOf(peaks, numberOfPeaks * 2 + 1);
+	}
+	System.arraycopy(peakColumns, position, peakColumns, position + 1,
+		numberOfPeaks - position);
+	System.arraycopy(peaks, position, peaks, position + 1, numberOfPeaks
+		- position);
+	peakColumns[position] = column;
+	peaks[position] = peak;
+	numberOfPeaks++;
+
+	addToAverageValues(peak);
+	updateAverageValues();
+
+    }
+
+    /**
+     * Numbers the files of the peaks by the columns of given index, which
+     * must contain all of them. Called when the row is added to a peak list.
+     */
+    synchronized void setFileIndex(RawDataFileIndex newFileIndex) {
+
+	if (newFileIndex == fileIndex)
+	    return;
+
+	// Insertion sort by the new columns. Peaks are usually added in the
+	// order of the files of the peak list, so they stay in order.
+	int newColumns[] = new int[numberOfPeaks];
+	Feature newPeaks[] = new Feature[numberOfPeaks];
+	for (int i = 0; i < numberOfPeaks; i++) {
+	    int column = newFileIndex.getColumn(fileIndex
+		    .getFile(peakColumns[i]));
+	    int position = i;
+	    while ((position > 0) && (newColumns[position - 1] > column)) {
+		newColumns[position] = newColumns[position - 1];
+		newPeaks[position] = newPeaks[position - 1];
+		position--;
+	    }
+	    newColumns[position] = column;
+	    newPeaks[position] = peaks[i];
+	}
+
+	fileIndex = newFileIndex;
+	sharedFileIndex = true;
+	peakColumns = newColumns;
+	peaks = newPeaks;
 
     }
 
@@ -129,33 +252,44 @@ public class SimplePeakListRow implements PeakListRow {
     }
 
     private synchronized void calculateAverageValues() {
-	double rtSum = 0, mzSum = 0, heightSum = 0, areaSum = 0;
-	int charge = 0;
-	HashSet<Integer> chargeArr = new HashSet<Integer>();
-	Enumeration<Feature> peakEnum = peaks.elements();
-	while (peakEnum.hasMoreElements()) {
-	    Feature p = peakEnum.nextElement();
-	    rtSum += p.getRT();
-	    mzSum += p.getMZ();
-	    heightSum += p.getHeight();
-	    areaSum += p.getArea();
-	    if (p.getCharge() > 0) {
-		chargeArr.add(p.getCharge());
-		charge = p.getCharge();
-	    }
+	rtSum = 0;
+	mzSum = 0;
+	heightSum = 0;
+	areaSum = 0;
+	peakCharge = 0;
+	differentCharges = false;
+	for (int i = 0; i < numberOfPeaks; i++)
+	    addToAverageValues(peaks[i]);
+	updateAverageValues();
+    }
+
+    private void addToAverageValues(Feature p) {
+	rtSum += p.getRT();
+	mzSum += p.getMZ();
+	heightSum += p.getHeight();
+	areaSum += p.getArea();
+	// The row has a charge if all charged peaks have the same charge
+	if (p.getCharge() > 0) {
+	    if (peakCharge == 0)
+		peakCharge = p.getCharge();
+	    else if (p.getCharge() != peakCharge)
+		differentCharges = true;
 	}
-	averageRT = rtSum / peaks.size();
-	averageMZ = mzSum / peaks.size();
-	averageHeight = heightSum / peaks.size();
-	averageArea = areaSum / peaks.size();
-	if (chargeArr.size() < 2) { rowCharge = charge; } else { rowCharge = 0; }
+    }
+
+    private void updateAverageValues() {
+	averageRT = rtSum / numberOfPeaks;
+	averageMZ = mzSum / numberOfPeaks;
+	averageHeight = heightSum / numberOfPeaks;
+	averageArea = areaSum / numberOfPeaks;
+	rowCharge = differentCharges ? 0 : peakCharge;
     }
 
     /**
      * Returns number of peaks assigned to this row
      */
-    public int getNumberOfPeaks() {
-	return peaks.size();
+    public synchronized int getNumberOfPeaks() {
+	return numberOfPeaks;
     }
 
     public String toString() {
@@ -238,7 +372,7 @@ public class SimplePeakListRow implements PeakListRow {
     /**
      * @see net.sf.mzmine.datamodel.PeakListRow#getPeakIdentities()
      */
-    public PeakIdentity[] getPeakIdentities() {
+    public synchronized PeakIdentity[] getPeakIdentities() {
 	return identities.toArray(new PeakIdentity[0]);
     }
 
@@ -252,7 +386,7 @@ public class SimplePeakListRow implements PeakListRow {
     /**
      * @see net.sf.mzmine.datamodel.PeakListRow#setPreferredPeakIdentity(net.sf.mzmine.datamodel.PeakIdentity)
      */
-    public void setPreferredPeakIdentity(PeakIdentity identity) {
+    public synchronized void setPreferredPeakIdentity(PeakIdentity identity) {
 
 	if (identity == null)
 	    return;
@@ -272,41 +406,43 @@ public class SimplePeakListRow implements PeakListRow {
 	return maxDataPointIntensity;
     }
 
-    public boolean hasPeak(Feature peak) {
-	return peaks.containsValue(peak);
+    public synchronized boolean hasPeak(Feature peak) {
+	for (int i = 0; i < numberOfPeaks; i++) {
+	    if (peaks[i].equals(peak))
+		return true;
+	}
+	return false;
     }
 
-    public boolean hasPeak(RawDataFile file) {
-	return peaks.containsKey(file);
+    public synchronized boolean hasPeak(RawDataFile file) {
+	return findPosition(file) >= 0;
     }
 
     /**
      * Returns the highest isotope pattern of a peak in this row
      */
-    public IsotopePattern getBestIsotopePattern() {
-	Feature peaks[] = getPeaks();
-	Arrays.sort(peaks, new PeakSorter(SortingProperty.Height,
-		SortingDirection.Descending));
-
-	for (Feature peak : peaks) {
-	    IsotopePattern ip = peak.getIsotopePattern();
-	    if (ip != null)
-		return ip;
+    public synchronized IsotopePattern getBestIsotopePattern() {
+	Feature bestPeak = null;
+	for (int i = 0; i < numberOfPeaks; i++) {
+	    if ((peaks[i].getIsotopePattern() != null)
+		    && ((bestPeak == null) || (peaks[i].getHeight() > bestPeak
+			    .getHeight())))
+		bestPeak = peaks[i];
 	}
-
-	return null;
+	return bestPeak == null ? null : bestPeak.getIsotopePattern();
     }
 
     /**
      * Returns the highest peak in this row
      */
-    public Feature getBestPeak() {
-	Feature peaks[] = getPeaks();
-	Arrays.sort(peaks, new PeakSorter(SortingProperty.Height,
-		SortingDirection.Descending));
-	if (peaks.length == 0)
-	    return null;
-	return peaks[0];
+    public synchronized Feature getBestPeak() {
+	Feature bestPeak = null;
+	for (int i = 0; i < numberOfPeaks; i++) {
+	    if ((bestPeak == null)
+		    || (peaks[i].getHeight() > bestPeak.getHeight()))
+		bestPeak = peaks[i];
+	}
+	return bestPeak;
     }
 
 }
@@ -32,6 +32,10 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.border.EtchedBorder;
 
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.project.ProjectManager;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.util.components.LabeledProgressBar;
 
 public class StatusBar extends JPanel implements Runnable, MouseListener {
@@ -152,8 +156,27 @@ public class StatusBar extends JPanel implements Runnable, MouseListener {
 	    double fullMem = ((double) (totalMem - freeMem)) / totalMem;
 
 	    memoryLabel.setValue(fullMem, freeMem + "MB free");
+
+	    // get the size of temporary data points files in megabytes
+	    long tmpFilesSize = 0, tmpFilesUnused = 0;
+	    ProjectManager projectManager = MZmineCore.getProjectManager();
+	    if ((projectManager != null)
+		    && (projectManager.getCurrentProject() != null)) {
+		for (RawDataFile dataFile : projectManager.getCurrentProject()
+			.getDataFiles()) {
+		    if (!(dataFile instanceof RawDataFileImpl))
+			continue;
+		    RawDataFileImpl dataFileImpl = (RawDataFileImpl) dataFile;
+		    tmpFilesSize += dataFileImpl.getDataPointsFileSize();
+		    tmpFilesUnused += dataFileImpl.getUnusedDataPointsFileSize();
+		}
+	    }
+	    tmpFilesSize /= (1024 * 1024);
+	    tmpFilesUnused /= (1024 * 1024);
+
 	    memoryLabel.setToolTipText("JVM memory: " + freeMem + "MB, "
-		    + totalMem + "MB total");
+		    + totalMem + "MB total; temporary files: " + tmpFilesSize
+		    + "MB (" + tmpFilesUnused + "MB unused)");
 
 	    try {
 		wait(MEMORY_LABEL_UPDATE_FREQUENCY);
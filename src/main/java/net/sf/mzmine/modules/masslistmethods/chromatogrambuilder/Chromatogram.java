@@ -35,6 +35,7 @@ import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.util.MathUtils;
 import net.sf.mzmine.util.ScanUtils;
 
@@ -323,6 +324,7 @@ public class Chromatogram implements Feature {
     }
 
     public Double getFWHM() {
+        QualityParameters.ensureQualityParameters(this);
         return fwhm;
     }
 
@@ -331,6 +333,7 @@ public class Chromatogram implements Feature {
     }
 
     public Double getTailingFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return tf;
     }
 
@@ -339,6 +342,7 @@ public class Chromatogram implements Feature {
     }
 
     public Double getAsymmetryFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return af;
     }
 
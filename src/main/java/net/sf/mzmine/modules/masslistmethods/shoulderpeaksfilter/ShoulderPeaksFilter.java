@@ -20,8 +20,7 @@
 package net.sf.mzmine.modules.masslistmethods.shoulderpeaksfilter;
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.Comparator;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.parameters.ParameterSet;
@@ -55,36 +54,84 @@ public class ShoulderPeaksFilter {
 	if (peakModel == null)
 	    return mzPeaks;
 
-	// Create a tree set of detected mzPeaks sorted by MZ in ascending order
-	TreeSet<DataPoint> finalMZPeaks = new TreeSet<DataPoint>(
-		new DataPointSorter(SortingProperty.MZ,
-			SortingDirection.Ascending));
+	// Sort the mzPeaks by m/z in ascending order, dropping duplicates
+	DataPoint sortedPeaks[] = mzPeaks.clone();
+	Arrays.sort(sortedPeaks, new DataPointSorter(SortingProperty.MZ,
+		SortingDirection.Ascending));
+	int numOfPeaks = 0;
+	for (int i = 0; i < sortedPeaks.length; i++) {
+	    if ((numOfPeaks > 0)
+		    && (sortedPeaks[numOfPeaks - 1].getMZ() == sortedPeaks[i]
+			    .getMZ())
+		    && (sortedPeaks[numOfPeaks - 1].getIntensity() == sortedPeaks[i]
+			    .getIntensity()))
+		continue;
+	    sortedPeaks[numOfPeaks++] = sortedPeaks[i];
+	}
+
+	final double mzValues[] = new double[numOfPeaks];
+	final double intensityValues[] = new double[numOfPeaks];
+	double minIntensity = Double.MAX_VALUE;
+	for (int i = 0; i < numOfPeaks; i++) {
+	    mzValues[i] = sortedPeaks[i].getMZ();
+	    intensityValues[i] = sortedPeaks[i].getIntensity();
+	    minIntensity = Math.min(minIntensity, intensityValues[i]);
+	}
 
-	// Create a tree set of candidate mzPeaks sorted by intensity in
-	// descending order.
-	TreeSet<DataPoint> candidatePeaks = new TreeSet<DataPoint>(
-		new DataPointSorter(SortingProperty.Intensity,
-			SortingDirection.Descending));
-	candidatePeaks.addAll(Arrays.asList(mzPeaks));
+	// The candidate mzPeaks are linked in m/z order, so removed peaks are
+	// skipped when searching the lateral peaks of a main peak
+	final int previous[] = new int[numOfPeaks];
+	final int next[] = new int[numOfPeaks];
+	for (int i = 0; i < numOfPeaks; i++) {
+	    previous[i] = i - 1;
+	    next[i] = (i + 1 < numOfPeaks) ? i + 1 : -1;
+	}
+	final boolean removed[] = new boolean[numOfPeaks];
+
+	// Order of the candidate mzPeaks by intensity in descending order
+	Integer candidates[] = new Integer[numOfPeaks];
+	for (int i = 0; i < numOfPeaks; i++)
+	    candidates[i] = i;
+	Arrays.sort(candidates, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		int result = Double.compare(intensityValues[i2],
+			intensityValues[i1]);
+		if (result == 0)
+		    result = Double.compare(mzValues[i2], mzValues[i1]);
+		return result;
+	    }
+	});
 
-	while (candidatePeaks.size() > 0) {
+	final boolean accepted[] = new boolean[numOfPeaks];
+	int numOfAccepted = 0;
+	for (int currentCandidate : candidates) {
 
-	    // Always take the biggest (intensity) peak
-	    DataPoint currentCandidate = candidatePeaks.first();
+	    if (removed[currentCandidate])
+		continue;
 
-	    // Add this candidate to the final tree set sorted by MZ and remove
-	    // from tree set sorted by intensity
-	    finalMZPeaks.add(currentCandidate);
-	    candidatePeaks.remove(currentCandidate);
+	    // Always take the biggest (intensity) peak. Mark it as final and
+	    // remove it from the candidates.
+	    accepted[currentCandidate] = true;
+	    numOfAccepted++;
+	    unlink(currentCandidate, previous, next, removed);
 
-	    // Remove from tree set sorted by intensity all FTMS shoulder peaks,
-	    // taking as a main peak the current candidate
-	    removeLateralPeaks(currentCandidate, candidatePeaks, peakModel,
+	    // Remove all FTMS shoulder peaks, taking as a main peak the current
+	    // candidate
+	    removeLateralPeaks(currentCandidate, mzValues, intensityValues,
+		    minIntensity, previous, next, removed, peakModel,
 		    resolution);
 
 	}
 
-	return finalMZPeaks.toArray(new DataPoint[0]);
+	// Return the final peaks sorted by m/z in ascending order
+	DataPoint finalMZPeaks[] = new DataPoint[numOfAccepted];
+	int count = 0;
+	for (int i = 0; i < numOfPeaks; i++) {
+	    if (accepted[i])
+		finalMZPeaks[count++] = sortedPeaks[i];
+	}
+	return finalMZPeaks;
     }
 
     /**
@@ -98,30 +145,59 @@ public class ShoulderPeaksFilter {
      * (resolution parameter). Second search and remove all the lateral peaks
      * that are under the curve of the modeled peak.
      * 
+     * The peak models decrease with the distance from the main peak, so the
+     * search on each side stops where the model falls below the lowest
+     * intensity of all peaks.
+     * 
      */
-    private static void removeLateralPeaks(DataPoint currentCandidate,
-	    TreeSet<DataPoint> candidates, PeakModel peakModel,
-	    double resolution) {
+    private static void removeLateralPeaks(int currentCandidate,
+	    double mzValues[], double intensityValues[], double minIntensity,
+	    int previous[], int next[], boolean removed[],
+	    PeakModel peakModel, double resolution) {
 
 	// We set our peak model with same position(m/z), height(intensity) and
 	// resolution of the current peak
-	peakModel.setParameters(currentCandidate.getMZ(),
-		currentCandidate.getIntensity(), resolution);
-
-	// We search over all peak candidates and remove all of them that are
-	// under the curve defined by our peak model
-	Iterator<DataPoint> candidatesIterator = candidates.iterator();
-	while (candidatesIterator.hasNext()) {
-
-	    DataPoint lateralCandidate = candidatesIterator.next();
+	peakModel.setParameters(mzValues[currentCandidate],
+		intensityValues[currentCandidate], resolution);
+
+	// We search the peak candidates on both sides and remove all of them
+	// that are under the curve defined by our peak model
+	int lateralCandidate = previous[currentCandidate];
+	while (lateralCandidate >= 0) {
+	    final double modelIntensity = peakModel
+		    .getIntensity(mzValues[lateralCandidate]);
+	    if (modelIntensity <= minIntensity)
+		break;
+	    final int nextCandidate = previous[lateralCandidate];
+	    if (intensityValues[lateralCandidate] < modelIntensity)
+		unlink(lateralCandidate, previous, next, removed);
+	    lateralCandidate = nextCandidate;
+	}
 
-	    // Condition in x domain (m/z)
-	    if ((lateralCandidate.getIntensity() < peakModel
-		    .getIntensity(lateralCandidate.getMZ()))) {
-		candidatesIterator.remove();
-	    }
+	lateralCandidate = next[currentCandidate];
+	while (lateralCandidate >= 0) {
+	    final double modelIntensity = peakModel
+		    .getIntensity(mzValues[lateralCandidate]);
+	    if (modelIntensity <= minIntensity)
+		break;
+	    final int nextCandidate = next[lateralCandidate];
+	    if (intensityValues[lateralCandidate] < modelIntensity)
+		unlink(lateralCandidate, previous, next, removed);
+	    lateralCandidate = nextCandidate;
 	}
 
     }
 
+    /**
+     * Removes the peak from the linked candidates
+     */
+    private static void unlink(int peak, int previous[], int next[],
+	    boolean removed[]) {
+	if (previous[peak] >= 0)
+	    next[previous[peak]] = next[peak];
+	if (next[peak] >= 0)
+	    previous[next[peak]] = previous[peak];
+	removed[peak] = true;
+    }
+
 }
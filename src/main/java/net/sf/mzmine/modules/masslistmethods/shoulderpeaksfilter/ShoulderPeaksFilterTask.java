@@ -19,6 +19,12 @@
 
 package net.sf.mzmine.modules.masslistmethods.shoulderpeaksfilter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -29,6 +35,7 @@ import net.sf.mzmine.datamodel.impl.SimpleMassList;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 
 /**
  *
@@ -39,7 +46,8 @@ public class ShoulderPeaksFilterTask extends AbstractTask {
     private RawDataFile dataFile;
 
     // scan counter
-    private int processedScans = 0, totalScans;
+    private final AtomicInteger processedScans = new AtomicInteger();
+    private int totalScans;
     private int[] scanNumbers;
 
     // User parameters
@@ -80,7 +88,7 @@ public class ShoulderPeaksFilterTask extends AbstractTask {
 	if (totalScans == 0)
 	    return 0;
 	else
-	    return (double) processedScans / totalScans;
+	    return (double) processedScans.get() / totalScans;
     }
 
     public RawDataFile getDataFile() {
@@ -116,42 +124,67 @@ public class ShoulderPeaksFilterTask extends AbstractTask {
 	    return;
 	}
 
-	// Process all scans
-	for (int i = 0; i < totalScans; i++) {
+	// Process all scans. Each thread processes every numOfThreads-th scan.
+	final int numOfThreads = Math.max(1,
+		Math.min(totalScans, Runtime.getRuntime().availableProcessors()));
+	ExecutorService filterThreads = Executors
+		.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> filters = new ArrayList<Future<?>>();
+	    for (int t = 0; t < numOfThreads; t++) {
+		final int firstScan = t;
+		filters.add(filterThreads.submit(new Runnable() {
+		    public void run() {
+			for (int i = firstScan; !isCanceled() && i < totalScans; i += numOfThreads) {
+			    filterScan(dataFile.getScan(scanNumbers[i]));
+			    processedScans.incrementAndGet();
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> filter : filters)
+		filter.get();
+	} catch (Exception e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e));
+	    return;
+	} finally {
+	    filterThreads.shutdownNow();
+	}
 
-	    if (isCanceled())
-		return;
+	if (isCanceled())
+	    return;
 
-	    Scan scan = dataFile.getScan(scanNumbers[i]);
+	setStatus(TaskStatus.FINISHED);
 
-	    MassList massList = scan.getMassList(massListName);
+	logger.info("Finished shoulder peaks filter on " + dataFile);
 
-	    // Skip those scans which do not have a mass list of given name
-	    if (massList == null) {
-		processedScans++;
-		continue;
-	    }
+    }
 
-	    DataPoint mzPeaks[] = massList.getDataPoints();
+    /**
+     * Adds the filtered mass list to the scan
+     */
+    private void filterScan(Scan scan) {
 
-	    DataPoint newMzPeaks[] = ShoulderPeaksFilter.filterMassValues(
-		    mzPeaks, parameters);
+	MassList massList = scan.getMassList(massListName);
 
-	    SimpleMassList newMassList = new SimpleMassList(massListName + " "
-		    + suffix, scan, newMzPeaks);
+	// Skip those scans which do not have a mass list of given name
+	if (massList == null)
+	    return;
 
-	    scan.addMassList(newMassList);
+	DataPoint mzPeaks[] = massList.getDataPoints();
 
-	    // Remove old mass list
-	    if (autoRemove)
-		scan.removeMassList(massList);
+	DataPoint newMzPeaks[] = ShoulderPeaksFilter.filterMassValues(mzPeaks,
+		parameters);
 
-	    processedScans++;
-	}
+	SimpleMassList newMassList = new SimpleMassList(massListName + " "
+		+ suffix, scan, newMzPeaks);
 
-	setStatus(TaskStatus.FINISHED);
+	scan.addMassList(newMassList);
 
-	logger.info("Finished shoulder peaks filter on " + dataFile);
+	// Remove old mass list
+	if (autoRemove)
+	    scan.removeMassList(massList);
 
     }
 
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.util.ArrayUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * Index of the rows of one or more peak lists, used by the aligners to find
+ * the candidate rows within m/z and RT tolerance. The rows of each peak list
+ * are sorted by average m/z once, so each query is a binary search followed
+ * by a scan of the rows inside the m/z range, instead of a scan of all rows.
+ *
+ * Queries return the same rows in the same order as
+ * PeakList.getRowsInsideScanAndMZRange(). The average m/z and RT of the rows
+ * are read when the index is created, so the index must be created again if
+ * the rows of the peak list change. Rows can be removed from the index, e.g.
+ * after they were aligned. Queries are thread-safe, but must not run
+ * concurrently with removeRow().
+ */
+public class AlignmentCandidateIndex {
+
+    private final ListIndex listIndexes[];
+
+    /**
+     * Rows of one peak list sorted by m/z
+     */
+    private static class ListIndex {
+
+        // Rows in their original order
+        private final PeakListRow rows[];
+        private final HashMap<PeakListRow, Integer> rowPositions;
+        private final boolean removed[];
+
+        // Average m/z, RT and original position of the rows, sorted by m/z
+        private final double sortedMZ[], sortedRT[];
+        private final int sortedPositions[];
+
+        private ListIndex(final PeakListRow rows[]) {
+
+            this.rows = rows;
+            this.removed = new boolean[rows.length];
+            this.rowPositions = new HashMap<PeakListRow, Integer>();
+
+            final double mzValues[] = new double[rows.length];
+            final double rtValues[] = new double[rows.length];
+            Integer order[] = new Integer[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                mzValues[i] = rows[i].getAverageMZ();
+                rtValues[i] = rows[i].getAverageRT();
+                order[i] = i;
+                rowPositions.put(rows[i], i);
+            }
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Double.compare(mzValues[i1], mzValues[i2]);
+                }
+            });
+
+            sortedMZ = new double[rows.length];
+            sortedRT = new double[rows.length];
+            sortedPositions = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                sortedMZ[i] = mzValues[order[i]];
+                sortedRT[i] = rtValues[order[i]];
+                sortedPositions[i] = order[i];
+            }
+
+        }
+
+        private PeakListRow[] getRowsInsideScanAndMZRange(
+                Range<Double> rtRange, Range<Double> mzRange) {
+
+            // Find the first row which may be inside the m/z range
+            int start = 0;
+            if (mzRange.hasLowerBound())
+                start = ArrayUtils.lowerBound(sortedMZ,
+                        mzRange.lowerEndpoint());
+
+            int found[] = new int[16];
+            int foundCount = 0;
+            for (int i = start; i < sortedMZ.length; i++) {
+                if (mzRange.hasUpperBound()
+                        && (sortedMZ[i] > mzRange.upperEndpoint()))
+                    break;
+                final int position = sortedPositions[i];
+                if (removed[position] || !mzRange.contains(sortedMZ[i])
+                        || !rtRange.contains(sortedRT[i]))
+                    continue;
+                if (foundCount == found.length)
+                    found = Arrays.copyOf(found, foundCount * 2);
+                found[foundCount++] = position;
+            }
+
+            // Return the rows in their original order
+            Arrays.sort(found, 0, foundCount);
+            PeakListRow result[] = new PeakListRow[foundCount];
+            for (int i = 0; i < foundCount; i++)
+                result[i] = rows[found[i]];
+            return result;
+
+        }
+
+    }
+
+    /**
+     * Creates an index of the rows of all given peak lists
+     */
+    public AlignmentCandidateIndex(PeakList peakLists[]) {
+        listIndexes = new ListIndex[peakLists.length];
+        for (int i = 0; i < peakLists.length; i++)
+            listIndexes[i] = new ListIndex(peakLists[i].getRows());
+    }
+
+    /**
+     * Creates an index of the rows of one peak list
+     */
+    public AlignmentCandidateIndex(PeakList peakList) {
+        this(new PeakList[] { peakList });
+    }
+
+    /**
+     * Returns the rows of the peak list with given index, which are inside
+     * the RT and m/z ranges and were not removed, in their original order
+     */
+    public PeakListRow[] getRowsInsideScanAndMZRange(int peakListIndex,
+            Range<Double> rtRange, Range<Double> mzRange) {
+        return listIndexes[peakListIndex].getRowsInsideScanAndMZRange(
+                rtRange, mzRange);
+    }
+
+    /**
+     * Returns the rows of the first peak list, which are inside the RT and
+     * m/z ranges and were not removed, in their original order
+     */
+    public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange,
+            Range<Double> mzRange) {
+        return getRowsInsideScanAndMZRange(0, rtRange, mzRange);
+    }
+
+    /**
+     * Removes the row from the index of the peak list with given index, so it
+     * is not returned by following queries
+     */
+    public void removeRow(int peakListIndex, PeakListRow row) {
+        ListIndex listIndex = listIndexes[peakListIndex];
+        Integer position = listIndex.rowPositions.get(row);
+        if (position != null)
+            listIndex.removed[position] = true;
+    }
+
+}
@@ -33,6 +33,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.peaklistmethods.alignment.AlignmentCandidateIndex;
 import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreCalculator;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
@@ -164,6 +165,11 @@ class JoinAlignerTask extends AbstractTask {
 
             PeakListRow allRows[] = peakList.getRows();
 
+            // The aligned peak list does not change until this peak list is
+            // aligned
+            AlignmentCandidateIndex alignedIndex = new AlignmentCandidateIndex(
+                    alignedPeakList);
+
             // Calculate scores for all possible alignments of this row
             for (PeakListRow row : allRows) {
 
@@ -177,7 +183,7 @@ class JoinAlignerTask extends AbstractTask {
                         .getAverageRT());
 
                 // Get all rows of the aligned peaklist within parameter limits
-                PeakListRow candidateRows[] = alignedPeakList
+                PeakListRow candidateRows[] = alignedIndex
                         .getRowsInsideScanAndMZRange(rtRange, mzRange);
 
                 // Calculate scores and store them
@@ -35,9 +35,12 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.modules.peaklistmethods.alignment.AlignmentCandidateIndex;
 import net.sf.mzmine.modules.peaklistmethods.alignment.path.PathAlignerParameters;
 import net.sf.mzmine.modules.peaklistmethods.alignment.path.scorer.RTScore;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 
 public class ScoreAligner implements Aligner {
 
@@ -47,6 +50,8 @@ public class ScoreAligner implements Aligner {
     private volatile boolean aligningDone;
     private volatile Thread[] threads;
     private volatile List<List<PeakListRow>> peakList;
+    // Candidate rows of the sorted peak lists, aligned rows are removed
+    private volatile AlignmentCandidateIndex candidateIndex;
     private final List<PeakList> originalPeakList;
     private ScoreCalculator calc;
     private PeakList alignment;
@@ -71,6 +76,8 @@ public class ScoreAligner implements Aligner {
 	if (dataToAlign != null) {
 	    List<PeakList> copyOfData = new ArrayList<PeakList>(dataToAlign);
 	    java.util.Collections.sort(copyOfData, c);
+	    candidateIndex = new AlignmentCandidateIndex(
+		    copyOfData.toArray(new PeakList[0]));
 	    peakList = new ArrayList<List<PeakListRow>>();
 	    for (int i = 0; i < copyOfData.size(); i++) {
 		PeakListRow[] peakData = copyOfData.get(i).getRows();
@@ -80,6 +87,7 @@ public class ScoreAligner implements Aligner {
 	    }
 	} else {
 	    peakList = null;
+	    candidateIndex = null;
 	}
     }
 
@@ -170,11 +178,22 @@ public class ScoreAligner implements Aligner {
 	    PeakListRow base, List<List<PeakListRow>> listOfPeaksInFiles) {
 	int len = listOfPeaksInFiles.size();
 	AlignmentPath path = new AlignmentPath(len, base, col);
+	MZTolerance mzTolerance = params.getParameter(
+		PathAlignerParameters.MZTolerance).getValue();
+	RTTolerance rtTolerance = params.getParameter(
+		PathAlignerParameters.RTTolerance).getValue();
 	for (int i = (col + 1) % len; i != col; i = (i + 1) % len) {
 
+	    // Only the remaining rows within the m/z and RT tolerance of the
+	    // path can match
+	    PeakListRow candidates[] = candidateIndex
+		    .getRowsInsideScanAndMZRange(i,
+			    rtTolerance.getToleranceRange(path.getRT()),
+			    mzTolerance.getToleranceRange(path.getMZ()));
+
 	    PeakListRow bestPeak = null;
 	    double bestPeakScore = c.getWorstScore();
-	    for (PeakListRow curPeak : listOfPeaksInFiles.get(i)) {
+	    for (PeakListRow curPeak : candidates) {
 		if (curPeak == null || !c.matches(path, curPeak, params)) {
 		    // Either there isn't any peak left or it doesn't fill
 		    // requirements of current score calculator (for example,
@@ -208,6 +227,7 @@ public class ScoreAligner implements Aligner {
 	    PeakListRow d = p.getPeak(i);
 	    if (d != null) {
 		listOfPeaks.get(i).remove(d);
+		candidateIndex.removeRow(i, d);
 	    }
 	}
     }
@@ -16,13 +16,14 @@
  * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
  * Fifth Floor, Boston, MA 02110-1301 USA
  */
+
 package net.sf.mzmine.modules.peaklistmethods.alignment.ransac;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import net.sf.mzmine.parameters.ParameterSet;
 
@@ -30,8 +31,13 @@ import org.apache.commons.math.analysis.polynomials.PolynomialFunction;
 import org.apache.commons.math.optimization.fitting.PolynomialFitter;
 import org.apache.commons.math.optimization.general.GaussNewtonOptimizer;
 
-import com.google.common.collect.Range;
-
+/**
+ * RANSAC model fitting of the retention times of possible alignments. The
+ * iterations are distributed on a fork-join pool. Each fork-join task runs a
+ * block of iterations with its own random number generator, seeded from the
+ * seed parameter and the first iteration of the block, so the result for a
+ * given seed does not depend on the number of threads.
+ */
 public class RANSAC {
 
     /**
@@ -46,9 +52,45 @@ public class RANSAC {
     private int n;
     private double d = 1;
     private int k = 0;
-    private int AlsoNumber;
     private double numRatePoints, t;
     private boolean Linear;
+    private long seed;
+
+    // Number of iterations run by one fork-join task, and number of
+    // iterations run before checking whether more iterations are needed.
+    // Both are constant, so the result does not depend on the number of
+    // threads.
+    private static final int ITERATIONS_PER_TASK = 16;
+    private static final int ITERATIONS_PER_ROUND = 512;
+
+    // Probability that at least one sample contains only inliers, used to
+    // stop the iterations once the best model has enough inliers
+    private static final double CONFIDENCE = 0.99;
+
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    // Retention times of the possible alignments, sorted by the first RT
+    private double rt1[], rt2[];
+
+    // The samples take half of the points from each half of the RT range
+    private int firstHalfEnd, secondHalfStart;
+
+    /**
+     * Model fitted in one iteration
+     */
+    private static class Model {
+	private final int iteration, consensus;
+	private final int sample[];
+	private final PolynomialFunction function;
+
+	private Model(int iteration, int consensus, int sample[],
+		PolynomialFunction function) {
+	    this.iteration = iteration;
+	    this.consensus = consensus;
+	    this.sample = sample;
+	    this.function = function;
+	}
+    }
 
     public RANSAC(ParameterSet parameters) {
 
@@ -64,11 +106,15 @@ public class RANSAC {
 	this.Linear = parameters.getParameter(RansacAlignerParameters.Linear)
 		.getValue();
 
+	Integer seedValue = parameters.getParameter(
+		RansacAlignerParameters.RandomSeed).getValue();
+	this.seed = (seedValue != null) ? seedValue : 0;
+
     }
 
     /**
      * Set all parameters and start ransac.
-     * 
+     *
      * @param data
      *            vector with the points which represent all possible
      *            alignments.
@@ -104,200 +150,277 @@ public class RANSAC {
 
     /**
      * Calculate k (number of trials)
-     * 
+     *
      * @return number of trials "k" required to select a subset of n good data
      *         points.
      */
     private double getK() {
 	double w = numRatePoints;
 	double b = Math.pow(w, n);
-	return Math.log10(1 - 0.99) / Math.log10(1 - b)
+	return Math.log10(1 - CONFIDENCE) / Math.log10(1 - b)
 		+ (Math.sqrt(1 - b) / b);
     }
 
     /**
-     * RANSAC algorithm
-     * 
+     * Returns the number of iterations needed to select a sample of inliers
+     * with the given confidence, if the fraction of inliers is the one of the
+     * best model found so far
+     */
+    private int getRequiredIterations(int consensus) {
+	double w = (double) consensus / rt1.length;
+	double b = Math.pow(w, n);
+	if (b >= 1)
+	    return 1;
+	return (int) Math.ceil(Math.log(1 - CONFIDENCE) / Math.log(1 - b));
+    }
+
+    /**
+     * RANSAC algorithm. The iterations run in rounds on the fork-join pool,
+     * and stop when the best model found has enough inliers to make further
+     * iterations unnecessary, or after k iterations.
+     *
      * @param data
      *            vector with the points which represent all possible
      *            alignments.
      */
     public void ransac(List<AlignStructMol> data) {
-	double besterr = 9.9E99;
-
-	for (int iterations = 0; iterations < k; iterations++) {
-	    AlsoNumber = n;
-	    // Get the initial points
-	    boolean initN = getInitN(data);
-	    if (!initN) {
-		continue;
-	    }
 
-	    // Calculate the model
-	    fittPolinomialFunction(data, Linear);
-
-	    // If the model has the minimun number of points
-	    if (AlsoNumber >= d) {
-		// Get the error of the model based on the number of points
-		double error = 9.9E99;
-		try {
-		    error = newError(data);
-		} catch (Exception ex) {
-		    Logger.getLogger(RANSAC.class.getName()).log(Level.SEVERE,
-			    null, ex);
-		}
-
-		// If the error is less than the error of the last model
-		if (error < besterr) {
-		    besterr = error;
-		    for (int i = 0; i < data.size(); i++) {
-			AlignStructMol alignStruct = data.get(i);
-			if (alignStruct.ransacAlsoInLiers
-				|| alignStruct.ransacMaybeInLiers) {
-			    alignStruct.Aligned = true;
-			} else {
-			    alignStruct.Aligned = false;
-			}
-
-			alignStruct.ransacAlsoInLiers = false;
-			alignStruct.ransacMaybeInLiers = false;
-
-		    }
-		}
-	    }
-	    // remove the model
-	    for (int i = 0; i < data.size(); i++) {
-		AlignStructMol alignStruct = data.get(i);
-		alignStruct.ransacAlsoInLiers = false;
-		alignStruct.ransacMaybeInLiers = false;
+	Collections.sort(data, new AlignStructMol());
+
+	final int size = data.size();
+	rt1 = new double[size];
+	rt2 = new double[size];
+	for (int i = 0; i < size; i++) {
+	    AlignStructMol alignStruct = data.get(i);
+	    rt1[i] = alignStruct.RT;
+	    rt2[i] = alignStruct.RT2;
+	    alignStruct.Aligned = false;
+	}
+
+	if (size <= n)
+	    return;
+
+	final double min = rt1[0];
+	final double max = rt1[size - 1];
+	final double middle = ((max - min) / 2) + min;
+	firstHalfEnd = 0;
+	while ((firstHalfEnd < size) && (rt1[firstHalfEnd] <= middle))
+	    firstHalfEnd++;
+	secondHalfStart = firstHalfEnd;
+	while ((secondHalfStart > 0) && (rt1[secondHalfStart - 1] >= middle))
+	    secondHalfStart--;
+
+	Model bestModel = null;
+	int completedIterations = 0, maxIterations = k;
+	while (completedIterations < maxIterations) {
+	    final int roundEnd = Math.min(completedIterations
+		    + ITERATIONS_PER_ROUND, maxIterations);
+	    Model roundModel = pool.invoke(new IterationsTask(
+		    completedIterations, roundEnd));
+	    bestModel = getBetterModel(bestModel, roundModel);
+	    completedIterations = roundEnd;
+	    if (bestModel != null) {
+		maxIterations = Math.min(maxIterations,
+			getRequiredIterations(bestModel.consensus));
 	    }
+	}
+
+	if (bestModel == null)
+	    return;
 
+	// Mark the inliers of the best model as aligned
+	boolean inliers[] = getInliers(bestModel.function, bestModel.sample);
+	for (int i = 0; i < size; i++) {
+	    data.get(i).Aligned = inliers[i];
 	}
+
     }
 
     /**
-     * Take the initial points ramdoly. The points are divided by the initial
-     * number of points. If the fractions contain enough number of points took
-     * one point from each part.
-     * 
-     * @param data
-     *            vector with the points which represent all possible
-     *            alignments.
-     * @return false if there is any problem.
+     * Runs a range of iterations, splitting it into blocks of
+     * ITERATIONS_PER_TASK iterations
      */
-    private boolean getInitN(List<AlignStructMol> data) {
-	if (data.size() > n) {
-	    Collections.sort(data, new AlignStructMol());
-	    double min = data.get(0).RT;
-	    double max = data.get(data.size() - 1).RT;
-
-	    Range<Double> rtRange = Range.closed(min, ((max - min) / 2) + min);
+    private class IterationsTask extends RecursiveTask<Model> {
 
-	    int cont = 0, bucle = 0;
-	    while (cont < n / 2 && bucle < 1000) {
-		int index = (int) (data.size() * Math.random());
-		if (!data.get(index).ransacMaybeInLiers
-			&& rtRange.contains(data.get(index).RT)) {
-		    data.get(index).ransacMaybeInLiers = true;
-		    cont++;
+	private static final long serialVersionUID = 1L;
+	private final int start, end;
 
-		}
+	private IterationsTask(int start, int end) {
+	    this.start = start;
+	    this.end = end;
+	}
 
-		bucle++;
-	    }
-	    if (bucle >= 1000) {
-		getN(data, (n / 2) - cont);
+	@Override
+	protected Model compute() {
+
+	    // Split at a multiple of ITERATIONS_PER_TASK, so the blocks of
+	    // iterations and their random seeds are always the same
+	    final int blocks = (end - start + ITERATIONS_PER_TASK - 1)
+		    / ITERATIONS_PER_TASK;
+	    if (blocks > 1) {
+		final int middle = start + (blocks / 2) * ITERATIONS_PER_TASK;
+		IterationsTask firstTask = new IterationsTask(start, middle);
+		IterationsTask secondTask = new IterationsTask(middle, end);
+		firstTask.fork();
+		Model secondModel = secondTask.compute();
+		return getBetterModel(firstTask.join(), secondModel);
 	    }
 
-	    bucle = 0;
-	    rtRange = Range.closed(((max - min) / 2) + min, max);
+	    Random random = new Random(mixSeed(seed, start));
+	    Model bestModel = null;
+	    for (int iteration = start; iteration < end; iteration++) {
+		bestModel = getBetterModel(bestModel,
+			runIteration(random, iteration));
+	    }
+	    return bestModel;
 
-	    while (cont < n && bucle < 1000) {
+	}
+    }
 
-		int index = (int) (data.size() * Math.random());
-		if (!data.get(index).ransacMaybeInLiers
-			&& rtRange.contains(data.get(index).RT)) {
-		    data.get(index).ransacMaybeInLiers = true;
-		    cont++;
-		}
-		bucle++;
-	    }
-	    if (bucle >= 1000) {
-		getN(data, n - cont);
+    /**
+     * Fits a model to a random sample and counts its inliers
+     *
+     * @return the model, or null if it does not have the minimum number of
+     *         points
+     */
+    private Model runIteration(Random random, int iteration) {
+
+	// Get the initial points
+	int sample[] = getInitN(random);
+
+	// Calculate the model
+	PolynomialFunction function = fittPolinomialFunction(sample);
+	if (function == null)
+	    return null;
+
+	// Count the points which fit the model
+	int alsoNumber = n, consensus = 0;
+	for (int i = 0; i < rt1.length; i++) {
+	    if (Math.abs(rt2[i] - function.value(rt1[i])) < t) {
+		alsoNumber++;
+		consensus++;
+	    } else if (contains(sample, i)) {
+		consensus++;
 	    }
-	    return true;
-	} else {
-	    return false;
 	}
+
+	// If the model has the minimun number of points
+	if (alsoNumber < d)
+	    return null;
+
+	return new Model(iteration, consensus, sample, function);
+
     }
 
-    private void getN(List<AlignStructMol> data, int newN) {
-	if (newN < 1) {
-	    return;
+    /**
+     * The model with more inliers is better. For equal numbers of inliers,
+     * the model found in the earlier iteration is better, so the result does
+     * not depend on the order in which the iterations finish.
+     */
+    private static Model getBetterModel(Model model1, Model model2) {
+	if (model1 == null)
+	    return model2;
+	if (model2 == null)
+	    return model1;
+	if (model1.consensus != model2.consensus)
+	    return (model1.consensus > model2.consensus) ? model1 : model2;
+	return (model1.iteration < model2.iteration) ? model1 : model2;
+    }
+
+    private boolean[] getInliers(PolynomialFunction function, int sample[]) {
+	boolean inliers[] = new boolean[rt1.length];
+	for (int i = 0; i < rt1.length; i++) {
+	    inliers[i] = Math.abs(rt2[i] - function.value(rt1[i])) < t;
 	}
+	for (int index : sample)
+	    inliers[index] = true;
+	return inliers;
+    }
+
+    /**
+     * Take the initial points ramdoly. The points are divided by the initial
+     * number of points. If the fractions contain enough number of points took
+     * one point from each part.
+     *
+     * @return indexes of the selected points
+     */
+    private int[] getInitN(Random random) {
+	int sample[] = new int[n];
 	int cont = 0;
+	cont = getN(random, sample, cont, n / 2, 0, firstHalfEnd);
+	cont = getN(random, sample, cont, n, secondHalfStart, rt1.length);
+	return sample;
+    }
+
+    /**
+     * Adds random points from the given index range to the sample, until it
+     * contains newN points. If the range does not contain enough points, the
+     * rest is taken from all points.
+     */
+    private int getN(Random random, int sample[], int cont, int newN,
+	    int rangeStart, int rangeEnd) {
+
+	int bucle = 0;
+	while ((cont < newN) && (rangeEnd > rangeStart) && (bucle < 1000)) {
+	    int index = rangeStart + random.nextInt(rangeEnd - rangeStart);
+	    if (!contains(sample, cont, index)) {
+		sample[cont] = index;
+		cont++;
+	    }
+	    bucle++;
+	}
+
 	while (cont < newN) {
-	    int index = (int) (data.size() * Math.random());
-	    if (!data.get(index).ransacMaybeInLiers) {
-		data.get(index).ransacMaybeInLiers = true;
+	    int index = random.nextInt(rt1.length);
+	    if (!contains(sample, cont, index)) {
+		sample[cont] = index;
 		cont++;
 	    }
 	}
+
+	return cont;
+    }
+
+    private static boolean contains(int sample[], int index) {
+	return contains(sample, sample.length, index);
+    }
+
+    private static boolean contains(int sample[], int length, int index) {
+	for (int i = 0; i < length; i++) {
+	    if (sample[i] == index)
+		return true;
+	}
+	return false;
     }
 
-    private void fittPolinomialFunction(List<AlignStructMol> data,
-	    boolean linear) {
-	List<AlignStructMol> points = new ArrayList<AlignStructMol>();
+    private PolynomialFunction fittPolinomialFunction(int sample[]) {
 
 	int degree = 3;
-	if (linear) {
+	if (Linear) {
 	    degree = 1;
 	}
 
 	PolynomialFitter fitter = new PolynomialFitter(degree,
 		new GaussNewtonOptimizer(true));
-	for (int i = 0; i < data.size(); i++) {
-	    AlignStructMol point = data.get(i);
-	    if (point.ransacMaybeInLiers) {
-		points.add(point);
-		fitter.addObservedPoint(1, point.RT, point.RT2);
-	    }
+	for (int index : sample) {
+	    fitter.addObservedPoint(1, rt1[index], rt2[index]);
 	}
 	try {
-	    PolynomialFunction function = fitter.fit();
-	    for (AlignStructMol point : data) {
-		double y = point.RT2;
-		double bestY = function.value(point.RT);
-		if (Math.abs(y - bestY) < t) {
-		    point.ransacAlsoInLiers = true;
-		    AlsoNumber++;
-		} else {
-		    point.ransacAlsoInLiers = false;
-		}
-	    }
+	    return fitter.fit();
 	} catch (Exception ex) {
+	    return null;
 	}
     }
 
     /**
-     * calculate the error in the model
-     * 
-     * @param data
-     *            vector with the points which represent all possible
-     *            alignments.
-     * @param regression
-     *            regression of the alignment points
-     * @return the error in the model
+     * Derives the seed of the random number generator of one block of
+     * iterations, so that nearby blocks get unrelated random sequences
      */
-    private double newError(List<AlignStructMol> data) throws Exception {
-
-	double numT = 1;
-	for (int i = 0; i < data.size(); i++) {
-	    if (data.get(i).ransacAlsoInLiers || data.get(i).ransacMaybeInLiers) {
-		numT++;
-	    }
-	}
-	return 1 / numT;
-
+    private static long mixSeed(long seed, int firstIteration) {
+	long z = seed + firstIteration * 0x9E3779B97F4A7C15L;
+	z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+	z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+	return z ^ (z >>> 31);
     }
+
 }
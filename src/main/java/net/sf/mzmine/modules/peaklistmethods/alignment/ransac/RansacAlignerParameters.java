@@ -57,6 +57,11 @@ public class RansacAlignerParameters extends SimpleParameterSet {
 	    "Maximum number of iterations allowed in the algorithm to find the right model consistent in all the"
 		+ "\npairs of aligned peaks. When its value is 0, the number of iterations (k) will be estimate automatically.");
 
+    public static final IntegerParameter RandomSeed = new IntegerParameter(
+	    "Random seed",
+	    "Seed of the random number generator used to select the points of the RANSAC models."
+		+ "\nThe same seed always gives the same alignment.", 0);
+
     public static final PercentParameter NMinPoints = new PercentParameter(
 	    "Minimum number of points",
 	    "% of points required to consider the model valid (d).");
@@ -81,7 +86,7 @@ public class RansacAlignerParameters extends SimpleParameterSet {
 
     public RansacAlignerParameters() {
 	super(new Parameter[] { peakLists, peakListName, MZTolerance,
-		RTToleranceBefore, RTToleranceAfter, Iterations, NMinPoints,
-		Margin, Linear, SameChargeRequired });
+		RTToleranceBefore, RTToleranceAfter, Iterations, RandomSeed,
+		NMinPoints, Margin, Linear, SameChargeRequired });
     }
 }
@@ -34,6 +34,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.peaklistmethods.alignment.AlignmentCandidateIndex;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
@@ -65,6 +66,8 @@ class RansacAlignerTask extends AbstractTask {
     private boolean sameChargeRequired;
     // ID counter for the new peaklist
     private int newRowID = 1;
+    // Candidate rows of the source peak lists
+    private AlignmentCandidateIndex peakListsIndex;
 
     public RansacAlignerTask(MZmineProject project, PeakList[] peakLists,
 	    ParameterSet parameters) {
@@ -143,11 +146,16 @@ class RansacAlignerTask extends AbstractTask {
 	alignedPeakList = new SimplePeakList(peakListName,
 		allDataFiles.toArray(new RawDataFile[0]));
 
+	// Index the rows of all source peak lists once
+	peakListsIndex = new AlignmentCandidateIndex(peakLists);
+
 	// Iterate source peak lists
-	for (PeakList peakList : peakLists) {
+	for (int peakListIndex = 0; peakListIndex < peakLists.length; peakListIndex++) {
+
+	    PeakList peakList = peakLists[peakListIndex];
 
 	    HashMap<PeakListRow, PeakListRow> alignmentMapping = this
-		    .getAlignmentMap(peakList);
+		    .getAlignmentMap(peakList, peakListIndex);
 
 	    PeakListRow allRows[] = peakList.getRows();
 
@@ -193,9 +201,12 @@ class RansacAlignerTask extends AbstractTask {
     /**
      * 
      * @param peakList
+     * @param peakListIndex
+     *            index of the peak list in peakListsIndex
      * @return
      */
-    private HashMap<PeakListRow, PeakListRow> getAlignmentMap(PeakList peakList) {
+    private HashMap<PeakListRow, PeakListRow> getAlignmentMap(
+	    PeakList peakList, int peakListIndex) {
 
 	// Create a table of mappings for best scores
 	HashMap<PeakListRow, PeakListRow> alignmentMapping = new HashMap<PeakListRow, PeakListRow>();
@@ -208,9 +219,15 @@ class RansacAlignerTask extends AbstractTask {
 	TreeSet<RowVsRowScore> scoreSet = new TreeSet<RowVsRowScore>();
 
 	// RANSAC algorithm
-	List<AlignStructMol> list = ransacPeakLists(alignedPeakList, peakList);
+	List<AlignStructMol> list = ransacPeakLists(alignedPeakList,
+		peakListIndex);
 	PolynomialFunction function = this.getPolynomialFunction(list);
 
+	// The aligned peak list does not change until this peak list is
+	// aligned
+	AlignmentCandidateIndex alignedIndex = new AlignmentCandidateIndex(
+		alignedPeakList);
+
 	PeakListRow allRows[] = peakList.getRows();
 
 	for (PeakListRow row : allRows) {
@@ -231,7 +248,7 @@ class RansacAlignerTask extends AbstractTask {
 	    Range<Double> rtRange = rtToleranceAfter.getToleranceRange(rt);
 
 	    // Get all rows of the aligned peaklist within parameter limits
-	    PeakListRow candidateRows[] = alignedPeakList
+	    PeakListRow candidateRows[] = alignedIndex
 		    .getRowsInsideScanAndMZRange(rtRange, mzRange);
 
 	    for (PeakListRow candidate : candidateRows) {
@@ -285,13 +302,13 @@ class RansacAlignerTask extends AbstractTask {
      * RANSAC
      * 
      * @param alignedPeakList
-     * @param peakList
+     * @param peakListIndex
      * @return
      */
     private List<AlignStructMol> ransacPeakLists(PeakList alignedPeakList,
-	    PeakList peakList) {
+	    int peakListIndex) {
 	List<AlignStructMol> list = this.getVectorAlignment(alignedPeakList,
-		peakList);
+		peakListIndex);
 	RANSAC ransac = new RANSAC(parameters);
 	ransac.alignment(list);
 	return list;
@@ -366,11 +383,12 @@ class RansacAlignerTask extends AbstractTask {
      * Create the vector which contains all the possible aligned peaks.
      * 
      * @param peakListX
-     * @param peakListY
+     * @param peakListYIndex
+     *            index of the second peak list in peakListsIndex
      * @return vector which contains all the possible aligned peaks.
      */
     private List<AlignStructMol> getVectorAlignment(PeakList peakListX,
-	    PeakList peakListY) {
+	    int peakListYIndex) {
 
 	List<AlignStructMol> alignMol = new ArrayList<AlignStructMol>();
 	for (PeakListRow row : peakListX.getRows()) {
@@ -385,8 +403,9 @@ class RansacAlignerTask extends AbstractTask {
 		    .getAverageRT());
 
 	    // Get all rows of the aligned peaklist within parameter limits
-	    PeakListRow candidateRows[] = peakListY
-		    .getRowsInsideScanAndMZRange(rtRange, mzRange);
+	    PeakListRow candidateRows[] = peakListsIndex
+		    .getRowsInsideScanAndMZRange(peakListYIndex, rtRange,
+			    mzRange);
 
 	    for (PeakListRow candidateRow : candidateRows) {
 		alignMol.add(new AlignStructMol(row, candidateRow));
@@ -19,7 +19,6 @@
 
 package net.sf.mzmine.modules.peaklistmethods.filtering.duplicatefilter;
 
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -161,8 +160,8 @@ public class DuplicateFilterTask extends AbstractTask {
 	final PeakListRow[] peakListRows = origPeakList.getRows();
 	final int rowCount = peakListRows.length;
 
-	Arrays.sort(peakListRows, new PeakListRowSorter(SortingProperty.Area,
-		SortingDirection.Descending));
+	new PeakListRowSorter(SortingProperty.Area,
+		SortingDirection.Descending).sort(peakListRows);
 
 	// Loop through all peak list rows
 	processedRows = 0;
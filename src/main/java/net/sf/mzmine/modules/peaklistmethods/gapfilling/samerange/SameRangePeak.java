@@ -28,6 +28,7 @@ import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.util.MathUtils;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.ScanUtils;
@@ -279,6 +280,7 @@ class SameRangePeak implements Feature {
     }
 
     public Double getFWHM() {
+        QualityParameters.ensureQualityParameters(this);
         return fwhm;
     }
 
@@ -287,6 +289,7 @@ class SameRangePeak implements Feature {
     }
 
     public Double getTailingFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return tf;
     }
 
@@ -295,6 +298,7 @@ class SameRangePeak implements Feature {
     }
 
     public Double getAsymmetryFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return af;
     }
 
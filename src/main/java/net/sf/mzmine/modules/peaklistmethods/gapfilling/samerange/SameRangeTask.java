@@ -29,6 +29,7 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.CompactFeature;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
@@ -213,7 +214,7 @@ class SameRangeTask extends AbstractTask {
 	    newPeak.finalizePeak();
 	    if (newPeak.getArea() == 0)
 		return null;
-	    return newPeak;
+	    return new CompactFeature(newPeak);
 	}
 
 	return null;
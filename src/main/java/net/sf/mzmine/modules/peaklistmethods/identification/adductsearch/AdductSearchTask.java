@@ -24,7 +24,14 @@ import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.MZ_TOLERANCE;
 import static net.sf.mzmine.modules.peaklistmethods.identification.adductsearch.AdductSearchParameters.RT_TOLERANCE;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,17 +46,20 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ArrayUtils;
 import net.sf.mzmine.util.PeakListRowSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+import com.google.common.collect.Range;
+
 public class AdductSearchTask extends AbstractTask {
 
     // Logger.
     private static final Logger LOG = Logger.getLogger(AdductSearchTask.class
 	    .getName());
 
-    private int finishedRows;
+    private final AtomicInteger processedRows = new AtomicInteger();
     private int totalRows;
     private final PeakList peakList;
 
@@ -73,7 +83,6 @@ public class AdductSearchTask extends AbstractTask {
 	peakList = list;
 	parameters = parameterSet;
 
-	finishedRows = 0;
 	totalRows = 0;
 
 	rtTolerance = parameterSet.getParameter(RT_TOLERANCE).getValue();
@@ -86,7 +95,7 @@ public class AdductSearchTask extends AbstractTask {
     @Override
     public double getFinishedPercentage() {
 
-	return totalRows == 0 ? 0.0 : (double) finishedRows
+	return totalRows == 0 ? 0.0 : (double) processedRows.get()
 		/ (double) totalRows;
     }
 
@@ -131,54 +140,140 @@ public class AdductSearchTask extends AbstractTask {
     }
 
     /**
-     * Search peak-list for adducts.
+     * Search peak-list for adducts. The rows are searched in parallel. For
+     * each candidate adduct row, the main rows of each adduct type are found
+     * by a binary search in the rows sorted by m/z.
      */
-    private void searchAdducts() {
+    private void searchAdducts() throws Exception {
 
 	// Get rows.
 	final PeakListRow[] rows = peakList.getRows();
 	totalRows = rows.length;
 
 	// Start with the highest peaks.
-	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
-		SortingDirection.Descending));
+	new PeakListRowSorter(SortingProperty.Height,
+		SortingDirection.Descending).sort(rows);
+
+	// Sort the rows by m/z
+	final double mzValues[] = new double[totalRows];
+	Integer order[] = new Integer[totalRows];
+	for (int i = 0; i < totalRows; i++) {
+	    mzValues[i] = rows[i].getAverageMZ();
+	    order[i] = i;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(mzValues[i1], mzValues[i2]);
+	    }
+	});
+	final double sortedMZ[] = new double[totalRows];
+	final int sortedPositions[] = new int[totalRows];
+	for (int i = 0; i < totalRows; i++) {
+	    sortedMZ[i] = mzValues[order[i]];
+	    sortedPositions[i] = order[i];
+	}
 
-	// Compare each pair of rows against each other.
-	for (int i = 0; !isCanceled() && i < totalRows; i++) {
-	    for (int j = 0; !isCanceled() && j < totalRows; j++) {
+	// Find the adducts of all rows. Each thread processes every
+	// numOfThreads-th row.
+	final long foundAdducts[][] = new long[totalRows][];
+	final int numOfThreads = Math.max(1,
+		Math.min(totalRows, Runtime.getRuntime().availableProcessors()));
+	ExecutorService searchThreads = Executors
+		.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> searches = new ArrayList<Future<?>>();
+	    for (int t = 0; t < numOfThreads; t++) {
+		final int firstRow = t;
+		searches.add(searchThreads.submit(new Runnable() {
+		    public void run() {
+			for (int j = firstRow; !isCanceled() && j < totalRows; j += numOfThreads) {
+			    foundAdducts[j] = findAdducts(rows, j, sortedMZ,
+				    sortedPositions);
+			    processedRows.incrementAndGet();
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> search : searches)
+		search.get();
+	} finally {
+	    searchThreads.shutdownNow();
+	}
 
-		if (i == j)
-		    continue;
+	if (isCanceled())
+	    return;
 
-		findAdducts(rows[i], rows[j]);
+	// Add adduct identities and notify GUI.
+	for (int j = 0; j < totalRows; j++) {
+	    final PeakListRow possibleAdduct = rows[j];
+	    for (long foundAdduct : foundAdducts[j]) {
+		final PeakListRow mainRow = rows[(int) (foundAdduct / selectedAdducts.length)];
+		final AdductType adduct = selectedAdducts[(int) (foundAdduct % selectedAdducts.length)];
+		possibleAdduct.addPeakIdentity(new AdductIdentity(mainRow,
+			adduct), false);
+		MZmineCore.getProjectManager().getCurrentProject()
+			.notifyObjectChanged(possibleAdduct, false);
 	    }
-
-	    finishedRows++;
 	}
     }
 
     /**
-     * Check if candidate peak may be a possible adduct of a given main peak.
+     * Find the main rows of which the candidate row may be an adduct.
      *
-     * @param mainRow
-     *            main peak.
-     * @param possibleAdduct
-     *            candidate adduct peak.
+     * @param rows
+     *            rows sorted by height.
+     * @param adductRow
+     *            position of the candidate adduct row.
+     * @return the main row positions and adduct types, encoded as main row
+     *         position * number of adduct types + adduct type index, in the
+     *         order of the main rows and adduct types.
      */
-    private void findAdducts(final PeakListRow mainRow,
-	    final PeakListRow possibleAdduct) {
+    private long[] findAdducts(final PeakListRow[] rows, final int adductRow,
+	    final double[] sortedMZ, final int[] sortedPositions) {
 
-	for (final AdductType adduct : selectedAdducts) {
+	final PeakListRow possibleAdduct = rows[adductRow];
+	final double adductMZ = possibleAdduct.getAverageMZ();
 
-	    if (checkAdduct(mainRow, possibleAdduct, adduct)) {
+	// The m/z of the main row plus the mass difference is below twice the
+	// adduct m/z for any sensible tolerance, so the tolerance at twice
+	// the adduct m/z bounds the search window. The small margin covers the
+	// rounding errors.
+	final Range<Double> windowToleranceRange = mzTolerance
+		.getToleranceRange(2 * Math.abs(adductMZ));
+	final double windowTolerance = (windowToleranceRange.upperEndpoint() - windowToleranceRange
+		.lowerEndpoint()) / 2 + 0.000001;
 
-		// Add adduct identity and notify GUI.
-		possibleAdduct.addPeakIdentity(new AdductIdentity(mainRow,
-			adduct), false);
-		MZmineCore.getProjectManager().getCurrentProject()
-			.notifyObjectChanged(possibleAdduct, false);
+	long found[] = new long[4];
+	int foundCount = 0;
+	for (int a = 0; a < selectedAdducts.length; a++) {
+
+	    final AdductType adduct = selectedAdducts[a];
+	    final double mainMZ = adductMZ - adduct.getMassDifference();
+
+	    final int first = ArrayUtils.lowerBound(sortedMZ, mainMZ
+		    - windowTolerance);
+	    for (int i = first; i < sortedMZ.length; i++) {
+
+		if (sortedMZ[i] > mainMZ + windowTolerance)
+		    break;
+
+		final int mainRow = sortedPositions[i];
+		if (mainRow == adductRow)
+		    continue;
+
+		if (checkAdduct(rows[mainRow], possibleAdduct, adduct)) {
+		    if (foundCount == found.length)
+			found = Arrays.copyOf(found, foundCount * 2);
+		    found[foundCount++] = (long) mainRow
+			    * selectedAdducts.length + a;
+		}
 	    }
 	}
+
+	found = Arrays.copyOf(found, foundCount);
+	Arrays.sort(found);
+	return found;
     }
 
     /**
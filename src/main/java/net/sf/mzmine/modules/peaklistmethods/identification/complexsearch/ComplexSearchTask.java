@@ -19,7 +19,15 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.complexsearch;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.IonizationType;
@@ -35,9 +43,7 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.PeakListRowSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.ArrayUtils;
 
 import com.google.common.collect.Range;
 
@@ -45,7 +51,8 @@ public class ComplexSearchTask extends AbstractTask {
 
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
-    private int finishedRows, totalRows;
+    private int totalRows;
+    private final AtomicInteger processedRows = new AtomicInteger();
     private PeakList peakList;
 
     private RTTolerance rtTolerance;
@@ -54,6 +61,13 @@ public class ComplexSearchTask extends AbstractTask {
     private IonizationType ionType;
     private ParameterSet parameters;
 
+    // Average m/z and RT of the rows in the order of the peak list
+    private double mzValues[], rtValues[];
+
+    // Positions of the rows sorted by RT and by m/z
+    private double sortedRT[], sortedMZ[];
+    private int rtSortedPositions[], mzSortedPositions[];
+
     /**
      * @param parameters
      * @param peakList
@@ -80,7 +94,7 @@ public class ComplexSearchTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedRows) / totalRows;
+	return ((double) processedRows.get()) / totalRows;
     }
 
     /**
@@ -99,44 +113,64 @@ public class ComplexSearchTask extends AbstractTask {
 
 	logger.info("Starting complex search in " + peakList);
 
-	PeakListRow rows[] = peakList.getRows();
-	totalRows = rows.length;
+	// Rows in the order of the peak list
+	final PeakListRow listRows[] = peakList.getRows();
+	totalRows = listRows.length;
+	createIndexes(listRows);
 
 	// Sort the array by m/z so we start with biggest peak (possible
 	// complex)
-	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.MZ,
-		SortingDirection.Descending));
-
-	// Compare each three rows against each other
-	for (int i = 0; i < totalRows; i++) {
-
-	    Range<Double> testRTRange = rtTolerance.getToleranceRange(rows[i]
-		    .getAverageRT());
-	    PeakListRow testRows[] = peakList
-		    .getRowsInsideScanRange(testRTRange);
-
-	    for (int j = 0; j < testRows.length; j++) {
-
-		for (int k = j; k < testRows.length; k++) {
-
-		    // Task canceled?
-		    if (isCanceled())
-			return;
-
-		    // To avoid finding a complex of the peak itself and another
-		    // very small m/z peak
-		    if ((rows[i] == testRows[j]) || (rows[i] == testRows[k]))
-			continue;
-
-		    if (checkComplex(rows[i], testRows[j], testRows[k]))
-			addComplexInfo(rows[i], testRows[j], testRows[k]);
-
-		}
-
+	Integer rows[] = new Integer[totalRows];
+	for (int i = 0; i < totalRows; i++)
+	    rows[i] = i;
+	Arrays.sort(rows, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(mzValues[i2], mzValues[i1]);
 	    }
+	});
+
+	// Find the complexes of all rows. Each thread processes every
+	// numOfThreads-th row.
+	final long foundComplexes[][] = new long[totalRows][];
+	final int numOfThreads = Math.max(1,
+		Math.min(totalRows, Runtime.getRuntime().availableProcessors()));
+	ExecutorService searchThreads = Executors
+		.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> searches = new ArrayList<Future<?>>();
+	    for (int t = 0; t < numOfThreads; t++) {
+		final int firstRow = t;
+		searches.add(searchThreads.submit(new Runnable() {
+		    public void run() {
+			for (int i = firstRow; !isCanceled() && i < totalRows; i += numOfThreads) {
+			    foundComplexes[i] = findComplexes(listRows, i);
+			    processedRows.incrementAndGet();
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> search : searches)
+		search.get();
+	} catch (Exception e) {
+	    logger.log(Level.SEVERE, "Complex search error", e);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.toString());
+	    return;
+	} finally {
+	    searchThreads.shutdownNow();
+	}
 
-	    finishedRows++;
+	// Task canceled?
+	if (isCanceled())
+	    return;
 
+	for (int i : rows) {
+	    for (long foundComplex : foundComplexes[i]) {
+		addComplexInfo(listRows[i],
+			listRows[(int) (foundComplex / totalRows)],
+			listRows[(int) (foundComplex % totalRows)]);
+	    }
 	}
 
 	// Add task description to peakList
@@ -155,6 +189,112 @@ public class ComplexSearchTask extends AbstractTask {
 
     }
 
+    /**
+     * Sorts the rows by RT and by m/z
+     */
+    private void createIndexes(PeakListRow rows[]) {
+
+	mzValues = new double[rows.length];
+	rtValues = new double[rows.length];
+	Integer rtOrder[] = new Integer[rows.length];
+	Integer mzOrder[] = new Integer[rows.length];
+	for (int i = 0; i < rows.length; i++) {
+	    mzValues[i] = rows[i].getAverageMZ();
+	    rtValues[i] = rows[i].getAverageRT();
+	    rtOrder[i] = i;
+	    mzOrder[i] = i;
+	}
+
+	Arrays.sort(rtOrder, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(rtValues[i1], rtValues[i2]);
+	    }
+	});
+	Arrays.sort(mzOrder, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(mzValues[i1], mzValues[i2]);
+	    }
+	});
+
+	sortedRT = new double[rows.length];
+	rtSortedPositions = new int[rows.length];
+	sortedMZ = new double[rows.length];
+	mzSortedPositions = new int[rows.length];
+	for (int i = 0; i < rows.length; i++) {
+	    sortedRT[i] = rtValues[rtOrder[i]];
+	    rtSortedPositions[i] = rtOrder[i];
+	    sortedMZ[i] = mzValues[mzOrder[i]];
+	    mzSortedPositions[i] = mzOrder[i];
+	}
+
+    }
+
+    /**
+     * Finds the pairs of rows of which the given row may be a complex. The
+     * first rows of the pairs are taken from the rows within the RT tolerance,
+     * and the second rows are found by a binary search for the expected m/z
+     * in the rows sorted by m/z.
+     * 
+     * @return the pairs of row positions, encoded as first position * number
+     *         of rows + second position, in the order of the peak list
+     */
+    private long[] findComplexes(PeakListRow rows[], int complexRow) {
+
+	final double addedMass = ionType.getAddedMass();
+	Range<Double> rtRange = rtTolerance.getToleranceRange(rtValues[complexRow]);
+	Range<Double> mzRange = mzTolerance.getToleranceRange(mzValues[complexRow]
+		- addedMass);
+
+	long found[] = new long[4];
+	int foundCount = 0;
+
+	final int firstRT = ArrayUtils.lowerBound(sortedRT,
+		rtRange.lowerEndpoint());
+	for (int j = firstRT; j < sortedRT.length; j++) {
+
+	    if (sortedRT[j] > rtRange.upperEndpoint())
+		break;
+
+	    final int row1 = rtSortedPositions[j];
+	    if ((row1 == complexRow) || !rtRange.contains(rtValues[row1]))
+		continue;
+
+	    // The sum of the neutral masses of both rows must be within the
+	    // tolerance of the neutral mass of the complex. The small margin
+	    // covers the rounding errors.
+	    final double lowerMZ = mzRange.lowerEndpoint() + 2 * addedMass
+		    - mzValues[row1] - 0.000001;
+	    final double upperMZ = mzRange.upperEndpoint() + 2 * addedMass
+		    - mzValues[row1] + 0.000001;
+
+	    final int firstMZ = ArrayUtils.lowerBound(sortedMZ, lowerMZ);
+	    for (int k = firstMZ; k < sortedMZ.length; k++) {
+
+		if (sortedMZ[k] > upperMZ)
+		    break;
+
+		// Each pair is tested once, with the rows in the order of the
+		// peak list
+		final int row2 = mzSortedPositions[k];
+		if ((row2 < row1) || (row2 == complexRow))
+		    continue;
+
+		if (checkComplex(rows[complexRow], rows[row1], rows[row2])) {
+		    if (foundCount == found.length)
+			found = Arrays.copyOf(found, foundCount * 2);
+		    found[foundCount++] = (long) row1 * rows.length + row2;
+		}
+	    }
+	}
+
+	found = Arrays.copyOf(found, foundCount);
+	Arrays.sort(found);
+	return found;
+
+    }
+
     /**
      * Check if candidate peak may be a possible complex of given two peaks
      * 
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import net.sf.mzmine.util.ArrayUtils;
+
+import com.Ostermiller.util.CSVParser;
+import com.google.common.collect.Range;
+
+/**
+ * Compounds of a custom database, sorted by m/z. The database file is read
+ * line by line, and the compiled index is kept in a cache file in the cache
+ * directory. The cache file is used again as long as the checksum of the
+ * database file and the import settings do not change. Cache files of older
+ * versions of the database file are removed, and the cache directory keeps at
+ * most MAX_CACHE_FILES files, removing the least recently used ones.
+ *
+ * Compounds without m/z (m/z 0) match any m/z, so they are kept separately.
+ * Each compound has the number of its line in the database, which is used to
+ * return the matching compounds in the order of the database file.
+ */
+class CustomDBIndex {
+
+    private static final Logger logger = Logger.getLogger(CustomDBIndex.class
+	    .getName());
+
+    private static final int CACHE_FILE_MAGIC = 0x4D5A4442;
+    private static final int CACHE_FILE_VERSION = 1;
+
+    // Default cache directory, which is kept between runs
+    private static final File DEFAULT_CACHE_DIRECTORY = new File(
+	    System.getProperty("java.io.tmpdir"), "mzmine_customdb");
+
+    // Maximum number of files in the cache directory
+    static final int MAX_CACHE_FILES = 20;
+
+    // Compounds with m/z, sorted by m/z
+    private final double mzValues[], rtValues[];
+    private final int lineNumbers[];
+
+    // Compounds without m/z, in the order of the database file
+    private final double anyMZRTValues[];
+    private final int anyMZLineNumbers[];
+
+    // Compound values by line number
+    private final double lineMZValues[], lineRTValues[];
+    private final String ids[], names[], formulas[];
+
+    private CustomDBIndex(double mzValues[], double rtValues[],
+	    String ids[], String names[], String formulas[]) {
+
+	final int numOfCompounds = mzValues.length;
+	this.lineMZValues = mzValues;
+	this.lineRTValues = rtValues;
+	this.ids = ids;
+	this.names = names;
+	this.formulas = formulas;
+
+	int numOfAnyMZ = 0;
+	for (double mz : mzValues) {
+	    if (mz == 0d)
+		numOfAnyMZ++;
+	}
+
+	anyMZRTValues = new double[numOfAnyMZ];
+	anyMZLineNumbers = new int[numOfAnyMZ];
+	final List<Integer> order = new ArrayList<Integer>(numOfCompounds
+		- numOfAnyMZ);
+	int anyMZIndex = 0;
+	for (int i = 0; i < numOfCompounds; i++) {
+	    if (mzValues[i] == 0d) {
+		anyMZRTValues[anyMZIndex] = rtValues[i];
+		anyMZLineNumbers[anyMZIndex] = i;
+		anyMZIndex++;
+	    } else {
+		order.add(i);
+	    }
+	}
+
+	final double allMZValues[] = mzValues;
+	Integer sortedOrder[] = order.toArray(new Integer[0]);
+	Arrays.sort(sortedOrder, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(allMZValues[i1], allMZValues[i2]);
+	    }
+	});
+
+	this.mzValues = new double[sortedOrder.length];
+	this.rtValues = new double[sortedOrder.length];
+	this.lineNumbers = new int[sortedOrder.length];
+	for (int i = 0; i < sortedOrder.length; i++) {
+	    this.mzValues[i] = mzValues[sortedOrder[i]];
+	    this.rtValues[i] = rtValues[sortedOrder[i]];
+	    this.lineNumbers[i] = sortedOrder[i];
+	}
+
+    }
+
+    /**
+     * Returns the index of the database file, from the cache file if it is up
+     * to date, otherwise by reading the database file
+     */
+    static CustomDBIndex load(File dataBaseFile, char fieldSeparator,
+	    FieldItem fieldOrder[], boolean ignoreFirstLine) throws IOException {
+	return load(dataBaseFile, fieldSeparator, fieldOrder, ignoreFirstLine,
+		DEFAULT_CACHE_DIRECTORY);
+    }
+
+    /**
+     * Returns the index of the database file, using the cache files in given
+     * directory
+     */
+    static CustomDBIndex load(File dataBaseFile, char fieldSeparator,
+	    FieldItem fieldOrder[], boolean ignoreFirstLine,
+	    File cacheDirectory) throws IOException {
+
+	final long checksum = getChecksum(dataBaseFile);
+	final String settings = fieldSeparator + Arrays.toString(fieldOrder)
+		+ ignoreFirstLine;
+
+	// Cache files of all versions of the database file with the same
+	// settings have the same prefix
+	final String prefix = Integer.toHexString(dataBaseFile
+		.getAbsolutePath().hashCode())
+		+ "_"
+		+ Integer.toHexString(settings.hashCode()) + "_";
+	final File cacheFile = new File(cacheDirectory, prefix
+		+ Long.toHexString(checksum) + ".cache");
+
+	if (cacheFile.exists()) {
+	    try {
+		CustomDBIndex index = readCacheFile(cacheFile, checksum,
+			settings);
+		if (index != null) {
+		    logger.finest("Using cached index " + cacheFile + " of "
+			    + dataBaseFile);
+		    cacheFile.setLastModified(System.currentTimeMillis());
+		    return index;
+		}
+	    } catch (IOException e) {
+		logger.log(Level.WARNING, "Could not read cached index "
+			+ cacheFile + " of " + dataBaseFile, e);
+	    }
+	}
+
+	CustomDBIndex index = readDatabaseFile(dataBaseFile, fieldSeparator,
+		fieldOrder, ignoreFirstLine);
+
+	index.writeCacheFile(cacheFile, checksum, settings);
+	removeOldCacheFiles(cacheDirectory, prefix, cacheFile);
+
+	return index;
+
+    }
+
+    /**
+     * Reads the database file line by line. Lines which cannot be parsed are
+     * ignored.
+     */
+    private static CustomDBIndex readDatabaseFile(File dataBaseFile,
+	    char fieldSeparator, FieldItem fieldOrder[], boolean ignoreFirstLine)
+	    throws IOException {
+
+	List<Double> mzValues = new ArrayList<Double>();
+	List<Double> rtValues = new ArrayList<Double>();
+	List<String> ids = new ArrayList<String>();
+	List<String> names = new ArrayList<String>();
+	List<String> formulas = new ArrayList<String>();
+
+	FileReader dbFileReader = new FileReader(dataBaseFile);
+	try {
+
+	    CSVParser parser = new CSVParser(dbFileReader, fieldSeparator);
+	    if (ignoreFirstLine)
+		parser.getLine();
+
+	    String values[];
+	    while ((values = parser.getLine()) != null) {
+
+		int numOfColumns = Math.min(fieldOrder.length, values.length);
+
+		String lineID = null, lineName = null, lineFormula = null;
+		double lineMZ = 0, lineRT = 0;
+
+		try {
+		    for (int i = 0; i < numOfColumns; i++) {
+			if (fieldOrder[i] == FieldItem.FIELD_ID)
+			    lineID = values[i];
+			if (fieldOrder[i] == FieldItem.FIELD_NAME)
+			    lineName = values[i];
+			if (fieldOrder[i] == FieldItem.FIELD_FORMULA)
+			    lineFormula = values[i];
+			if (fieldOrder[i] == FieldItem.FIELD_MZ)
+			    lineMZ = Double.parseDouble(values[i]);
+			if (fieldOrder[i] == FieldItem.FIELD_RT)
+			    lineRT = Double.parseDouble(values[i]);
+		    }
+		} catch (NumberFormatException e) {
+		    // ignore incorrect lines
+		    continue;
+		}
+
+		mzValues.add(lineMZ);
+		rtValues.add(lineRT);
+		ids.add(lineID);
+		names.add(lineName);
+		formulas.add(lineFormula);
+
+	    }
+
+	} finally {
+	    dbFileReader.close();
+	}
+
+	final int numOfCompounds = mzValues.size();
+	double mzArray[] = new double[numOfCompounds];
+	double rtArray[] = new double[numOfCompounds];
+	for (int i = 0; i < numOfCompounds; i++) {
+	    mzArray[i] = mzValues.get(i);
+	    rtArray[i] = rtValues.get(i);
+	}
+
+	return new CustomDBIndex(mzArray, rtArray, ids.toArray(new String[0]),
+		names.toArray(new String[0]), formulas.toArray(new String[0]));
+
+    }
+
+    /**
+     * Returns the line numbers of the compounds with m/z inside the m/z range
+     * (or without m/z) and RT inside the RT range (or without RT), in the
+     * order of the database file
+     */
+    int[] findCompounds(Range<Double> mzRange, Range<Double> rtRange) {
+
+	int found[] = new int[16];
+	int foundCount = 0;
+
+	// Find the first compound which may be inside the m/z range
+	final int first = ArrayUtils.lowerBound(mzValues,
+		mzRange.lowerEndpoint());
+
+	for (int i = first; i < mzValues.length; i++) {
+	    if (mzValues[i] > mzRange.upperEndpoint())
+		break;
+	    if (!mzRange.contains(mzValues[i]))
+		continue;
+	    if ((rtValues[i] != 0d) && !rtRange.contains(rtValues[i]))
+		continue;
+	    if (foundCount == found.length)
+		found = Arrays.copyOf(found, foundCount * 2);
+	    found[foundCount++] = lineNumbers[i];
+	}
+
+	for (int i = 0; i < anyMZLineNumbers.length; i++) {
+	    if ((anyMZRTValues[i] != 0d) && !rtRange.contains(anyMZRTValues[i]))
+		continue;
+	    if (foundCount == found.length)
+		found = Arrays.copyOf(found, foundCount * 2);
+	    found[foundCount++] = anyMZLineNumbers[i];
+	}
+
+	found = Arrays.copyOf(found, foundCount);
+	Arrays.sort(found);
+	return found;
+
+    }
+
+    int getNumberOfCompounds() {
+	return ids.length;
+    }
+
+    double getMZ(int lineNumber) {
+	return lineMZValues[lineNumber];
+    }
+
+    double getRT(int lineNumber) {
+	return lineRTValues[lineNumber];
+    }
+
+    String getID(int lineNumber) {
+	return ids[lineNumber];
+    }
+
+    String getName(int lineNumber) {
+	return names[lineNumber];
+    }
+
+    String getFormula(int lineNumber) {
+	return formulas[lineNumber];
+    }
+
+    private static long getChecksum(File file) throws IOException {
+	CRC32 crc = new CRC32();
+	InputStream input = new FileInputStream(file);
+	try {
+	    byte buffer[] = new byte[65536];
+	    int read;
+	    while ((read = input.read(buffer)) > 0)
+		crc.update(buffer, 0, read);
+	} finally {
+	    input.close();
+	}
+	return crc.getValue();
+    }
+
+    /**
+     * Reads the cache file, or returns null if it was created from a
+     * different database file or with different settings
+     */
+    private static CustomDBIndex readCacheFile(File cacheFile, long checksum,
+	    String settings) throws IOException {
+
+	DataInputStream input = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(cacheFile)));
+	try {
+
+	    if ((input.readInt() != CACHE_FILE_MAGIC)
+		    || (input.readInt() != CACHE_FILE_VERSION)
+		    || (input.readLong() != checksum)
+		    || (!input.readUTF().equals(settings)))
+		return null;
+
+	    final int numOfCompounds = input.readInt();
+	    double mzValues[] = new double[numOfCompounds];
+	    double rtValues[] = new double[numOfCompounds];
+	    String ids[] = new String[numOfCompounds];
+	    String names[] = new String[numOfCompounds];
+	    String formulas[] = new String[numOfCompounds];
+	    for (int i = 0; i < numOfCompounds; i++) {
+		mzValues[i] = input.readDouble();
+		rtValues[i] = input.readDouble();
+		ids[i] = readString(input);
+		names[i] = readString(input);
+		formulas[i] = readString(input);
+	    }
+
+	    return new CustomDBIndex(mzValues, rtValues, ids, names, formulas);
+
+	} finally {
+	    input.close();
+	}
+
+    }
+
+    /**
+     * Writes the compounds to the cache file in the order of the database
+     * file. The index is sorted again when the cache file is read. The file is
+     * written to a temporary file first, so other threads or instances never
+     * read an incomplete cache file.
+     */
+    private void writeCacheFile(File cacheFile, long checksum, String settings) {
+
+	File cacheDirectory = cacheFile.getParentFile();
+	if (!cacheDirectory.exists())
+	    cacheDirectory.mkdirs();
+
+	File tempFile = new File(cacheFile.getPath() + ".tmp"
+		+ Thread.currentThread().getId());
+	final int numOfCompounds = ids.length;
+	try {
+	    DataOutputStream output = new DataOutputStream(
+		    new BufferedOutputStream(new FileOutputStream(tempFile)));
+	    try {
+		output.writeInt(CACHE_FILE_MAGIC);
+		output.writeInt(CACHE_FILE_VERSION);
+		output.writeLong(checksum);
+		output.writeUTF(settings);
+		output.writeInt(numOfCompounds);
+		for (int i = 0; i < numOfCompounds; i++) {
+		    output.writeDouble(lineMZValues[i]);
+		    output.writeDouble(lineRTValues[i]);
+		    writeString(output, ids[i]);
+		    writeString(output, names[i]);
+		    writeString(output, formulas[i]);
+		}
+	    } finally {
+		output.close();
+	    }
+	    if (!tempFile.renameTo(cacheFile)) {
+		cacheFile.delete();
+		if (!tempFile.renameTo(cacheFile))
+		    throw new IOException("Could not rename " + tempFile);
+	    }
+	} catch (IOException e) {
+	    logger.log(Level.WARNING, "Could not write cached index "
+		    + cacheFile, e);
+	    tempFile.delete();
+	}
+
+    }
+
+    /**
+     * Removes the cache files of other versions of the database file, and the
+     * least recently used files if there are more than MAX_CACHE_FILES cache
+     * files in the cache directory. Temporary files are left to the threads
+     * writing them.
+     */
+    private static void removeOldCacheFiles(File cacheDirectory,
+	    String prefix, File cacheFile) {
+
+	File files[] = cacheDirectory.listFiles();
+	if (files == null)
+	    return;
+
+	final Map<File, Long> lastModified = new HashMap<File, Long>();
+	List<File> otherFiles = new ArrayList<File>();
+	for (File file : files) {
+	    // Temporary files of cache files being written are not counted
+	    if (file.equals(cacheFile) || (!file.getName().endsWith(".cache")))
+		continue;
+	    if (file.getName().startsWith(prefix)) {
+		file.delete();
+		continue;
+	    }
+	    lastModified.put(file, file.lastModified());
+	    otherFiles.add(file);
+	}
+
+	final int numOfRemovedFiles = otherFiles.size() + 1 - MAX_CACHE_FILES;
+	if (numOfRemovedFiles <= 0)
+	    return;
+
+	Collections.sort(otherFiles, new Comparator<File>() {
+	    @Override
+	    public int compare(File f1, File f2) {
+		return lastModified.get(f1).compareTo(lastModified.get(f2));
+	    }
+	});
+	for (int i = 0; i < numOfRemovedFiles; i++)
+	    otherFiles.get(i).delete();
+
+    }
+
+    private static String readString(DataInputStream input)
+	    throws IOException {
+	if (!input.readBoolean())
+	    return null;
+	return input.readUTF();
+    }
+
+    private static void writeString(DataOutputStream output, String value)
+	    throws IOException {
+	output.writeBoolean(value != null);
+	if (value != null)
+	    output.writeUTF(value);
+    }
+
+}
@@ -20,7 +20,12 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
 
 import java.io.File;
-import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,7 +42,6 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
-import com.Ostermiller.util.CSVParser;
 import com.google.common.collect.Range;
 
 class CustomDBSearchTask extends AbstractTask {
@@ -46,8 +50,8 @@ class CustomDBSearchTask extends AbstractTask {
 
     private PeakList peakList;
 
-    private String[][] databaseValues;
-    private int finishedLines = 0;
+    private int totalRows = 0;
+    private final AtomicInteger finishedRows = new AtomicInteger();
 
     private File dataBaseFile;
     private String fieldSeparator;
@@ -83,9 +87,9 @@ class CustomDBSearchTask extends AbstractTask {
      * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
      */
     public double getFinishedPercentage() {
-	if (databaseValues == null)
+	if (totalRows == 0)
 	    return 0;
-	return ((double) finishedLines) / databaseValues.length;
+	return ((double) finishedRows.get()) / totalRows;
     }
 
     /**
@@ -103,26 +107,11 @@ class CustomDBSearchTask extends AbstractTask {
 
 	setStatus(TaskStatus.PROCESSING);
 
+	final CustomDBIndex dataBaseIndex;
 	try {
-	    // read database contents in memory
-	    FileReader dbFileReader = new FileReader(dataBaseFile);
-	    databaseValues = CSVParser.parse(dbFileReader,
-		    fieldSeparator.charAt(0));
-	    if (ignoreFirstLine)
-		finishedLines++;
-	    for (; finishedLines < databaseValues.length; finishedLines++) {
-	        if (isCanceled()) {
-	            dbFileReader.close();
-	            return;
-	        }
-		try {
-		    processOneLine(databaseValues[finishedLines]);
-		} catch (Exception e) {
-		    // ingore incorrect lines
-		}
-	    }
-	    dbFileReader.close();
-
+	    // read database contents into the index
+	    dataBaseIndex = CustomDBIndex.load(dataBaseFile,
+		    fieldSeparator.charAt(0), fieldOrder, ignoreFirstLine);
 	} catch (Exception e) {
 	    logger.log(Level.WARNING, "Could not read file " + dataBaseFile, e);
 	    setStatus(TaskStatus.ERROR);
@@ -130,6 +119,56 @@ class CustomDBSearchTask extends AbstractTask {
 	    return;
 	}
 
+	logger.info("Searching " + dataBaseIndex.getNumberOfCompounds()
+		+ " compounds of " + dataBaseFile + " in " + peakList);
+
+	// Find the matching compounds of the rows in parallel. Each thread
+	// processes every numOfThreads-th row.
+	final PeakListRow rows[] = peakList.getRows();
+	final int matchingCompounds[][] = new int[rows.length][];
+	totalRows = rows.length;
+	final int numOfThreads = Math.max(1,
+		Math.min(rows.length, Runtime.getRuntime().availableProcessors()));
+	ExecutorService searchThreads = Executors
+		.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> searches = new ArrayList<Future<?>>();
+	    for (int i = 0; i < numOfThreads; i++) {
+		final int firstRow = i;
+		searches.add(searchThreads.submit(new Runnable() {
+		    public void run() {
+			for (int j = firstRow; j < rows.length; j += numOfThreads) {
+			    if (isCanceled())
+				return;
+			    matchingCompounds[j] = findCompounds(
+				    dataBaseIndex, rows[j]);
+			    finishedRows.incrementAndGet();
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> search : searches)
+		search.get();
+	} catch (Exception e) {
+	    logger.log(Level.WARNING, "Error while searching " + dataBaseFile,
+		    e);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.toString());
+	    return;
+	} finally {
+	    searchThreads.shutdownNow();
+	}
+
+	if (isCanceled())
+	    return;
+
+	// Add the identities in the order of the rows and of the database
+	for (int i = 0; i < rows.length; i++) {
+	    for (int lineNumber : matchingCompounds[i]) {
+		addIdentity(dataBaseIndex, lineNumber, rows[i]);
+	    }
+	}
+
 	// Add task description to peakList
 	peakList.addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
 		"Peak identification using database " + dataBaseFile,
@@ -144,53 +183,40 @@ class CustomDBSearchTask extends AbstractTask {
 
     }
 
-    private void processOneLine(String values[]) {
-
-	int numOfColumns = Math.min(fieldOrder.length, values.length);
-
-	String lineID = null, lineName = null, lineFormula = null;
-	double lineMZ = 0, lineRT = 0;
-
-	for (int i = 0; i < numOfColumns; i++) {
-	    if (fieldOrder[i] == FieldItem.FIELD_ID)
-		lineID = values[i];
-	    if (fieldOrder[i] == FieldItem.FIELD_NAME)
-		lineName = values[i];
-	    if (fieldOrder[i] == FieldItem.FIELD_FORMULA)
-		lineFormula = values[i];
-	    if (fieldOrder[i] == FieldItem.FIELD_MZ)
-		lineMZ = Double.parseDouble(values[i]);
-	    if (fieldOrder[i] == FieldItem.FIELD_RT)
-		lineRT = Double.parseDouble(values[i]);
-	}
+    /**
+     * Returns the database compounds within the tolerances of the row
+     */
+    private int[] findCompounds(CustomDBIndex dataBaseIndex,
+	    PeakListRow peakRow) {
 
-	SimplePeakIdentity newIdentity = new SimplePeakIdentity(lineName,
-		lineFormula, dataBaseFile.getName(), lineID, null);
+	Range<Double> mzRange = mzTolerance.getToleranceRange(peakRow
+		.getAverageMZ());
+	Range<Double> rtRange = rtTolerance.getToleranceRange(peakRow
+		.getAverageRT());
 
-	for (PeakListRow peakRow : peakList.getRows()) {
+	return dataBaseIndex.findCompounds(mzRange, rtRange);
 
-	    Range<Double> mzRange = mzTolerance.getToleranceRange(peakRow
-		    .getAverageMZ());
-	    Range<Double> rtRange = rtTolerance.getToleranceRange(peakRow
-		    .getAverageRT());
+    }
 
-	    boolean mzMatches = (lineMZ == 0d) || mzRange.contains(lineMZ);
-	    boolean rtMatches = (lineRT == 0d) || rtRange.contains(lineRT);
+    private void addIdentity(CustomDBIndex dataBaseIndex, int lineNumber,
+	    PeakListRow peakRow) {
 
-	    if (mzMatches && rtMatches) {
+	String lineName = dataBaseIndex.getName(lineNumber);
 
-		logger.finest("Found compound " + lineName + " (m/z " + lineMZ
-			+ ", RT " + lineRT + ")");
+	logger.finest("Found compound " + lineName + " (m/z "
+		+ dataBaseIndex.getMZ(lineNumber) + ", RT "
+		+ dataBaseIndex.getRT(lineNumber) + ")");
 
-		// add new identity to the row
-		peakRow.addPeakIdentity(newIdentity, false);
+	SimplePeakIdentity newIdentity = new SimplePeakIdentity(lineName,
+		dataBaseIndex.getFormula(lineNumber), dataBaseFile.getName(),
+		dataBaseIndex.getID(lineNumber), null);
 
-		// Notify the GUI about the change in the project
-		MZmineCore.getProjectManager().getCurrentProject()
-			.notifyObjectChanged(peakRow, false);
+	// add new identity to the row
+	peakRow.addPeakIdentity(newIdentity, false);
 
-	    }
-	}
+	// Notify the GUI about the change in the project
+	MZmineCore.getProjectManager().getCurrentProject()
+		.notifyObjectChanged(peakRow, false);
 
     }
 }
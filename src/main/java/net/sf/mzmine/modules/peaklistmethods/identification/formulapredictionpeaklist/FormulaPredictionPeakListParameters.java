@@ -26,6 +26,7 @@ import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.Isotop
 import net.sf.mzmine.modules.peaklistmethods.msms.msmsscore.MSMSScoreParameters;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalModuleParameter;
@@ -62,12 +63,17 @@ public class FormulaPredictionPeakListParameters extends SimpleParameterSet {
 	    "Search only for formulas with a isotope pattern similar",
 	    new IsotopePatternScoreParameters());
 
+    public static final BooleanParameter fastIsotopePrediction = new BooleanParameter(
+	    "Fast isotope pattern prediction",
+	    "If checked, the isotope patterns of all candidate formulas of a peak list row are predicted together by convolution of the element isotope distributions, instead of one by one with the CDK generator",
+	    false);
+
     public static final OptionalModuleParameter msmsFilter = new OptionalModuleParameter(
 	    "MS/MS filter", "Check MS/MS data", new MSMSScoreParameters());
 
     public FormulaPredictionPeakListParameters() {
 	super(new Parameter[] { charge, ionization, PEAK_LISTS, mzTolerance,
 		elements, elementalRatios, rdbeRestrictions, isotopeFilter,
-		msmsFilter });
+		fastIsotopePrediction, msmsFilter });
     }
 }
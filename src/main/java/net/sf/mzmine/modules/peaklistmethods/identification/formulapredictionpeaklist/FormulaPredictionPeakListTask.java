@@ -69,7 +69,8 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
     private double searchedMass;
     private int charge;
     private PeakList peakList;
-    private boolean checkIsotopes, checkMSMS, checkRatios, checkRDBE;
+    private boolean checkIsotopes, checkMSMS, checkRatios, checkRDBE,
+            fastIsotopePrediction;
     private ParameterSet isotopeParameters, msmsParameters, ratiosParameters,
             rdbeParameters;
     private MZTolerance mzTolerance;
@@ -109,6 +110,9 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
         isotopeParameters = parameters
                 .getParameter(FormulaPredictionPeakListParameters.isotopeFilter)
                 .getEmbeddedParameters();
+        fastIsotopePrediction = parameters.getParameter(
+                FormulaPredictionPeakListParameters.fastIsotopePrediction)
+                .getValue() == Boolean.TRUE;
 
         checkMSMS = parameters
                 .getParameter(FormulaPredictionPeakListParameters.msmsFilter)
@@ -184,11 +188,22 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
                     massRange.lowerEndpoint(), massRange.upperEndpoint(),
                     elementCounts);
 
+            List<IMolecularFormula> candidates = new ArrayList<IMolecularFormula>();
             IMolecularFormula cdkFormula;
             while ((cdkFormula = generator.getNextFormula()) != null) {
-                // Mass is ok, so test other constraints
-                checkConstraints(cdkFormula, row);
+                // Mass is ok, so test the elemental constraints
+                if (checkElementalConstraints(cdkFormula))
+                    candidates.add(cdkFormula);
+            }
+
+            if (isCanceled())
+                return;
+
+            IsotopePattern predictedPatterns[] = predictIsotopePatterns(
+                    candidates, row);
 
+            for (int i = 0; i < candidates.size(); i++) {
+                checkConstraints(candidates.get(i), predictedPatterns[i], row);
             }
 
             if (isCanceled())
@@ -213,15 +228,17 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
 
     }
 
-    private void checkConstraints(IMolecularFormula cdkFormula,
-            PeakListRow peakListRow) {
+    /**
+     * Checks the elemental ratios and RDBE of the formula
+     */
+    private boolean checkElementalConstraints(IMolecularFormula cdkFormula) {
 
         // Check elemental ratios
         if (checkRatios) {
             boolean check = ElementalHeuristicChecker.checkFormula(cdkFormula,
                     ratiosParameters);
             if (!check) {
-                return;
+                return false;
             }
         }
 
@@ -232,37 +249,71 @@ public class FormulaPredictionPeakListTask extends AbstractTask {
             boolean check = RDBERestrictionChecker.checkRDBE(rdbeValue,
                     rdbeParameters);
             if (!check) {
-                return;
+                return false;
             }
         }
 
-        // Calculate isotope similarity score
+        return true;
+
+    }
+
+    /**
+     * Predicts the isotope patterns of all candidate formulas of the row, or
+     * returns nulls if the isotope patterns are not checked. The fast
+     * prediction calculates the patterns of the whole row as one batch.
+     */
+    private IsotopePattern[] predictIsotopePatterns(
+            List<IMolecularFormula> candidates, PeakListRow peakListRow) {
+
+        IsotopePattern predictedPatterns[] = new IsotopePattern[candidates
+                .size()];
         IsotopePattern detectedPattern = peakListRow.getBestIsotopePattern();
-        IsotopePattern predictedIsotopePattern = null;
-        Double isotopeScore = null;
-        if ((checkIsotopes) && (detectedPattern != null)) {
+        if ((!checkIsotopes) || (detectedPattern == null))
+            return predictedPatterns;
 
+        String adjustedFormulas[] = new String[candidates.size()];
+        for (int i = 0; i < adjustedFormulas.length; i++) {
             String stringFormula = MolecularFormulaManipulator
-                    .getString(cdkFormula);
-
-            String adjustedFormula = FormulaUtils.ionizeFormula(stringFormula,
+                    .getString(candidates.get(i));
+            adjustedFormulas[i] = FormulaUtils.ionizeFormula(stringFormula,
                     ionType, charge);
+        }
 
-            final double isotopeNoiseLevel = isotopeParameters
-                    .getParameter(
-                            IsotopePatternScoreParameters.isotopeNoiseLevel)
-                    .getValue();
+        final double isotopeNoiseLevel = isotopeParameters
+                .getParameter(IsotopePatternScoreParameters.isotopeNoiseLevel)
+                .getValue();
 
-            final double detectedPatternHeight = detectedPattern
-                    .getHighestDataPoint().getIntensity();
+        final double detectedPatternHeight = detectedPattern
+                .getHighestDataPoint().getIntensity();
 
-            final double minPredictedAbundance = isotopeNoiseLevel
-                    / detectedPatternHeight;
+        final double minPredictedAbundance = isotopeNoiseLevel
+                / detectedPatternHeight;
 
-            predictedIsotopePattern = IsotopePatternCalculator
-                    .calculateIsotopePattern(adjustedFormula,
+        if (fastIsotopePrediction) {
+            return IsotopePatternCalculator.calculateIsotopePatterns(
+                    adjustedFormulas, minPredictedAbundance, charge,
+                    ionType.getPolarity());
+        }
+
+        for (int i = 0; i < adjustedFormulas.length; i++) {
+            predictedPatterns[i] = IsotopePatternCalculator
+                    .calculateIsotopePattern(adjustedFormulas[i],
                             minPredictedAbundance, charge,
                             ionType.getPolarity());
+        }
+        return predictedPatterns;
+
+    }
+
+    private void checkConstraints(IMolecularFormula cdkFormula,
+            IsotopePattern predictedIsotopePattern, PeakListRow peakListRow) {
+
+        Double rdbeValue = RDBERestrictionChecker.calculateRDBE(cdkFormula);
+
+        // Calculate isotope similarity score
+        IsotopePattern detectedPattern = peakListRow.getBestIsotopePattern();
+        Double isotopeScore = null;
+        if (predictedIsotopePattern != null) {
 
             isotopeScore = IsotopePatternScoreCalculator.getSimilarityScore(
                     detectedPattern, predictedIsotopePattern,
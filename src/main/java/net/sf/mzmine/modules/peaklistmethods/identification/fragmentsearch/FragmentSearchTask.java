@@ -19,7 +19,6 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.fragmentsearch;
 
-import java.util.Arrays;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -105,8 +104,8 @@ public class FragmentSearchTask extends AbstractTask {
 	totalRows = rows.length;
 
 	// Start with the highest peaks
-	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
-		SortingDirection.Descending));
+	new PeakListRowSorter(SortingProperty.Height,
+		SortingDirection.Descending).sort(rows);
 
 	// Compare each two rows against each other
 	for (int i = 0; i < totalRows; i++) {
@@ -20,12 +20,14 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
 
 import net.sf.mzmine.datamodel.IonizationType;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.PercentParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZToleranceParameter;
@@ -50,8 +52,13 @@ public class Ms2SearchParameters extends SimpleParameterSet {
     public static final DoubleParameter scoreThreshold = new DoubleParameter(
             "Minimum score to report","Minimum MS2 comparison score to report");
     
+    public static final OptionalParameter<DoubleParameter> maxPrecursorDifference = new OptionalParameter<>(
+            new DoubleParameter("Maximum precursor m/z difference",
+                    "Only compare MS2 spectra with precursor m/z values differing by at most this value",
+                    MZmineCore.getConfiguration().getMZFormat()));
+    
     public Ms2SearchParameters() {
-        super(new Parameter[] { peakLists1, peakLists2, massList, mzTolerance,intensityThreshold, minimumIonsMatched,scoreThreshold});
+        super(new Parameter[] { peakLists1, peakLists2, massList, mzTolerance,intensityThreshold, minimumIonsMatched,scoreThreshold, maxPrecursorDifference});
     }
 
 }
@@ -19,21 +19,27 @@
 
 package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
-import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.modules.peaklistmethods.identification.ms2search.Ms2SimilarityEngine.Ms2Match;
+import net.sf.mzmine.modules.peaklistmethods.identification.ms2search.Ms2SimilarityEngine.Ms2Spectrum;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
@@ -106,6 +112,7 @@ class Ms2SearchTask extends AbstractTask {
     private double intensityThreshold;
     private int minimumIonsMatched;
     private String massListName;
+    private double maxPrecursorDifference;
 
     /**
      * @param parameters
@@ -133,6 +140,14 @@ class Ms2SearchTask extends AbstractTask {
         massListName = parameters.getParameter(Ms2SearchParameters.massList)
                 .getValue();
 
+        maxPrecursorDifference = Double.POSITIVE_INFINITY;
+        if (parameters.getParameter(Ms2SearchParameters.maxPrecursorDifference)
+                .getValue()) {
+            maxPrecursorDifference = parameters
+                    .getParameter(Ms2SearchParameters.maxPrecursorDifference)
+                    .getEmbeddedParameter().getValue();
+        }
+
         
     }
 
@@ -163,35 +178,79 @@ class Ms2SearchTask extends AbstractTask {
         logger.info("Starting MS2 similarity search between " + peakList1 + "and"
                 + peakList2 + "with mz tolerance:"+mzTolerance.getPpmTolerance());
 
-        Ms2SearchResult searchResult;
-        PeakListRow rows1[] = peakList1.getRows();
+        final PeakListRow rows1[] = peakList1.getRows();
         PeakListRow rows2[] = peakList2.getRows();
         
-        int rows1Length = rows1.length;
-        int rows2Length = rows2.length;
-        
-        totalRows = rows1Length;
-        
-        for (int i = 0; i < rows1Length; i++) {
-            for (int j = 0; j < rows2Length; j++) {
-                Feature featureA = rows1[i].getBestPeak();
-                Feature featureB = rows2[j].getBestPeak();
-                
-                searchResult = simpleMS2similarity(featureA,
-                        featureB, intensityThreshold, mzTolerance, massListName);
-                
-                //Report the final score to the peaklist identity
-                if (searchResult != null 
-                        && searchResult.getScore() > scoreThreshold 
-                        && searchResult.getNumIonsMatched() >= minimumIonsMatched)
-                    addFragmentClusterIdentity(rows1[i],featureA,featureB,searchResult);
-              
+        totalRows = rows1.length;
+
+        // Extract the MS2 spectra of both peak lists once
+        final Ms2Spectrum spectra1[], spectra2[];
+        try {
+            spectra1 = createSpectra(rows1);
+            spectra2 = createSpectra(rows2);
+        } catch (IllegalStateException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.getMessage());
+            return;
+        }
+
+        if (isCanceled())
+            return;
+
+        final Ms2SimilarityEngine engine = new Ms2SimilarityEngine(spectra2,
+                mzTolerance, scoreThreshold, minimumIonsMatched,
+                maxPrecursorDifference);
+
+        // Search the spectra of the first peak list in parallel, and report
+        // the matches in the order of the rows
+        final int numOfThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService searchThreads = Executors
+                .newFixedThreadPool(numOfThreads);
+        try {
+
+            LinkedList<Future<List<Ms2Match>>> searches = new LinkedList<Future<List<Ms2Match>>>();
+            int nextRow = 0, reportedRows = 0;
+            while (reportedRows < rows1.length) {
+
                 if (isCanceled())
                     return;
+
+                // Limit the number of rows searched ahead
+                while ((nextRow < rows1.length)
+                        && (searches.size() < 4 * numOfThreads)) {
+                    final Ms2Spectrum query = spectra1[nextRow++];
+                    searches.add(searchThreads
+                            .submit(new Callable<List<Ms2Match>>() {
+                                @Override
+                                public List<Ms2Match> call() {
+                                    if ((query == null) || isCanceled())
+                                        return Collections.emptyList();
+                                    return engine.search(query);
+                                }
+                            }));
+                }
+
+                List<Ms2Match> matches = searches.removeFirst().get();
+
+                //Report the final score to the peaklist identity
+                for (Ms2Match match : matches) {
+                    addFragmentClusterIdentity(rows1[reportedRows],
+                            spectra1[reportedRows].getFeature(),
+                            match.getLibraryFeature(), match.getResult());
+                }
+
+                //Update progress bar
+                reportedRows++;
+                finishedRows++;
             }
-            
-        //Update progress bar
-        finishedRows++;
+
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error in MS2 similarity search", e);
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.toString());
+            return;
+        } finally {
+            searchThreads.shutdownNow();
         }
 
         // Add task description to peakList
@@ -211,93 +270,23 @@ class Ms2SearchTask extends AbstractTask {
 
     }
     
-    private Ms2SearchResult simpleMS2similarity(Feature featureA, Feature featureB,
-            double intensityThreshold, MZTolerance mzRange, String massList) {
-
-        double runningScoreTotal = 0.0;
-        double mzRangePPM = mzRange.getPpmTolerance();
-        
-        List<DataPoint> matchedIons = new ArrayList<DataPoint>();
-
-        // Fetch 1st feature MS2 scan.
-        int ms2ScanNumberA = featureA.getMostIntenseFragmentScanNumber();
-        Scan scanMS2A = featureA.getDataFile().getScan(ms2ScanNumberA);
-        //RawDataFile featureADataFile = featureA.getDataFile();
-
-        // Fetch 2nd feature MS2 scan.
-        int ms2ScanNumberB = featureB.getMostIntenseFragmentScanNumber();
-        Scan scanMS2B = featureB.getDataFile().getScan(ms2ScanNumberB);
-        //RawDataFile peak2DataFile = featureB.getDataFile();
-        
-        if (scanMS2A == null || scanMS2B == null)
-        {
-            return null;
-        }
-
-        //Fetch centroided data
-        MassList massListA = scanMS2A.getMassList(massListName);
-        MassList massListB = scanMS2B.getMassList(massListName);
-        
-        if (massListA == null)
-        {
-            //Will this work properly? As this function isn't directly the task?
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Scan " + scanMS2A.getDataFile().getName() + " #" + scanMS2A.getScanNumber()
-                    + " does not have a mass list " + massListName);
-            return null;        
-        }
-        
-        if (massListB == null)
-        {
-            //Will this work properly? As this function isn't directly the task?
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Scan " + scanMS2B.getDataFile().getName() + " #" + scanMS2B.getScanNumber()
-                    + " does not have a mass list " + massListName);
-            return null;        
-        }
-     
-        DataPoint[] ionsA = null;
-        DataPoint[] ionsB = null;
-     
-        ionsA = massListA.getDataPoints();
-        ionsB = massListB.getDataPoints();
-        
-        if (ionsA == null || ionsB == null || ionsA.length == 0 || ionsB.length == 0)
-        {
-            //Fall back to profile data?
-             //Profile / raw data.
-            //ionsA = scanMS2A.getDataPointsOverIntensity(intensityThreshold);
-            //ionsB = scanMS2B.getDataPointsOverIntensity(intensityThreshold);
-         return null;   
-        }
-                
-        // Compare every ion peak in MS2 scan A, to every ion peak in MS2 scan B.
-        double ionsBMaxMZ = ionsB[ionsB.length - 1].getMZ();
-        for (int i = 0; i < ionsA.length; i++) {
-            
-            double iMZ = ionsA[i].getMZ();
-            double mzRangeAbsolute = iMZ * 1e-6 * mzRangePPM;
-            
-            if (iMZ - mzRangeAbsolute > ionsBMaxMZ)
-                break; //Potential speedup heuristic. If any i is greater than the max of j, no more matches are possible.
-            
-            for (int j = 0; j < ionsB.length; j++) {
-               
-                double jMZ = ionsB[j].getMZ();
-                
-                if (iMZ < jMZ - mzRangeAbsolute)
-                    break; //Potential speedup heuristic. iMZ smaller than jMZ.  Skip the rest of the j's as they can only increase.
-                    
-                if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
-                    runningScoreTotal += ionsA[i].getIntensity()
-                            * ionsB[j].getIntensity();
-                    matchedIons.add(ionsA[i]);
-                }
-
-            }
+    /**
+     * Extracts the MS2 spectrum of the best peak of each row
+     * 
+     * @throws IllegalStateException
+     *             if a MS2 scan does not have the mass list
+     */
+    private Ms2Spectrum[] createSpectra(PeakListRow rows[]) {
+        Ms2Spectrum spectra[] = new Ms2Spectrum[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            if (isCanceled())
+                break;
+            Feature bestPeak = rows[i].getBestPeak();
+            if (bestPeak != null)
+                spectra[i] = Ms2SimilarityEngine.createSpectrum(bestPeak,
+                        massListName);
         }
-        Ms2SearchResult result = new Ms2SearchResult(runningScoreTotal,"simple",matchedIons);
-        return result;
+        return spectra;
     }
 
     /**
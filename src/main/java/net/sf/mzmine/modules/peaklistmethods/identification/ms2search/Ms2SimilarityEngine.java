@@ -0,0 +1,300 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+/**
+ * Compares MS2 spectra with the simple similarity score of Ms2SearchTask: the
+ * sum of the intensity products of all pairs of ions within the m/z
+ * tolerance.
+ *
+ * The mass list of each spectrum is extracted once into arrays sorted by m/z,
+ * so a comparison is a merge join of the two arrays. The library spectra are
+ * sorted by precursor m/z, so only the spectra within the maximum precursor
+ * m/z difference of the query spectrum are compared. The search() method is
+ * thread-safe.
+ */
+class Ms2SimilarityEngine {
+
+    /**
+     * MS2 spectrum of one feature, with the ions sorted by m/z
+     */
+    static class Ms2Spectrum {
+
+        private final Feature feature;
+        private final double precursorMZ;
+        private final DataPoint ions[];
+        private final double mzValues[], intensities[];
+
+        private Ms2Spectrum(Feature feature, double precursorMZ,
+                DataPoint ions[]) {
+            this.feature = feature;
+            this.precursorMZ = precursorMZ;
+            this.ions = ions;
+            mzValues = new double[ions.length];
+            intensities = new double[ions.length];
+            for (int i = 0; i < ions.length; i++) {
+                mzValues[i] = ions[i].getMZ();
+                intensities[i] = ions[i].getIntensity();
+            }
+        }
+
+        Feature getFeature() {
+            return feature;
+        }
+
+    }
+
+    /**
+     * Result of a successful comparison of a query spectrum with a library
+     * spectrum
+     */
+    static class Ms2Match {
+
+        private final Ms2Spectrum librarySpectrum;
+        private final Ms2SearchResult result;
+
+        private Ms2Match(Ms2Spectrum librarySpectrum, Ms2SearchResult result) {
+            this.librarySpectrum = librarySpectrum;
+            this.result = result;
+        }
+
+        Feature getLibraryFeature() {
+            return librarySpectrum.feature;
+        }
+
+        Ms2SearchResult getResult() {
+            return result;
+        }
+
+    }
+
+    private final MZTolerance mzTolerance;
+    private final double scoreThreshold;
+    private final int minimumIonsMatched;
+    private final double maxPrecursorDifference;
+
+    // Library spectra in their original order, and their positions sorted by
+    // precursor m/z
+    private final Ms2Spectrum librarySpectra[];
+    private final double sortedPrecursorMZ[];
+    private final int sortedPositions[];
+
+    /**
+     * @param librarySpectra
+     *            spectra compared with each query spectrum, null elements are
+     *            ignored
+     * @param maxPrecursorDifference
+     *            maximum difference of the precursor m/z of the compared
+     *            spectra, or Double.POSITIVE_INFINITY to compare all spectra
+     */
+    Ms2SimilarityEngine(final Ms2Spectrum librarySpectra[],
+            MZTolerance mzTolerance, double scoreThreshold,
+            int minimumIonsMatched, double maxPrecursorDifference) {
+
+        this.librarySpectra = librarySpectra;
+        this.mzTolerance = mzTolerance;
+        this.scoreThreshold = scoreThreshold;
+        this.minimumIonsMatched = minimumIonsMatched;
+        this.maxPrecursorDifference = maxPrecursorDifference;
+
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < librarySpectra.length; i++) {
+            if (librarySpectra[i] != null)
+                order.add(i);
+        }
+        Integer sortedOrder[] = order.toArray(new Integer[0]);
+        Arrays.sort(sortedOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(librarySpectra[i1].precursorMZ,
+                        librarySpectra[i2].precursorMZ);
+            }
+        });
+
+        sortedPrecursorMZ = new double[sortedOrder.length];
+        sortedPositions = new int[sortedOrder.length];
+        for (int i = 0; i < sortedOrder.length; i++) {
+            sortedPrecursorMZ[i] = librarySpectra[sortedOrder[i]].precursorMZ;
+            sortedPositions[i] = sortedOrder[i];
+        }
+
+    }
+
+    /**
+     * Extracts the MS2 spectrum of the most intense fragment scan of the
+     * feature
+     *
+     * @return the spectrum, or null if the feature has no MS2 scan or the mass
+     *         list is empty
+     * @throws IllegalStateException
+     *             if the MS2 scan does not have the mass list
+     */
+    static Ms2Spectrum createSpectrum(Feature feature, String massListName) {
+
+        int ms2ScanNumber = feature.getMostIntenseFragmentScanNumber();
+        Scan scanMS2 = feature.getDataFile().getScan(ms2ScanNumber);
+        if (scanMS2 == null)
+            return null;
+
+        MassList massList = scanMS2.getMassList(massListName);
+        if (massList == null) {
+            throw new IllegalStateException("Scan "
+                    + scanMS2.getDataFile().getName() + " #"
+                    + scanMS2.getScanNumber() + " does not have a mass list "
+                    + massListName);
+        }
+
+        DataPoint ions[] = massList.getDataPoints();
+        if ((ions == null) || (ions.length == 0))
+            return null;
+
+        // The merge join requires the ions sorted by m/z. Mass lists are
+        // normally sorted already, in which case the order does not change.
+        ions = ions.clone();
+        Arrays.sort(ions, new DataPointSorter(SortingProperty.MZ,
+                SortingDirection.Ascending));
+
+        double precursorMZ = scanMS2.getPrecursorMZ();
+        if (precursorMZ == 0)
+            precursorMZ = feature.getMZ();
+
+        return new Ms2Spectrum(feature, precursorMZ, ions);
+
+    }
+
+    /**
+     * Compares the query spectrum with the library spectra within the
+     * precursor m/z window
+     *
+     * @return matches with a score above the score threshold and enough
+     *         matched ions, in the order of the library spectra
+     */
+    List<Ms2Match> search(Ms2Spectrum query) {
+
+        // Find the library spectra within the precursor m/z window
+        final double lowerPrecursorMZ = query.precursorMZ
+                - maxPrecursorDifference;
+        final double upperPrecursorMZ = query.precursorMZ
+                + maxPrecursorDifference;
+        final int first = ArrayUtils.lowerBound(sortedPrecursorMZ,
+                lowerPrecursorMZ);
+        int candidates[] = new int[16];
+        int candidateCount = 0;
+        for (int i = first; i < sortedPrecursorMZ.length; i++) {
+            if (sortedPrecursorMZ[i] > upperPrecursorMZ)
+                break;
+            if (candidateCount == candidates.length)
+                candidates = Arrays.copyOf(candidates, candidateCount * 2);
+            candidates[candidateCount++] = sortedPositions[i];
+        }
+        Arrays.sort(candidates, 0, candidateCount);
+
+        List<Ms2Match> matches = new ArrayList<Ms2Match>();
+        for (int i = 0; i < candidateCount; i++) {
+            Ms2Spectrum librarySpectrum = librarySpectra[candidates[i]];
+            Ms2SearchResult result = compare(query, librarySpectrum);
+            if (result != null)
+                matches.add(new Ms2Match(librarySpectrum, result));
+        }
+        return matches;
+
+    }
+
+    /**
+     * Compares every ion of spectrum A with the ions of spectrum B within the
+     * m/z tolerance. Both ion arrays are sorted by m/z, and the lower m/z
+     * limit of the tolerance window grows with the m/z of the ion of A, so
+     * the first candidate ion of B only moves forward. The positions of the
+     * matched ions of A are recorded, so the matched ions of a reported
+     * result are collected without comparing the spectra again.
+     *
+     * @return the result, or null if the score or the number of matched ions
+     *         is below the thresholds
+     */
+    private Ms2SearchResult compare(Ms2Spectrum spectrumA,
+            Ms2Spectrum spectrumB) {
+
+        final double mzRangePPM = mzTolerance.getPpmTolerance();
+        final double mzA[] = spectrumA.mzValues, mzB[] = spectrumB.mzValues;
+        final double intensitiesA[] = spectrumA.intensities;
+        final double intensitiesB[] = spectrumB.intensities;
+        final double ionsBMaxMZ = mzB[mzB.length - 1];
+
+        double runningScoreTotal = 0.0;
+        int matchedPositions[] = new int[Math.min(mzA.length, 16)];
+        int numIonsMatched = 0;
+        int firstB = 0;
+        for (int i = 0; i < mzA.length; i++) {
+
+            double iMZ = mzA[i];
+            double mzRangeAbsolute = iMZ * 1e-6 * mzRangePPM;
+
+            // If any i is greater than the max of j, no more matches are
+            // possible
+            if (iMZ - mzRangeAbsolute > ionsBMaxMZ)
+                break;
+
+            while ((firstB < mzB.length)
+                    && (mzB[firstB] <= iMZ - mzRangeAbsolute))
+                firstB++;
+
+            for (int j = firstB; j < mzB.length; j++) {
+                double jMZ = mzB[j];
+                if (iMZ < jMZ - mzRangeAbsolute)
+                    break;
+                if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
+                    runningScoreTotal += intensitiesA[i] * intensitiesB[j];
+                    if (numIonsMatched == matchedPositions.length)
+                        matchedPositions = Arrays.copyOf(matchedPositions,
+                                numIonsMatched * 2);
+                    matchedPositions[numIonsMatched++] = i;
+                }
+            }
+
+        }
+
+        if ((runningScoreTotal <= scoreThreshold)
+                || (numIonsMatched < minimumIonsMatched))
+            return null;
+
+        List<DataPoint> matchedIons = new ArrayList<DataPoint>(numIonsMatched);
+        for (int i = 0; i < numIonsMatched; i++)
+            matchedIons.add(spectrumA.ions[matchedPositions[i]]);
+
+        return new Ms2SearchResult(runningScoreTotal, "simple", matchedIons);
+
+    }
+
+}
@@ -105,6 +105,14 @@ public class NistMsSearchParameters extends SimpleParameterSet {
 	    "The minimum reverse match factor (0 .. 1000) that search hits must have",
 	    800, 0, 1000);
 
+    /**
+     * Number of spectra per search.
+     */
+    public static final IntegerParameter SPECTRA_PER_SEARCH = new IntegerParameter(
+	    "Spectra per search",
+	    "The maximum number of spectra searched by one invocation of NIST MS Search",
+	    100, 1, null);
+
     // NIST MS Search executable.
     private static final String NIST_MS_SEARCH_EXE = "nistms$.exe";
 
@@ -114,7 +122,8 @@ public class NistMsSearchParameters extends SimpleParameterSet {
     public NistMsSearchParameters() {
 	super(new Parameter[] { PEAK_LISTS, NIST_MS_SEARCH_DIR,
 		IONIZATION_METHOD, SPECTRUM_RT_WIDTH, MAX_NUM_PEAKS,
-		SAME_IDENTITIES, MIN_MATCH_FACTOR, MIN_REVERSE_MATCH_FACTOR });
+		SAME_IDENTITIES, MIN_MATCH_FACTOR, MIN_REVERSE_MATCH_FACTOR,
+		SPECTRA_PER_SEARCH });
     }
 
     @Override
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+/* Code created was by or on behalf of Syngenta and is released under the open source license in use for the
+ * pre-existing code or project. Syngenta does not assert ownership or copyright any over pre-existing work.
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.nist;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+
+/**
+ * Runs NIST MS Search in batch mode: the spectra of many peak list rows are
+ * written to one spectra file, which is searched by a single invocation of
+ * NIST MS Search. The results file then holds a block of hits for each
+ * spectrum, which is read block by block.
+ *
+ * Only one search can run at a time, because NIST MS Search uses fixed
+ * locator and results files.
+ */
+class NistMsSearchRunner {
+
+    // Logger.
+    private static final Logger LOG = Logger.getLogger(NistMsSearchRunner.class
+	    .getName());
+
+    // Command-line arguments passed to executable.
+    static final String[] COMMAND_LINE_ARGS = { "/par=2", "/instrument" };
+
+    // The locator file names.
+    static final String PRIMARY_LOCATOR_FILE_NAME = "AUTOIMP.MSD";
+    static final String SECONDARY_LOCATOR_FILE_NAME = "MZMINE2.MSD";
+
+    // Spectra file prefix and suffix.
+    private static final String SPECTRA_FILE_PREFIX = "MZM2NIST";
+    private static final String SPECTRA_FILE_SUFFIX = ".MSP";
+
+    // Spectrum name prefix and maximum length.
+    private static final String SPECTRUM_NAME_PREFIX = "Row ";
+    private static final int SPECTRUM_NAME_MAX_LENGTH = 511;
+
+    // The search results file and polling file.
+    static final String SEARCH_POLL_FILE_NAME = "SRCREADY.TXT";
+    static final String SEARCH_RESULTS_FILE_NAME = "SRCRESLT.TXT";
+
+    // Search method.
+    private static final String SEARCH_METHOD = "NIST MS Search";
+
+    // Regular expressions for matching header and hit lines in results.
+    private static final Pattern SEARCH_REGEX = Pattern.compile("^Unknown:\\s*"
+	    + SPECTRUM_NAME_PREFIX + "(\\d+).*");
+    private static final Pattern HIT_REGEX = Pattern
+	    .compile("^Hit.*<<(.*)>>.*<<(.*)>>.*MF:\\s*(\\d+).*RMF:\\s*(\\d+).*CAS:\\s*([^;]*);.*Mw:\\s*(\\d+).*Id:\\s*(\\d+).*");
+
+    // Polling period for the search results file.
+    private static final long POLL_RESULTS = 1000L;
+
+    // Additional peak identity properties.
+    static final String MATCH_FACTOR_PROPERTY = "Match factor";
+    static final String REVERSE_MATCH_FACTOR_PROPERTY = "Reverse match factor";
+    static final String CAS_PROPERTY = "CAS number";
+    static final String MOLECULAR_WEIGHT_PROPERTY = "Molecular weight";
+
+    /**
+     * A search spectrum of a peak list row.
+     */
+    static class SearchSpectrum {
+
+	private final int rowID;
+	private final String name;
+	private final double[] masses;
+	private final double[] intensities;
+
+	/**
+	 * Create the spectrum.
+	 *
+	 * @param rowID
+	 *            the ID of the row, which identifies the spectrum in the
+	 *            search results.
+	 * @param description
+	 *            the description appended to the spectrum name.
+	 * @param masses
+	 *            the masses of the spectrum peaks.
+	 * @param intensities
+	 *            the intensities of the spectrum peaks.
+	 */
+	SearchSpectrum(final int rowID, final String description,
+		final double[] masses, final double[] intensities) {
+
+	    final String fullName = SPECTRUM_NAME_PREFIX + rowID + description;
+	    this.rowID = rowID;
+	    this.name = fullName.substring(0,
+		    Math.min(SPECTRUM_NAME_MAX_LENGTH, fullName.length()));
+	    this.masses = masses;
+	    this.intensities = intensities;
+	}
+
+	int getRowID() {
+
+	    return rowID;
+	}
+    }
+
+    /**
+     * Receives the search results of each spectrum.
+     */
+    interface SearchResultsHandler {
+
+	/**
+	 * Called for each block of the results file, in the order of the
+	 * blocks.
+	 *
+	 * @param rowID
+	 *            the row ID of the searched spectrum.
+	 * @param identities
+	 *            the hits whose match factors exceed the thresholds.
+	 */
+	void searchResults(int rowID, List<PeakIdentity> identities);
+    }
+
+    // NIST MS Search directory and command.
+    private final File nistMsSearchDir;
+    private final List<String> command;
+
+    // Match factor cut-offs.
+    private final int minMatchFactor;
+    private final int minReverseMatchFactor;
+
+    // The secondary locator file.
+    private File locatorFile2;
+
+    // Set when the search should stop waiting for results.
+    private volatile boolean canceled;
+
+    /**
+     * Create the runner.
+     *
+     * @param nistMsSearchDir
+     *            the NIST MS Search directory, which holds the locator and
+     *            results files.
+     * @param command
+     *            the executable and its arguments.
+     * @param minMatchFactor
+     *            the minimum match factor of the hits.
+     * @param minReverseMatchFactor
+     *            the minimum reverse match factor of the hits.
+     */
+    NistMsSearchRunner(final File nistMsSearchDir, final List<String> command,
+	    final int minMatchFactor, final int minReverseMatchFactor) {
+
+	this.nistMsSearchDir = nistMsSearchDir;
+	this.command = command;
+	this.minMatchFactor = minMatchFactor;
+	this.minReverseMatchFactor = minReverseMatchFactor;
+	canceled = false;
+    }
+
+    /**
+     * Configures the locator files and checks that NIST MS Search is not busy.
+     *
+     * @throws IOException
+     *             if there are i/o problems.
+     */
+    void configureLocatorFiles() throws IOException {
+
+	final File locatorFile1 = new File(nistMsSearchDir,
+		PRIMARY_LOCATOR_FILE_NAME);
+	final File secondLocatorFile = getSecondLocatorFile(locatorFile1);
+	if (secondLocatorFile == null) {
+
+	    throw new IOException("Primary locator file " + locatorFile1
+		    + " doesn't contain the name of a valid file.");
+	}
+
+	// Is MS Search already running?
+	if (secondLocatorFile.exists()) {
+
+	    throw new IllegalStateException(
+		    "NIST MS Search appears to be busy - please wait until it finishes its current task and then try again.  Alternatively, try manually deleting the file "
+			    + secondLocatorFile);
+	}
+	locatorFile2 = secondLocatorFile;
+    }
+
+    /**
+     * Stops waiting for the running search.
+     */
+    void cancel() {
+
+	canceled = true;
+    }
+
+    /**
+     * Removes the secondary locator file.
+     */
+    void close() {
+
+	if (locatorFile2 != null) {
+
+	    locatorFile2.delete();
+	}
+    }
+
+    /**
+     * Writes the spectra to a new spectra file. Does not access the locator
+     * files, so it may run while another spectra file is searched.
+     *
+     * @param spectra
+     *            the spectra.
+     * @return the file.
+     * @throws IOException
+     *             if an i/o problem occurs.
+     */
+    static File writeSpectraFile(final List<SearchSpectrum> spectra)
+	    throws IOException {
+
+	final File spectraFile = File.createTempFile(SPECTRA_FILE_PREFIX,
+		SPECTRA_FILE_SUFFIX);
+	spectraFile.deleteOnExit();
+	final BufferedWriter writer = new BufferedWriter(new FileWriter(
+		spectraFile));
+	try {
+	    LOG.finest("Writing " + spectra.size() + " spectra to file "
+		    + spectraFile);
+
+	    for (final SearchSpectrum spectrum : spectra) {
+
+		// Write header.
+		writer.write("Name: " + spectrum.name);
+		writer.newLine();
+		writer.write("Num Peaks: " + spectrum.masses.length);
+		writer.newLine();
+
+		for (int i = 0; i < spectrum.masses.length; i++) {
+		    writer.write(spectrum.masses[i] + "\t"
+			    + spectrum.intensities[i]);
+		    writer.newLine();
+		}
+
+		// Spectra are separated by an empty line.
+		writer.newLine();
+	    }
+	} finally {
+
+	    // Close the open file.
+	    writer.close();
+	}
+	return spectraFile;
+    }
+
+    /**
+     * Searches the spectra of the spectra file and waits for the search to
+     * finish.
+     *
+     * @param spectraFile
+     *            the spectra file.
+     * @return true if the search finished, false if it was canceled.
+     * @throws IOException
+     *             if there are i/o problems.
+     */
+    boolean search(final File spectraFile) throws IOException {
+
+	// Write locator file.
+	writeSecondaryLocatorFile(locatorFile2, spectraFile);
+
+	// Remove the results polling file.
+	final File srcReady = new File(nistMsSearchDir, SEARCH_POLL_FILE_NAME);
+	if (srcReady.exists() && !srcReady.delete()) {
+	    throw new IOException(
+		    "Couldn't delete the search results polling file "
+			    + srcReady + ".  Please delete it manually.");
+	}
+
+	// Execute NIST MS Search.
+	LOG.finest("Executing " + command);
+	new ProcessBuilder(command).directory(nistMsSearchDir).start();
+
+	// Wait for the search to finish by polling the results file.
+	while (!srcReady.exists() && !canceled) {
+	    try {
+
+		Thread.sleep(POLL_RESULTS);
+	    } catch (InterruptedException ignore) {
+
+		// uninterruptible.
+	    }
+	}
+	return !canceled;
+    }
+
+    /**
+     * Reads the search results file. The hits of each spectrum are passed to
+     * the handler as soon as its block has been read.
+     *
+     * @param spectra
+     *            the searched spectra.
+     * @param handler
+     *            receives the results.
+     * @throws IOException
+     *             if and i/o problem occurs.
+     */
+    void readSearchResults(final List<SearchSpectrum> spectra,
+	    final SearchResultsHandler handler) throws IOException {
+
+	// Row IDs of the searched spectra.
+	final Set<Integer> rowIDs = new HashSet<Integer>(spectra.size());
+	for (final SearchSpectrum spectrum : spectra) {
+	    rowIDs.add(spectrum.rowID);
+	}
+
+	// Search results of the current block.
+	int blockRowID = -1;
+	List<PeakIdentity> hitList = null;
+
+	// Read the results file.
+	final BufferedReader reader = new BufferedReader(new FileReader(
+		new File(nistMsSearchDir, SEARCH_RESULTS_FILE_NAME)));
+	try {
+
+	    // Read results.
+	    int lineCount = 1;
+	    String line = reader.readLine();
+	    while (line != null) {
+
+		// Match the line.
+		final Matcher scanMatcher = SEARCH_REGEX.matcher(line);
+		final Matcher hitMatcher = HIT_REGEX.matcher(line);
+
+		// Is this the start of a result block?
+		if (scanMatcher.matches()) {
+
+		    // Pass on the results of the previous block.
+		    if (hitList != null) {
+			handler.searchResults(blockRowID, hitList);
+		    }
+
+		    // Is the row ID correct?
+		    final int hitID = Integer.parseInt(scanMatcher.group(1));
+		    if (rowIDs.contains(hitID)) {
+
+			// Create a new list for the hits.
+			blockRowID = hitID;
+			hitList = new ArrayList<PeakIdentity>(1);
+
+		    } else {
+
+			// Search results are for the wrong peak.
+			throw new IllegalArgumentException(
+				"Search results are for a different peak.  Expected one of peaks: "
+					+ rowIDs + " but found: " + hitID);
+		    }
+		} else if (hitMatcher.matches()) {
+
+		    if (hitList != null) {
+
+			// Do hit match factors exceed thresholds?
+			final String matchFactor = hitMatcher.group(3);
+			final String reverseMatchFactor = hitMatcher.group(4);
+			if (Integer.parseInt(matchFactor) >= minMatchFactor
+				&& Integer.parseInt(reverseMatchFactor) >= minReverseMatchFactor) {
+
+			    // Extract identity from hit information.
+			    final SimplePeakIdentity id = new SimplePeakIdentity(
+				    hitMatcher.group(1), hitMatcher.group(2),
+				    SEARCH_METHOD, hitMatcher.group(7), null);
+			    id.setPropertyValue(MATCH_FACTOR_PROPERTY,
+				    matchFactor);
+			    id.setPropertyValue(REVERSE_MATCH_FACTOR_PROPERTY,
+				    reverseMatchFactor);
+			    id.setPropertyValue(CAS_PROPERTY,
+				    hitMatcher.group(5));
+			    id.setPropertyValue(MOLECULAR_WEIGHT_PROPERTY,
+				    hitMatcher.group(6));
+			    hitList.add(id);
+			}
+		    } else {
+
+			throw new IOException(
+				"Didn't find start of results block before listing hits at line "
+					+ lineCount);
+		    }
+		} else {
+		    throw new IOException(
+			    "Unrecognised results file text at line "
+				    + lineCount);
+		}
+
+		// Read the next line.
+		line = reader.readLine();
+		lineCount++;
+	    }
+	} finally {
+	    reader.close();
+	}
+
+	// Pass on the results of the last block.
+	if (hitList != null) {
+	    handler.searchResults(blockRowID, hitList);
+	}
+    }
+
+    /**
+     * Writes the secondary locator file.
+     *
+     * @param locatorFile
+     *            the locator file.
+     * @param spectraFile
+     *            the spectra file.
+     * @throws IOException
+     *             if an i/o problem occurs.
+     */
+    private static void writeSecondaryLocatorFile(final File locatorFile,
+	    final File spectraFile) throws IOException {
+
+	// Write the spectra file name to the secondary locator file.
+	final BufferedWriter writer = new BufferedWriter(new FileWriter(
+		locatorFile));
+	try {
+
+	    writer.write(spectraFile.getCanonicalPath() + " Append");
+	    writer.newLine();
+	} finally {
+
+	    writer.close();
+	}
+    }
+
+    /**
+     * Gets the second locator file by reading it's path from the primary
+     * locator file.
+     *
+     * @param primaryLocatorFile
+     *            the primary locator file.
+     * @return the secondary locator file or null if the primary locator file
+     *         couldn't be read.
+     * @throws IOException
+     *             if there are i/o problems.
+     */
+    private File getSecondLocatorFile(final File primaryLocatorFile)
+	    throws IOException {
+
+	// Check for the primary locator file.
+	if (!primaryLocatorFile.exists()) {
+	    LOG.warning("Primary locator file not found - writing new "
+		    + primaryLocatorFile);
+
+	    // Write the primary locator file.
+	    final BufferedWriter writer = new BufferedWriter(new FileWriter(
+		    primaryLocatorFile));
+	    try {
+		writer.write(new File(nistMsSearchDir,
+			SECONDARY_LOCATOR_FILE_NAME).getCanonicalPath());
+		writer.newLine();
+	    } finally {
+		writer.close();
+	    }
+	}
+
+	// Read the secondary locator file.
+	File locatorFile2 = null;
+	final BufferedReader reader = new BufferedReader(new FileReader(
+		primaryLocatorFile));
+	try {
+	    final String line = reader.readLine();
+	    if (line != null) {
+		locatorFile2 = new File(line);
+	    }
+	} finally {
+	    reader.close();
+	}
+
+	return locatorFile2;
+    }
+}
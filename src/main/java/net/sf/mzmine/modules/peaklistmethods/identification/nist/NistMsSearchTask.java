@@ -29,29 +29,32 @@ import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSe
 import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchParameters.MIN_REVERSE_MATCH_FACTOR;
 import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchParameters.NIST_MS_SEARCH_DIR;
 import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchParameters.SAME_IDENTITIES;
+import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchParameters.SPECTRA_PER_SEARCH;
 import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchParameters.SPECTRUM_RT_WIDTH;
+import static net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchRunner.MATCH_FACTOR_PROPERTY;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IonizationType;
@@ -62,6 +65,8 @@ import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
 import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchRunner.SearchResultsHandler;
+import net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchRunner.SearchSpectrum;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
@@ -79,46 +84,9 @@ public class NistMsSearchTask extends AbstractTask {
     private static final Logger LOG = Logger.getLogger(NistMsSearchModule.class
 	    .getName());
 
-    // Command-line arguments passed to executable.
-    private static final String COMMAND_LINE_ARGS = "/par=2 /instrument";
-
-    // The locator file names.
-    private static final String PRIMARY_LOCATOR_FILE_NAME = "AUTOIMP.MSD";
-    private static final String SECONDARY_LOCATOR_FILE_NAME = "MZMINE2.MSD";
-
-    // Spectra file prefix and suffix.
-    private static final String SPECTRA_FILE_PREFIX = "MZM2NIST";
-    private static final String SPECTRA_FILE_SUFFIX = ".MSP";
-
-    // Spectrum name prefix and maximum length.
-    private static final String SPECTRUM_NAME_PREFIX = "Row ";
-    private static final int SPECTRUM_NAME_MAX_LENGTH = 511;
-
-    // The search results file and polling file.
-    private static final String SEARCH_POLL_FILE_NAME = "SRCREADY.TXT";
-    private static final String SEARCH_RESULTS_FILE_NAME = "SRCRESLT.TXT";
-
-    // Search method.
-    private static final String SEARCH_METHOD = "NIST MS Search";
-
-    // Regular expressions for matching header and hit lines in results.
-    private static final Pattern SEARCH_REGEX = Pattern.compile("^Unknown:\\s*"
-	    + SPECTRUM_NAME_PREFIX + "(\\d+).*");
-    private static final Pattern HIT_REGEX = Pattern
-	    .compile("^Hit.*<<(.*)>>.*<<(.*)>>.*MF:\\s*(\\d+).*RMF:\\s*(\\d+).*CAS:\\s*([^;]*);.*Mw:\\s*(\\d+).*Id:\\s*(\\d+).*");
-
     // Used to ensure that MS Search operations are synchronized.
     private static final Object SEMAPHORE = new Object();
 
-    // Polling period for the search results file.
-    private static final long POLL_RESULTS = 1000L;
-
-    // Additional peak identity properties.
-    private static final String MATCH_FACTOR_PROPERTY = "Match factor";
-    private static final String REVERSE_MATCH_FACTOR_PROPERTY = "Reverse match factor";
-    private static final String CAS_PROPERTY = "CAS number";
-    private static final String MOLECULAR_WEIGHT_PROPERTY = "Molecular weight";
-
     // Initial neighbourhood size.
     private static final int INITIAL_NEIGHBOURHOOD_SIZE = 4;
 
@@ -135,18 +103,16 @@ public class NistMsSearchTask extends AbstractTask {
     // Ion type parameter.
     private final IonizationType ionType;
 
-    // Match factor cut-offs.
-    private final int minMatchFactor;
-    private final int minReverseMatchFactor;
-
     // Peak matching parameters.
     private final int maxPeaks;
     private final RTTolerance rtTolerance;
     private final Boolean sameIds;
 
-    // NIST MS Search directory and executable.
-    private final File nistMsSearchDir;
-    private final File nistMsSearchExe;
+    // Maximum number of spectra searched by one invocation.
+    private final int spectraPerSearch;
+
+    // Runs the NIST MS Search executable.
+    private final NistMsSearchRunner runner;
 
     /**
      * Create the task.
@@ -182,15 +148,25 @@ public class NistMsSearchTask extends AbstractTask {
 
 	// Parameters.
 	ionType = params.getParameter(IONIZATION_METHOD).getValue();
-	minMatchFactor = params.getParameter(MIN_MATCH_FACTOR).getValue();
-	minReverseMatchFactor = params.getParameter(MIN_REVERSE_MATCH_FACTOR)
+	final int minMatchFactor = params.getParameter(MIN_MATCH_FACTOR)
 		.getValue();
+	final int minReverseMatchFactor = params.getParameter(
+		MIN_REVERSE_MATCH_FACTOR).getValue();
 	rtTolerance = params.getParameter(SPECTRUM_RT_WIDTH).getValue();
 	maxPeaks = params.getParameter(MAX_NUM_PEAKS).getValue();
 	sameIds = params.getParameter(SAME_IDENTITIES).getValue();
-	nistMsSearchDir = params.getParameter(NIST_MS_SEARCH_DIR).getValue();
-	nistMsSearchExe = ((NistMsSearchParameters) params)
+	spectraPerSearch = params.getParameter(SPECTRA_PER_SEARCH).getValue();
+
+	// NIST MS Search directory and command.
+	final File nistMsSearchDir = params.getParameter(NIST_MS_SEARCH_DIR)
+		.getValue();
+	final File nistMsSearchExe = ((NistMsSearchParameters) params)
 		.getNistMsSearchExecutable();
+	final List<String> command = new ArrayList<String>();
+	command.add(nistMsSearchExe.getAbsolutePath());
+	command.addAll(Arrays.asList(NistMsSearchRunner.COMMAND_LINE_ARGS));
+	runner = new NistMsSearchRunner(nistMsSearchDir, command,
+		minMatchFactor, minReverseMatchFactor);
     }
 
     @Override
@@ -206,6 +182,13 @@ public class NistMsSearchTask extends AbstractTask {
 		/ (double) progressMax;
     }
 
+    @Override
+    public void cancel() {
+
+	super.cancel();
+	runner.cancel();
+    }
+
     @Override
     public void run() {
 
@@ -235,7 +218,9 @@ public class NistMsSearchTask extends AbstractTask {
     }
 
     /**
-     * Run the NIST search.
+     * Run the NIST search. The spectra are searched in batches, and the
+     * spectra file of the next batch is written while the current batch is
+     * searched.
      *
      * @throws IOException
      *             if there are i/o problems.
@@ -247,30 +232,15 @@ public class NistMsSearchTask extends AbstractTask {
 	setStatus(TaskStatus.WAITING);
 	synchronized (SEMAPHORE) {
 
-	    File locatorFile2 = null;
+	    final ExecutorService spectraWriter = Executors
+		    .newSingleThreadExecutor();
 	    try {
 		if (!isCanceled()) {
 
 		    setStatus(TaskStatus.PROCESSING);
 
 		    // Configure locator files.
-		    final File locatorFile1 = new File(nistMsSearchDir,
-			    PRIMARY_LOCATOR_FILE_NAME);
-		    locatorFile2 = getSecondLocatorFile(locatorFile1);
-		    if (locatorFile2 == null) {
-
-			throw new IOException("Primary locator file "
-				+ locatorFile1
-				+ " doesn't contain the name of a valid file.");
-		    }
-
-		    // Is MS Search already running?
-		    if (locatorFile2.exists()) {
-
-			throw new IllegalStateException(
-				"NIST MS Search appears to be busy - please wait until it finishes its current task and then try again.  Alternatively, try manually deleting the file "
-					+ locatorFile2);
-		    }
+		    runner.configureLocatorFiles();
 		}
 
 		// Single or multiple row search?
@@ -291,92 +261,191 @@ public class NistMsSearchTask extends AbstractTask {
 		// Reduce neighbourhoods to maximum number of peaks.
 		trimNeighbours(rowHoods);
 
-		// Store search results for each neighbourhood - to avoid repeat
-		// searches.
+		// Group the rows by neighbourhood - to avoid repeat searches.
 		final int numRows = peakListRows.length;
-		final Map<Set<PeakListRow>, List<PeakIdentity>> rowIdentities = new HashMap<Set<PeakListRow>, List<PeakIdentity>>(
+		final Map<Set<PeakListRow>, List<PeakListRow>> neighbourhoodRows = new LinkedHashMap<Set<PeakListRow>, List<PeakListRow>>(
 			numRows);
+		for (final PeakListRow row : peakListRows) {
+
+		    final Set<PeakListRow> neighbours = rowHoods.get(row);
+		    List<PeakListRow> rows = neighbourhoodRows.get(neighbours);
+		    if (rows == null) {
+
+			rows = new ArrayList<PeakListRow>(1);
+			neighbourhoodRows.put(neighbours, rows);
+		    }
+		    rows.add(row);
+		}
 
-		// Search command string.
-		final String command = nistMsSearchExe.getAbsolutePath() + ' '
-			+ COMMAND_LINE_ARGS;
+		// Create a search spectrum for each neighbourhood, named after
+		// its first row.
+		final List<SearchSpectrum> spectra = new ArrayList<SearchSpectrum>(
+			neighbourhoodRows.size());
+		final Map<Integer, List<PeakListRow>> spectrumRows = new HashMap<Integer, List<PeakListRow>>(
+			neighbourhoodRows.size());
+		for (final Entry<Set<PeakListRow>, List<PeakListRow>> entry : neighbourhoodRows
+			.entrySet()) {
+
+		    final PeakListRow row = entry.getValue().get(0);
+		    spectra.add(createSpectrum(row, entry.getKey()));
+		    spectrumRows.put(row.getID(), entry.getValue());
+		}
 
-		// Perform searches for each peak list row..
+		// Search the spectra in batches.
 		progress = 0;
 		progressMax = numRows;
-		for (final PeakListRow row : peakListRows) {
+		Future<File> nextSpectraFile = null;
+		for (int start = 0; !isCanceled() && start < spectra.size(); start += spectraPerSearch) {
+
+		    final List<SearchSpectrum> batch = getBatch(spectra, start);
+		    final Future<File> spectraFile = nextSpectraFile == null ? writeSpectraFile(
+			    spectraWriter, batch) : nextSpectraFile;
+
+		    // Write the spectra file of the next batch during the
+		    // search.
+		    final int nextStart = start + spectraPerSearch;
+		    nextSpectraFile = nextStart < spectra.size() ? writeSpectraFile(
+			    spectraWriter, getBatch(spectra, nextStart)) : null;
+
+		    // Run the search.
+		    if (runner.search(getSpectraFile(spectraFile))) {
+
+			// Read the search results file and add the identities
+			// to the rows of each spectrum.
+			runner.readSearchResults(batch,
+				new SearchResultsHandler() {
+
+				    @Override
+				    public void searchResults(final int rowID,
+					    final List<PeakIdentity> identities) {
+
+					for (final PeakListRow row : spectrumRows
+						.get(rowID)) {
+					    addIdentities(row, identities);
+					}
+				    }
+				});
+		    }
 
-		    // Get the row's neighbours.
-		    final Set<PeakListRow> neighbours = rowHoods.get(row);
+		    for (final SearchSpectrum spectrum : batch) {
+			progress += spectrumRows.get(spectrum.getRowID())
+				.size();
+		    }
+		}
+	    } finally {
+
+		// Clean up.
+		spectraWriter.shutdownNow();
+		runner.close();
+	    }
+	}
+    }
 
-		    // Has this neighbourhood's search been run already?
-		    if (!rowIdentities.containsKey(neighbours)) {
+    /**
+     * Adds (copies of) the identities to a peak list row.
+     *
+     * @param row
+     *            the row.
+     * @param identities
+     *            the search results.
+     */
+    private void addIdentities(final PeakListRow row,
+	    final List<PeakIdentity> identities) {
 
-			if (!isCanceled()) {
+	int maxMatchFactor = -1;
+	for (final PeakIdentity identity : identities) {
 
-			    // Write spectra file.
-			    final File spectraFile = writeSpectraFile(row,
-				    neighbours);
+	    // Copy the identity.
+	    final PeakIdentity id = new SimplePeakIdentity(
+		    (Hashtable<String, String>) identity.getAllProperties());
 
-			    // Write locator file.
-			    writeSecondaryLocatorFile(locatorFile2, spectraFile);
+	    // Best match factor?
+	    final boolean isPreferred;
+	    final int matchFactor = Integer.parseInt(id
+		    .getPropertyValue(MATCH_FACTOR_PROPERTY));
+	    if (matchFactor > maxMatchFactor) {
 
-			    // Run the search.
-			    runNistMsSearch(command);
+		maxMatchFactor = matchFactor;
+		isPreferred = true;
 
-			    // Read the search results file and store the
-			    // results.
-			    rowIdentities.put(neighbours,
-				    readSearchResults(row));
-			}
-		    }
+	    } else {
 
-		    // Get the search results.
-		    final List<PeakIdentity> identities = rowIdentities
-			    .get(neighbours);
-		    if (identities != null) {
+		isPreferred = false;
+	    }
 
-			// Add (copy of) identities to peak row.
-			int maxMatchFactor = -1;
-			for (final PeakIdentity identity : identities) {
+	    // Add peak identity.
+	    row.addPeakIdentity(id, isPreferred);
+	}
 
-			    // Copy the identity.
-			    final PeakIdentity id = new SimplePeakIdentity(
-				    (Hashtable<String, String>) identity
-					    .getAllProperties());
+	// Notify the GUI about the change in the project
+	MZmineCore.getProjectManager().getCurrentProject()
+		.notifyObjectChanged(row, false);
+    }
 
-			    // Best match factor?
-			    final boolean isPreferred;
-			    final int matchFactor = Integer.parseInt(id
-				    .getPropertyValue(MATCH_FACTOR_PROPERTY));
-			    if (matchFactor > maxMatchFactor) {
+    /**
+     * Gets a batch of spectra.
+     *
+     * @param spectra
+     *            all spectra.
+     * @param start
+     *            index of the first spectrum of the batch.
+     * @return at most spectraPerSearch spectra.
+     */
+    private List<SearchSpectrum> getBatch(final List<SearchSpectrum> spectra,
+	    final int start) {
 
-				maxMatchFactor = matchFactor;
-				isPreferred = true;
+	return spectra.subList(start,
+		Math.min(start + spectraPerSearch, spectra.size()));
+    }
 
-			    } else {
+    /**
+     * Writes a spectra file in the background.
+     *
+     * @param spectraWriter
+     *            the thread writing the file.
+     * @param spectra
+     *            the spectra.
+     * @return the future file.
+     */
+    private static Future<File> writeSpectraFile(
+	    final ExecutorService spectraWriter,
+	    final List<SearchSpectrum> spectra) {
 
-				isPreferred = false;
-			    }
+	return spectraWriter.submit(new Callable<File>() {
 
-			    // Add peak identity.
-			    row.addPeakIdentity(id, isPreferred);
-			}
+	    @Override
+	    public File call() throws IOException {
 
-			// Notify the GUI about the change in the project
-			MZmineCore.getProjectManager().getCurrentProject()
-				.notifyObjectChanged(row, false);
-		    }
-		    progress++;
-		}
-	    } finally {
+		return NistMsSearchRunner.writeSpectraFile(spectra);
+	    }
+	});
+    }
 
-		// Clean up.
-		if (locatorFile2 != null) {
+    /**
+     * Waits for a spectra file to be written.
+     *
+     * @param spectraFile
+     *            the future file.
+     * @return the file.
+     * @throws IOException
+     *             if an i/o problem occurred while writing the file.
+     */
+    private static File getSpectraFile(final Future<File> spectraFile)
+	    throws IOException {
 
-		    locatorFile2.delete();
-		}
+	try {
+
+	    return spectraFile.get();
+	} catch (InterruptedException e) {
+
+	    throw new IOException("Interrupted while writing spectra file", e);
+	} catch (ExecutionException e) {
+
+	    final Throwable cause = e.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
 	    }
+	    throw new IOException(cause);
 	}
     }
 
@@ -543,254 +612,35 @@ public class NistMsSearchTask extends AbstractTask {
     }
 
     /**
-     * Reads the search results file for a given peak list row.
-     *
-     * @param row
-     *            the row.
-     * @return a list of identities corresponding to the search results, or null
-     *         if none is found.
-     * @throws IOException
-     *             if and i/o problem occurs.
-     */
-    private List<PeakIdentity> readSearchResults(final PeakListRow row)
-	    throws IOException {
-
-	// Search results.
-	List<PeakIdentity> hitList = null;
-
-	// Read the results file.
-	final BufferedReader reader = new BufferedReader(new FileReader(
-		new File(nistMsSearchDir, SEARCH_RESULTS_FILE_NAME)));
-	try {
-
-	    // Read results.
-	    int lineCount = 1;
-	    String line = reader.readLine();
-	    while (line != null) {
-
-		// Match the line.
-		final Matcher scanMatcher = SEARCH_REGEX.matcher(line);
-		final Matcher hitMatcher = HIT_REGEX.matcher(line);
-
-		// Is this the start of a result block?
-		if (scanMatcher.matches()) {
-
-		    // Is the row ID correct?
-		    final int rowID = row.getID();
-		    final int hitID = Integer.parseInt(scanMatcher.group(1));
-		    if (rowID == hitID) {
-
-			// Create a new list for the hits.
-			hitList = new ArrayList<PeakIdentity>(1);
-
-		    } else {
-
-			// Search results are for the wrong peak.
-			throw new IllegalArgumentException(
-				"Search results are for a different peak.  Expected peak: "
-					+ rowID + " but found: " + hitID);
-		    }
-		} else if (hitMatcher.matches()) {
-
-		    if (hitList != null) {
-
-			// Do hit match factors exceed thresholds?
-			final String matchFactor = hitMatcher.group(3);
-			final String reverseMatchFactor = hitMatcher.group(4);
-			if (Integer.parseInt(matchFactor) >= minMatchFactor
-				&& Integer.parseInt(reverseMatchFactor) >= minReverseMatchFactor) {
-
-			    // Extract identity from hit information.
-			    final SimplePeakIdentity id = new SimplePeakIdentity(
-				    hitMatcher.group(1), hitMatcher.group(2),
-				    SEARCH_METHOD, hitMatcher.group(7), null);
-			    id.setPropertyValue(MATCH_FACTOR_PROPERTY,
-				    matchFactor);
-			    id.setPropertyValue(REVERSE_MATCH_FACTOR_PROPERTY,
-				    reverseMatchFactor);
-			    id.setPropertyValue(CAS_PROPERTY,
-				    hitMatcher.group(5));
-			    id.setPropertyValue(MOLECULAR_WEIGHT_PROPERTY,
-				    hitMatcher.group(6));
-			    hitList.add(id);
-			}
-		    } else {
-
-			throw new IOException(
-				"Didn't find start of results block before listing hits at line "
-					+ lineCount);
-		    }
-		} else {
-		    throw new IOException(
-			    "Unrecognised results file text at line "
-				    + lineCount);
-		}
-
-		// Read the next line.
-		line = reader.readLine();
-		lineCount++;
-	    }
-	} finally {
-	    reader.close();
-	}
-
-	return hitList;
-    }
-
-    /**
-     * Executes the NIST MS Search.
-     *
-     * @param command
-     *            the search command-line string.
-     * @throws IOException
-     *             if there are i/o problems.
-     */
-    private void runNistMsSearch(final String command) throws IOException {
-
-	// Remove the results polling file.
-	final File srcReady = new File(nistMsSearchDir, SEARCH_POLL_FILE_NAME);
-	if (srcReady.exists() && !srcReady.delete()) {
-	    throw new IOException(
-		    "Couldn't delete the search results polling file "
-			    + srcReady + ".  Please delete it manually.");
-	}
-
-	// Execute NIS MS Search.
-	LOG.finest("Executing " + command);
-	Runtime.getRuntime().exec(command);
-
-	// Wait for the search to finish by polling the results file.
-	while (!srcReady.exists() && !isCanceled()) {
-	    try {
-
-		Thread.sleep(POLL_RESULTS);
-	    } catch (InterruptedException ignore) {
-
-		// uninterruptible.
-	    }
-	}
-    }
-
-    /**
-     * Writes a search spectrum file for the given row and its neighbours.
+     * Creates a search spectrum for the given row and its neighbours.
      *
      * @param peakRow
      *            the row.
      * @param neighbourRows
      *            its neighbouring rows.
-     * @return the file.
-     * @throws IOException
-     *             if an i/o problem occurs.
-     */
-    private File writeSpectraFile(final PeakListRow peakRow,
-	    final Collection<PeakListRow> neighbourRows) throws IOException {
-
-	final File spectraFile = File.createTempFile(SPECTRA_FILE_PREFIX,
-		SPECTRA_FILE_SUFFIX);
-	spectraFile.deleteOnExit();
-	final BufferedWriter writer = new BufferedWriter(new FileWriter(
-		spectraFile));
-	try {
-	    LOG.finest("Writing spectra to file " + spectraFile);
-
-	    // Write header.
-	    final PeakIdentity identity = peakRow.getPreferredPeakIdentity();
-	    final String name = SPECTRUM_NAME_PREFIX + peakRow.getID()
-		    + (identity == null ? "" : " (" + identity + ')') + " of "
-		    + peakList.getName();
-	    writer.write("Name: "
-		    + name.substring(0,
-			    Math.min(SPECTRUM_NAME_MAX_LENGTH, name.length())));
-	    writer.newLine();
-	    writer.write("Num Peaks: " + neighbourRows.size());
-	    writer.newLine();
-
-	    for (final PeakListRow row : neighbourRows) {
-		final Feature peak = row.getBestPeak();
-		final int charge = peak.getCharge();
-		final double mass = (peak.getMZ() - ionType.getAddedMass())
-			* (charge == 0 ? 1.0 : (double) charge);
-		writer.write(mass + "\t" + peak.getHeight());
-		writer.newLine();
-	    }
-	} finally {
-
-	    // Close the open file.
-	    writer.close();
-	}
-	return spectraFile;
-    }
-
-    /**
-     * Writes the secondary locator file.
-     *
-     * @param locatorFile
-     *            the locator file.
-     * @param spectraFile
-     *            the spectra file.
-     * @throws IOException
-     *             if an i/o problem occurs.
-     */
-    private static void writeSecondaryLocatorFile(final File locatorFile,
-	    final File spectraFile) throws IOException {
-
-	// Write the spectra file name to the secondary locator file.
-	final BufferedWriter writer = new BufferedWriter(new FileWriter(
-		locatorFile));
-	try {
-
-	    writer.write(spectraFile.getCanonicalPath() + " Append");
-	    writer.newLine();
-	} finally {
-
-	    writer.close();
-	}
-    }
-
-    /**
-     * Gets the second locator file by reading it's path from the primary
-     * locator file.
-     *
-     * @param primaryLocatorFile
-     *            the primary locator file.
-     * @return the secondary locator file or null if the primary locator file
-     *         couldn't be read.
-     * @throws IOException
-     *             if there are i/o problems.
+     * @return the spectrum.
      */
-    private File getSecondLocatorFile(final File primaryLocatorFile)
-	    throws IOException {
-
-	// Check for the primary locator file.
-	if (!primaryLocatorFile.exists()) {
-	    LOG.warning("Primary locator file not found - writing new "
-		    + primaryLocatorFile);
-
-	    // Write the primary locator file.
-	    final BufferedWriter writer = new BufferedWriter(new FileWriter(
-		    primaryLocatorFile));
-	    try {
-		writer.write(new File(nistMsSearchDir,
-			SECONDARY_LOCATOR_FILE_NAME).getCanonicalPath());
-		writer.newLine();
-	    } finally {
-		writer.close();
-	    }
+    private SearchSpectrum createSpectrum(final PeakListRow peakRow,
+	    final Collection<PeakListRow> neighbourRows) {
+
+	// Spectrum name.
+	final PeakIdentity identity = peakRow.getPreferredPeakIdentity();
+	final String description = (identity == null ? "" : " (" + identity
+		+ ')')
+		+ " of " + peakList.getName();
+
+	final double[] masses = new double[neighbourRows.size()];
+	final double[] intensities = new double[neighbourRows.size()];
+	int i = 0;
+	for (final PeakListRow row : neighbourRows) {
+	    final Feature peak = row.getBestPeak();
+	    final int charge = peak.getCharge();
+	    masses[i] = (peak.getMZ() - ionType.getAddedMass())
+		    * (charge == 0 ? 1.0 : (double) charge);
+	    intensities[i] = peak.getHeight();
+	    i++;
 	}
-
-	// Read the secondary locator file.
-	File locatorFile2 = null;
-	final BufferedReader reader = new BufferedReader(new FileReader(
-		primaryLocatorFile));
-	try {
-	    final String line = reader.readLine();
-	    if (line != null) {
-		locatorFile2 = new File(line);
-	    }
-	} finally {
-	    reader.close();
-	}
-
-	return locatorFile2;
+	return new SearchSpectrum(peakRow.getID(), description, masses,
+		intensities);
     }
-}
\ No newline at end of file
+}
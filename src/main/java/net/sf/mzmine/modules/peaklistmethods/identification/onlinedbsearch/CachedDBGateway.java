@@ -0,0 +1,553 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.onlinedbsearch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+
+/**
+ * Database gateway which caches the results of another gateway.
+ *
+ * The results are kept in memory and in a cache directory, so identical
+ * queries are answered without network access, also in later runs. Cached
+ * results expire after a time to live. Expired results are removed when the
+ * cache directory is first used in a run, and the cache directory keeps at
+ * most MAX_CACHE_FILES results, removing the least recently used ones.
+ * Identical queries running at the same time, also in different tasks, are
+ * sent to the database only once. The number of concurrent queries and the
+ * rate of queries are limited per database, also across tasks.
+ */
+public class CachedDBGateway implements DBGateway {
+
+    private static final Logger logger = Logger
+	    .getLogger(CachedDBGateway.class.getName());
+
+    // Default cache directory, which is kept between runs
+    private static final File DEFAULT_CACHE_DIRECTORY = new File(
+	    System.getProperty("java.io.tmpdir"), "mzmine_dbcache");
+
+    // Cached results expire after 7 days
+    private static final long DEFAULT_TIME_TO_LIVE = TimeUnit.DAYS
+	    .toMillis(7);
+
+    // Maximum number of concurrent queries per database
+    public static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    // Maximum number of results in the cache directory. When there are more,
+    // the least recently used results are removed until three quarters of
+    // this number are left.
+    static final int MAX_CACHE_FILES = 20000;
+
+    // Number of results kept in memory
+    private static final int MEMORY_CACHE_SIZE = 10000;
+
+    private static final int CACHE_FILE_VERSION = 1;
+    private static final byte COMPOUND_IDS = 1, COMPOUND = 2;
+
+    // Request limiters of the databases, shared by all gateways
+    private static final Map<OnlineDatabase, RequestLimiter> limiters = new EnumMap<OnlineDatabase, RequestLimiter>(
+	    OnlineDatabase.class);
+
+    // Queries running at the moment, by cache file, shared by all gateways
+    private static final ConcurrentHashMap<File, FutureTask<Object>> runningRequests = new ConcurrentHashMap<File, FutureTask<Object>>();
+
+    // Number of results in each cache directory used in this run, shared by
+    // all gateways
+    private static final Map<File, AtomicInteger> cacheFileCounts = new HashMap<File, AtomicInteger>();
+
+    private final OnlineDatabase database;
+    private final DBGateway gateway;
+    private final File cacheDirectory;
+    private final long timeToLive;
+    private final RequestLimiter limiter;
+
+    // Results in memory, by cache key
+    private final Map<String, Object> memoryCache = new LinkedHashMap<String, Object>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+	    return size() > MEMORY_CACHE_SIZE;
+	}
+    };
+
+    /**
+     * Limits the number of concurrent requests and the rate of requests
+     */
+    static class RequestLimiter {
+
+	private final Semaphore permits;
+	private final long minimumInterval;
+	private long nextRequestTime = 0;
+
+	/**
+	 * @param maxConcurrentRequests
+	 *            maximum number of requests running at the same time
+	 * @param maxRequestsPerSecond
+	 *            maximum number of requests started per second
+	 */
+	RequestLimiter(int maxConcurrentRequests, double maxRequestsPerSecond) {
+	    permits = new Semaphore(maxConcurrentRequests, true);
+	    minimumInterval = (long) (TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond);
+	}
+
+	<T> T execute(Callable<T> request) throws Exception {
+	    permits.acquire();
+	    try {
+		long waitTime;
+		synchronized (this) {
+		    final long now = System.nanoTime();
+		    final long requestTime = Math.max(now, nextRequestTime);
+		    nextRequestTime = requestTime + minimumInterval;
+		    waitTime = requestTime - now;
+		}
+		if (waitTime > 0)
+		    TimeUnit.NANOSECONDS.sleep(waitTime);
+		return request.call();
+	    } finally {
+		permits.release();
+	    }
+	}
+
+    }
+
+    /**
+     * Creates a gateway caching the results of the given gateway in the
+     * default cache directory
+     */
+    public CachedDBGateway(OnlineDatabase database, DBGateway gateway) {
+	this(database, gateway, DEFAULT_CACHE_DIRECTORY, DEFAULT_TIME_TO_LIVE,
+		getLimiter(database));
+    }
+
+    CachedDBGateway(OnlineDatabase database, DBGateway gateway,
+	    File cacheDirectory, long timeToLive, RequestLimiter limiter) {
+	this.database = database;
+	this.gateway = gateway;
+	this.cacheDirectory = cacheDirectory;
+	this.timeToLive = timeToLive;
+	this.limiter = limiter;
+    }
+
+    /**
+     * Returns the request limiter of the database. PubChem allows 5 requests
+     * per second, for the other databases we use a more conservative rate.
+     */
+    private static RequestLimiter getLimiter(OnlineDatabase database) {
+	synchronized (limiters) {
+	    RequestLimiter limiter = limiters.get(database);
+	    if (limiter == null) {
+		final double maxRequestsPerSecond = (database == OnlineDatabase.PubChem) ? 5
+			: 3;
+		limiter = new RequestLimiter(MAX_CONCURRENT_REQUESTS,
+			maxRequestsPerSecond);
+		limiters.put(database, limiter);
+	    }
+	    return limiter;
+	}
+    }
+
+    @Override
+    public String[] findCompounds(final double mass,
+	    final MZTolerance mzTolerance, final int numOfResults,
+	    final ParameterSet parameters) throws IOException {
+
+	final String key = "findCompounds|" + database.name() + "|" + mass
+		+ "|" + mzTolerance.getMzTolerance() + "|"
+		+ mzTolerance.getPpmTolerance() + "|" + numOfResults + "|"
+		+ getParameterValues(parameters);
+
+	String compoundIDs[] = (String[]) getResult(key, new Callable<Object>() {
+	    @Override
+	    public Object call() throws Exception {
+		return gateway.findCompounds(mass, mzTolerance, numOfResults,
+			parameters);
+	    }
+	});
+
+	return compoundIDs.clone();
+    }
+
+    @Override
+    public DBCompound getCompound(final String ID, final ParameterSet parameters)
+	    throws IOException {
+
+	final String key = "getCompound|" + database.name() + "|" + ID + "|"
+		+ getParameterValues(parameters);
+
+	DBCompound compound = (DBCompound) getResult(key,
+		new Callable<Object>() {
+		    @Override
+		    public Object call() throws Exception {
+			return gateway.getCompound(ID, parameters);
+		    }
+		});
+
+	// The caller may modify the compound, so we return a copy
+	return copyCompound(compound.getAllProperties(),
+		compound.get2DStructureURL(), compound.get3DStructureURL());
+    }
+
+    /**
+     * Returns the result from the memory cache, the cache directory, or a
+     * running query with the same key. If none has it, the query is run.
+     */
+    private Object getResult(final String key, final Callable<Object> query)
+	    throws IOException {
+
+	synchronized (memoryCache) {
+	    Object result = memoryCache.get(key);
+	    if (result != null)
+		return result;
+	}
+
+	FutureTask<Object> newRequest = new FutureTask<Object>(
+		new Callable<Object>() {
+		    @Override
+		    public Object call() throws Exception {
+			Object result = readCacheFile(key);
+			if (result == null) {
+			    result = limiter.execute(query);
+			    writeCacheFile(key, result);
+			}
+			synchronized (memoryCache) {
+			    memoryCache.put(key, result);
+			}
+			return result;
+		    }
+		});
+
+	final File cacheFile = getCacheFile(key);
+	FutureTask<Object> request = runningRequests.putIfAbsent(cacheFile,
+		newRequest);
+	if (request == null) {
+	    request = newRequest;
+	    try {
+		request.run();
+	    } finally {
+		runningRequests.remove(cacheFile, request);
+	    }
+	}
+
+	try {
+	    return request.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while waiting for " + database);
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof IOException)
+		throw (IOException) cause;
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    throw new IOException(cause);
+	}
+
+    }
+
+    private File getCacheFile(String key) {
+	try {
+	    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+	    byte hash[] = digest.digest(key.getBytes("UTF-8"));
+	    StringBuilder fileName = new StringBuilder();
+	    for (byte b : hash)
+		fileName.append(String.format("%02x", b));
+	    fileName.append(".cache");
+	    return new File(cacheDirectory, fileName.toString());
+	} catch (NoSuchAlgorithmException | IOException e) {
+	    // SHA-1 and UTF-8 are always supported
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Reads the result from the cache directory, or returns null if it is not
+     * cached or has expired
+     */
+    private Object readCacheFile(String key) {
+
+	getCacheFileCount();
+
+	File cacheFile = getCacheFile(key);
+	if (!cacheFile.exists())
+	    return null;
+
+	try {
+	    DataInputStream input = new DataInputStream(
+		    new BufferedInputStream(new FileInputStream(cacheFile)));
+	    try {
+
+		if (input.readInt() != CACHE_FILE_VERSION)
+		    return null;
+		final long created = input.readLong();
+		if (System.currentTimeMillis() - created > timeToLive) {
+		    input.close();
+		    cacheFile.delete();
+		    return null;
+		}
+
+		// Results read again are kept longer when old results are
+		// removed
+		cacheFile.setLastModified(System.currentTimeMillis());
+
+		final byte type = input.readByte();
+		if (type == COMPOUND_IDS) {
+		    String compoundIDs[] = new String[input.readInt()];
+		    for (int i = 0; i < compoundIDs.length; i++)
+			compoundIDs[i] = readString(input);
+		    return compoundIDs;
+		}
+
+		if (type == COMPOUND) {
+		    Map<String, String> properties = new LinkedHashMap<String, String>();
+		    final int numOfProperties = input.readInt();
+		    for (int i = 0; i < numOfProperties; i++)
+			properties.put(readString(input), readString(input));
+		    String structure2DURL = readString(input);
+		    String structure3DURL = readString(input);
+		    return copyCompound(properties,
+			    (structure2DURL == null) ? null : new URL(
+				    structure2DURL), (structure3DURL == null) ? null
+				    : new URL(structure3DURL));
+		}
+
+		return null;
+
+	    } finally {
+		input.close();
+	    }
+	} catch (IOException | RuntimeException e) {
+	    logger.log(Level.WARNING, "Could not read cached result "
+		    + cacheFile, e);
+	    return null;
+	}
+
+    }
+
+    private void writeCacheFile(String key, Object result) {
+
+	if (!cacheDirectory.exists())
+	    cacheDirectory.mkdirs();
+
+	File cacheFile = getCacheFile(key);
+	File tempFile = new File(cacheFile.getPath() + ".tmp"
+		+ Thread.currentThread().getId());
+	try {
+	    DataOutputStream output = new DataOutputStream(
+		    new BufferedOutputStream(new FileOutputStream(tempFile)));
+	    try {
+		output.writeInt(CACHE_FILE_VERSION);
+		output.writeLong(System.currentTimeMillis());
+		if (result instanceof String[]) {
+		    String compoundIDs[] = (String[]) result;
+		    output.writeByte(COMPOUND_IDS);
+		    output.writeInt(compoundIDs.length);
+		    for (String compoundID : compoundIDs)
+			writeString(output, compoundID);
+		} else {
+		    DBCompound compound = (DBCompound) result;
+		    Map<String, String> properties = compound
+			    .getAllProperties();
+		    output.writeByte(COMPOUND);
+		    output.writeInt(properties.size());
+		    for (Map.Entry<String, String> property : properties
+			    .entrySet()) {
+			writeString(output, property.getKey());
+			writeString(output, property.getValue());
+		    }
+		    writeString(output, toString(compound.get2DStructureURL()));
+		    writeString(output, toString(compound.get3DStructureURL()));
+		}
+	    } finally {
+		output.close();
+	    }
+	    if (!tempFile.renameTo(cacheFile)) {
+		cacheFile.delete();
+		if (!tempFile.renameTo(cacheFile))
+		    throw new IOException("Could not rename " + tempFile);
+	    }
+	} catch (IOException e) {
+	    logger.log(Level.WARNING, "Could not write cached result "
+		    + cacheFile, e);
+	    tempFile.delete();
+	    return;
+	}
+
+	AtomicInteger cacheFileCount = getCacheFileCount();
+	if (cacheFileCount.incrementAndGet() > MAX_CACHE_FILES) {
+	    synchronized (cacheFileCount) {
+		if (cacheFileCount.get() > MAX_CACHE_FILES)
+		    cacheFileCount.set(removeOldCacheFiles(cacheDirectory,
+			    timeToLive, MAX_CACHE_FILES));
+	    }
+	}
+
+    }
+
+    /**
+     * Returns the number of results in the cache directory. When the cache
+     * directory is first used in this run, the expired and the least recently
+     * used results are removed.
+     */
+    private AtomicInteger getCacheFileCount() {
+	synchronized (cacheFileCounts) {
+	    AtomicInteger cacheFileCount = cacheFileCounts.get(cacheDirectory);
+	    if (cacheFileCount == null) {
+		cacheFileCount = new AtomicInteger(removeOldCacheFiles(
+			cacheDirectory, timeToLive, MAX_CACHE_FILES));
+		cacheFileCounts.put(cacheDirectory, cacheFileCount);
+	    }
+	    return cacheFileCount;
+	}
+    }
+
+    /**
+     * Removes the results which were not written or read within the time to
+     * live, and the least recently used results if there are more than the
+     * given number of results in the cache directory. Temporary files of
+     * results being written are not results and are kept.
+     * 
+     * @return the number of results left in the cache directory
+     */
+    static int removeOldCacheFiles(File cacheDirectory, long timeToLive,
+	    int maxCacheFiles) {
+
+	File files[] = cacheDirectory.listFiles();
+	if (files == null)
+	    return 0;
+
+	final long now = System.currentTimeMillis();
+	final Map<File, Long> lastUsed = new HashMap<File, Long>();
+	List<File> cacheFiles = new ArrayList<File>();
+	for (File file : files) {
+	    if (!file.getName().endsWith(".cache"))
+		continue;
+	    final long lastModified = file.lastModified();
+	    if (now - lastModified > timeToLive) {
+		file.delete();
+		continue;
+	    }
+	    lastUsed.put(file, lastModified);
+	    cacheFiles.add(file);
+	}
+
+	if (cacheFiles.size() <= maxCacheFiles)
+	    return cacheFiles.size();
+
+	Collections.sort(cacheFiles, new Comparator<File>() {
+	    @Override
+	    public int compare(File f1, File f2) {
+		return lastUsed.get(f1).compareTo(lastUsed.get(f2));
+	    }
+	});
+	final int numOfRemovedFiles = cacheFiles.size() - maxCacheFiles * 3
+		/ 4;
+	for (int i = 0; i < numOfRemovedFiles; i++)
+	    cacheFiles.get(i).delete();
+	return cacheFiles.size() - numOfRemovedFiles;
+
+    }
+
+    /**
+     * Creates a new compound with the given properties
+     */
+    private DBCompound copyCompound(Map<String, String> properties,
+	    URL structure2DURL, URL structure3DURL) throws IOException {
+	DBCompound compound = new DBCompound(database,
+		properties.get(PeakIdentity.PROPERTY_ID),
+		properties.get(PeakIdentity.PROPERTY_NAME),
+		properties.get(PeakIdentity.PROPERTY_FORMULA), new URL(
+			properties.get(PeakIdentity.PROPERTY_URL)),
+		structure2DURL, structure3DURL);
+	for (Map.Entry<String, String> property : properties.entrySet())
+	    compound.setPropertyValue(property.getKey(), property.getValue());
+	return compound;
+    }
+
+    /**
+     * Returns the parameter values, which are part of the cache key
+     */
+    private static String getParameterValues(ParameterSet parameters) {
+	if (parameters == null)
+	    return "";
+	StringBuilder values = new StringBuilder();
+	for (Parameter<?> parameter : parameters.getParameters()) {
+	    values.append(parameter.getName()).append('=')
+		    .append(parameter.getValue()).append(';');
+	}
+	return values.toString();
+    }
+
+    private static String toString(URL url) {
+	return (url == null) ? null : url.toString();
+    }
+
+    private static String readString(DataInputStream input)
+	    throws IOException {
+	if (!input.readBoolean())
+	    return null;
+	byte bytes[] = new byte[input.readInt()];
+	input.readFully(bytes);
+	return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream output, String value)
+	    throws IOException {
+	output.writeBoolean(value != null);
+	if (value != null) {
+	    byte bytes[] = value.getBytes("UTF-8");
+	    output.writeInt(bytes.length);
+	    output.write(bytes);
+	}
+    }
+
+}
@@ -21,6 +21,12 @@ package net.sf.mzmine.modules.peaklistmethods.identification.onlinedbsearch;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,7 +73,7 @@ public class PeakListIdentificationTask extends AbstractTask {
     private final ParameterSet isotopeFilterParameters;
     private final IonizationType ionType;
     private DBGateway gateway;
-    private PeakListRow currentRow;
+    private volatile PeakListRow currentRow;
 
     /**
      * Create the identification task.
@@ -128,22 +134,55 @@ public class PeakListIdentificationTask extends AbstractTask {
 		setStatus(TaskStatus.PROCESSING);
 
 		// Create database gateway.
-		gateway = db.getModule().getGatewayClass().newInstance();
+		gateway = new CachedDBGateway(db.getModule(), db.getModule()
+			.getGatewayClass().newInstance());
 
 		// Identify the peak list rows starting from the biggest peaks.
 		final PeakListRow[] rows = peakList.getRows();
-		Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Area,
-			SortingDirection.Descending));
+		new PeakListRowSorter(SortingProperty.Area,
+			SortingDirection.Descending).sort(rows);
 
 		// Initialize counters.
 		numItems = rows.length;
 
-		// Process rows.
-		for (finishedItems = 0; !isCanceled()
-			&& finishedItems < numItems; finishedItems++) {
-
-		    // Retrieve results for each row.
-		    retrieveIdentification(rows[finishedItems]);
+		// The compounds of the following rows are retrieved while the
+		// current row is processed. The gateway limits the number of
+		// concurrent queries of the database.
+		final ExecutorService queryThreads = Executors
+			.newFixedThreadPool(CachedDBGateway.MAX_CONCURRENT_REQUESTS);
+		try {
+
+		    final LinkedList<Future<DBCompound[]>> queries = new LinkedList<Future<DBCompound[]>>();
+		    int nextRow = 0;
+
+		    // Process rows.
+		    for (finishedItems = 0; !isCanceled()
+			    && finishedItems < numItems; finishedItems++) {
+
+			while ((nextRow < numItems)
+				&& (queries.size() < 2 * CachedDBGateway.MAX_CONCURRENT_REQUESTS)) {
+			    final PeakListRow row = rows[nextRow++];
+			    queries.add(queryThreads
+				    .submit(new Callable<DBCompound[]>() {
+					@Override
+					public DBCompound[] call() throws IOException {
+					    return retrieveCompounds(row);
+					}
+				    }));
+			}
+
+			// Retrieve results for each row.
+			final DBCompound[] compounds;
+			try {
+			    compounds = queries.removeFirst().get();
+			} catch (ExecutionException e) {
+			    throw e.getCause();
+			}
+			retrieveIdentification(rows[finishedItems], compounds);
+		    }
+
+		} finally {
+		    queryThreads.shutdownNow();
 		}
 
 		if (!isCanceled()) {
@@ -161,16 +200,55 @@ public class PeakListIdentificationTask extends AbstractTask {
     }
 
     /**
-     * Search the database for the peak's identity.
+     * Calculates the neutral mass of the row.
+     */
+    private double getMassValue(final PeakListRow row) {
+
+	// Determine peak charge.
+	int charge = row.getBestPeak().getCharge();
+	if (charge <= 0) {
+	    charge = 1;
+	}
+
+	// Calculate mass value.
+	return (row.getAverageMZ() - ionType.getAddedMass()) * (double) charge;
+    }
+
+    /**
+     * Retrieves the compounds of the database for the row.
      * 
      * @param row
      *            the peak list row.
      * @throws IOException
      *             if there are i/o problems.
      */
-    private void retrieveIdentification(final PeakListRow row)
+    private DBCompound[] retrieveCompounds(final PeakListRow row)
 	    throws IOException {
 
+	final String[] findCompounds = gateway.findCompounds(
+		getMassValue(row), mzTolerance, numOfResults,
+		db.getParameterSet());
+	final DBCompound[] compounds = new DBCompound[findCompounds.length];
+	for (int i = 0; i < findCompounds.length; i++) {
+	    if (isCanceled())
+		return Arrays.copyOf(compounds, i);
+	    compounds[i] = gateway.getCompound(findCompounds[i],
+		    db.getParameterSet());
+	}
+	return compounds;
+    }
+
+    /**
+     * Add the retrieved compounds to the peak's identities.
+     * 
+     * @param row
+     *            the peak list row.
+     * @param compounds
+     *            the compounds retrieved from the database.
+     */
+    private void retrieveIdentification(final PeakListRow row,
+	    final DBCompound[] compounds) {
+
 	currentRow = row;
 
 	// Determine peak charge.
@@ -180,20 +258,13 @@ public class PeakListIdentificationTask extends AbstractTask {
 	    charge = 1;
 	}
 
-	// Calculate mass value.
-	final double massValue = (row.getAverageMZ() - ionType.getAddedMass())
-		* (double) charge;
-
 	// Isotope pattern.
 	final IsotopePattern rowIsotopePattern = bestPeak.getIsotopePattern();
 
 	// Process each one of the result ID's.
-	final String[] findCompounds = gateway.findCompounds(massValue,
-		mzTolerance, numOfResults, db.getParameterSet());
-	for (int i = 0; !isCanceled() && i < findCompounds.length; i++) {
+	for (int i = 0; !isCanceled() && i < compounds.length; i++) {
 
-	    final DBCompound compound = gateway.getCompound(findCompounds[i],
-		    db.getParameterSet());
+	    final DBCompound compound = compounds[i];
 	    final String formula = compound
 		    .getPropertyValue(PeakIdentity.PROPERTY_FORMULA);
 
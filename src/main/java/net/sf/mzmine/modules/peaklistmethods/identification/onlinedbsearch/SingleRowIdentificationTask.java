@@ -81,7 +81,8 @@ public class SingleRowIdentificationTask extends AbstractTask {
 	db = parameters.getParameter(DATABASE).getValue();
 
 	try {
-	    gateway = db.getModule().getGatewayClass().newInstance();
+	    gateway = new CachedDBGateway(db.getModule(), db.getModule()
+		    .getGatewayClass().newInstance());
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
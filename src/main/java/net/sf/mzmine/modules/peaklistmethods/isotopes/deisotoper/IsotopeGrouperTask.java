@@ -19,8 +19,16 @@
 
 package net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -42,11 +50,14 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ArrayUtils;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+import com.google.common.collect.Range;
+
 /**
  * 
  */
@@ -64,6 +75,9 @@ class IsotopeGrouperTask extends AbstractTask {
      */
     private static final double isotopeDistance = 1.0033;
 
+    // Number of peaks whose patterns are fitted in one unit of work
+    private static final int PEAK_BLOCK_SIZE = 64;
+
     private final MZmineProject project;
     private PeakList peakList, deisotopedPeakList;
 
@@ -78,6 +92,23 @@ class IsotopeGrouperTask extends AbstractTask {
     private int maximumCharge;
     private ParameterSet parameters;
 
+    // m/z and RT of the peaks sorted by descending height, and the peaks
+    // already assigned to an isotope pattern
+    private double peakMZ[], peakRT[];
+    private boolean assignedPeaks[];
+
+    // Positions of the peaks in the array sorted by height, sorted by m/z
+    private double mzIndexMZ[];
+    private int mzIndexPeaks[];
+
+    // Pattern fitter of each fitter thread of this task
+    private final ThreadLocal<PatternFitter> patternFitters = new ThreadLocal<PatternFitter>() {
+	@Override
+	protected PatternFitter initialValue() {
+	    return new PatternFitter();
+	}
+    };
+
     /**
      * @param rawDataFile
      * @param parameters
@@ -147,97 +178,146 @@ class IsotopeGrouperTask extends AbstractTask {
 	Arrays.sort(sortedPeaks, new PeakSorter(SortingProperty.Height,
 		SortingDirection.Descending));
 
+	// Create the m/z index of the peaks and find the row of each peak
+	createMZIndex(sortedPeaks);
+	HashMap<Feature, PeakListRow> peakRows = new HashMap<Feature, PeakListRow>();
+	for (PeakListRow row : peakList.getRows()) {
+	    for (Feature peak : row.getPeaks()) {
+		if (!peakRows.containsKey(peak))
+		    peakRows.put(peak, row);
+	    }
+	}
+
 	// Loop through all peaks
 	totalPeaks = sortedPeaks.length;
 
-	for (int ind = 0; ind < totalPeaks; ind++) {
+	// The patterns of the peaks are fitted in parallel, in blocks of peaks.
+	// In each round, every fitter thread fits the patterns of one block
+	// while the assignment of peaks to patterns is not modified. The fitted
+	// patterns are then processed in the order of descending height. A
+	// pattern is fitted again if one of its candidates was assigned to a
+	// higher peak in the same round, so the result does not depend on the
+	// number of threads.
+	final int numOfThreads = Runtime.getRuntime().availableProcessors();
+	ExecutorService fitterThreads = Executors
+		.newFixedThreadPool(numOfThreads);
+	PatternFitter fitter = new PatternFitter();
+
+	try {
+
+	    int roundStart = 0, roundEnd = 0;
+	    int fittedPatterns[][][] = null;
+
+	    for (int ind = 0; ind < totalPeaks; ind++) {
+
+		if (isCanceled())
+		    return;
+
+		if (ind == roundEnd) {
+		    roundStart = ind;
+		    roundEnd = Math.min(totalPeaks, ind + numOfThreads
+			    * PEAK_BLOCK_SIZE);
+		    fittedPatterns = fitRound(fitterThreads, roundStart,
+			    roundEnd, charges);
+		}
 
-	    if (isCanceled())
-		return;
+		Feature aPeak = sortedPeaks[ind];
 
-	    Feature aPeak = sortedPeaks[ind];
+		// Check if peak was already deleted
+		if (aPeak == null) {
+		    processedPeaks++;
+		    continue;
+		}
 
-	    // Check if peak was already deleted
-	    if (aPeak == null) {
-		processedPeaks++;
-		continue;
-	    }
+		int fittedPeakIndexes[][] = fittedPatterns[ind - roundStart];
+		if (!isStillValid(fittedPeakIndexes))
+		    fittedPeakIndexes = fitter.fitPatterns(ind, charges);
+
+		// Check which charge state fits best around this peak
+		int bestFitCharge = 0;
+		int bestFitScore = -1;
+		int bestFitPeakIndexes[] = null;
+		for (int i = 0; i < charges.length; i++) {
+
+		    int charge = charges[i];
+		    int score = fittedPeakIndexes[i].length;
+		    if ((score > bestFitScore)
+			    || ((score == bestFitScore) && (bestFitCharge > charge))) {
+			bestFitScore = score;
+			bestFitCharge = charge;
+			bestFitPeakIndexes = fittedPeakIndexes[i];
+		    }
 
-	    // Check which charge state fits best around this peak
-	    int bestFitCharge = 0;
-	    int bestFitScore = -1;
-	    Vector<Feature> bestFitPeaks = null;
-	    for (int charge : charges) {
-
-		Vector<Feature> fittedPeaks = new Vector<Feature>();
-		fittedPeaks.add(aPeak);
-		fitPattern(fittedPeaks, aPeak, charge, sortedPeaks);
-
-		int score = fittedPeaks.size();
-		if ((score > bestFitScore)
-			|| ((score == bestFitScore) && (bestFitCharge > charge))) {
-		    bestFitScore = score;
-		    bestFitCharge = charge;
-		    bestFitPeaks = fittedPeaks;
 		}
 
-	    }
+		PeakListRow oldRow = peakRows.get(aPeak);
+
+		assert bestFitPeakIndexes != null;
 
-	    PeakListRow oldRow = peakList.getPeakRow(aPeak);
+		// Verify the number of detected isotopes. If there is only one
+		// isotope, we skip this left the original peak in the peak
+		// list.
+		if (bestFitPeakIndexes.length == 1) {
+		    deisotopedPeakList.addRow(oldRow);
+		    processedPeaks++;
+		    continue;
+		}
 
-	    assert bestFitPeaks != null;
+		// Convert the peak pattern to array
+		Feature originalPeaks[] = new Feature[bestFitPeakIndexes.length];
+		for (int i = 0; i < originalPeaks.length; i++)
+		    originalPeaks[i] = sortedPeaks[bestFitPeakIndexes[i]];
 
-	    // Verify the number of detected isotopes. If there is only one
-	    // isotope, we skip this left the original peak in the peak list.
-	    if (bestFitPeaks.size() == 1) {
-		deisotopedPeakList.addRow(oldRow);
-		processedPeaks++;
-		continue;
-	    }
+		// Create a new SimpleIsotopePattern
+		DataPoint isotopes[] = new DataPoint[originalPeaks.length];
+		for (int i = 0; i < isotopes.length; i++) {
+		    Feature p = originalPeaks[i];
+		    isotopes[i] = new SimpleDataPoint(p.getMZ(), p.getHeight());
 
-	    // Convert the peak pattern to array
-	    Feature originalPeaks[] = bestFitPeaks.toArray(new Feature[0]);
+		}
+		SimpleIsotopePattern newPattern = new SimpleIsotopePattern(
+			isotopes, IsotopePatternStatus.DETECTED,
+			aPeak.toString());
+
+		// Depending on user's choice, we leave either the most intenst,
+		// or the lowest m/z peak
+		if (chooseMostIntense) {
+		    Arrays.sort(originalPeaks, new PeakSorter(
+			    SortingProperty.Height, SortingDirection.Descending));
+		} else {
+		    Arrays.sort(originalPeaks, new PeakSorter(
+			    SortingProperty.MZ, SortingDirection.Ascending));
+		}
 
-	    // Create a new SimpleIsotopePattern
-	    DataPoint isotopes[] = new DataPoint[bestFitPeaks.size()];
-	    for (int i = 0; i < isotopes.length; i++) {
-		Feature p = originalPeaks[i];
-		isotopes[i] = new SimpleDataPoint(p.getMZ(), p.getHeight());
+		Feature newPeak = new SimpleFeature(originalPeaks[0]);
+		newPeak.setIsotopePattern(newPattern);
+		newPeak.setCharge(bestFitCharge);
+
+		// Keep old ID
+		int oldID = oldRow.getID();
+		SimplePeakListRow newRow = new SimplePeakListRow(oldID);
+		PeakUtils.copyPeakListRowProperties(oldRow, newRow);
+		newRow.addPeak(dataFile, newPeak);
+		deisotopedPeakList.addRow(newRow);
+
+		// Remove all peaks already assigned to isotope pattern
+		for (int peakIndex : bestFitPeakIndexes) {
+		    sortedPeaks[peakIndex] = null;
+		    assignedPeaks[peakIndex] = true;
+		}
 
-	    }
-	    SimpleIsotopePattern newPattern = new SimpleIsotopePattern(
-		    isotopes, IsotopePatternStatus.DETECTED, aPeak.toString());
-
-	    // Depending on user's choice, we leave either the most intenst, or
-	    // the lowest m/z peak
-	    if (chooseMostIntense) {
-		Arrays.sort(originalPeaks, new PeakSorter(
-			SortingProperty.Height, SortingDirection.Descending));
-	    } else {
-		Arrays.sort(originalPeaks, new PeakSorter(SortingProperty.MZ,
-			SortingDirection.Ascending));
-	    }
+		// Update completion rate
+		processedPeaks++;
 
-	    Feature newPeak = new SimpleFeature(originalPeaks[0]);
-	    newPeak.setIsotopePattern(newPattern);
-	    newPeak.setCharge(bestFitCharge);
-
-	    // Keep old ID
-	    int oldID = oldRow.getID();
-	    SimplePeakListRow newRow = new SimplePeakListRow(oldID);
-	    PeakUtils.copyPeakListRowProperties(oldRow, newRow);
-	    newRow.addPeak(dataFile, newPeak);
-	    deisotopedPeakList.addRow(newRow);
-
-	    // Remove all peaks already assigned to isotope pattern
-	    for (int i = 0; i < sortedPeaks.length; i++) {
-		if (bestFitPeaks.contains(sortedPeaks[i]))
-		    sortedPeaks[i] = null;
 	    }
 
-	    // Update completion rate
-	    processedPeaks++;
-
+	} catch (Exception e) {
+	    logger.log(Level.SEVERE, "Error while grouping isotopic peaks", e);
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(e.toString());
+	    return;
+	} finally {
+	    fitterThreads.shutdownNow();
 	}
 
 	// Add new peakList to the project
@@ -263,103 +343,260 @@ class IsotopeGrouperTask extends AbstractTask {
     }
 
     /**
-     * Fits isotope pattern around one peak.
+     * Creates the index of the peaks sorted by m/z. The peaks are referred to
+     * by their position in the array sorted by height, so the candidates of
+     * each isotope can be collected in the same order as before.
+     */
+    private void createMZIndex(final Feature[] sortedPeaks) {
+
+	final int numOfPeaks = sortedPeaks.length;
+	peakMZ = new double[numOfPeaks];
+	peakRT = new double[numOfPeaks];
+	assignedPeaks = new boolean[numOfPeaks];
+	Integer order[] = new Integer[numOfPeaks];
+	for (int i = 0; i < numOfPeaks; i++) {
+	    peakMZ[i] = sortedPeaks[i].getMZ();
+	    peakRT[i] = sortedPeaks[i].getRT();
+	    order[i] = i;
+	}
+
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(peakMZ[i1], peakMZ[i2]);
+	    }
+	});
+
+	mzIndexMZ = new double[numOfPeaks];
+	mzIndexPeaks = new int[numOfPeaks];
+	for (int i = 0; i < numOfPeaks; i++) {
+	    mzIndexMZ[i] = peakMZ[order[i]];
+	    mzIndexPeaks[i] = order[i];
+	}
+
+    }
+
+    /**
+     * Fits the patterns of the peaks from start (inclusive) to end (exclusive)
+     * for all charge states, one block of peaks per fitter thread
      * 
-     * @param p
-     *            Pattern is fitted around this peak
-     * @param charge
-     *            Charge state of the fitted pattern
+     * @return positions of the fitted peaks of each peak and charge state
      */
-    private void fitPattern(Vector<Feature> fittedPeaks, Feature p, int charge,
-	    Feature[] sortedPeaks) {
+    private int[][][] fitRound(ExecutorService fitterThreads, int start,
+	    int end, int charges[]) throws Exception {
 
-	if (charge == 0) {
-	    return;
+	List<Future<int[][][]>> blocks = new ArrayList<Future<int[][][]>>();
+	for (int blockStart = start; blockStart < end; blockStart += PEAK_BLOCK_SIZE) {
+	    blocks.add(fitterThreads.submit(new BlockFitter(blockStart, Math
+		    .min(end, blockStart + PEAK_BLOCK_SIZE), charges)));
 	}
 
-	// Search for peaks before the start peak
-	if (!monotonicShape) {
-	    fitHalfPattern(p, charge, -1, fittedPeaks, sortedPeaks);
+	int fittedPatterns[][][] = new int[end - start][][];
+	int ind = 0;
+	for (Future<int[][][]> block : blocks) {
+	    int fittedBlock[][][] = block.get();
+	    System.arraycopy(fittedBlock, 0, fittedPatterns, ind,
+		    fittedBlock.length);
+	    ind += fittedBlock.length;
 	}
+	return fittedPatterns;
 
-	// Search for peaks after the start peak
-	fitHalfPattern(p, charge, 1, fittedPeaks, sortedPeaks);
+    }
 
+    /**
+     * Returns true if none of the fitted peaks was assigned to an isotope
+     * pattern after fitting. Every unassigned peak which matches the pattern
+     * is one of the fitted peaks, so in that case fitting again would give
+     * the same result.
+     */
+    private boolean isStillValid(int fittedPeakIndexes[][]) {
+	for (int peakIndexes[] : fittedPeakIndexes) {
+	    for (int peakIndex : peakIndexes) {
+		if (assignedPeaks[peakIndex])
+		    return false;
+	    }
+	}
+	return true;
     }
 
     /**
-     * Helper method for fitPattern. Fits only one half of the pattern.
-     * 
-     * @param p
-     *            Pattern is fitted around this peak
-     * @param charge
-     *            Charge state of the fitted pattern
-     * @param direction
-     *            Defines which half to fit: -1=fit to peaks before start M/Z,
-     *            +1=fit to peaks after start M/Z
-     * @param fittedPeaks
-     *            All matching peaks will be added to this set
+     * Fits the patterns of a block of peaks on a fitter thread. Peaks already
+     * assigned to an isotope pattern are skipped.
      */
-    private void fitHalfPattern(Feature p, int charge, int direction,
-	    Vector<Feature> fittedPeaks, Feature[] sortedPeaks) {
+    private class BlockFitter implements Callable<int[][][]> {
+
+	private final int start, end, charges[];
+
+	private BlockFitter(int start, int end, int charges[]) {
+	    this.start = start;
+	    this.end = end;
+	    this.charges = charges;
+	}
 
-	// Use M/Z and RT of the strongest peak of the pattern (peak 'p')
-	double mainMZ = p.getMZ();
-	double mainRT = p.getRT();
+	@Override
+	public int[][][] call() {
+	    PatternFitter fitter = patternFitters.get();
+	    int fittedBlock[][][] = new int[end - start][][];
+	    for (int ind = start; ind < end; ind++) {
+		if (!assignedPeaks[ind])
+		    fittedBlock[ind - start] = fitter.fitPatterns(ind, charges);
+	    }
+	    return fittedBlock;
+	}
 
-	// Variable n is the number of peak we are currently searching. 1=first
-	// peak before/after start peak, 2=peak before/after previous, 3=...
-	boolean followingPeakFound;
-	int n = 1;
-	do {
+    }
 
-	    // Assume we don't find match for n:th peak in the pattern (which
-	    // will end the loop)
-	    followingPeakFound = false;
+    /**
+     * Fits isotope patterns. The fitted peaks are marked in an array of the
+     * size of the peak list, so each thread uses its own fitter.
+     */
+    private class PatternFitter {
+
+	private final boolean fitted[] = new boolean[peakMZ.length];
+	private int fittedPeaks[] = new int[16];
+	private int numOfFittedPeaks;
+
+	/**
+	 * Fits the pattern of each charge state around one peak
+	 */
+	private int[][] fitPatterns(int peakIndex, int charges[]) {
+	    int fittedPeakIndexes[][] = new int[charges.length][];
+	    for (int i = 0; i < charges.length; i++)
+		fittedPeakIndexes[i] = fitPattern(peakIndex, charges[i]);
+	    return fittedPeakIndexes;
+	}
 
-	    // Loop through all peaks, and collect candidates for the n:th peak
-	    // in the pattern
-	    Vector<Feature> goodCandidates = new Vector<Feature>();
-	    for (int ind = 0; ind < sortedPeaks.length; ind++) {
+	/**
+	 * Fits isotope pattern around one peak.
+	 * 
+	 * @param peakIndex
+	 *            Pattern is fitted around this peak (position in the array
+	 *            of peaks sorted by height)
+	 * @param charge
+	 *            Charge state of the fitted pattern
+	 * @return positions of the fitted peaks, starting with peakIndex
+	 */
+	private int[] fitPattern(int peakIndex, int charge) {
+
+	    numOfFittedPeaks = 0;
+	    addFittedPeak(peakIndex);
+
+	    if (charge != 0) {
+
+		// Search for peaks before the start peak
+		if (!monotonicShape) {
+		    fitHalfPattern(peakIndex, charge, -1);
+		}
 
-		Feature candidatePeak = sortedPeaks[ind];
+		// Search for peaks after the start peak
+		fitHalfPattern(peakIndex, charge, 1);
 
-		if (candidatePeak == null)
-		    continue;
+	    }
+
+	    int fittedPeakIndexes[] = Arrays.copyOf(fittedPeaks,
+		    numOfFittedPeaks);
+	    for (int fittedPeak : fittedPeakIndexes)
+		fitted[fittedPeak] = false;
+	    return fittedPeakIndexes;
 
-		// Get properties of the candidate peak
-		double candidatePeakMZ = candidatePeak.getMZ();
-		double candidatePeakRT = candidatePeak.getRT();
+	}
 
-		// Does this peak fill all requirements of a candidate?
-		// - within tolerances from the expected location (M/Z and RT)
-		// - not already a fitted peak (only necessary to avoid
-		// conflicts when parameters are set too wide)
-		double isotopeMZ = candidatePeakMZ - isotopeDistance
-			* direction * n / (double) charge;
+	private void addFittedPeak(int peakIndex) {
+	    if (numOfFittedPeaks == fittedPeaks.length)
+		fittedPeaks = Arrays.copyOf(fittedPeaks, fittedPeaks.length * 2);
+	    fittedPeaks[numOfFittedPeaks++] = peakIndex;
+	    fitted[peakIndex] = true;
+	}
 
-		if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
-			&& rtTolerance.checkWithinTolerance(candidatePeakRT,
-				mainRT)
-			&& (!fittedPeaks.contains(candidatePeak))) {
-		    goodCandidates.add(candidatePeak);
+	/**
+	 * Helper method for fitPattern. Fits only one half of the pattern.
+	 * 
+	 * @param peakIndex
+	 *            Pattern is fitted around this peak
+	 * @param charge
+	 *            Charge state of the fitted pattern
+	 * @param direction
+	 *            Defines which half to fit: -1=fit to peaks before start
+	 *            M/Z, +1=fit to peaks after start M/Z
+	 */
+	private void fitHalfPattern(int peakIndex, int charge, int direction) {
+
+	    // Use M/Z and RT of the strongest peak of the pattern (peak 'p')
+	    double mainMZ = peakMZ[peakIndex];
+	    double mainRT = peakRT[peakIndex];
+
+	    // Only the peaks in this m/z window around the expected isotope
+	    // m/z can be within the tolerance. The tolerance at twice the m/z
+	    // is an upper bound of the tolerance of all isotope m/z values
+	    // which can match, and the small margin covers the rounding
+	    // errors.
+	    Range<Double> windowToleranceRange = mzTolerance
+		    .getToleranceRange(2 * Math.abs(mainMZ));
+	    double windowTolerance = (windowToleranceRange.upperEndpoint() - windowToleranceRange
+		    .lowerEndpoint()) / 2 + 0.000001;
+
+	    // Variable n is the number of peak we are currently searching.
+	    // 1=first peak before/after start peak, 2=peak before/after
+	    // previous, 3=...
+	    boolean followingPeakFound;
+	    int n = 1;
+	    do {
+
+		// Assume we don't find match for n:th peak in the pattern
+		// (which will end the loop)
+		followingPeakFound = false;
+
+		double isotopeShift = isotopeDistance * direction * n
+			/ (double) charge;
+		double windowStart = mainMZ + isotopeShift - windowTolerance;
+		double windowEnd = mainMZ + isotopeShift + windowTolerance;
+
+		// Loop through the peaks in the window, and add all good
+		// candidates for the n:th peak to the isotope pattern (note: in
+		// MZmine 2.3 and older, only the highest candidate was added)
+		final int firstCandidate = numOfFittedPeaks;
+		final int first = ArrayUtils.lowerBound(mzIndexMZ, windowStart);
+		for (int ind = first; ind < mzIndexMZ.length; ind++) {
+
+		    double candidatePeakMZ = mzIndexMZ[ind];
+		    if (candidatePeakMZ > windowEnd)
+			break;
+
+		    int candidatePeak = mzIndexPeaks[ind];
+		    if (assignedPeaks[candidatePeak])
+			continue;
+
+		    double candidatePeakRT = peakRT[candidatePeak];
+
+		    // Does this peak fill all requirements of a candidate?
+		    // - within tolerances from the expected location (M/Z and
+		    // RT)
+		    // - not already a fitted peak (only necessary to avoid
+		    // conflicts when parameters are set too wide)
+		    double isotopeMZ = candidatePeakMZ - isotopeShift;
+
+		    if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
+			    && rtTolerance.checkWithinTolerance(
+				    candidatePeakRT, mainRT)
+			    && (!fitted[candidatePeak])) {
+			addFittedPeak(candidatePeak);
+		    }
 
 		}
 
-	    }
+		// The candidates are added in the order of descending height
+		if (numOfFittedPeaks > firstCandidate) {
 
-	    // Add all good candidates to the isotope pattern (note: in MZmine
-	    // 2.3 and older, only the highest candidate was added)
-	    if (!goodCandidates.isEmpty()) {
+		    Arrays.sort(fittedPeaks, firstCandidate, numOfFittedPeaks);
 
-		fittedPeaks.addAll(goodCandidates);
+		    // n:th peak was found, so let's move on to n+1
+		    n++;
+		    followingPeakFound = true;
+		}
 
-		// n:th peak was found, so let's move on to n+1
-		n++;
-		followingPeakFound = true;
-	    }
+	    } while (followingPeakFound);
 
-	} while (followingPeakFound);
+	}
 
     }
 
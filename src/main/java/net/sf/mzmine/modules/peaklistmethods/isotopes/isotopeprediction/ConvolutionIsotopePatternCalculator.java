@@ -0,0 +1,274 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+
+import org.openscience.cdk.config.Isotopes;
+import org.openscience.cdk.interfaces.IIsotope;
+import org.openscience.cdk.interfaces.IMolecularFormula;
+import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
+
+/**
+ * Predicts isotope patterns by convolution of the isotope distributions of the
+ * elements, as an alternative to the CDK IsotopePatternGenerator. The
+ * distribution of n atoms of an element is calculated by repeated squaring,
+ * and is kept for all following formulas, so a batch of formulas with similar
+ * composition only convolves a few cached distributions per formula.
+ *
+ * After each convolution, isotopes closer than MERGE_TOLERANCE are merged
+ * into their intensity-weighted mass, and isotopes far below the minimum
+ * abundance are pruned. The resulting patterns are normalized to the highest
+ * isotope and sorted by mass, like those of the CDK generator.
+ *
+ * Instances are not thread safe.
+ */
+public class ConvolutionIsotopePatternCalculator {
+
+    // Isotopes closer than this (in Da) are merged into one
+    private static final double MERGE_TOLERANCE = 0.00005;
+
+    // Intermediate isotopes with abundance below this fraction of the
+    // minimum abundance, relative to the highest isotope, are pruned
+    private static final double PRUNING_FACTOR = 0.001;
+
+    private final double minAbundance;
+    private final double pruningLimit;
+
+    // Element symbol -> masses and abundances of its isotopes
+    private final Map<String, double[][]> elementIsotopes = new HashMap<String, double[][]>();
+
+    // Element symbol and atom count -> masses and abundances of the isotope
+    // distribution
+    private final Map<String, double[][]> elementDistributions = new HashMap<String, double[][]>();
+
+    private Isotopes isotopeFactory;
+
+    /**
+     * @param minAbundance
+     *            minimum abundance of predicted isotopes, relative to the
+     *            highest isotope
+     */
+    public ConvolutionIsotopePatternCalculator(double minAbundance) {
+	this.minAbundance = minAbundance;
+	this.pruningLimit = minAbundance * PRUNING_FACTOR;
+    }
+
+    public @Nonnull IsotopePattern calculateIsotopePattern(
+	    @Nonnull IMolecularFormula cdkFormula, int charge,
+	    @Nonnull PolarityType polarity) {
+
+	// Atom counts per element. Isotopes of the same element are counted
+	// together.
+	Map<String, Integer> elementCounts = new LinkedHashMap<String, Integer>();
+	for (IIsotope isotope : cdkFormula.isotopes()) {
+	    final String symbol = isotope.getSymbol();
+	    final Integer count = elementCounts.get(symbol);
+	    elementCounts.put(symbol, (count == null ? 0 : count)
+		    + cdkFormula.getIsotopeCount(isotope));
+	}
+
+	double distribution[][] = null;
+	for (Map.Entry<String, Integer> element : elementCounts.entrySet()) {
+	    if (element.getValue() <= 0)
+		continue;
+	    final double elementDistribution[][] = getElementDistribution(
+		    element.getKey(), element.getValue());
+	    distribution = (distribution == null) ? elementDistribution
+		    : convolve(distribution, elementDistribution);
+	}
+	if (distribution == null)
+	    distribution = new double[2][0];
+
+	final double masses[] = distribution[0];
+	final double abundances[] = distribution[1];
+	double maxAbundance = 0;
+	for (double abundance : abundances)
+	    maxAbundance = Math.max(maxAbundance, abundance);
+
+	int count = 0;
+	DataPoint dataPoints[] = new DataPoint[masses.length];
+	for (int i = 0; i < masses.length; i++) {
+	    final double intensity = abundances[i] / maxAbundance;
+	    if (intensity < minAbundance)
+		continue;
+	    dataPoints[count++] = new SimpleDataPoint(
+		    IsotopePatternCalculator.getIonMass(masses[i], charge,
+			    polarity), intensity);
+	}
+	dataPoints = Arrays.copyOf(dataPoints, count);
+
+	String formulaString = MolecularFormulaManipulator
+		.getString(cdkFormula);
+
+	return new SimpleIsotopePattern(dataPoints,
+		IsotopePatternStatus.PREDICTED, formulaString);
+
+    }
+
+    /**
+     * Returns the isotope distribution of given number of atoms of an element
+     */
+    private double[][] getElementDistribution(String symbol, int atoms) {
+
+	final String key = symbol + atoms;
+	double distribution[][] = elementDistributions.get(key);
+	if (distribution != null)
+	    return distribution;
+
+	// Square and multiply
+	double power[][] = getElementIsotopes(symbol);
+	for (int n = atoms; n > 0; n >>= 1) {
+	    if ((n & 1) != 0)
+		distribution = (distribution == null) ? power : convolve(
+			distribution, power);
+	    if (n > 1)
+		power = convolve(power, power);
+	}
+
+	elementDistributions.put(key, distribution);
+	return distribution;
+
+    }
+
+    private double[][] getElementIsotopes(String symbol) {
+
+	double isotopes[][] = elementIsotopes.get(symbol);
+	if (isotopes != null)
+	    return isotopes;
+
+	if (isotopeFactory == null) {
+	    try {
+		isotopeFactory = Isotopes.getInstance();
+	    } catch (IOException e) {
+		throw new IllegalStateException(
+			"Could not read the isotope data", e);
+	    }
+	}
+
+	IIsotope knownIsotopes[] = isotopeFactory.getIsotopes(symbol);
+	double masses[] = new double[knownIsotopes.length];
+	double abundances[] = new double[knownIsotopes.length];
+	int count = 0;
+	for (IIsotope isotope : knownIsotopes) {
+	    final Double mass = isotope.getExactMass();
+	    final Double abundance = isotope.getNaturalAbundance();
+	    if ((mass == null) || (abundance == null) || (abundance <= 1E-9))
+		continue;
+	    masses[count] = mass;
+	    // Natural abundances are given in percent
+	    abundances[count] = abundance / 100.0;
+	    count++;
+	}
+	if (count == 0)
+	    throw new IllegalArgumentException("No isotopes of element "
+		    + symbol + " are known");
+
+	isotopes = mergeAndPrune(masses, abundances, count);
+	elementIsotopes.put(symbol, isotopes);
+	return isotopes;
+
+    }
+
+    /**
+     * Returns the distribution of the sum of two distributions
+     */
+    private double[][] convolve(double first[][], double second[][]) {
+
+	final int size = first[0].length * second[0].length;
+	final double masses[] = new double[size];
+	final double abundances[] = new double[size];
+	int count = 0;
+	for (int i = 0; i < first[0].length; i++) {
+	    for (int j = 0; j < second[0].length; j++) {
+		masses[count] = first[0][i] + second[0][j];
+		abundances[count] = first[1][i] * second[1][j];
+		count++;
+	    }
+	}
+	return mergeAndPrune(masses, abundances, count);
+
+    }
+
+    /**
+     * Sorts the isotopes by mass, merges the isotopes closer than
+     * MERGE_TOLERANCE and prunes the isotopes below the pruning limit
+     */
+    private double[][] mergeAndPrune(final double masses[],
+	    final double abundances[], int count) {
+
+	double maxAbundance = 0;
+	for (int i = 0; i < count; i++)
+	    maxAbundance = Math.max(maxAbundance, abundances[i]);
+	final double minKeptAbundance = maxAbundance * pruningLimit;
+
+	Integer order[] = new Integer[count];
+	int kept = 0;
+	for (int i = 0; i < count; i++) {
+	    if (abundances[i] >= minKeptAbundance)
+		order[kept++] = i;
+	}
+	Arrays.sort(order, 0, kept, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(masses[i1], masses[i2]);
+	    }
+	});
+
+	double mergedMasses[] = new double[kept];
+	double mergedAbundances[] = new double[kept];
+	int merged = 0;
+	for (int i = 0; i < kept; i++) {
+	    final double mass = masses[order[i]];
+	    final double abundance = abundances[order[i]];
+	    if ((merged > 0)
+		    && (mass - mergedMasses[merged - 1] < MERGE_TOLERANCE)) {
+		final double total = mergedAbundances[merged - 1] + abundance;
+		mergedMasses[merged - 1] = (mergedMasses[merged - 1]
+			* mergedAbundances[merged - 1] + mass * abundance)
+			/ total;
+		mergedAbundances[merged - 1] = total;
+	    } else {
+		mergedMasses[merged] = mass;
+		mergedAbundances[merged] = abundance;
+		merged++;
+	    }
+	}
+
+	return new double[][] { Arrays.copyOf(mergedMasses, merged),
+		Arrays.copyOf(mergedAbundances, merged) };
+
+    }
+
+}
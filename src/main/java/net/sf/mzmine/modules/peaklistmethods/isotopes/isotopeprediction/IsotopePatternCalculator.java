@@ -21,6 +21,8 @@ package net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction;
 
 import java.awt.Window;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 
@@ -52,6 +54,65 @@ public class IsotopePatternCalculator implements MZmineModule {
 
     private static final String MODULE_NAME = "Isotope pattern prediction.";
 
+    // Maximum number of predicted patterns kept in the cache
+    private static final int MAX_CACHED_PATTERNS = 10000;
+
+    /**
+     * Patterns predicted from formula strings, shared by all modules. Formula
+     * prediction and database searches ask for the same formula, charge and
+     * minimum abundance many times. The least recently used pattern is
+     * dropped first.
+     */
+    private static final Map<PatternKey, IsotopePattern> patternCache = new LinkedHashMap<PatternKey, IsotopePattern>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(
+		Map.Entry<PatternKey, IsotopePattern> eldest) {
+	    return size() > MAX_CACHED_PATTERNS;
+	}
+    };
+
+    /**
+     * Identifies a pattern in the cache
+     */
+    private static class PatternKey {
+
+	private final String molecularFormula;
+	private final double minAbundance;
+	private final int charge;
+	private final PolarityType polarity;
+
+	private PatternKey(String molecularFormula, double minAbundance,
+		int charge, PolarityType polarity) {
+	    this.molecularFormula = molecularFormula;
+	    this.minAbundance = minAbundance;
+	    this.charge = charge;
+	    this.polarity = polarity;
+	}
+
+	@Override
+	public int hashCode() {
+	    final long abundanceBits = Double.doubleToLongBits(minAbundance);
+	    int hash = molecularFormula.hashCode();
+	    hash = hash * 31 + (int) (abundanceBits ^ (abundanceBits >>> 32));
+	    hash = hash * 31 + charge;
+	    return hash * 31 + polarity.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof PatternKey))
+		return false;
+	    PatternKey key = (PatternKey) obj;
+	    return (charge == key.charge)
+		    && (polarity == key.polarity)
+		    && (Double.compare(minAbundance, key.minAbundance) == 0)
+		    && molecularFormula.equals(key.molecularFormula);
+	}
+    }
+
     @Override
     public @Nonnull String getName() {
 	return MODULE_NAME;
@@ -61,13 +122,53 @@ public class IsotopePatternCalculator implements MZmineModule {
 	    String molecularFormula, double minAbundance, int charge,
 	    PolarityType polarity) {
 
+	final PatternKey key = new PatternKey(molecularFormula, minAbundance,
+		charge, polarity);
+	synchronized (patternCache) {
+	    IsotopePattern cachedPattern = patternCache.get(key);
+	    if (cachedPattern != null)
+		return cachedPattern;
+	}
+
 	IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
 
 	IMolecularFormula cdkFormula = MolecularFormulaManipulator
 		.getMolecularFormula(molecularFormula, builder);
 
-	return calculateIsotopePattern(cdkFormula, minAbundance, charge,
-		polarity);
+	IsotopePattern pattern = calculateIsotopePattern(cdkFormula,
+		minAbundance, charge, polarity);
+
+	synchronized (patternCache) {
+	    patternCache.put(key, pattern);
+	}
+	return pattern;
+
+    }
+
+    /**
+     * Calculates the isotope patterns of many formulas with the
+     * ConvolutionIsotopePatternCalculator instead of the CDK generator. The
+     * isotope distributions of the elements are calculated once for the whole
+     * batch, which makes large batches of similar formulas much faster. The
+     * patterns equal those of the CDK generator within the merging tolerance
+     * of the convolution calculator; they are not added to the cache.
+     */
+    public static IsotopePattern[] calculateIsotopePatterns(
+	    String molecularFormulas[], double minAbundance, int charge,
+	    PolarityType polarity) {
+
+	IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
+	ConvolutionIsotopePatternCalculator calculator = new ConvolutionIsotopePatternCalculator(
+		minAbundance);
+
+	IsotopePattern patterns[] = new IsotopePattern[molecularFormulas.length];
+	for (int i = 0; i < molecularFormulas.length; i++) {
+	    IMolecularFormula cdkFormula = MolecularFormulaManipulator
+		    .getMolecularFormula(molecularFormulas[i], builder);
+	    patterns[i] = calculator.calculateIsotopePattern(cdkFormula,
+		    charge, polarity);
+	}
+	return patterns;
 
     }
 
@@ -92,15 +193,7 @@ public class IsotopePatternCalculator implements MZmineModule {
 	for (int i = 0; i < numOfIsotopes; i++) {
 	    IsotopeContainer isotope = pattern.getIsotope(i);
 
-	    // For each unit of charge, we have to add or remove a mass of a
-	    // single electron. If the charge is positive, we remove electron
-	    // mass. If the charge is negative, we add it.
-	    double mass = isotope.getMass()
-		    + (polarity.getSign() * -1 * charge * ELECTRON_MASS);
-
-	    if (charge != 0)
-		mass /= charge;
-
+	    double mass = getIonMass(isotope.getMass(), charge, polarity);
 	    double intensity = isotope.getIntensity();
 
 	    dataPoints[i] = new SimpleDataPoint(mass, intensity);
@@ -116,6 +209,23 @@ public class IsotopePatternCalculator implements MZmineModule {
 
     }
 
+    /**
+     * Returns the m/z of an isotope of given mass with given charge
+     */
+    static double getIonMass(double mass, int charge, PolarityType polarity) {
+
+	// For each unit of charge, we have to add or remove a mass of a
+	// single electron. If the charge is positive, we remove electron
+	// mass. If the charge is negative, we add it.
+	mass += (polarity.getSign() * -1 * charge * ELECTRON_MASS);
+
+	if (charge != 0)
+	    mass /= charge;
+
+	return mass;
+
+    }
+
     /**
      * Returns same isotope pattern (same ratios between isotope intensities)
      * with maximum intensity normalized to 1
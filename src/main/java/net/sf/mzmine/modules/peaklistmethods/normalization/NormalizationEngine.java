@@ -0,0 +1,280 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.normalization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.util.PeakMeasurementType;
+import net.sf.mzmine.util.PeakUtils;
+
+/**
+ * Peak heights and areas of a peak list as dense rows x files matrices, shared
+ * by the normalization modules. The peak list is read once; normalization
+ * factors are calculated per file in parallel, and the normalized peak list is
+ * built from the matrices in one pass.
+ *
+ * All parallel methods stop early when the owning task is canceled.
+ */
+public class NormalizationEngine {
+
+    /**
+     * Calculates the normalization factor of one data file
+     */
+    public interface FileFactorFunction {
+	double calculateFactor(int file);
+    }
+
+    /**
+     * Returns the normalization factor of the peak of given row and data file
+     */
+    public interface FactorFunction {
+	double getFactor(int row, int file);
+    }
+
+    private final AbstractTask task;
+    private final PeakList peakList;
+    private final PeakListRow rows[];
+    private final RawDataFile files[];
+
+    // [file][row], null and 0 where the row has no peak in the file
+    private final Feature features[][];
+    private final double heights[][];
+    private final double areas[][];
+
+    // Calculated factors of files and created rows of the normalized peak
+    // list
+    private final AtomicInteger processedItems = new AtomicInteger();
+    private final AtomicInteger totalItems;
+
+    /**
+     * Reads given rows of the peak list. The rows keep their order.
+     */
+    public NormalizationEngine(@Nonnull AbstractTask task,
+	    @Nonnull PeakList peakList, @Nonnull PeakListRow rows[]) {
+
+	this.task = task;
+	this.peakList = peakList;
+	this.rows = rows;
+	this.files = peakList.getRawDataFiles();
+
+	features = new Feature[files.length][rows.length];
+	heights = new double[files.length][rows.length];
+	areas = new double[files.length][rows.length];
+	for (int r = 0; r < rows.length; r++) {
+	    for (int f = 0; f < files.length; f++) {
+		Feature peak = rows[r].getPeak(files[f]);
+		if (peak == null)
+		    continue;
+		features[f][r] = peak;
+		heights[f][r] = peak.getHeight();
+		areas[f][r] = peak.getArea();
+	    }
+	}
+
+	totalItems = new AtomicInteger(rows.length);
+
+    }
+
+    public int getNumberOfRows() {
+	return rows.length;
+    }
+
+    public int getNumberOfFiles() {
+	return files.length;
+    }
+
+    public PeakListRow getRow(int row) {
+	return rows[row];
+    }
+
+    public RawDataFile getFile(int file) {
+	return files[file];
+    }
+
+    public boolean hasPeak(int row, int file) {
+	return features[file][row] != null;
+    }
+
+    /**
+     * Returns the height or area of the peak of given row and file, or 0 if
+     * the row has no peak in the file
+     */
+    public double getValue(int row, int file, PeakMeasurementType type) {
+	if (type == PeakMeasurementType.HEIGHT)
+	    return heights[file][row];
+	return areas[file][row];
+    }
+
+    /**
+     * Returns the heights or areas of all rows in given file. The returned
+     * array must not be modified.
+     */
+    public double[] getValues(int file, PeakMeasurementType type) {
+	if (type == PeakMeasurementType.HEIGHT)
+	    return heights[file];
+	return areas[file];
+    }
+
+    /**
+     * Returns the maximum height of all peaks, or 0 if there are no peaks
+     */
+    public double getMaximumHeight() {
+	double maximumHeight = 0.0;
+	for (int f = 0; f < files.length; f++) {
+	    for (int r = 0; r < rows.length; r++) {
+		if ((features[f][r] != null)
+			&& (maximumHeight <= heights[f][r]))
+		    maximumHeight = heights[f][r];
+	    }
+	}
+	return maximumHeight;
+    }
+
+    /**
+     * Returns the fraction of the factors and normalized rows calculated so
+     * far
+     */
+    public double getFinishedPercentage() {
+	if (totalItems.get() == 0)
+	    return 0;
+	return (double) processedItems.get() / (double) totalItems.get();
+    }
+
+    /**
+     * Calculates the normalization factors of all files in parallel
+     */
+    public double[] calculateFileFactors(final FileFactorFunction function)
+	    throws InterruptedException, ExecutionException {
+
+	final double factors[] = new double[files.length];
+	final AtomicInteger nextFile = new AtomicInteger();
+	totalItems.addAndGet(files.length);
+	runInParallel(files.length, new Runnable() {
+	    public void run() {
+		int file;
+		while (!task.isCanceled()
+			&& (file = nextFile.getAndIncrement()) < files.length) {
+		    factors[file] = function.calculateFactor(file);
+		    processedItems.incrementAndGet();
+		}
+	    }
+	});
+	return factors;
+
+    }
+
+    /**
+     * Creates a peak list with the peaks of all rows divided by their
+     * normalization factors. Rows are created in parallel and added in their
+     * original order, each with its peaks in data file order. Rows without
+     * peaks are only added if addEmptyRows is set.
+     */
+    public SimplePeakList createNormalizedPeakList(String name,
+	    final FactorFunction factors, boolean addEmptyRows)
+	    throws InterruptedException, ExecutionException {
+
+	final SimplePeakListRow normalizedRows[] = new SimplePeakListRow[rows.length];
+	final AtomicInteger nextRow = new AtomicInteger();
+	runInParallel(rows.length, new Runnable() {
+	    public void run() {
+		int row;
+		while (!task.isCanceled()
+			&& (row = nextRow.getAndIncrement()) < rows.length) {
+		    normalizedRows[row] = createNormalizedRow(row, factors);
+		    processedItems.incrementAndGet();
+		}
+	    }
+	});
+
+	SimplePeakList normalizedPeakList = new SimplePeakList(name,
+		peakList.getRawDataFiles());
+	if (task.isCanceled())
+	    return normalizedPeakList;
+	for (SimplePeakListRow normalizedRow : normalizedRows) {
+	    if (addEmptyRows || (normalizedRow.getNumberOfPeaks() > 0))
+		normalizedPeakList.addRow(normalizedRow);
+	}
+	return normalizedPeakList;
+
+    }
+
+    private SimplePeakListRow createNormalizedRow(int row,
+	    FactorFunction factors) {
+
+	SimplePeakListRow normalizedRow = new SimplePeakListRow(
+		rows[row].getID());
+	PeakUtils.copyPeakListRowProperties(rows[row], normalizedRow);
+
+	for (int f = 0; f < files.length; f++) {
+	    Feature originalPeak = features[f][row];
+	    if (originalPeak == null)
+		continue;
+
+	    double normalizationFactor = factors.getFactor(row, f);
+	    SimpleFeature normalizedPeak = new SimpleFeature(originalPeak);
+	    PeakUtils.copyPeakProperties(originalPeak, normalizedPeak);
+	    normalizedPeak.setHeight(heights[f][row] / normalizationFactor);
+	    normalizedPeak.setArea(areas[f][row] / normalizationFactor);
+	    normalizedRow.addPeak(files[f], normalizedPeak);
+	}
+
+	return normalizedRow;
+
+    }
+
+    /**
+     * Runs given worker on one thread per processor, at most one per item,
+     * and waits until all workers are finished
+     */
+    private void runInParallel(int items, Runnable worker)
+	    throws InterruptedException, ExecutionException {
+
+	final int numOfThreads = Math.max(1,
+		Math.min(items, Runtime.getRuntime().availableProcessors()));
+	ExecutorService threads = Executors.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> workers = new ArrayList<Future<?>>();
+	    for (int t = 0; t < numOfThreads; t++)
+		workers.add(threads.submit(worker));
+	    for (Future<?> future : workers)
+		future.get();
+	} finally {
+	    threads.shutdownNow();
+	}
+
+    }
+
+}
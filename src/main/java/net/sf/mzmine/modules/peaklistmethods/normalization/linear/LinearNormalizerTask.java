@@ -19,25 +19,22 @@
 
 package net.sf.mzmine.modules.peaklistmethods.normalization.linear;
 
-import java.util.Hashtable;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
-import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
-import net.sf.mzmine.datamodel.impl.SimpleFeature;
-import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
-import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.peaklistmethods.normalization.NormalizationEngine;
+import net.sf.mzmine.modules.peaklistmethods.normalization.NormalizationEngine.FactorFunction;
+import net.sf.mzmine.modules.peaklistmethods.normalization.NormalizationEngine.FileFactorFunction;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakMeasurementType;
-import net.sf.mzmine.util.PeakUtils;
 
 class LinearNormalizerTask extends AbstractTask {
 
@@ -48,7 +45,7 @@ class LinearNormalizerTask extends AbstractTask {
     private final MZmineProject project;
     private PeakList originalPeakList, normalizedPeakList;
 
-    private int processedDataFiles, totalDataFiles;
+    private NormalizationEngine engine;
 
     private String suffix;
     private NormalizationType normalizationType;
@@ -63,8 +60,6 @@ class LinearNormalizerTask extends AbstractTask {
 	this.originalPeakList = peakList;
 	this.parameters = parameters;
 
-	totalDataFiles = originalPeakList.getNumberOfRawDataFiles();
-
 	suffix = parameters.getParameter(LinearNormalizerParameters.suffix)
 		.getValue();
 	normalizationType = parameters.getParameter(
@@ -77,7 +72,9 @@ class LinearNormalizerTask extends AbstractTask {
     }
 
     public double getFinishedPercentage() {
-	return (double) processedDataFiles / (double) totalDataFiles;
+	if (engine == null)
+	    return 0;
+	return engine.getFinishedPercentage();
     }
 
     public String getTaskDescription() {
@@ -90,163 +87,41 @@ class LinearNormalizerTask extends AbstractTask {
 	setStatus(TaskStatus.PROCESSING);
 	logger.info("Running linear normalizer");
 
-	// This hashtable maps rows from original alignment result to rows of
-	// the normalized alignment
-	Hashtable<PeakListRow, SimplePeakListRow> rowMap = new Hashtable<PeakListRow, SimplePeakListRow>();
-
-	// Create new peak list
-	normalizedPeakList = new SimplePeakList(
-		originalPeakList + " " + suffix,
-		originalPeakList.getRawDataFiles());
-
-	// Loop through all raw data files, and find the peak with biggest
-	// height
-	double maxOriginalHeight = 0.0;
-	for (RawDataFile file : originalPeakList.getRawDataFiles()) {
-	    for (PeakListRow originalpeakListRow : originalPeakList.getRows()) {
-		Feature p = originalpeakListRow.getPeak(file);
-		if (p != null) {
-		    if (maxOriginalHeight <= p.getHeight())
-			maxOriginalHeight = p.getHeight();
-		}
-	    }
-	}
+	// Read all peaks of the peak list once
+	engine = new NormalizationEngine(this, originalPeakList,
+		originalPeakList.getRows());
 
-	// Loop through all raw data files, and normalize peak values
-	for (RawDataFile file : originalPeakList.getRawDataFiles()) {
+	// Find the peak with biggest height in all raw data files
+	final double maxOriginalHeight = engine.getMaximumHeight();
 
-	    // Cancel?
-	    if (isCanceled()) {
-		return;
-	    }
+	try {
 
-	    // Determine normalization type and calculate normalization factor
-	    double normalizationFactor = 1.0;
-
-	    // - normalization by average peak intensity
-	    if (normalizationType == NormalizationType.AverageIntensity) {
-		double intensitySum = 0;
-		int intensityCount = 0;
-		for (PeakListRow peakListRow : originalPeakList.getRows()) {
-		    Feature p = peakListRow.getPeak(file);
-		    if (p != null) {
-			if (peakMeasurementType == PeakMeasurementType.HEIGHT) {
-			    intensitySum += p.getHeight();
-			} else {
-			    intensitySum += p.getArea();
+	    // Calculate normalization factors of all files in parallel
+	    final double normalizationFactors[] = engine
+		    .calculateFileFactors(new FileFactorFunction() {
+			public double calculateFactor(int file) {
+			    return calculateNormalizationFactor(file,
+				    maxOriginalHeight);
 			}
-			intensityCount++;
-		    }
-		}
-		normalizationFactor = intensitySum / (double) intensityCount;
-	    }
-
-	    // - normalization by average squared peak intensity
-	    if (normalizationType == NormalizationType.AverageSquaredIntensity) {
-		double intensitySum = 0.0;
-		int intensityCount = 0;
-		for (PeakListRow peakListRow : originalPeakList.getRows()) {
-		    Feature p = peakListRow.getPeak(file);
-		    if (p != null) {
-			if (peakMeasurementType == PeakMeasurementType.HEIGHT) {
-			    intensitySum += (p.getHeight() * p.getHeight());
-			} else {
-			    intensitySum += (p.getArea() * p.getArea());
-			}
-			intensityCount++;
-		    }
-		}
-		normalizationFactor = intensitySum / (double) intensityCount;
-	    }
+		    });
+	    if (isCanceled())
+		return;
 
-	    // - normalization by maximum peak intensity
-	    if (normalizationType == NormalizationType.MaximumPeakHeight) {
-		double maximumIntensity = 0.0;
-		for (PeakListRow peakListRow : originalPeakList.getRows()) {
-		    Feature p = peakListRow.getPeak(file);
-		    if (p != null) {
-			if (peakMeasurementType == PeakMeasurementType.HEIGHT) {
-			    if (maximumIntensity < p.getHeight())
-				maximumIntensity = p.getHeight();
-			} else {
-			    if (maximumIntensity < p.getArea())
-				maximumIntensity = p.getArea();
+	    // Normalize all peak intensities using the normalization factors.
+	    // Rows without peaks are not added.
+	    normalizedPeakList = engine.createNormalizedPeakList(
+		    originalPeakList + " " + suffix, new FactorFunction() {
+			public double getFactor(int row, int file) {
+			    return normalizationFactors[file];
 			}
+		    }, false);
+	    if (isCanceled())
+		return;
 
-		    }
-		}
-		normalizationFactor = maximumIntensity;
-	    }
-
-	    // - normalization by total raw signal
-	    if (normalizationType == NormalizationType.TotalRawSignal) {
-		normalizationFactor = 0;
-		for (int scanNumber : file.getScanNumbers(1)) {
-		    Scan scan = file.getScan(scanNumber);
-		    normalizationFactor += scan.getTIC();
-		}
-	    }
-
-	    // Readjust normalization factor so that maximum height will be
-	    // equal to maximumOverallPeakHeightAfterNormalization after
-	    // normalization
-	    double maxNormalizedHeight = maxOriginalHeight
-		    / normalizationFactor;
-	    normalizationFactor = normalizationFactor * maxNormalizedHeight
-		    / maximumOverallPeakHeightAfterNormalization;
-
-	    // Normalize all peak intenisities using the normalization factor
-	    for (PeakListRow originalpeakListRow : originalPeakList.getRows()) {
-
-		// Cancel?
-		if (isCanceled()) {
-		    return;
-		}
-
-		Feature originalPeak = originalpeakListRow.getPeak(file);
-		if (originalPeak != null) {
-
-		    SimpleFeature normalizedPeak = new SimpleFeature(
-			    originalPeak);
-		    PeakUtils.copyPeakProperties(originalPeak, normalizedPeak);
-
-		    double normalizedHeight = originalPeak.getHeight()
-			    / normalizationFactor;
-		    double normalizedArea = originalPeak.getArea()
-			    / normalizationFactor;
-		    normalizedPeak.setHeight(normalizedHeight);
-		    normalizedPeak.setArea(normalizedArea);
-
-		    SimplePeakListRow normalizedRow = rowMap
-			    .get(originalpeakListRow);
-
-		    if (normalizedRow == null) {
-
-			normalizedRow = new SimplePeakListRow(
-				originalpeakListRow.getID());
-
-			PeakUtils.copyPeakListRowProperties(
-				originalpeakListRow, normalizedRow);
-
-			rowMap.put(originalpeakListRow, normalizedRow);
-		    }
-
-		    normalizedRow.addPeak(file, normalizedPeak);
-
-		}
-
-	    }
-
-	    // Progress
-	    processedDataFiles++;
-
-	}
-
-	// Finally add all normalized rows to normalized alignment result
-	for (PeakListRow originalpeakListRow : originalPeakList.getRows()) {
-	    SimplePeakListRow normalizedRow = rowMap.get(originalpeakListRow);
-	    if (normalizedRow == null) continue;
-	    normalizedPeakList.addRow(normalizedRow);
+	} catch (Exception e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e));
+	    return;
 	}
 
 	// Add new peaklist to the project
@@ -272,4 +147,78 @@ class LinearNormalizerTask extends AbstractTask {
 
     }
 
+    /**
+     * Calculates the normalization factor of given file, readjusted so that
+     * the maximum height will be equal to
+     * maximumOverallPeakHeightAfterNormalization after normalization
+     */
+    private double calculateNormalizationFactor(int file,
+	    double maxOriginalHeight) {
+
+	final double values[] = engine.getValues(file, peakMeasurementType);
+	final int rows = engine.getNumberOfRows();
+
+	// Determine normalization type and calculate normalization factor
+	double normalizationFactor = 1.0;
+
+	// - normalization by average peak intensity
+	if (normalizationType == NormalizationType.AverageIntensity) {
+	    double intensitySum = 0;
+	    int intensityCount = 0;
+	    for (int row = 0; row < rows; row++) {
+		if (engine.hasPeak(row, file)) {
+		    intensitySum += values[row];
+		    intensityCount++;
+		}
+	    }
+	    normalizationFactor = intensitySum / (double) intensityCount;
+	}
+
+	// - normalization by average squared peak intensity
+	if (normalizationType == NormalizationType.AverageSquaredIntensity) {
+	    double intensitySum = 0.0;
+	    int intensityCount = 0;
+	    for (int row = 0; row < rows; row++) {
+		if (engine.hasPeak(row, file)) {
+		    intensitySum += (values[row] * values[row]);
+		    intensityCount++;
+		}
+	    }
+	    normalizationFactor = intensitySum / (double) intensityCount;
+	}
+
+	// - normalization by maximum peak intensity
+	if (normalizationType == NormalizationType.MaximumPeakHeight) {
+	    double maximumIntensity = 0.0;
+	    for (int row = 0; row < rows; row++) {
+		if (engine.hasPeak(row, file)
+			&& (maximumIntensity < values[row]))
+		    maximumIntensity = values[row];
+	    }
+	    normalizationFactor = maximumIntensity;
+	}
+
+	// - normalization by total raw signal
+	if (normalizationType == NormalizationType.TotalRawSignal) {
+	    RawDataFile dataFile = engine.getFile(file);
+	    normalizationFactor = 0;
+	    for (int scanNumber : dataFile.getScanNumbers(1)) {
+		if (isCanceled())
+		    return normalizationFactor;
+		Scan scan = dataFile.getScan(scanNumber);
+		normalizationFactor += scan.getTIC();
+	    }
+	}
+
+	// Readjust normalization factor so that maximum height will be
+	// equal to maximumOverallPeakHeightAfterNormalization after
+	// normalization
+	double maxNormalizedHeight = maxOriginalHeight / normalizationFactor;
+	normalizationFactor = normalizationFactor * maxNormalizedHeight
+		/ maximumOverallPeakHeightAfterNormalization;
+
+	return normalizationFactor;
+
+    }
+
 }
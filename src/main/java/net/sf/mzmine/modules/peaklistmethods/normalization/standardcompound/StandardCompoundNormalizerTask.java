@@ -19,24 +19,26 @@
 
 package net.sf.mzmine.modules.peaklistmethods.normalization.standardcompound;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
 import net.sf.mzmine.datamodel.PeakListRow;
-import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.impl.SimpleFeature;
-import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
-import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.peaklistmethods.normalization.NormalizationEngine;
+import net.sf.mzmine.modules.peaklistmethods.normalization.NormalizationEngine.FactorFunction;
 import net.sf.mzmine.modules.peaklistmethods.normalization.linear.LinearNormalizerParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakMeasurementType;
-import net.sf.mzmine.util.PeakUtils;
 
 public class StandardCompoundNormalizerTask extends AbstractTask {
 
@@ -45,7 +47,7 @@ public class StandardCompoundNormalizerTask extends AbstractTask {
     private final MZmineProject project;
     private PeakList originalPeakList, normalizedPeakList;
 
-    private int processedRows, totalRows;
+    private NormalizationEngine engine, standards;
 
     private String suffix;
     private StandardUsageType normalizationType;
@@ -86,9 +88,9 @@ public class StandardCompoundNormalizerTask extends AbstractTask {
     }
 
     public double getFinishedPercentage() {
-        if (totalRows == 0)
+        if (engine == null)
             return 0;
-        return (double) processedRows / (double) totalRows;
+        return engine.getFinishedPercentage();
     }
 
     public String getTaskDescription() {
@@ -110,192 +112,235 @@ public class StandardCompoundNormalizerTask extends AbstractTask {
             return;
         }
 
-        // Initialize new alignment result for the normalized result
-        normalizedPeakList = new SimplePeakList(originalPeakList + " " + suffix,
-                originalPeakList.getRawDataFiles());
-
-        // Copy raw data files from original alignment result to new alignment
-        // result
-        totalRows = originalPeakList.getNumberOfRows();
-
-        // Loop through all rows
+        // Do not add the standard rows to the new peaklist
+        List<PeakListRow> rows = new ArrayList<PeakListRow>();
         rowIteration: for (PeakListRow row : originalPeakList.getRows()) {
-
-            // Cancel ?
-            if (isCanceled()) {
-                return;
-            }
-
-            // Do not add the standard rows to the new peaklist
             for (int i = 0; i < standardRows.length; i++) {
-                if (row == standardRows[i]) {
-                    processedRows++;
+                if (row == standardRows[i])
                     continue rowIteration;
-                }
             }
+            rows.add(row);
+        }
 
-            // Copy comment and identification
-            SimplePeakListRow normalizedRow = new SimplePeakListRow(
-                    row.getID());
-            PeakUtils.copyPeakListRowProperties(row, normalizedRow);
-
-            // Get m/z and RT of the current row
-            double mz = row.getAverageMZ();
-            double rt = row.getAverageRT();
-
-            // Loop through all raw data files
-            for (RawDataFile file : originalPeakList.getRawDataFiles()) {
+        // Read the peaks of all rows and standards once
+        engine = new NormalizationEngine(this, originalPeakList,
+                rows.toArray(new PeakListRow[0]));
+        standards = new NormalizationEngine(this, originalPeakList,
+                standardRows);
+
+        // The distances between rows and standards do not depend on the data
+        // file, so they are calculated once per row
+        final int nearestStandards[];
+        final double standardWeights[][];
+        if (normalizationType == StandardUsageType.Nearest) {
+            nearestStandards = findNearestStandards();
+            standardWeights = null;
+        } else {
+            nearestStandards = null;
+            standardWeights = calculateStandardWeights();
+        }
+        if (isCanceled())
+            return;
 
-                double normalizationFactors[] = null;
-                double normalizationFactorWeights[] = null;
+        try {
+            normalizedPeakList = engine.createNormalizedPeakList(
+                    originalPeakList + " " + suffix, new FactorFunction() {
+                        public double getFactor(int row, int file) {
+                            return calculateNormalizationFactor(row, file,
+                                    nearestStandards, standardWeights);
+                        }
+                    }, true);
+        } catch (Exception e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(ExceptionUtils.exceptionToString(e));
+            return;
+        }
+        if (isCanceled())
+            return;
 
-                if (normalizationType == StandardUsageType.Nearest) {
+        // Add new peaklist to the project
+        project.addPeakList(normalizedPeakList);
 
-                    // Search for nearest standard
-                    PeakListRow nearestStandardRow = null;
-                    double nearestStandardRowDistance = Double.MAX_VALUE;
+        // Load previous applied methods
+        for (PeakListAppliedMethod proc : originalPeakList
+                .getAppliedMethods()) {
+            normalizedPeakList.addDescriptionOfAppliedTask(proc);
+        }
 
-                    for (int standardRowIndex = 0; standardRowIndex < standardRows.length; standardRowIndex++) {
-                        PeakListRow standardRow = standardRows[standardRowIndex];
+        // Add task description to peakList
+        normalizedPeakList
+                .addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
+                        "Standard compound normalization", parameters));
 
-                        double stdMZ = standardRow.getAverageMZ();
-                        double stdRT = standardRow.getAverageRT();
-                        double distance = MZvsRTBalance * Math.abs(mz - stdMZ)
-                                + Math.abs(rt - stdRT);
-                        if (distance <= nearestStandardRowDistance) {
-                            nearestStandardRow = standardRow;
-                            nearestStandardRowDistance = distance;
-                        }
+        // Remove the original peaklist if requested
+        if (removeOriginal)
+            project.removePeakList(originalPeakList);
 
-                    }
-
-                    assert nearestStandardRow != null;
-
-                    // Calc and store a single normalization factor
-                    normalizationFactors = new double[1];
-                    normalizationFactorWeights = new double[1];
-                    Feature standardPeak = nearestStandardRow.getPeak(file);
-                    if (standardPeak == null) {
-                        // What to do if standard peak is not available?
-                        normalizationFactors[0] = 1.0;
-                    } else {
-                        if (peakMeasurementType == PeakMeasurementType.HEIGHT) {
-                            normalizationFactors[0] = standardPeak.getHeight();
-                        } else {
-                            normalizationFactors[0] = standardPeak.getArea();
-                        }
-                    }
-                    logger.finest("Normalizing row #" + row.getID()
-                            + " using standard peak " + standardPeak
-                            + ", factor " + normalizationFactors[0]);
-                    normalizationFactorWeights[0] = 1.0f;
+        logger.info("Finished standard compound normalizer");
+        setStatus(TaskStatus.FINISHED);
 
-                }
+    }
 
-                if (normalizationType == StandardUsageType.Weighted) {
-
-                    // Add all standards as factors, and use distance as weight
-                    normalizationFactors = new double[standardRows.length];
-                    normalizationFactorWeights = new double[standardRows.length];
-
-                    for (int standardRowIndex = 0; standardRowIndex < standardRows.length; standardRowIndex++) {
-                        PeakListRow standardRow = standardRows[standardRowIndex];
-
-                        double stdMZ = standardRow.getAverageMZ();
-                        double stdRT = standardRow.getAverageRT();
-                        double distance = MZvsRTBalance * Math.abs(mz - stdMZ)
-                                + Math.abs(rt - stdRT);
-
-                        Feature standardPeak = standardRow.getPeak(file);
-                        if (standardPeak == null) {
-                            // What to do if standard peak is not available?
-                            normalizationFactors[standardRowIndex] = 1.0;
-                            normalizationFactorWeights[standardRowIndex] = 0.0;
-                        } else {
-                            if (peakMeasurementType == PeakMeasurementType.HEIGHT) {
-                                normalizationFactors[standardRowIndex] = standardPeak
-                                        .getHeight();
-                            } else {
-                                normalizationFactors[standardRowIndex] = standardPeak
-                                        .getArea();
-                            }
-                            normalizationFactorWeights[standardRowIndex] = 1
-                                    / distance;
-                        }
-                    }
+    private double getDistance(PeakListRow row, PeakListRow standardRow) {
+        return MZvsRTBalance
+                * Math.abs(row.getAverageMZ() - standardRow.getAverageMZ())
+                + Math.abs(row.getAverageRT() - standardRow.getAverageRT());
+    }
 
+    /**
+     * Finds the nearest standard of each row. Of standards with equal
+     * distance, the last one is used. The standards are sorted by m/z, so the
+     * search around the m/z of a row stops when the m/z difference alone
+     * exceeds the distance of the nearest standard found so far.
+     */
+    private int[] findNearestStandards() {
+
+        final double standardMZValues[] = new double[standardRows.length];
+        Integer order[] = new Integer[standardRows.length];
+        for (int i = 0; i < standardRows.length; i++) {
+            standardMZValues[i] = standardRows[i].getAverageMZ();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(standardMZValues[i1],
+                        standardMZValues[i2]);
+            }
+        });
+        final double sortedMZValues[] = new double[order.length];
+        for (int i = 0; i < order.length; i++)
+            sortedMZValues[i] = standardMZValues[order[i]];
+
+        // The m/z difference is only a lower bound of the distance if it is
+        // not weighted negatively
+        final boolean prune = MZvsRTBalance >= 0;
+
+        final int nearestStandards[] = new int[engine.getNumberOfRows()];
+        for (int row = 0; row < nearestStandards.length; row++) {
+
+            if (isCanceled())
+                return nearestStandards;
+
+            final PeakListRow peakListRow = engine.getRow(row);
+            final double mz = peakListRow.getAverageMZ();
+            int start = Arrays.binarySearch(sortedMZValues, mz);
+            if (start < 0)
+                start = -start - 1;
+
+            int nearest = -1;
+            double nearestDistance = Double.MAX_VALUE;
+            for (int i = start; i < order.length; i++) {
+                if (prune && (MZvsRTBalance
+                        * Math.abs(mz - sortedMZValues[i]) > nearestDistance))
+                    break;
+                double distance = getDistance(peakListRow,
+                        standardRows[order[i]]);
+                if ((distance < nearestDistance)
+                        || ((distance == nearestDistance) && (order[i] > nearest))) {
+                    nearest = order[i];
+                    nearestDistance = distance;
                 }
-
-                assert normalizationFactors != null;
-                assert normalizationFactorWeights != null;
-
-                // Calculate a single normalization factor as weighted average
-                // of all factors
-                double weightedSum = 0.0f;
-                double sumOfWeights = 0.0f;
-                for (int factorIndex = 0; factorIndex < normalizationFactors.length; factorIndex++) {
-                    weightedSum += normalizationFactors[factorIndex]
-                            * normalizationFactorWeights[factorIndex];
-                    sumOfWeights += normalizationFactorWeights[factorIndex];
+            }
+            for (int i = start - 1; i >= 0; i--) {
+                if (prune && (MZvsRTBalance
+                        * Math.abs(mz - sortedMZValues[i]) > nearestDistance))
+                    break;
+                double distance = getDistance(peakListRow,
+                        standardRows[order[i]]);
+                if ((distance < nearestDistance)
+                        || ((distance == nearestDistance) && (order[i] > nearest))) {
+                    nearest = order[i];
+                    nearestDistance = distance;
                 }
-                double normalizationFactor = weightedSum / sumOfWeights;
+            }
 
-                // For simple scaling of the normalized values
-                normalizationFactor = normalizationFactor / 100.0f;
+            assert nearest >= 0;
+            nearestStandards[row] = nearest;
+        }
 
-                logger.finest("Normalizing row #" + row.getID() + "[" + file
-                        + "] using factor " + normalizationFactor);
+        return nearestStandards;
 
-                // How to handle zero normalization factor?
-                if (normalizationFactor == 0.0)
-                    normalizationFactor = Double.MIN_VALUE;
+    }
 
-                // Normalize peak
-                Feature originalPeak = row.getPeak(file);
-                if (originalPeak != null) {
+    /**
+     * Calculates the weight of each standard for each row, which is the
+     * inverse of their distance
+     */
+    private double[][] calculateStandardWeights() {
+        final double weights[][] = new double[engine.getNumberOfRows()][standardRows.length];
+        for (int row = 0; row < weights.length; row++) {
+            if (isCanceled())
+                return weights;
+            for (int standardRowIndex = 0; standardRowIndex < standardRows.length; standardRowIndex++) {
+                weights[row][standardRowIndex] = 1 / getDistance(
+                        engine.getRow(row), standardRows[standardRowIndex]);
+            }
+        }
+        return weights;
+    }
 
-                    SimpleFeature normalizedPeak = new SimpleFeature(
-                            originalPeak);
+    private double calculateNormalizationFactor(int row, int file,
+            int nearestStandards[], double standardWeights[][]) {
 
-                    PeakUtils.copyPeakProperties(originalPeak, normalizedPeak);
+        double normalizationFactor;
 
-                    double normalizedHeight = originalPeak.getHeight()
-                            / normalizationFactor;
-                    double normalizedArea = originalPeak.getArea()
-                            / normalizationFactor;
-                    normalizedPeak.setHeight(normalizedHeight);
-                    normalizedPeak.setArea(normalizedArea);
+        if (normalizationType == StandardUsageType.Nearest) {
 
-                    normalizedRow.addPeak(file, normalizedPeak);
+            // Use a single normalization factor
+            int nearestStandard = nearestStandards[row];
+            if (!standards.hasPeak(nearestStandard, file)) {
+                // What to do if standard peak is not available?
+                normalizationFactor = 1.0;
+            } else {
+                normalizationFactor = standards.getValue(nearestStandard,
+                        file, peakMeasurementType);
+            }
+            if (logger.isLoggable(Level.FINEST))
+                logger.finest("Normalizing row #"
+                        + engine.getRow(row).getID()
+                        + " using standard peak "
+                        + standardRows[nearestStandard].getPeak(engine
+                                .getFile(file)) + ", factor "
+                        + normalizationFactor);
+
+        } else {
+
+            // Calculate a single normalization factor as weighted average
+            // of all standards, using distance as weight
+            double weightedSum = 0.0f;
+            double sumOfWeights = 0.0f;
+            for (int standardRowIndex = 0; standardRowIndex < standardRows.length; standardRowIndex++) {
+                double factor, weight;
+                if (!standards.hasPeak(standardRowIndex, file)) {
+                    // What to do if standard peak is not available?
+                    factor = 1.0;
+                    weight = 0.0;
+                } else {
+                    factor = standards.getValue(standardRowIndex, file,
+                            peakMeasurementType);
+                    weight = standardWeights[row][standardRowIndex];
                 }
-
+                weightedSum += factor * weight;
+                sumOfWeights += weight;
             }
-
-            normalizedPeakList.addRow(normalizedRow);
-            processedRows++;
+            normalizationFactor = weightedSum / sumOfWeights;
 
         }
 
-        // Add new peaklist to the project
-        project.addPeakList(normalizedPeakList);
+        // For simple scaling of the normalized values
+        normalizationFactor = normalizationFactor / 100.0f;
 
-        // Load previous applied methods
-        for (PeakListAppliedMethod proc : originalPeakList
-                .getAppliedMethods()) {
-            normalizedPeakList.addDescriptionOfAppliedTask(proc);
-        }
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("Normalizing row #" + engine.getRow(row).getID()
+                    + "[" + engine.getFile(file) + "] using factor "
+                    + normalizationFactor);
 
-        // Add task description to peakList
-        normalizedPeakList
-                .addDescriptionOfAppliedTask(new SimplePeakListAppliedMethod(
-                        "Standard compound normalization", parameters));
-
-        // Remove the original peaklist if requested
-        if (removeOriginal)
-            project.removePeakList(originalPeakList);
+        // How to handle zero normalization factor?
+        if (normalizationFactor == 0.0)
+            normalizationFactor = Double.MIN_VALUE;
 
-        logger.info("Finished standard compound normalizer");
-        setStatus(TaskStatus.FINISHED);
+        return normalizationFactor;
 
     }
 
@@ -32,6 +32,7 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.CompactFeature;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
@@ -256,7 +257,7 @@ public class DeconvolutionTask extends AbstractTask {
             for (final Feature peak : peaks) {
 
                 final PeakListRow newRow = new SimplePeakListRow(peakId++);
-                newRow.addPeak(dataFile, peak);
+                newRow.addPeak(dataFile, new CompactFeature(peak));
                 resolvedPeaks.addRow(newRow);
             }
 
@@ -29,6 +29,7 @@ import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.util.MathUtils;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.ScanUtils;
@@ -255,6 +256,7 @@ public class ResolvedPeak implements Feature {
     }
 
     public Double getFWHM() {
+        QualityParameters.ensureQualityParameters(this);
         return fwhm;
     }
 
@@ -263,6 +265,7 @@ public class ResolvedPeak implements Feature {
     }
 
     public Double getTailingFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return tf;
     }
 
@@ -271,6 +274,7 @@ public class ResolvedPeak implements Feature {
     }
 
     public Double getAsymmetryFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return af;
     }
 
@@ -12,6 +12,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.util.MathUtils;
 import net.sf.mzmine.util.PeakUtils;
 import net.sf.mzmine.util.ScanUtils;
@@ -257,6 +258,7 @@ public class ExtendedPeak implements Feature {
     }
 
     public Double getFWHM() {
+        QualityParameters.ensureQualityParameters(this);
         return fwhm;
     }
 
@@ -265,6 +267,7 @@ public class ExtendedPeak implements Feature {
     }
 
     public Double getTailingFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return tf;
     }
 
@@ -273,6 +276,7 @@ public class ExtendedPeak implements Feature {
     }
 
     public Double getAsymmetryFactor() {
+        QualityParameters.ensureQualityParameters(this);
         return af;
     }
 
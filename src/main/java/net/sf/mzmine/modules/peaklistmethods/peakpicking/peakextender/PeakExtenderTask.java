@@ -19,7 +19,17 @@
 
 package net.sf.mzmine.modules.peaklistmethods.peakpicking.peakextender;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -29,7 +39,6 @@ import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
@@ -39,8 +48,8 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.PeakUtils;
-import net.sf.mzmine.util.ScanUtils;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
@@ -53,8 +62,12 @@ public class PeakExtenderTask extends AbstractTask {
     private final MZmineProject project;
     private PeakList peakList, extendedPeakList;
 
+    // Number of peaks extended by each thread at a time
+    private static final int PEAKS_PER_BLOCK = 16;
+
     // peaks counter
-    private int processedPeaks, totalPeaks;
+    private final AtomicInteger processedPeaks = new AtomicInteger();
+    private int totalPeaks;
 
     // Parameters
     private MZTolerance mzTolerance;
@@ -94,7 +107,7 @@ public class PeakExtenderTask extends AbstractTask {
     public double getFinishedPercentage() {
 	if (totalPeaks == 0)
 	    return 0.0;
-	return (double) processedPeaks / (double) totalPeaks;
+	return (double) processedPeaks.get() / (double) totalPeaks;
     }
 
     /**
@@ -117,32 +130,42 @@ public class PeakExtenderTask extends AbstractTask {
 	Arrays.sort(sortedPeaks, new PeakSorter(SortingProperty.Height,
 		SortingDirection.Descending));
 
-	// Loop through all peaks
+	// Extend the peaks in parallel, then add them in order of height
 	totalPeaks = sortedPeaks.length;
-	Feature oldPeak;
+	Feature extendedPeaks[];
+	try {
+	    extendedPeaks = extendPeaks(sortedPeaks, new ScanWindow(dataFile));
+	} catch (Exception e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e));
+	    return;
+	}
+	if (isCanceled())
+	    return;
+
+	// Find the rows of all peaks at once
+	Map<Feature, PeakListRow> peakRows = new HashMap<Feature, PeakListRow>();
+	for (PeakListRow row : peakList.getRows()) {
+	    Feature peak = row.getPeak(dataFile);
+	    if ((peak != null) && !peakRows.containsKey(peak))
+		peakRows.put(peak, row);
+	}
 
 	for (int ind = 0; ind < totalPeaks; ind++) {
 
-	    if (isCanceled())
-		return;
-
-	    oldPeak = sortedPeaks[ind];
-
-	    if (oldPeak.getHeight() >= minimumHeight) {
-		Feature newPeak = this.getExtendedPeak(oldPeak);
-		// Get previous pekaListRow
-		PeakListRow oldRow = peakList.getPeakRow(oldPeak);
+	    Feature newPeak = extendedPeaks[ind];
+	    if (newPeak == null)
+		continue;
 
-		// keep old ID
-		int oldID = oldRow.getID();
-		SimplePeakListRow newRow = new SimplePeakListRow(oldID);
-		PeakUtils.copyPeakListRowProperties(oldRow, newRow);
-		newRow.addPeak(dataFile, newPeak);
-		extendedPeakList.addRow(newRow);
-	    }
+	    // Get previous pekaListRow
+	    PeakListRow oldRow = peakRows.get(sortedPeaks[ind]);
 
-	    // Update completion rate
-	    processedPeaks++;
+	    // keep old ID
+	    int oldID = oldRow.getID();
+	    SimplePeakListRow newRow = new SimplePeakListRow(oldID);
+	    PeakUtils.copyPeakListRowProperties(oldRow, newRow);
+	    newRow.addPeak(dataFile, newPeak);
+	    extendedPeakList.addRow(newRow);
 
 	}
 
@@ -171,46 +194,93 @@ public class PeakExtenderTask extends AbstractTask {
 
     }
 
-    private Feature getExtendedPeak(Feature oldPeak) {
+    /**
+     * Extends all peaks of at least the minimum height, returning null for
+     * the other ones. The threads take blocks of peaks in order of their
+     * representative scans, so they all read scans from the same part of the
+     * scan window.
+     */
+    private Feature[] extendPeaks(final Feature peaks[],
+	    final ScanWindow scanWindow) throws Exception {
+
+	final Feature extendedPeaks[] = new Feature[peaks.length];
+
+	final Integer order[] = new Integer[peaks.length];
+	final int originScanNumbers[] = new int[peaks.length];
+	for (int i = 0; i < peaks.length; i++) {
+	    order[i] = i;
+	    originScanNumbers[i] = peaks[i].getRepresentativeScanNumber();
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Integer.compare(originScanNumbers[i1],
+			originScanNumbers[i2]);
+	    }
+	});
+
+	final AtomicInteger nextBlock = new AtomicInteger();
+	final int numOfThreads = Math.max(1, Math.min(peaks.length
+		/ PEAKS_PER_BLOCK + 1, Runtime.getRuntime()
+		.availableProcessors()));
+	ExecutorService threads = Executors.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> workers = new ArrayList<Future<?>>();
+	    for (int t = 0; t < numOfThreads; t++) {
+		workers.add(threads.submit(new Runnable() {
+		    public void run() {
+			int from;
+			while (!isCanceled()
+				&& (from = nextBlock.getAndAdd(PEAKS_PER_BLOCK)) < peaks.length) {
+			    final int to = Math.min(from + PEAKS_PER_BLOCK,
+				    peaks.length);
+			    for (int i = from; i < to; i++) {
+				final Feature oldPeak = peaks[order[i]];
+				if (oldPeak.getHeight() >= minimumHeight)
+				    extendedPeaks[order[i]] = getExtendedPeak(
+					    oldPeak, scanWindow);
+				processedPeaks.incrementAndGet();
+			    }
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> future : workers)
+		future.get();
+	} finally {
+	    threads.shutdownNow();
+	}
+
+	return extendedPeaks;
+
+    }
+
+    private Feature getExtendedPeak(Feature oldPeak, ScanWindow scanWindow) {
 
 	double maxHeight = oldPeak.getHeight();
 	int originScanNumber = oldPeak.getRepresentativeScanNumber();
 	RawDataFile rawFile = oldPeak.getDataFile();
 	ExtendedPeak newPeak = new ExtendedPeak(rawFile);
-	int totalScanNumber = rawFile.getNumOfScans();
 	Range<Double> mzRange = mzTolerance.getToleranceRange(oldPeak.getMZ());
-	Scan scan;
 	DataPoint dataPoint;
 
 	// Look for dataPoint related to this peak to the left
-	int scanNumber = originScanNumber;
-	scanNumber--;
-	while (scanNumber > 0) {
-
-	    scan = rawFile.getScan(scanNumber);
-
-	    if (scan == null) {
-		scanNumber--;
-		continue;
-	    }
-
-	    if (scan.getMSLevel() != 1) {
-		scanNumber--;
-		continue;
-	    }
+	int position = scanWindow.findPosition(originScanNumber);
+	position--;
+	while (position >= 0) {
 
-	    dataPoint = ScanUtils.findBasePeak(scan, mzRange);
+	    dataPoint = scanWindow.findBasePeak(position, mzRange);
 
 	    if (dataPoint == null)
 		break;
 	    if (dataPoint.getIntensity() < minimumHeight)
 		break;
 
-	    newPeak.addMzPeak(scanNumber, dataPoint);
+	    newPeak.addMzPeak(scanWindow.getScanNumber(position), dataPoint);
 	    if (dataPoint.getIntensity() > maxHeight)
 		maxHeight = dataPoint.getIntensity();
 
-	    scanNumber--;
+	    position--;
 
 	}
 
@@ -219,34 +289,21 @@ public class PeakExtenderTask extends AbstractTask {
 		oldPeak.getDataPoint(originScanNumber));
 
 	// Look to the right
-	scanNumber = originScanNumber;
-	scanNumber++;
-	while (scanNumber <= totalScanNumber) {
+	position = scanWindow.findPosition(originScanNumber + 1);
+	while (position < scanWindow.getNumberOfScans()) {
 
-	    scan = rawFile.getScan(scanNumber);
-
-	    if (scan == null) {
-		scanNumber++;
-		continue;
-	    }
-
-	    if (scan.getMSLevel() != 1) {
-		scanNumber++;
-		continue;
-	    }
-
-	    dataPoint = ScanUtils.findBasePeak(scan, mzRange);
+	    dataPoint = scanWindow.findBasePeak(position, mzRange);
 
 	    if (dataPoint == null)
 		break;
 	    if (dataPoint.getIntensity() < minimumHeight)
 		break;
 
-	    newPeak.addMzPeak(scanNumber, dataPoint);
+	    newPeak.addMzPeak(scanWindow.getScanNumber(position), dataPoint);
 	    if (dataPoint.getIntensity() > maxHeight)
 		maxHeight = dataPoint.getIntensity();
 
-	    scanNumber++;
+	    position++;
 
 	}
 
@@ -255,10 +312,13 @@ public class PeakExtenderTask extends AbstractTask {
 	newPeak.setMostIntenseFragmentScanNumber(oldPeak
 		.getMostIntenseFragmentScanNumber());
 
-	int[] scanNumbers = newPeak.getScanNumbers();
-	logger.finest("Extended peak original " + originScanNumber + " from "
-		+ scanNumbers[0] + " - " + scanNumbers[scanNumbers.length - 1]
-		+ " height " + maxHeight);
+	if (logger.isLoggable(Level.FINEST)) {
+	    int[] scanNumbers = newPeak.getScanNumbers();
+	    logger.finest("Extended peak original " + originScanNumber + " from "
+		    + scanNumbers[0] + " - "
+		    + scanNumbers[scanNumbers.length - 1] + " height "
+		    + maxHeight);
+	}
 
 	return newPeak;
 
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.peakextender;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.ArrayUtils;
+
+import com.google.common.collect.Range;
+
+/**
+ * MS1 scans of a data file in scan number order, with a bounded window of
+ * decoded scans. Peaks extended in retention time order read the same
+ * neighbouring scans, so each scan is decoded once while the peaks around it
+ * are extended, instead of once per peak. The window is shared by all threads
+ * and drops the least recently used scans first.
+ */
+class ScanWindow {
+
+    // Default maximum number of data points of all decoded scans in the
+    // window
+    private static final int MAX_DECODED_DATA_POINTS = 10000000;
+
+    private final RawDataFile dataFile;
+    private final int maxDecodedDataPoints;
+
+    // Scan numbers of MS1 scans, ascending
+    private final int scanNumbers[];
+
+    // Position -> m/z and intensity values of the decoded scan
+    private final Map<Integer, double[][]> decodedScans = new LinkedHashMap<Integer, double[][]>(
+	    16, 0.75f, true);
+    private int decodedDataPoints = 0;
+
+    /**
+     * Only scans numbered from 1 to the number of scans of the file are
+     * included, as peak extension never went beyond these
+     */
+    ScanWindow(RawDataFile dataFile) {
+	this(dataFile, MAX_DECODED_DATA_POINTS);
+    }
+
+    /**
+     * Creates a window which keeps at most given number of decoded data
+     * points, but always the last decoded scan
+     */
+    ScanWindow(RawDataFile dataFile, int maxDecodedDataPoints) {
+	this.dataFile = dataFile;
+	this.maxDecodedDataPoints = maxDecodedDataPoints;
+	final int ms1ScanNumbers[] = dataFile.getScanNumbers(1);
+	final int lastScanNumber = dataFile.getNumOfScans();
+	int count = 0;
+	for (int scanNumber : ms1ScanNumbers) {
+	    if ((scanNumber > 0) && (scanNumber <= lastScanNumber))
+		count++;
+	}
+	scanNumbers = new int[count];
+	count = 0;
+	for (int scanNumber : ms1ScanNumbers) {
+	    if ((scanNumber > 0) && (scanNumber <= lastScanNumber))
+		scanNumbers[count++] = scanNumber;
+	}
+    }
+
+    int getNumberOfScans() {
+	return scanNumbers.length;
+    }
+
+    int getScanNumber(int position) {
+	return scanNumbers[position];
+    }
+
+    /**
+     * Returns the position of the first MS1 scan with scan number greater
+     * than or equal to given scan number
+     */
+    int findPosition(int scanNumber) {
+	final int position = Arrays.binarySearch(scanNumbers, scanNumber);
+	return position >= 0 ? position : -position - 1;
+    }
+
+    /**
+     * Returns the most intense data point of the scan at given position within
+     * given m/z range, or null if there is none. Of data points with equal
+     * intensity, the one with the lowest m/z is returned, as
+     * ScanUtils.findBasePeak does.
+     */
+    DataPoint findBasePeak(int position, Range<Double> mzRange) {
+
+	final double decodedScan[][] = getDecodedScan(position);
+	final double mzValues[] = decodedScan[0];
+	final double intensityValues[] = decodedScan[1];
+
+	final double lowerMZ = mzRange.lowerEndpoint();
+	final double upperMZ = mzRange.upperEndpoint();
+	final int first = ArrayUtils.lowerBound(mzValues, lowerMZ);
+
+	int basePeak = -1;
+	for (int i = first; (i < mzValues.length) && (mzValues[i] <= upperMZ);
+		i++) {
+	    if ((basePeak == -1)
+		    || (intensityValues[i] > intensityValues[basePeak]))
+		basePeak = i;
+	}
+
+	if (basePeak == -1)
+	    return null;
+	return new SimpleDataPoint(mzValues[basePeak],
+		intensityValues[basePeak]);
+
+    }
+
+    private double[][] getDecodedScan(int position) {
+
+	synchronized (decodedScans) {
+	    final double decodedScan[][] = decodedScans.get(position);
+	    if (decodedScan != null)
+		return decodedScan;
+	}
+
+	// Decode outside of the lock, so threads in different parts of the
+	// window do not wait for each other. A scan decoded by two threads at
+	// the same time is simply stored twice.
+	final Scan scan = dataFile.getScan(scanNumbers[position]);
+	final DataPoint dataPoints[] = scan.getDataPoints();
+	final double decodedScan[][] = new double[2][dataPoints.length];
+	for (int i = 0; i < dataPoints.length; i++) {
+	    decodedScan[0][i] = dataPoints[i].getMZ();
+	    decodedScan[1][i] = dataPoints[i].getIntensity();
+	}
+
+	synchronized (decodedScans) {
+	    final double previous[][] = decodedScans.put(position, decodedScan);
+	    if (previous != null)
+		decodedDataPoints -= previous[0].length;
+	    decodedDataPoints += dataPoints.length;
+
+	    Iterator<double[][]> eldest = decodedScans.values().iterator();
+	    while ((decodedDataPoints > maxDecodedDataPoints)
+		    && (decodedScans.size() > 1)) {
+		decodedDataPoints -= eldest.next()[0].length;
+		eldest.remove();
+	    }
+	}
+
+	return decodedScan;
+
+    }
+
+}
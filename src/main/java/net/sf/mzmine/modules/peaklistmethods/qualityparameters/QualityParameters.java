@@ -19,61 +19,280 @@
 
 package net.sf.mzmine.modules.peaklistmethods.qualityparameters;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.MapMaker;
 
 /**
  * Calculates quality parameters for each peak in a peak list: - Full width at
  * half maximum (FWHM) - Tailing Factor - Asymmetry factor
+ *
+ * The parameters are calculated lazily. calculateQualityParameters only marks
+ * the peaks of a peak list, and the getters of the peaks calculate them on
+ * first access, together with the other marked peaks of the peak list. A
+ * marked peak which is copied is calculated first, so the copy gets the
+ * parameters of the original heights and retention times.
  */
 public class QualityParameters {
 
-    public static void calculateQualityParameters(PeakList peakList) {
+    private static final Logger logger = Logger
+            .getLogger(QualityParameters.class.getName());
 
-        Feature peak;
-        double height, rt;
+    // Peaks whose quality parameters have not been calculated yet, with the
+    // peak list they were marked with. Does not keep the peaks alive, and is
+    // read without locking by the getters of all peaks.
+    private static final ConcurrentMap<Feature, WeakReference<PeakList>> pendingPeaks = new MapMaker()
+            .weakKeys().makeMap();
 
+    // Shared by all peak lists, created on first calculation
+    private static ExecutorService calculationThreads;
+
+    /**
+     * Marks all peaks of the peak list for calculation of their quality
+     * parameters on first access
+     */
+    public static void calculateQualityParameters(PeakList peakList) {
+
+        final WeakReference<PeakList> pending = new WeakReference<PeakList>(
+                peakList);
         for (int i = 0; i < peakList.getNumberOfRows(); i++) {
             for (int x = 0; x < peakList.getNumberOfRawDataFiles(); x++) {
+                Feature peak = peakList.getPeak(i, peakList.getRawDataFile(x));
+                if (peak != null)
+                    pendingPeaks.put(peak, pending);
+            }
+        }
 
-                peak = peakList.getPeak(i, peakList.getRawDataFile(x));
-                if (peak != null) {
-                    height = peak.getHeight();
-                    rt = peak.getRT();
+    }
 
-                    // FWHM
-                    double rtValues[] = PeakFindRTs(height / 2, rt, peak);
-                    Double fwhm = rtValues[1] - rtValues[0];
-                    if (fwhm <= 0 || Double.isNaN(fwhm) || Double.isInfinite(fwhm)) {
-                        fwhm = null;
-                    }
-                    peak.setFWHM(fwhm);
-
-                    // Tailing Factor - TF
-                    double rtValues2[] = PeakFindRTs(height * 0.05, rt, peak);
-                    Double tf = (rtValues2[1] - rtValues2[0])
-                            / (2 * (rt - rtValues2[0]));
-                    if (tf <= 0 || Double.isNaN(tf) || Double.isInfinite(tf)) {
-                        tf = null;
-                    }
-                    peak.setTailingFactor(tf);
+    /**
+     * Returns true if the quality parameters of the peak are calculated on
+     * first access
+     */
+    public static boolean isPending(Feature peak) {
+        return pendingPeaks.containsKey(peak);
+    }
 
-                    // Asymmetry factor - AF
-                    double rtValues3[] = PeakFindRTs(height * 0.1, rt, peak);
-                    Double af = (rtValues3[1] - rt) / (rt - rtValues3[0]);
-                    if (af <= 0 || Double.isNaN(af) || Double.isInfinite(af)) {
-                        af = null;
-                    }
-                    peak.setAsymmetryFactor(af);
+    /**
+     * Sets the quality parameters of a copy of the peak. A marked peak is
+     * calculated first, together with the other marked peaks of its peak
+     * list, so copying a whole peak list calculates it once.
+     */
+    public static void copyQualityParameters(Feature peak, Feature copy) {
+
+        ensureQualityParameters(peak);
+        copy.setFWHM(peak.getFWHM());
+        copy.setTailingFactor(peak.getTailingFactor());
+        copy.setAsymmetryFactor(peak.getAsymmetryFactor());
 
+    }
+
+    /**
+     * Calculates the quality parameters of the marked peaks of the peak list.
+     * Peaks are processed in parallel by the calling thread and the shared
+     * calculation threads; retention times are read from a scan number ->
+     * retention time table per data file.
+     */
+    public static void ensureQualityParameters(PeakList peakList) {
+
+        if (pendingPeaks.isEmpty())
+            return;
+
+        final List<Feature> peaks = new ArrayList<Feature>();
+        for (int i = 0; i < peakList.getNumberOfRows(); i++) {
+            for (RawDataFile dataFile : peakList.getRawDataFiles()) {
+                Feature peak = peakList.getPeak(i, dataFile);
+                if ((peak != null) && pendingPeaks.containsKey(peak))
+                    peaks.add(peak);
+            }
+        }
+        if (peaks.isEmpty())
+            return;
+
+        final Map<RawDataFile, double[]> rtTables = new HashMap<RawDataFile, double[]>();
+        for (Feature peak : peaks) {
+            if (!rtTables.containsKey(peak.getDataFile()))
+                rtTables.put(peak.getDataFile(),
+                        createRTTable(peak.getDataFile()));
+        }
+
+        // A peak calculated by two callers at the same time gets the same
+        // values twice. Each peak is unmarked when it is finished, also if
+        // its calculation failed.
+        final AtomicInteger nextPeak = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = nextPeak.getAndIncrement()) < peaks.size()) {
+                    final Feature peak = peaks.get(i);
+                    try {
+                        calculatePeak(peak, rtTables.get(peak.getDataFile()));
+                    } catch (RuntimeException e) {
+                        logger.warning("Could not calculate quality parameters of "
+                                + peak + ": " + e);
+                    } finally {
+                        pendingPeaks.remove(peak);
+                    }
                 }
             }
+        };
+
+        final ExecutorService threads = getCalculationThreads();
+        final int numOfWorkers = Math.min(peaks.size(), Runtime.getRuntime()
+                .availableProcessors()) - 1;
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int t = 0; t < numOfWorkers; t++)
+            workers.add(threads.submit(worker));
+        worker.run();
+        try {
+            for (Future<?> future : workers)
+                future.get();
+        } catch (Exception e) {
+            // Calculate the remaining peaks in the calling thread
+            logger.warning("Could not calculate quality parameters of "
+                    + peakList + " in parallel: " + e);
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            worker.run();
+        }
+
+    }
+
+    /**
+     * Calculates the quality parameters of the peak, if it is marked. The
+     * other marked peaks of its peak list are calculated as well.
+     */
+    public static void ensureQualityParameters(Feature peak) {
+
+        final WeakReference<PeakList> pending = pendingPeaks.get(peak);
+        if (pending == null)
+            return;
+
+        final PeakList peakList = pending.get();
+        if (peakList != null) {
+            ensureQualityParameters(peakList);
+            if (!isPending(peak))
+                return;
+        }
+
+        // The peak is no longer in its peak list
+        try {
+            calculatePeak(peak, null);
+        } finally {
+            pendingPeaks.remove(peak);
+        }
+
+    }
+
+    private static synchronized ExecutorService getCalculationThreads() {
+        if (calculationThreads == null) {
+            final int numOfThreads = Math.max(1, Runtime.getRuntime()
+                    .availableProcessors() - 1);
+            calculationThreads = Executors.newFixedThreadPool(numOfThreads,
+                    new ThreadFactory() {
+                        private int threadCount = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            threadCount++;
+                            Thread thread = new Thread(r,
+                                    "Quality parameters thread #"
+                                            + threadCount);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return calculationThreads;
+    }
+
+    /**
+     * Returns the retention times of all scans of the data file, indexed by
+     * scan number
+     */
+    private static double[] createRTTable(RawDataFile dataFile) {
+
+        final int scanNumbers[] = dataFile.getScanNumbers();
+        if (scanNumbers.length == 0)
+            return new double[0];
+        final double rtTable[] = new double[scanNumbers[scanNumbers.length - 1] + 1];
+        for (int scanNumber : scanNumbers) {
+            if (scanNumber >= 0)
+                rtTable[scanNumber] = dataFile.getScan(scanNumber)
+                        .getRetentionTime();
+        }
+        return rtTable;
+
+    }
+
+    private static double getRT(RawDataFile dataFile, double rtTable[],
+            int scanNumber) {
+        if ((rtTable != null) && (scanNumber >= 0)
+                && (scanNumber < rtTable.length))
+            return rtTable[scanNumber];
+        Scan scan = dataFile.getScan(scanNumber);
+        return scan.getRetentionTime();
+    }
+
+    private static void calculatePeak(Feature peak, double rtTable[]) {
+
+        double height = peak.getHeight();
+        double rt = peak.getRT();
+
+        // Data points of the peak, read once for all three parameters
+        int[] scanNumbers = peak.getScanNumbers();
+        DataPoint dataPoints[] = new DataPoint[scanNumbers.length];
+        for (int i = 0; i < scanNumbers.length; i++)
+            dataPoints[i] = peak.getDataPoint(scanNumbers[i]);
+
+        // FWHM
+        double rtValues[] = PeakFindRTs(height / 2, rt, peak, dataPoints,
+                rtTable);
+        Double fwhm = rtValues[1] - rtValues[0];
+        if (fwhm <= 0 || Double.isNaN(fwhm) || Double.isInfinite(fwhm)) {
+            fwhm = null;
+        }
+        peak.setFWHM(fwhm);
+
+        // Tailing Factor - TF
+        double rtValues2[] = PeakFindRTs(height * 0.05, rt, peak, dataPoints,
+                rtTable);
+        Double tf = (rtValues2[1] - rtValues2[0]) / (2 * (rt - rtValues2[0]));
+        if (tf <= 0 || Double.isNaN(tf) || Double.isInfinite(tf)) {
+            tf = null;
+        }
+        peak.setTailingFactor(tf);
+
+        // Asymmetry factor - AF
+        double rtValues3[] = PeakFindRTs(height * 0.1, rt, peak, dataPoints,
+                rtTable);
+        Double af = (rtValues3[1] - rt) / (rt - rtValues3[0]);
+        if (af <= 0 || Double.isNaN(af) || Double.isInfinite(af)) {
+            af = null;
         }
+        peak.setAsymmetryFactor(af);
 
     }
 
-    private static double[] PeakFindRTs(double intensity, double rt, Feature peak) {
+    private static double[] PeakFindRTs(double intensity, double rt,
+            Feature peak, DataPoint dataPoints[], double rtTable[]) {
 
         double x1 = 0, x2 = 0, x3 = 0, x4 = 0, y1 = 0, y2 = 0, y3 = 0, y4 = 0,
                 lastDiff1 = intensity, lastDiff2 = intensity, currentDiff, currentRT;
@@ -84,26 +303,24 @@ public class QualityParameters {
         // peak apex
         for (int i = 1; i < scanNumbers.length - 1; i++) {
 
-            if (peak.getDataPoint(scanNumbers[i]) != null) {
-                currentDiff = Math.abs(intensity
-                        - peak.getDataPoint(scanNumbers[i]).getIntensity());
-                currentRT = dataFile.getScan(scanNumbers[i]).getRetentionTime();
+            DataPoint dataPoint = dataPoints[i];
+            if (dataPoint != null) {
+                currentDiff = Math.abs(intensity - dataPoint.getIntensity());
+                currentRT = getRT(dataFile, rtTable, scanNumbers[i]);
                 if (currentDiff < lastDiff1 & currentDiff > 0 & currentRT <= rt
-                        & peak.getDataPoint(scanNumbers[i + 1]) != null) {
-                    x1 = dataFile.getScan(scanNumbers[i]).getRetentionTime();
-                    y1 = peak.getDataPoint(scanNumbers[i]).getIntensity();
-                    x2 = dataFile.getScan(scanNumbers[i + 1])
-                            .getRetentionTime();
-                    y2 = peak.getDataPoint(scanNumbers[i + 1]).getIntensity();
+                        & dataPoints[i + 1] != null) {
+                    x1 = currentRT;
+                    y1 = dataPoint.getIntensity();
+                    x2 = getRT(dataFile, rtTable, scanNumbers[i + 1]);
+                    y2 = dataPoints[i + 1].getIntensity();
                     lastDiff1 = currentDiff;
                 } else if (currentDiff < lastDiff2 & currentDiff > 0
                         & currentRT >= rt
-                        & peak.getDataPoint(scanNumbers[i - 1]) != null) {
-                    x3 = dataFile.getScan(scanNumbers[i - 1])
-                            .getRetentionTime();
-                    y3 = peak.getDataPoint(scanNumbers[i - 1]).getIntensity();
-                    x4 = dataFile.getScan(scanNumbers[i]).getRetentionTime();
-                    y4 = peak.getDataPoint(scanNumbers[i]).getIntensity();
+                        & dataPoints[i - 1] != null) {
+                    x3 = getRT(dataFile, rtTable, scanNumbers[i - 1]);
+                    y3 = dataPoints[i - 1].getIntensity();
+                    x4 = currentRT;
+                    y4 = dataPoint.getIntensity();
                     lastDiff2 = currentDiff;
                 }
             }
@@ -21,8 +21,10 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.Map;
+import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -35,6 +37,7 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
+import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
@@ -52,9 +55,9 @@ class RawDataFileSaveHandler {
     private int numOfScans, completedScans;
     private ZipOutputStream zipOutputStream;
     private boolean canceled = false;
-    private Map<Integer, Long> dataPointsOffsets;
+    private SortedSet<Integer> storageIDs;
     private Map<Integer, Long> consolidatedDataPointsOffsets;
-    private Map<Integer, Integer> dataPointsLengths;
+    private Map<Integer, Integer> consolidatedDataPointsLengths;
     private double progress = 0;
 
     RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
@@ -80,9 +83,9 @@ class RawDataFileSaveHandler {
 	numOfScans = rawDataFile.getNumOfScans();
 
 	// Get the structure of the data points file
-	dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-	dataPointsLengths = rawDataFile.getDataPointsLengths();
+	storageIDs = rawDataFile.getStorageIDs();
 	consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
+	consolidatedDataPointsLengths = new TreeMap<Integer, Integer>();
 
 	// step 1 - save data file
 	logger.info("Saving data points of: " + rawDataFile.getName());
@@ -92,29 +95,39 @@ class RawDataFileSaveHandler {
 
 	zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
 
-	// We save only those data points that still have a reference in the
-	// dataPointsOffset table. Some deleted mass lists may still be present
-	// in the data points file, we don't want to copy those.
+	// We save only those data points that still have a storage ID. Some
+	// deleted mass lists may still be present in the data points file, we
+	// don't want to copy those. The data points file may contain compressed
+	// blocks and some raw data files read their scans directly from the
+	// original file, so we always read the data points and save them as
+	// uncompressed float pairs.
 	long newOffset = 0;
-	byte buffer[] = new byte[1 << 20];
-	RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
-	for (Integer storageID : dataPointsOffsets.keySet()) {
+	int savedBlocks = 0;
+	ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+	for (Integer storageID : storageIDs) {
 
 	    if (canceled)
 		return;
 
-	    final long offset = dataPointsOffsets.get(storageID);
-	    dataPointsFile.seek(offset);
+	    DataPoint dataPoints[] = rawDataFile.readDataPoints(storageID);
 
-	    final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
+	    final int bytes = dataPoints.length * 4 * 2;
 	    consolidatedDataPointsOffsets.put(storageID, newOffset);
-	    if (buffer.length < bytes) {
-		buffer = new byte[bytes * 2];
+	    consolidatedDataPointsLengths.put(storageID, dataPoints.length);
+	    if (buffer.capacity() < bytes) {
+		buffer = ByteBuffer.allocate(bytes * 2);
+	    } else {
+		buffer.clear();
 	    }
-	    dataPointsFile.read(buffer, 0, bytes);
-	    zipOutputStream.write(buffer, 0, bytes);
+	    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	    for (DataPoint dp : dataPoints) {
+		floatBuffer.put((float) dp.getMZ());
+		floatBuffer.put((float) dp.getIntensity());
+	    }
+	    zipOutputStream.write(buffer.array(), 0, bytes);
 	    newOffset += bytes;
-	    progress = 0.9 * ((double) offset / dataPointsFile.length());
+	    savedBlocks++;
+	    progress = 0.9 * ((double) savedBlocks / storageIDs.size());
 	}
 
 	if (canceled)
@@ -165,14 +178,14 @@ class RawDataFileSaveHandler {
 
 	// <STORED_DATAPOINTS>
 	atts.addAttribute("", "", RawDataElementName.QUANTITY.getElementName(),
-		"CDATA", String.valueOf(dataPointsOffsets.size()));
+		"CDATA", String.valueOf(storageIDs.size()));
 	hd.startElement("", "",
 		RawDataElementName.STORED_DATAPOINTS.getElementName(), atts);
 	atts.clear();
-	for (Integer storageID : dataPointsOffsets.keySet()) {
+	for (Integer storageID : storageIDs) {
 	    if (canceled)
 		return;
-	    int length = dataPointsLengths.get(storageID);
+	    int length = consolidatedDataPointsLengths.get(storageID);
 	    long offset = consolidatedDataPointsOffsets.get(storageID);
 	    atts.addAttribute("", "",
 		    RawDataElementName.STORAGE_ID.getElementName(), "CDATA",
@@ -31,6 +31,7 @@ class Datum implements Comparable<Datum> {
     boolean included = true;
     double mzOriginal = 0;
     double intensityOriginal = 0;
+    Datum center = null;
 
     Datum(DataPoint dp, int iScan, DataPoint dpOriginal) {
 	mz = dp.getMZ();
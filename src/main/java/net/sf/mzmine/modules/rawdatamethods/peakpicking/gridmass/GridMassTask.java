@@ -23,6 +23,11 @@ import java.text.Format;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -40,6 +45,7 @@ import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.ExceptionUtils;
 
 public class GridMassTask extends AbstractTask {
 
@@ -51,12 +57,14 @@ public class GridMassTask extends AbstractTask {
 
     // scan counter
     private int totalScans;
-    private float procedure = 0;
+    private volatile float procedure = 0;
     private int newPeakID = 0;
     private ScanSelection scanSelection;
     private Scan[] scans;
     private int scanNumbers[];
     Datum[] roi[];
+    // m/z values of the datums in roi, searched without loading the datums
+    double roiMZ[][];
     double retentiontime[];
 
     // User parameters
@@ -79,6 +87,9 @@ public class GridMassTask extends AbstractTask {
 
     private String ignoreTimes = "";
 
+    // Number of threads used to smooth the scans and to process the spots
+    private int numOfThreads = Runtime.getRuntime().availableProcessors();
+
     /**
      * @param dataFile
      * @param parameters
@@ -117,6 +128,14 @@ public class GridMassTask extends AbstractTask {
 
     }
 
+    /**
+     * Sets the number of threads used by this task, which is the number of
+     * available processors by default
+     */
+    void setNumberOfThreads(int numOfThreads) {
+	this.numOfThreads = numOfThreads;
+    }
+
     /**
      * @see net.sf.mzmine.taskcontrol.Task#getTaskDescription()
      */
@@ -211,7 +230,7 @@ public class GridMassTask extends AbstractTask {
 	logger.info("Getting data points on " + dataFile);
 
 	roi = new Datum[totalScans][];
-	ArrayList<Datum> roiAL = new ArrayList<Datum>();
+	roiMZ = new double[totalScans][];
 	long passed = 0, nopassed = 0;
 	minMasa = Double.MAX_VALUE;
 	maxMasa = 0;
@@ -223,6 +242,8 @@ public class GridMassTask extends AbstractTask {
 		+ smoothTimeSpan + "; Time m/z=" + smoothTimeMZ + ")");
 	IndexedDataPoint[][] data = smoothDataPoints(dataFile, smoothTimeSpan,
 		smoothTimeMZ, 0, smoothMZ, 0, minimumHeight);
+	if (data == null)
+	    return;
 
 	logger.info("Determining intensities (mass sum) per scan on "
 		+ dataFile);
@@ -298,11 +319,12 @@ public class GridMassTask extends AbstractTask {
 		scan = scans[i];
 		IndexedDataPoint mzv[] = data[i];
 		DataPoint mzvOriginal[] = scan.getDataPoints();
-		ArrayList<Datum> dal = new ArrayList<Datum>();
+		Datum dal[] = new Datum[mzv.length];
+		int datums = 0;
 		for (j = 0; j < mzv.length; j++) {
 		    if (mzv[j].datapoint.getIntensity() >= minimumHeight) {
-			dal.add(new Datum(mzv[j].datapoint, i,
-				mzvOriginal[mzv[j].index]));
+			dal[datums++] = new Datum(mzv[j].datapoint, i,
+				mzvOriginal[mzv[j].index]);
 			passed++;
 		    } else {
 			nopassed++;
@@ -310,8 +332,10 @@ public class GridMassTask extends AbstractTask {
 		}
 		if (j > maxJ)
 		    maxJ = j;
-		roi[i] = dal.toArray(new Datum[0]);
-		roiAL.addAll(dal);
+		roi[i] = Arrays.copyOf(dal, datums);
+		roiMZ[i] = new double[datums];
+		for (j = 0; j < datums; j++)
+		    roiMZ[i][j] = dal[j].mz;
 	    }
 	    setProcedure(i, totalScans, 2);
 	}
@@ -335,13 +359,16 @@ public class GridMassTask extends AbstractTask {
 	int ndata = (int) Math
 		.round((((double) totalScans / (double) byScan) + 1)
 			* ((maxMasa - minMasa + byMZ) / byMZ));
-	Probe probes[] = new Probe[ndata];
+	// Probes are kept as primitive arrays until they reach a maximum
+	final double probeMZ[] = new double[ndata];
+	final int probeScan[] = new int[ndata];
 	int idata = 0;
 	for (i = 0; i < totalScans; i += byScan) {
 	    if (i % 100 == 0 && isCanceled())
 		return;
 	    for (m = minMasa - (i % 2) * byMZ / 2; m <= maxMasa; m += byMZ) {
-		probes[idata++] = new Probe(m, i);
+		probeMZ[idata] = m;
+		probeScan[idata++] = i;
 	    }
 	    setProcedure(i, totalScans, 3);
 	}
@@ -351,34 +378,41 @@ public class GridMassTask extends AbstractTask {
 	int scanR = Math.max(byScan - 1, 2);
 	logger.info("Finding local maxima for each probe on " + dataFile
 		+ " radius: scans=" + scanR + ", m/z=" + mzR);
+	final Datum probeCenters[] = new Datum[idata];
+	final int climbingScanR = scanR;
+	final double climbingMZR = mzR;
+	if (!processInParallel(idata, 4, new BlockProcessor() {
+	    public void process(int from, int to) {
+		for (int p = from; p < to; p++)
+		    probeCenters[p] = findLocalMaximum(probeMZ[p],
+			    probeScan[p], climbingScanR, climbingMZR);
+	    }
+	}))
+	    return;
 	int okProbes = 0;
 	for (i = 0; i < idata; i++) {
-	    if (i % 100 == 0 && isCanceled())
-		return;
-	    moveProbeToCenter(probes[i], scanR, mzR);
-	    if (probes[i].intensityCenter < minimumHeight) {
-		probes[i] = null;
-	    } else {
+	    if (probeCenters[i] != null
+		    && probeCenters[i].intensity >= minimumHeight)
 		okProbes++;
-	    }
-	    setProcedure(i, idata, 4);
 	}
-	if (okProbes > 0) {
-	    Probe[] pArr = new Probe[okProbes];
-	    for (okProbes = i = 0; i < idata; i++) {
-		if (probes[i] != null) {
-		    pArr[okProbes++] = probes[i];
-		}
+	Probe probes[] = new Probe[okProbes];
+	for (okProbes = i = 0; i < idata; i++) {
+	    Datum center = probeCenters[i];
+	    if (center != null && center.intensity >= minimumHeight) {
+		Probe p = new Probe(probeMZ[i], probeScan[i]);
+		p.mzCenter = center.mz;
+		p.scanCenter = center.scan;
+		p.intensityCenter = center.intensity;
+		probes[okProbes++] = p;
 	    }
-	    probes = pArr;
-	    pArr = null;
 	}
 	// (3) Assign spot id to each "center"
 	logger.info("Sorting probes " + dataFile);
 	Arrays.sort(probes);
 	logger.info("Assigning spot id to local maxima on " + dataFile);
 	SpotByProbes sbp = new SpotByProbes();
-	ArrayList<SpotByProbes> spots = new ArrayList<SpotByProbes>();
+	SpotByProbes spots[] = new SpotByProbes[probes.length];
+	int spotCount = 0;
 	double mzA = -1;
 	int scanA = -1;
 	for (i = 0; i < probes.length; i++) {
@@ -387,7 +421,7 @@ public class GridMassTask extends AbstractTask {
 		    if (i % 10 == 0 && isCanceled())
 			return;
 		    if (sbp.size() > 0) {
-			spots.add(sbp);
+			spots[spotCount++] = sbp;
 			sbp.assignSpotId();
 			// System.out.println(sbp.toString());
 		    }
@@ -400,11 +434,12 @@ public class GridMassTask extends AbstractTask {
 	    setProcedure(i, probes.length, 5);
 	}
 	if (sbp.size() > 0) {
-	    spots.add(sbp);
+	    spots[spotCount++] = sbp;
 	    sbp.assignSpotId();
 	    // System.out.println(sbp.toString());
 	}
-	logger.info("Spots:" + spots.size());
+	spots = Arrays.copyOf(spots, spotCount);
+	logger.info("Spots:" + spots.length);
 
 	// Assign specific datums to spots to avoid using datums to several
 	// spots
@@ -416,25 +451,25 @@ public class GridMassTask extends AbstractTask {
 		    return;
 		assignSpotIdToDatumsFromScans(sx, scanR, mzR);
 	    }
-	    setProcedure(i++, spots.size(), 6);
+	    setProcedure(i++, spots.length, 6);
 	}
 
 	// (4) Join Tolerable Centers
 	logger.info("Joining tolerable maxima on " + dataFile);
 	int criticScans = Math.max(1, tolScans / 2);
 	int joins = 0;
-	for (i = 0; i < spots.size() - 1; i++) {
-	    SpotByProbes s1 = spots.get(i);
+	for (i = 0; i < spots.length - 1; i++) {
+	    SpotByProbes s1 = spots[i];
 	    if (s1.center != null && s1.size() > 0) {
 		if (i % 100 == 0 && isCanceled())
 		    return;
 		for (j = i; j > 0
-			&& j < spots.size()
-			&& spots.get(j - 1).center != null
-			&& spots.get(j - 1).center.mzCenter + mzTol > s1.center.mzCenter; j--)
+			&& j < spots.length
+			&& spots[j - 1].center != null
+			&& spots[j - 1].center.mzCenter + mzTol > s1.center.mzCenter; j--)
 		    ;
-		for (; j < spots.size(); j++) {
-		    SpotByProbes s2 = spots.get(j);
+		for (; j < spots.length; j++) {
+		    SpotByProbes s2 = spots[j];
 		    if (i != j && s2.center != null) {
 			if (s2.center.mzCenter - s1.center.mzCenter > mzTol)
 			    break;
@@ -486,29 +521,30 @@ public class GridMassTask extends AbstractTask {
 		    }
 		}
 	    }
-	    setProcedure(i, spots.size(), 7);
+	    setProcedure(i, spots.length, 7);
 	}
 	logger.info("Joins:" + joins);
 
 	// (5) Remove "Large" spanned masses
 	logger.info("Removing long and comparable 'masses' on " + dataFile);
-	for (i = 0; i < spots.size() - 1; i++) {
-	    SpotByProbes s1 = spots.get(i);
+	for (i = 0; i < spots.length - 1; i++) {
+	    SpotByProbes s1 = spots[i];
 	    if (s1.center != null && s1.size() > 0) {
 		if (i % 100 == 0 && isCanceled())
 		    return;
 		int totalScans = s1.maxScan - s1.minScan + 1;
 		int lScan = s1.minScan;
 		int rScan = s1.maxScan;
-		ArrayList<Integer> toRemove = new ArrayList<Integer>();
-		toRemove.add(i);
+		int toRemove[] = new int[8];
+		int removals = 0;
+		toRemove[removals++] = i;
 		for (j = i; j > 0
-			&& j < spots.size()
-			&& spots.get(j - 1).center != null
-			&& spots.get(j - 1).center.mzCenter + mzTol > s1.center.mzCenter; j--)
+			&& j < spots.length
+			&& spots[j - 1].center != null
+			&& spots[j - 1].center.mzCenter + mzTol > s1.center.mzCenter; j--)
 		    ;
-		for (; j < spots.size(); j++) {
-		    SpotByProbes s2 = spots.get(j);
+		for (; j < spots.length; j++) {
+		    SpotByProbes s2 = spots[j];
 		    if (i != j && s2.center != null) {
 			if (s2.center.mzCenter - s1.center.mzCenter > mzTol)
 			    break;
@@ -523,7 +559,10 @@ public class GridMassTask extends AbstractTask {
 				    || !(s2.maxScan < lScan || s2.minScan > rScan)) {
 				// distancia tolerable o intersectan
 				totalScans += s2.maxScan - s2.minScan + 1;
-				toRemove.add(j);
+				if (removals == toRemove.length)
+				    toRemove = Arrays.copyOf(toRemove,
+					    removals * 2);
+				toRemove[removals++] = j;
 				lScan = Math.min(lScan, s2.minScan);
 				rScan = Math.max(rScan, s2.maxScan);
 			    }
@@ -534,7 +573,7 @@ public class GridMassTask extends AbstractTask {
 		    if (debug > 2)
 			System.out
 				.println("Removing "
-					+ toRemove.size()
+					+ removals
 					+ " masses around "
 					+ mzFormat.format(s1.center.mzCenter)
 					+ " m/z ("
@@ -549,30 +588,47 @@ public class GridMassTask extends AbstractTask {
 					+ " ("
 					+ Math.round(totalScans * rtPerScan
 						* 1000.0) / 1000.0 + " min).");
-		    for (Integer J : toRemove) {
-			// System.out.println("Removing: "+spots.get(J).spotId);
-			spots.get(J).clear();
+		    for (j = 0; j < removals; j++) {
+			spots[toRemove[j]].clear();
 		    }
 		}
 	    }
-	    setProcedure(i, spots.size(), 8);
+	    setProcedure(i, spots.length, 8);
 	}
 
 	// Build peaks from assigned datums
 	logger.info("Building peak rows on " + dataFile + " (tolereance scans="
 		+ tolScans + ")");
-	i = 0;
-	for (SpotByProbes sx : spots) {
+	// The spots do not share datums anymore, so their chromatograms are
+	// built in parallel. Rows are added in spot order below.
+	final SpotByProbes peakSpots[] = spots;
+	final Chromatogram peaks[] = new Chromatogram[spots.length];
+	if (!processInParallel(spots.length, 9, new BlockProcessor() {
+	    public void process(int from, int to) {
+		for (int s = from; s < to; s++) {
+		    SpotByProbes sx = peakSpots[s];
+		    if (sx.size() > 0
+			    && sx.maxScan - sx.minScan + 1 >= tolScans) {
+			sx.buildMaxDatumFromScans(roi, minimumHeight);
+			if (isPeak(sx)) {
+			    Chromatogram peak = new Chromatogram(dataFile,
+				    scanNumbers);
+			    if (addMaxDatumFromScans(sx, peak) > 0) {
+				peak.finishChromatogram();
+				peaks[s] = peak;
+			    }
+			}
+		    }
+		}
+	    }
+	}))
+	    return;
+	for (i = 0; i < spots.length; i++) {
+	    SpotByProbes sx = spots[i];
 	    if (sx.size() > 0 && sx.maxScan - sx.minScan + 1 >= tolScans) {
-		if (i % 100 == 0 && isCanceled())
-		    return;
-		sx.buildMaxDatumFromScans(roi, minimumHeight);
-		if (sx.getMaxDatumScans() >= tolScans
-			&& (sx.getContigousMaxDatumScans() >= tolScans || sx
-				.getContigousToMaxDatumScansRatio() > 0.5)) {
-		    Chromatogram peak = new Chromatogram(dataFile, scanNumbers);
-		    if (addMaxDatumFromScans(sx, peak) > 0) {
-			peak.finishChromatogram();
+		if (isPeak(sx)) {
+		    Chromatogram peak = peaks[i];
+		    if (peak != null) {
 			if (peak.getArea() > 1e-6) {
 			    newPeakID++;
 			    SimplePeakListRow newRow = new SimplePeakListRow(
@@ -672,7 +728,6 @@ public class GridMassTask extends AbstractTask {
 					+ sx.getContigousToMaxDatumScansRatio());
 		}
 	    }
-	    setProcedure(i++, spots.size(), 9);
 	}
 	logger.info("Peaks on " + dataFile + " = "
 		+ newPeakList.getNumberOfRows());
@@ -689,6 +744,65 @@ public class GridMassTask extends AbstractTask {
 
     }
 
+    /**
+     * Checks if the maximum datums of given spot span enough scans to form a
+     * peak
+     */
+    private boolean isPeak(SpotByProbes sx) {
+	return sx.getMaxDatumScans() >= tolScans
+		&& (sx.getContigousMaxDatumScans() >= tolScans || sx
+			.getContigousToMaxDatumScansRatio() > 0.5);
+    }
+
+    /**
+     * Processes a contiguous block of items
+     */
+    private interface BlockProcessor {
+	void process(int from, int to);
+    }
+
+    /**
+     * Processes items [0, total) in blocks on the task's threads. Each
+     * item must only write its own results, so these do not depend on the
+     * number of threads. Returns false if the task was canceled or failed.
+     */
+    private boolean processInParallel(final int total, final float process,
+	    final BlockProcessor processor) {
+
+	final int numOfThreads = Math.max(1, Math.min(total, this.numOfThreads));
+	final int blockSize = Math.max(1, total / (numOfThreads * 16));
+	final AtomicInteger nextItem = new AtomicInteger();
+	final AtomicInteger processedItems = new AtomicInteger();
+	ExecutorService threads = Executors.newFixedThreadPool(numOfThreads);
+	try {
+	    List<Future<?>> futures = new ArrayList<Future<?>>();
+	    for (int t = 0; t < numOfThreads; t++) {
+		futures.add(threads.submit(new Runnable() {
+		    public void run() {
+			int from;
+			while (!isCanceled()
+				&& (from = nextItem.getAndAdd(blockSize)) < total) {
+			    int to = Math.min(total, from + blockSize);
+			    processor.process(from, to);
+			    setProcedure(processedItems.addAndGet(to - from),
+				    total, process);
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> future : futures)
+		future.get();
+	} catch (Exception e) {
+	    setStatus(TaskStatus.ERROR);
+	    setErrorMessage(ExceptionUtils.exceptionToString(e));
+	    return false;
+	} finally {
+	    threads.shutdownNow();
+	}
+
+	return !isCanceled();
+    }
+
     public double intensityRatio(double int1, double int2) {
 	return Math.min(int1, int2) / Math.max(int1, int2);
     }
@@ -698,27 +812,44 @@ public class GridMassTask extends AbstractTask {
 	procedure = (process + (float) i / (float) max) / procedureLen;
     }
 
-    public IndexedDataPoint[][] smoothDataPoints(RawDataFile dataFile,
-	    double timeSpan, double timeMZSpan, int scanSpan, double mzTol,
-	    int mzPoints, double minimumHeight) {
-	int[] scanNumbers = dataFile.getScanNumbers(1);
+    /**
+     * Smooths the data points of all scans in parallel. Returns null if the
+     * task was canceled or failed.
+     */
+    public IndexedDataPoint[][] smoothDataPoints(final RawDataFile dataFile,
+	    final double timeSpan, final double timeMZSpan, final int scanSpan,
+	    double mzTol, int mzPoints, final double minimumHeight) {
+	final int[] scanNumbers = dataFile.getScanNumbers(1);
+	final IndexedDataPoint newMZValues[][] = new IndexedDataPoint[scanNumbers.length][];
+	if (!processInParallel(scanNumbers.length, 0, new BlockProcessor() {
+	    public void process(int from, int to) {
+		smoothScans(dataFile, scanNumbers, from, to, timeSpan,
+			timeMZSpan, scanSpan, minimumHeight, newMZValues);
+	    }
+	}))
+	    return null;
+	return newMZValues;
+    }
+
+    /**
+     * Smooths the data points of scans [from, to) into newMZValues. Each
+     * scan is averaged with its neighbours in time; the data points of the
+     * neighbours are reused while moving through the block.
+     */
+    private void smoothScans(RawDataFile dataFile, int[] scanNumbers,
+	    int from, int to, double timeSpan, double timeMZSpan,
+	    int scanSpan, double minimumHeight,
+	    IndexedDataPoint newMZValues[][]) {
 	int totalScans = scanNumbers.length;
 	DataPoint mzValues[][] = null; // [relative scan][j value]
 	DataPoint mzValuesJ[] = null;
 	int mzValuesScan[] = null;
 	int mzValuesMZidx[] = null;
-	IndexedDataPoint newMZValues[][] = null;
 	IndexedDataPoint tmpDP[] = new IndexedDataPoint[0];
-	newMZValues = new IndexedDataPoint[totalScans][];
 	int i, j, si, sj, ii, k, ssi, ssj, m;
 	double timeSmoothingMZtol = Math.max(timeMZSpan, 1e-6);
 
-	int modts = Math.max(1, totalScans / 10);
-
-	for (i = 0; i < totalScans; i++) {
-
-	    if (i % 100 == 0 && isCanceled())
-		return null;
+	for (i = from; i < to; i++) {
 
 	    // Smoothing in TIME space
 	    Scan scan = dataFile.getScan(scanNumbers[i]);
@@ -847,16 +978,7 @@ public class GridMassTask extends AbstractTask {
 	    }
 	    newMZValues[i] = iDP;
 
-	    setProcedure(i, totalScans, 0);
-
-	    if (i % modts == 0) {
-		logger.info("Smoothing/Caching " + dataFile + "..."
-			+ (i / modts) * 10 + "%");
-	    }
-
 	}
-
-	return newMZValues;
     }
 
     public double HWHM(double x0, double x1, double y0, double y1) {
@@ -888,7 +1010,7 @@ public class GridMassTask extends AbstractTask {
 	    if (di != null && di.length > 0) {
 		Datum max = new Datum(new SimpleDataPoint(0, -1), 0,
 			new SimpleDataPoint(0, -1));
-		int idx = findFirstMass(s.minMZ, di);
+		int idx = ArrayUtils.lowerBound(roiMZ[i], s.minMZ);
 		for (j = idx; j < di.length && di[j].mz <= s.maxMZ; j++) {
 		    Datum d = di[j];
 		    if (d.spotId == s.spotId) {
@@ -915,17 +1037,23 @@ public class GridMassTask extends AbstractTask {
 	for (i = s.minScan; i <= s.maxScan; i++) {
 	    Datum[] di = roi[i];
 	    if (di != null && di.length > 0) {
-		int idx = findFirstMass(s.minMZ - mzRadius, di);
+		int idx = ArrayUtils.lowerBound(roiMZ[i], s.minMZ - mzRadius);
 		for (j = idx; j < di.length && di[j].mz <= s.maxMZ + mzRadius; j++) {
 		    Datum d = di[j];
 		    if (d.mz >= s.minMZ - mzRadius) {
 			if (d.spotId != 0) {
 			    // Some spot already assigned this to it. Check
-			    // exactly who is the winner
-			    Probe p = new Probe(d.mz, d.scan);
-			    moveProbeToCenter(p, sRadius, mzRadius);
-			    if (p.mzCenter == s.center.mzCenter
-				    && p.scanCenter == s.center.scanCenter) {
+			    // exactly who is the winner. The maximum reached
+			    // from a datum does not change, so it is kept for
+			    // the next competing spot.
+			    if (d.center == null) {
+				d.center = findLocalMaximum(d.mz, d.scan,
+					sRadius, mzRadius);
+				if (d.center == null)
+				    d.center = d;
+			    }
+			    if (d.center.mz == s.center.mzCenter
+				    && d.center.scan == s.center.scanCenter) {
 				// This datum is actually MINE (s) !!!, this
 				// will happen to datums close to spot borders
 				// and that compete with other spot
@@ -952,7 +1080,7 @@ public class GridMassTask extends AbstractTask {
 	for (i = Math.min(s.minScan, s2.minScan); i <= mxScan; i++) {
 	    Datum[] di = roi[i];
 	    if (di != null && di.length > 0) {
-		int idx = findFirstMass(minMZ - mzRadius, di);
+		int idx = ArrayUtils.lowerBound(roiMZ[i], minMZ - mzRadius);
 		for (j = idx; j < di.length && di[j].mz <= maxMZ + mzRadius; j++) {
 		    Datum d = di[j];
 		    if (d.spotId == oldSpotId) {
@@ -963,39 +1091,47 @@ public class GridMassTask extends AbstractTask {
 	}
     }
 
-    void moveProbeToCenter(Probe p, int sRadius, double mzRadius) {
+    /**
+     * Moves a probe from given position to the most intense datum around it
+     * until it cannot find a new maximum. Returns the datum where the probe
+     * stops, or null if the probe does not move.
+     */
+    Datum findLocalMaximum(double mz, int scan, int sRadius, double mzRadius) {
 
 	int i, j, k;
 	double maxMZ, minMZ;
+	double mzCenter = mz;
+	int scanCenter = scan;
 	boolean move = true;
-	Datum max = new Datum(new SimpleDataPoint(0, -1), 0,
-		new SimpleDataPoint(0, -1));
+	Datum max = null;
+	Datum center = null;
 	while (move) {
-	    k = Math.min(totalScans - 1, p.scanCenter + sRadius);
-	    for (i = Math.max(p.scanCenter - sRadius, 0); i <= k; i++) {
+	    k = Math.min(totalScans - 1, scanCenter + sRadius);
+	    for (i = Math.max(scanCenter - sRadius, 0); i <= k; i++) {
 		Datum[] di = roi[i];
 		if (di != null && di.length > 0) {
-		    minMZ = p.mzCenter - mzRadius;
-		    int idx = findFirstMass(minMZ, di);
-		    maxMZ = p.mzCenter + mzRadius;
-		    for (j = idx; j < di.length && di[j].mz <= maxMZ; j++) {
-			Datum d = di[j];
-			if (d.intensity > max.intensity && d.mz >= minMZ) {
-			    max = d;
+		    double mzi[] = roiMZ[i];
+		    minMZ = mzCenter - mzRadius;
+		    int idx = ArrayUtils.lowerBound(mzi, minMZ);
+		    maxMZ = mzCenter + mzRadius;
+		    for (j = idx; j < mzi.length && mzi[j] <= maxMZ; j++) {
+			if (mzi[j] >= minMZ
+				&& (max == null || di[j].intensity > max.intensity)) {
+			    max = di[j];
 			}
 		    }
 		}
 	    }
-	    if (max.intensity >= 0
-		    && (max.mz != p.mzCenter || max.scan != p.scanCenter)) {
-		p.mzCenter = max.mz;
-		p.scanCenter = max.scan;
-		p.intensityCenter = max.intensity;
-		// p.moves++;
+	    if (max != null
+		    && (max.mz != mzCenter || max.scan != scanCenter)) {
+		mzCenter = max.mz;
+		scanCenter = max.scan;
+		center = max;
 	    } else {
 		move = false;
 	    }
 	}
+	return center;
     }
 
     double intensityForMZorScan(ArrayList<DatumExpand> deA, double mz, int scan) {
@@ -19,10 +19,11 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.gridmass;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 class SpotByProbes implements Comparable<SpotByProbes> {
-    ArrayList<Probe> probes = new ArrayList<Probe>();
+    Probe probes[] = new Probe[4];
+    int probeCount = 0;
     int minScan = Integer.MAX_VALUE;
     int maxScan = Integer.MIN_VALUE;
     double maxMZ = Double.NEGATIVE_INFINITY;
@@ -33,7 +34,10 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     int spotId = -1;
     Probe center = null;
     int consecutiveScans = 0;
-    ArrayList<Datum> maxDatums = null;
+    // Number of scans with a maximum datum and first/last of these scans
+    int maxDatums = 0;
+    int firstMaxDatumScan = 0;
+    int lastMaxDatumScan = 0;
 
     SpotByProbes() {
     }
@@ -46,7 +50,7 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     }
 
     int size() {
-	return probes.size();
+	return probeCount;
     }
 
     public int compareTo(SpotByProbes other) {
@@ -56,7 +60,9 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     }
 
     void addProbe(Probe p) {
-	probes.add(p);
+	if (probeCount == probes.length)
+	    probes = Arrays.copyOf(probes, probeCount * 2);
+	probes[probeCount++] = p;
 	if (center == null)
 	    center = p;
 	if (p.mz > maxMZ)
@@ -98,8 +104,8 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     }
 
     void addProbesFromSpot(SpotByProbes sbp, boolean clear) {
-	for (Probe p : sbp.probes) {
-	    addProbe(p);
+	for (int i = 0; i < sbp.probeCount; i++) {
+	    addProbe(sbp.probes[i]);
 	}
 	if (center.intensityCenter < sbp.center.intensityCenter)
 	    center = sbp.center;
@@ -109,7 +115,8 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     }
 
     void clear() {
-	probes.clear();
+	Arrays.fill(probes, 0, probeCount, null);
+	probeCount = 0;
 	center = null;
 	spotId = -1;
 	minScan = Integer.MAX_VALUE;
@@ -149,7 +156,8 @@ class SpotByProbes implements Comparable<SpotByProbes> {
 
     public void printDebugInfo() {
 	System.out.println("*** SpotId : " + spotId + " ***");
-	for (Probe p : probes) {
+	for (int i = 0; i < probeCount; i++) {
+	    Probe p = probes[i];
 	    System.out.println("SpotId=" + spotId + ", Probe Scan=" + p.scan
 		    + ", Probe m/z=" + p.mz + " Feature Scan=" + p.scanCenter
 		    + ", Feature m/z=" + p.mzCenter);
@@ -159,7 +167,7 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     void buildMaxDatumFromScans(Datum[][] roi, double minimumHeight) {
 
 	int i, j;
-	ArrayList<Datum> mxD = new ArrayList<Datum>();
+	int mxD = 0;
 	int cont = 0;
 	consecutiveScans = 0;
 	double theMinMZ = minMZ;// - mzTol;
@@ -184,7 +192,10 @@ class SpotByProbes implements Comparable<SpotByProbes> {
 		    }
 		}
 		if (max != null && max.intensity > 0) {
-		    mxD.add(max);
+		    if (mxD == 0)
+			firstMaxDatumScan = max.scan;
+		    lastMaxDatumScan = max.scan;
+		    mxD++;
 		    cont++;
 		} else {
 		    cont = 0;
@@ -200,17 +211,15 @@ class SpotByProbes implements Comparable<SpotByProbes> {
     }
 
     int getMaxDatumScans() {
-	return (maxDatums == null || maxDatums.size() == 0 ? 0 : maxDatums
-		.get(maxDatums.size() - 1).scan - maxDatums.get(0).scan + 1); // maxDatums.size()
+	return (maxDatums == 0 ? 0 : lastMaxDatumScan - firstMaxDatumScan + 1);
     }
 
     int getContigousMaxDatumScans() {
-	return (maxDatums == null || maxDatums.size() == 0 ? 0
-		: consecutiveScans);
+	return (maxDatums == 0 ? 0 : consecutiveScans);
     }
 
     float getContigousToMaxDatumScansRatio() {
-	if (maxDatums == null || maxDatums.size() == 0)
+	if (maxDatums == 0)
 	    return 0;
 	return ((float) getContigousMaxDatumScans() / (float) getMaxDatumScans());
     }
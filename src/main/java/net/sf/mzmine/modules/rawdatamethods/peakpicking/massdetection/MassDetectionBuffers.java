@@ -0,0 +1,89 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection;
+
+import java.util.Arrays;
+
+/**
+ * Arrays reused by a mass detector for all scans processed by one mass
+ * detection task. The arrays grow to the size of the largest scan and are
+ * released with the task. A buffers instance must not be used by several
+ * threads at the same time.
+ */
+public class MassDetectionBuffers {
+
+    // m/z and intensity values of the scan data points
+    private double mzValues[] = new double[0];
+    private double intensityValues[] = new double[0];
+
+    // m/z and intensity values of the detected m/z peaks
+    private double peakMZValues[] = new double[0];
+    private double peakIntensityValues[] = new double[0];
+
+    // Indexes of the data points detected as m/z peaks
+    private int peakIndexes[] = new int[0];
+    private int numOfPeakIndexes;
+
+    /**
+     * Makes the arrays large enough for a scan of given number of data points,
+     * and removes the peak indexes of the previous scan
+     */
+    public void prepare(int numOfDataPoints) {
+	if (mzValues.length < numOfDataPoints) {
+	    mzValues = new double[numOfDataPoints];
+	    intensityValues = new double[numOfDataPoints];
+	    peakMZValues = new double[numOfDataPoints];
+	    peakIntensityValues = new double[numOfDataPoints];
+	    peakIndexes = new int[numOfDataPoints];
+	}
+	numOfPeakIndexes = 0;
+    }
+
+    public double[] getMZValues() {
+	return mzValues;
+    }
+
+    public double[] getIntensityValues() {
+	return intensityValues;
+    }
+
+    public double[] getPeakMZValues() {
+	return peakMZValues;
+    }
+
+    public double[] getPeakIntensityValues() {
+	return peakIntensityValues;
+    }
+
+    public void addPeakIndex(int index) {
+	if (numOfPeakIndexes == peakIndexes.length)
+	    peakIndexes = Arrays.copyOf(peakIndexes, numOfPeakIndexes * 2 + 1);
+	peakIndexes[numOfPeakIndexes++] = index;
+    }
+
+    public int[] getPeakIndexes() {
+	return peakIndexes;
+    }
+
+    public int getNumOfPeakIndexes() {
+	return numOfPeakIndexes;
+    }
+
+}
@@ -98,6 +98,9 @@ public class MassDetectionTask extends AbstractTask {
         final Scan scans[] = scanSelection.getMatchingScans(dataFile);
         totalScans = scans.length;
 
+        // Working arrays of the mass detector, reused for all scans
+        final MassDetectionBuffers buffers = new MassDetectionBuffers();
+
         // Process scans one by one
         for (Scan scan : scans) {
 
@@ -106,7 +109,7 @@ public class MassDetectionTask extends AbstractTask {
 
             MassDetector detector = massDetector.getModule();
             DataPoint mzPeaks[] = detector.getMassValues(scan,
-                    massDetector.getParameterSet());
+                    massDetector.getParameterSet(), buffers);
 
             SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
 
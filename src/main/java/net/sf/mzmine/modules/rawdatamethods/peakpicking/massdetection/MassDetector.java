@@ -34,4 +34,12 @@ public interface MassDetector extends MZmineModule {
      */
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters);
 
+    /**
+     * Returns mass and intensity values detected in given scan. Mass detectors
+     * may keep their working arrays in given buffers, which are reused for
+     * all scans of a mass detection task.
+     */
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    MassDetectionBuffers buffers);
+
 }
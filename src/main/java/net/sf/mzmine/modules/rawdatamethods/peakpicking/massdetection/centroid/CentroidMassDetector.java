@@ -25,11 +25,17 @@ import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionBuffers;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
 
 public class CentroidMassDetector implements MassDetector {
 
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    MassDetectionBuffers buffers) {
+	return getMassValues(scan, parameters);
+    }
+
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
 
 	double noiseLevel = parameters.getParameter(
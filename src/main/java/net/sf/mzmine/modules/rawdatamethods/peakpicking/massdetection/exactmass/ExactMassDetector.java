@@ -19,18 +19,14 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.exactmass;
 
-import java.util.ArrayList;
-import java.util.TreeSet;
-
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionBuffers;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
-import net.sf.mzmine.util.DataPointSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
 
 public class ExactMassDetector implements MassDetector {
 
@@ -38,86 +34,96 @@ public class ExactMassDetector implements MassDetector {
      * @see net.sf.mzmine.modules.peakpicking.threestep.massdetection.MassDetector#getMassValues(net.sf.mzmine.datamodel.Scan)
      */
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
+	return getMassValues(scan, parameters, new MassDetectionBuffers());
+    }
+
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    MassDetectionBuffers buffers) {
 
 	double noiseLevel = parameters.getParameter(
 		ExactMassDetectorParameters.noiseLevel).getValue();
 
-	// Create a tree set of detected mzPeaks sorted by MZ in ascending order
-	TreeSet<ExactMzDataPoint> mzPeaks = new TreeSet<ExactMzDataPoint>(
-		new DataPointSorter(SortingProperty.MZ,
-			SortingDirection.Ascending));
-
-	// Create a tree set of candidate mzPeaks sorted by intensity in
-	// descending order.
-	TreeSet<ExactMzDataPoint> candidatePeaks = new TreeSet<ExactMzDataPoint>(
-		new DataPointSorter(SortingProperty.Intensity,
-			SortingDirection.Descending));
-
-	// First get all candidate peaks (local maximum)
-	getLocalMaxima(scan, candidatePeaks, noiseLevel);
-
-	// We calculate the exact mass for each peak,
-	// starting with biggest intensity peak and so on
-	while (candidatePeaks.size() > 0) {
-
-	    // Always take the biggest (intensity) peak
-	    ExactMzDataPoint currentCandidate = candidatePeaks.first();
+	DataPoint[] scanDataPoints = scan.getDataPoints();
+	buffers.prepare(scanDataPoints.length);
+	final double mzValues[] = buffers.getMZValues();
+	final double intensityValues[] = buffers.getIntensityValues();
+	for (int i = 0; i < scanDataPoints.length; i++) {
+	    mzValues[i] = scanDataPoints[i].getMZ();
+	    intensityValues[i] = scanDataPoints[i].getIntensity();
+	}
 
-	    // Calculate the exact mass and update value in current candidate
-	    // (MzPeak)
-	    double exactMz = calculateExactMass(currentCandidate);
-	    currentCandidate.setMZ(exactMz);
+	// Find all peaks (local maxima) and calculate the exact mass of each
+	// of them
+	int numOfPeaks = getLocalMaxima(buffers, scanDataPoints.length,
+		noiseLevel);
 
-	    // Add this candidate to the final tree set sorted by MZ and remove
-	    // from tree set sorted by intensity
-	    mzPeaks.add(currentCandidate);
-	    candidatePeaks.remove(currentCandidate);
+	// Return an array of detected MzPeaks sorted by MZ
+	sortPeaks(buffers, numOfPeaks);
+	final double peakMZValues[] = buffers.getPeakMZValues();
+	final double peakIntensityValues[] = buffers.getPeakIntensityValues();
+	DataPoint mzPeaks[] = new DataPoint[numOfPeaks];
+	int count = 0;
+	for (int i = 0; i < numOfPeaks; i++) {
+	    final double mz = peakMZValues[i];
+	    final double intensity = peakIntensityValues[i];
+
+	    // Skip duplicate peaks
+	    if ((count > 0)
+		    && (comparePeaks(mzPeaks[count - 1].getMZ(),
+			    mzPeaks[count - 1].getIntensity(), mz, intensity) == 0))
+		continue;
 
+	    mzPeaks[count++] = new SimpleDataPoint(mz, intensity);
+	}
+	if (count < numOfPeaks) {
+	    DataPoint uniquePeaks[] = new DataPoint[count];
+	    System.arraycopy(mzPeaks, 0, uniquePeaks, 0, count);
+	    mzPeaks = uniquePeaks;
 	}
 
-	// Return an array of detected MzPeaks sorted by MZ
-	return mzPeaks.toArray(new ExactMzDataPoint[0]);
+	return mzPeaks;
 
     }
 
     /**
      * This method gets all possible MzPeaks using local maximum criteria from
-     * the current scan and return a tree set of MzPeaks sorted by intensity in
-     * descending order.
+     * the current scan, calculates their exact mass and stores them in the
+     * peak buffers in the order of the local maxima.
      * 
-     * @param scan
-     * @return
+     * @return number of MzPeaks
      */
-    private void getLocalMaxima(Scan scan,
-	    TreeSet<ExactMzDataPoint> candidatePeaks, double noiseLevel) {
+    private int getLocalMaxima(MassDetectionBuffers buffers,
+	    int numOfDataPoints, double noiseLevel) {
 
-	DataPoint[] scanDataPoints = scan.getDataPoints();
-	if (scanDataPoints.length == 0)
-	    return;
-	DataPoint localMaximum = scanDataPoints[0];
-	ArrayList<DataPoint> rangeDataPoints = new ArrayList<DataPoint>();
+	final double intensityValues[] = buffers.getIntensityValues();
+	final double peakMZValues[] = buffers.getPeakMZValues();
+	final double peakIntensityValues[] = buffers.getPeakIntensityValues();
+	if (numOfDataPoints == 0)
+	    return 0;
+	int numOfPeaks = 0;
+	int localMaximum = 0;
+
+	// The current m/z peak consists of the non-zero data points from
+	// rangeStart to the current data point
+	int rangeStart = 0;
 
 	boolean ascending = true;
 
 	// Iterate through all data points
-	for (int i = 0; i < scanDataPoints.length - 1; i++) {
+	for (int i = 0; i < numOfDataPoints - 1; i++) {
 
-	    boolean nextIsBigger = scanDataPoints[i + 1].getIntensity() > scanDataPoints[i]
-		    .getIntensity();
-	    boolean nextIsZero = scanDataPoints[i + 1].getIntensity() == 0;
-	    boolean currentIsZero = scanDataPoints[i].getIntensity() == 0;
+	    boolean nextIsBigger = intensityValues[i + 1] > intensityValues[i];
+	    boolean nextIsZero = intensityValues[i + 1] == 0;
+	    boolean currentIsZero = intensityValues[i] == 0;
 
 	    // Ignore zero intensity regions
 	    if (currentIsZero) {
 		continue;
 	    }
 
-	    // Add current (non-zero) data point to the current m/z peak
-	    rangeDataPoints.add(scanDataPoints[i]);
-
 	    // Check for local maximum
 	    if (ascending && (!nextIsBigger)) {
-		localMaximum = scanDataPoints[i];
+		localMaximum = i;
 		ascending = false;
 		continue;
 	    }
@@ -126,31 +132,38 @@ public class ExactMassDetector implements MassDetector {
 	    if ((!ascending) && (nextIsBigger || nextIsZero)) {
 
 		// Add the m/z peak if it is above the noise level
-		if (localMaximum.getIntensity() > noiseLevel) {
-
-		    DataPoint[] rawDataPoints = rangeDataPoints
-			    .toArray(new DataPoint[0]);
-		    candidatePeaks.add(new ExactMzDataPoint(localMaximum,
-			    rawDataPoints));
+		if (intensityValues[localMaximum] > noiseLevel) {
+		    peakMZValues[numOfPeaks] = calculateExactMass(buffers,
+			    localMaximum, rangeStart, i);
+		    peakIntensityValues[numOfPeaks] = intensityValues[localMaximum];
+		    numOfPeaks++;
 		}
 
 		// Reset and start with new peak
 		ascending = true;
-		rangeDataPoints.clear();
+		rangeStart = i + 1;
 	    }
 
 	}
 
+	return numOfPeaks;
+
     }
 
     /**
      * This method calculates the exact mass of a peak using the FWHM concept
      * and linear equation (y = mx + b).
      * 
-     * @param ExactMassDataPoint
+     * @param localMaximum
+     *            index of the top data point of the peak
+     * @param rangeStart
+     *            index of the first data point of the peak
+     * @param rangeEnd
+     *            index of the last data point of the peak
      * @return double
      */
-    private double calculateExactMass(ExactMzDataPoint currentCandidate) {
+    private double calculateExactMass(MassDetectionBuffers buffers,
+	    int localMaximum, int rangeStart, int rangeEnd) {
 
 	/*
 	 * According with the FWHM concept, the exact mass of this peak is the
@@ -167,26 +180,38 @@ public class ExactMassDetector implements MassDetector {
 	 * We repeat the same process in the right side.
 	 */
 
+	final double mzValues[] = buffers.getMZValues();
+	final double intensityValues[] = buffers.getIntensityValues();
+	final double peakMZ = mzValues[localMaximum];
 	double xRight = -1, xLeft = -1;
-	double halfIntensity = currentCandidate.getIntensity() / 2;
-	DataPoint[] rangeDataPoints = currentCandidate.getRawDataPoints();
+	double halfIntensity = intensityValues[localMaximum] / 2;
+
+	// Zero intensity data points do not belong to the peak, so each data
+	// point is paired with the previous non-zero one
+	int previous = -1;
+	for (int i = rangeStart; i <= rangeEnd; i++) {
 
-	for (int i = 0; i < rangeDataPoints.length - 1; i++) {
+	    if (intensityValues[i] == 0)
+		continue;
+	    if (previous < 0) {
+		previous = i;
+		continue;
+	    }
 
 	    // Left side of the curve
-	    if ((rangeDataPoints[i].getIntensity() <= halfIntensity)
-		    && (rangeDataPoints[i].getMZ() < currentCandidate.getMZ())
-		    && (rangeDataPoints[i + 1].getIntensity() >= halfIntensity)) {
+	    if ((intensityValues[previous] <= halfIntensity)
+		    && (mzValues[previous] < peakMZ)
+		    && (intensityValues[i] >= halfIntensity)) {
 
 		// First point with intensity just less than half of total
 		// intensity
-		double leftY1 = rangeDataPoints[i].getIntensity();
-		double leftX1 = rangeDataPoints[i].getMZ();
+		double leftY1 = intensityValues[previous];
+		double leftX1 = mzValues[previous];
 
 		// Second point with intensity just bigger than half of total
 		// intensity
-		double leftY2 = rangeDataPoints[i + 1].getIntensity();
-		double leftX2 = rangeDataPoints[i + 1].getMZ();
+		double leftY2 = intensityValues[i];
+		double leftX2 = mzValues[i];
 
 		// We calculate the slope with formula m = Y1 - Y2 / X1 - X2
 		double mLeft = (leftY1 - leftY2) / (leftX1 - leftX2);
@@ -195,23 +220,24 @@ public class ExactMassDetector implements MassDetector {
 		// linear equation
 		// X = X1 + [(Y - Y1) / m ], where Y = half of total intensity
 		xLeft = leftX1 + (((halfIntensity) - leftY1) / mLeft);
+		previous = i;
 		continue;
 	    }
 
 	    // Right side of the curve
-	    if ((rangeDataPoints[i].getIntensity() >= halfIntensity)
-		    && (rangeDataPoints[i].getMZ() > currentCandidate.getMZ())
-		    && (rangeDataPoints[i + 1].getIntensity() <= halfIntensity)) {
+	    if ((intensityValues[previous] >= halfIntensity)
+		    && (mzValues[previous] > peakMZ)
+		    && (intensityValues[i] <= halfIntensity)) {
 
 		// First point with intensity just bigger than half of total
 		// intensity
-		double rightY1 = rangeDataPoints[i].getIntensity();
-		double rightX1 = rangeDataPoints[i].getMZ();
+		double rightY1 = intensityValues[previous];
+		double rightX1 = mzValues[previous];
 
 		// Second point with intensity just less than half of total
 		// intensity
-		double rightY2 = rangeDataPoints[i + 1].getIntensity();
-		double rightX2 = rangeDataPoints[i + 1].getMZ();
+		double rightY2 = intensityValues[i];
+		double rightX2 = mzValues[i];
 
 		// We calculate the slope with formula m = Y1 - Y2 / X1 - X2
 		double mRight = (rightY1 - rightY2) / (rightX1 - rightX2);
@@ -222,12 +248,14 @@ public class ExactMassDetector implements MassDetector {
 		xRight = rightX1 + (((halfIntensity) - rightY1) / mRight);
 		break;
 	    }
+
+	    previous = i;
 	}
 
 	// We verify the values to confirm we find the desired points. If not we
 	// return the same mass value.
 	if ((xRight == -1) || (xLeft == -1))
-	    return currentCandidate.getMZ();
+	    return peakMZ;
 
 	// The center of left and right points is the exact mass of our peak.
 	double exactMass = (xLeft + xRight) / 2;
@@ -235,6 +263,43 @@ public class ExactMassDetector implements MassDetector {
 	return exactMass;
     }
 
+    /**
+     * Sorts the detected peaks by m/z and intensity in ascending order. The
+     * peaks are found in the order of their local maxima, so the exact masses
+     * are nearly sorted and insertion sort takes linear time.
+     */
+    private void sortPeaks(MassDetectionBuffers buffers, int numOfPeaks) {
+	final double mzValues[] = buffers.getPeakMZValues();
+	final double intensityValues[] = buffers.getPeakIntensityValues();
+	for (int i = 1; i < numOfPeaks; i++) {
+	    final double mz = mzValues[i];
+	    final double intensity = intensityValues[i];
+	    int j = i - 1;
+	    while ((j >= 0)
+		    && (comparePeaks(mzValues[j], intensityValues[j], mz,
+			    intensity) > 0)) {
+		mzValues[j + 1] = mzValues[j];
+		intensityValues[j + 1] = intensityValues[j];
+		j--;
+	    }
+	    mzValues[j + 1] = mz;
+	    intensityValues[j + 1] = intensity;
+	}
+    }
+
+    /**
+     * Compares peaks by m/z and intensity like DataPointSorter, so the exact
+     * masses which are not a number (flat peak sides) are ordered last and
+     * are equal to each other
+     */
+    private static int comparePeaks(double mz1, double intensity1,
+	    double mz2, double intensity2) {
+	int result = Double.compare(mz1, mz2);
+	if (result == 0)
+	    result = Double.compare(intensity1, intensity2);
+	return result;
+    }
+
     public @Nonnull String getName() {
 	return "Exact mass";
     }
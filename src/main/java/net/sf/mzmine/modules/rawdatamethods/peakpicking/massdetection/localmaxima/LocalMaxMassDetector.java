@@ -25,6 +25,7 @@ import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionBuffers;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
 
@@ -33,6 +34,11 @@ import net.sf.mzmine.parameters.ParameterSet;
  */
 public class LocalMaxMassDetector implements MassDetector {
 
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    MassDetectionBuffers buffers) {
+	return getMassValues(scan, parameters);
+    }
+
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
 
 	double noiseLevel = parameters.getParameter(
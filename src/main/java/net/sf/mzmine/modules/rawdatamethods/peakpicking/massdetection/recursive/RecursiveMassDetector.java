@@ -19,22 +19,22 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive;
 
-import java.util.TreeSet;
-import java.util.Vector;
-
 import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionBuffers;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
-import net.sf.mzmine.util.DataPointSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
 
 public class RecursiveMassDetector implements MassDetector {
 
     public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
+	return getMassValues(scan, parameters, new MassDetectionBuffers());
+    }
+
+    public DataPoint[] getMassValues(Scan scan, ParameterSet parameters,
+	    MassDetectionBuffers buffers) {
 
 	double noiseLevel = parameters.getParameter(
 		RecursiveMassDetectorParameters.noiseLevel).getValue();
@@ -44,33 +44,81 @@ public class RecursiveMassDetector implements MassDetector {
 		RecursiveMassDetectorParameters.maximumMZPeakWidth).getValue();
 
 	DataPoint dataPoints[] = scan.getDataPoints();
-	TreeSet<DataPoint> mzPeaks = new TreeSet<DataPoint>(
-		new DataPointSorter(SortingProperty.MZ,
-			SortingDirection.Ascending));
+	buffers.prepare(dataPoints.length);
+	final double intensityValues[] = buffers.getIntensityValues();
+	for (int i = 0; i < dataPoints.length; i++)
+	    intensityValues[i] = dataPoints[i].getIntensity();
 
 	// Find MzPeaks
-	recursiveThreshold(mzPeaks, dataPoints, 1, dataPoints.length - 1,
+	recursiveThreshold(buffers, dataPoints, 1, dataPoints.length - 1,
 		noiseLevel, minimumMZPeakWidth, maximumMZPeakWidth, 0);
-	return mzPeaks.toArray(new DataPoint[0]);
+
+	// Return the MzPeaks sorted by m/z, without duplicates
+	final int peakIndexes[] = buffers.getPeakIndexes();
+	final int numOfPeaks = buffers.getNumOfPeakIndexes();
+	sortPeaks(dataPoints, peakIndexes, numOfPeaks);
+	int numOfUniquePeaks = 0;
+	for (int i = 0; i < numOfPeaks; i++) {
+	    if ((numOfUniquePeaks > 0)
+		    && (compare(dataPoints, peakIndexes[numOfUniquePeaks - 1],
+			    peakIndexes[i]) == 0))
+		continue;
+	    peakIndexes[numOfUniquePeaks++] = peakIndexes[i];
+	}
+	DataPoint mzPeaks[] = new DataPoint[numOfUniquePeaks];
+	for (int i = 0; i < numOfUniquePeaks; i++)
+	    mzPeaks[i] = dataPoints[peakIndexes[i]];
+	return mzPeaks;
+    }
+
+    /**
+     * Compares two data points by m/z and intensity
+     */
+    private static int compare(DataPoint dataPoints[], int index1, int index2) {
+	int result = Double.compare(dataPoints[index1].getMZ(),
+		dataPoints[index2].getMZ());
+	if (result == 0)
+	    result = Double.compare(dataPoints[index1].getIntensity(),
+		    dataPoints[index2].getIntensity());
+	return result;
+    }
+
+    /**
+     * Sorts the indexes of the detected peaks by m/z and intensity in
+     * ascending order. The peaks are found nearly in the order of their
+     * indexes, so insertion sort takes linear time.
+     */
+    private static void sortPeaks(DataPoint dataPoints[], int peakIndexes[],
+	    int numOfPeaks) {
+	for (int i = 1; i < numOfPeaks; i++) {
+	    final int peakIndex = peakIndexes[i];
+	    int j = i - 1;
+	    while ((j >= 0)
+		    && (compare(dataPoints, peakIndexes[j], peakIndex) > 0)) {
+		peakIndexes[j + 1] = peakIndexes[j];
+		j--;
+	    }
+	    peakIndexes[j + 1] = peakIndex;
+	}
     }
 
     /**
      * This function searches for maxima from given part of a spectrum
      */
-    private int recursiveThreshold(TreeSet<DataPoint> mzPeaks,
+    private int recursiveThreshold(MassDetectionBuffers buffers,
 	    DataPoint dataPoints[], int startInd, int stopInd,
 	    double curentNoiseLevel, double minimumMZPeakWidth,
 	    double maximumMZPeakWidth, int recuLevel) {
 
 	// logger.finest(" Level of recursion " + recuLevel);
 
-	Vector<DataPoint> RawDataPointsInds = new Vector<DataPoint>();
+	final double intensityValues[] = buffers.getIntensityValues();
 	int peakStartInd, peakStopInd, peakMaxInd;
 	double peakWidthMZ;
 
 	for (int ind = startInd; ind < stopInd; ind++) {
 
-	    boolean currentIsBiggerNoise = dataPoints[ind].getIntensity() > curentNoiseLevel;
+	    boolean currentIsBiggerNoise = intensityValues[ind] > curentNoiseLevel;
 	    double localMinimum = Double.MAX_VALUE;
 
 	    // Ignore intensities below curentNoiseLevel
@@ -84,25 +132,19 @@ public class RecursiveMassDetector implements MassDetector {
 
 	    // While peak is on
 	    while ((ind < stopInd)
-		    && (dataPoints[ind].getIntensity() > curentNoiseLevel)) {
+		    && (intensityValues[ind] > curentNoiseLevel)) {
 
-		boolean isLocalMinimum = (dataPoints[ind - 1].getIntensity() > dataPoints[ind]
-			.getIntensity())
-			&& (dataPoints[ind].getIntensity() < dataPoints[ind + 1]
-				.getIntensity());
+		boolean isLocalMinimum = (intensityValues[ind - 1] > intensityValues[ind])
+			&& (intensityValues[ind] < intensityValues[ind + 1]);
 
 		// Check if this is the minimum point of the peak
-		if (isLocalMinimum
-			&& (dataPoints[ind].getIntensity() < localMinimum))
-		    localMinimum = dataPoints[ind].getIntensity();
+		if (isLocalMinimum && (intensityValues[ind] < localMinimum))
+		    localMinimum = intensityValues[ind];
 
 		// Check if this is the maximum point of the peak
-		if (dataPoints[ind].getIntensity() > dataPoints[peakMaxInd]
-			.getIntensity())
+		if (intensityValues[ind] > intensityValues[peakMaxInd])
 		    peakMaxInd = ind;
 
-		// Forming the DataPoint array that defines this peak
-		RawDataPointsInds.add(dataPoints[ind]);
 		ind++;
 	    }
 
@@ -118,20 +160,19 @@ public class RecursiveMassDetector implements MassDetector {
 
 		// Declare a new MzPeak with intensity equal to max intensity
 		// data point
-		mzPeaks.add(dataPoints[peakMaxInd]);
+		buffers.addPeakIndex(peakMaxInd);
 
 		if (recuLevel > 0) {
 		    // return stop index and beginning of the next peak
 		    return ind;
 		}
 	    }
-	    RawDataPointsInds.clear();
 
 	    // If the peak is still too big applies the same method until find a
 	    // peak of the right size
 	    if (peakWidthMZ > maximumMZPeakWidth) {
 		if (localMinimum < Double.MAX_VALUE) {
-		    ind = recursiveThreshold(mzPeaks, dataPoints, peakStartInd,
+		    ind = recursiveThreshold(buffers, dataPoints, peakStartInd,
 			    peakStopInd, localMinimum, minimumMZPeakWidth,
 			    maximumMZPeakWidth, recuLevel + 1);
 		}
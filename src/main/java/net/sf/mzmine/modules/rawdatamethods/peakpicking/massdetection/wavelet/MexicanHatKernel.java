@@ -0,0 +1,315 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mexican hat wavelet sampled at the data point offsets of one scale level,
+ * and the convolution of spectra with it. The kernels are cached by scale
+ * level and wavelet window, so the wavelet is calculated once for all scans.
+ */
+class MexicanHatKernel {
+
+    /**
+     * Parameters of the wavelet, NPOINTS is the number of wavelet values to use
+     * The WAVELET_ESL & WAVELET_ESL indicates the Effective Support boundaries
+     */
+    private static final double NPOINTS = 60000;
+    private static final int WAVELET_ESL = -5;
+    private static final int WAVELET_ESR = 5;
+
+    // Maximum number of cached kernels. The preview of the mass detector
+    // creates a kernel for every tried parameter value.
+    private static final int MAX_CACHED_KERNELS = 16;
+
+    // Minimum FFT block size of the overlap-add convolution
+    private static final int MIN_FFT_SIZE = 1024;
+
+    // Relative rounding error of the FFT convolution. Results within this
+    // error of zero are set to zero, like the zero regions of the spectrum
+    // are in the direct convolution.
+    private static final double FFT_TOLERANCE = 1E-9;
+
+    private static final Map<String, MexicanHatKernel> kernels = new LinkedHashMap<String, MexicanHatKernel>(
+	    16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(
+		Map.Entry<String, MexicanHatKernel> eldest) {
+	    return size() > MAX_CACHED_KERNELS;
+	}
+    };
+
+    private final int scaleLevel;
+
+    // Wavelet values at the data point offsets from -halfWidth to halfWidth
+    private final double values[];
+    private final int halfWidth;
+    private final double absSum;
+
+    // Fourier transform of the reversed kernel, for the FFT block size
+    private double fftKernelRe[], fftKernelIm[];
+
+    /**
+     * Returns the kernel of given scale level and wavelet window
+     */
+    static MexicanHatKernel getKernel(int scaleLevel, double waveletWindow) {
+	final String key = scaleLevel + ":" + waveletWindow;
+	synchronized (kernels) {
+	    MexicanHatKernel kernel = kernels.get(key);
+	    if (kernel == null) {
+		kernel = new MexicanHatKernel(scaleLevel, waveletWindow);
+		kernels.put(key, kernel);
+	    }
+	    return kernel;
+	}
+    }
+
+    private MexicanHatKernel(int scaleLevel, double waveletWindow) {
+
+	this.scaleLevel = scaleLevel;
+
+	double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
+	double[] W = new double[(int) NPOINTS];
+
+	double waveletIndex = WAVELET_ESL;
+	for (int j = 0; j < NPOINTS; j++) {
+	    // Pre calculate the values of the wavelet
+	    W[j] = cwtMEXHATreal(waveletIndex, waveletWindow, 0.0);
+	    waveletIndex += wstep;
+	}
+
+	/*
+	 * We only perform Translation of the wavelet in the selected scale
+	 */
+	int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
+	int a_esl = scaleLevel * WAVELET_ESL;
+	int a_esr = scaleLevel * WAVELET_ESR;
+	halfWidth = a_esr;
+	values = new double[a_esr - a_esl + 1];
+	double sum = 0;
+	for (int offset = a_esl; offset <= a_esr; offset++) {
+	    int ind = (int) (NPOINTS / 2)
+		    - (((int) d * offset / scaleLevel) * (-1));
+	    if (ind < 0)
+		ind = 0;
+	    if (ind >= NPOINTS)
+		ind = (int) NPOINTS - 1;
+	    values[offset - a_esl] = W[ind];
+	    sum += Math.abs(W[ind]);
+	}
+	absSum = sum;
+
+    }
+
+    /**
+     * This function calculates the wavelets's coefficients in Time domain
+     * 
+     * @param double x Step of the wavelet
+     * @param double a Window Width of the wavelet
+     * @param double b Offset from the center of the peak
+     */
+    private static double cwtMEXHATreal(double x, double a, double b) {
+	/* c = 2 / ( sqrt(3) * pi^(1/4) ) */
+	double c = 0.8673250705840776;
+	double TINY = 1E-200;
+	double x2;
+
+	if (a == 0.0)
+	    a = TINY;
+	x = (x - b) / a;
+	x2 = x * x;
+	return c * (1.0 - x2) * Math.exp(-x2 / 2);
+    }
+
+    /**
+     * Returns the FFT block size, which is used for spectra of at least this
+     * length
+     */
+    int getFFTSize() {
+	int size = MIN_FFT_SIZE;
+	while (size < 4 * values.length)
+	    size *= 2;
+	return size;
+    }
+
+    /**
+     * Convolves the intensities with the wavelet by summing up the products
+     * of each data point's neighborhood. Negative results are set to zero.
+     */
+    double[] convolveDirect(double intensities[]) {
+
+	final int length = intensities.length;
+	final double result[] = new double[length];
+	final double sqrtScaleLevel = Math.sqrt(scaleLevel);
+	for (int dx = 0; dx < length; dx++) {
+
+	    /* Compute wavelet boundaries */
+	    int t1 = dx - halfWidth;
+	    if (t1 < 0)
+		t1 = 0;
+	    int t2 = dx + halfWidth;
+	    if (t2 >= length)
+		t2 = (length - 1);
+
+	    /* Perform convolution */
+	    double intensity = 0.0;
+	    for (int i = t1; i <= t2; i++)
+		intensity += intensities[i] * values[i - dx + halfWidth];
+	    intensity /= sqrtScaleLevel;
+	    // Eliminate the negative part of the wavelet map
+	    if (intensity < 0)
+		intensity = 0;
+	    result[dx] = intensity;
+	}
+	return result;
+
+    }
+
+    /**
+     * Convolves the intensities with the wavelet by FFT, in blocks which are
+     * added up (overlap-add). The results equal the direct convolution within
+     * the rounding error.
+     */
+    double[] convolveFFT(double intensities[]) {
+
+	final int length = intensities.length;
+	final int kernelLength = values.length;
+	final int size = getFFTSize();
+	final int blockLength = size - kernelLength + 1;
+
+	final double kernelRe[], kernelIm[];
+	synchronized (this) {
+	    if (fftKernelRe == null) {
+		// The convolution runs the reversed kernel over the spectrum
+		fftKernelRe = new double[size];
+		fftKernelIm = new double[size];
+		for (int i = 0; i < kernelLength; i++)
+		    fftKernelRe[i] = values[kernelLength - 1 - i];
+		transform(fftKernelRe, fftKernelIm, false);
+	    }
+	    kernelRe = fftKernelRe;
+	    kernelIm = fftKernelIm;
+	}
+
+	// Full convolution, the result of data point i is at i + halfWidth
+	final double convolution[] = new double[length + kernelLength - 1];
+	final double blockRe[] = new double[size];
+	final double blockIm[] = new double[size];
+	double maxIntensity = 0;
+	for (int start = 0; start < length; start += blockLength) {
+
+	    final int end = Math.min(start + blockLength, length);
+	    Arrays.fill(blockRe, 0);
+	    Arrays.fill(blockIm, 0);
+	    for (int i = start; i < end; i++) {
+		blockRe[i - start] = intensities[i];
+		maxIntensity = Math.max(maxIntensity, Math.abs(intensities[i]));
+	    }
+
+	    transform(blockRe, blockIm, false);
+	    for (int i = 0; i < size; i++) {
+		final double re = blockRe[i] * kernelRe[i] - blockIm[i]
+			* kernelIm[i];
+		final double im = blockRe[i] * kernelIm[i] + blockIm[i]
+			* kernelRe[i];
+		blockRe[i] = re;
+		blockIm[i] = im;
+	    }
+	    transform(blockRe, blockIm, true);
+
+	    final int outputLength = Math.min(end - start + kernelLength - 1,
+		    convolution.length - start);
+	    for (int i = 0; i < outputLength; i++)
+		convolution[start + i] += blockRe[i];
+	}
+
+	final double result[] = new double[length];
+	final double sqrtScaleLevel = Math.sqrt(scaleLevel);
+	final double tolerance = FFT_TOLERANCE * maxIntensity * absSum;
+	for (int dx = 0; dx < length; dx++) {
+	    double intensity = convolution[dx + halfWidth];
+	    // Eliminate the negative part of the wavelet map and the rounding
+	    // errors around zero
+	    if (intensity < tolerance)
+		intensity = 0;
+	    result[dx] = intensity / sqrtScaleLevel;
+	}
+	return result;
+
+    }
+
+    /**
+     * In-place radix-2 fast Fourier transform. The length of the arrays must
+     * be a power of two. The inverse transform is scaled by 1 / length.
+     */
+    private static void transform(double re[], double im[], boolean inverse) {
+
+	final int n = re.length;
+
+	// Bit reversal permutation
+	for (int i = 1, j = 0; i < n; i++) {
+	    int bit = n >> 1;
+	    for (; (j & bit) != 0; bit >>= 1)
+		j ^= bit;
+	    j ^= bit;
+	    if (i < j) {
+		double tmp = re[i];
+		re[i] = re[j];
+		re[j] = tmp;
+		tmp = im[i];
+		im[i] = im[j];
+		im[j] = tmp;
+	    }
+	}
+
+	// Butterflies
+	for (int length = 2; length <= n; length <<= 1) {
+	    final double angle = (inverse ? 2 : -2) * Math.PI / length;
+	    final int half = length >> 1;
+	    for (int k = 0; k < half; k++) {
+		final double wRe = Math.cos(angle * k);
+		final double wIm = Math.sin(angle * k);
+		for (int i = k; i < n; i += length) {
+		    final int j = i + half;
+		    final double tRe = re[j] * wRe - im[j] * wIm;
+		    final double tIm = re[j] * wIm + im[j] * wRe;
+		    re[j] = re[i] - tRe;
+		    im[j] = im[i] - tIm;
+		    re[i] += tRe;
+		    im[i] += tIm;
+		}
+	    }
+	}
+
+	if (inverse) {
+	    for (int i = 0; i < n; i++) {
+		re[i] /= n;
+		im[i] /= n;
+	    }
+	}
+
+    }
+
+}
@@ -25,6 +25,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectorSetupDialog;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.ComboParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.PercentParameter;
@@ -45,8 +46,14 @@ public class WaveletMassDetectorParameters extends SimpleParameterSet {
 	    "Wavelet window size (%)",
 	    "Size in % of wavelet window to apply in m/z peak detection");
 
+    public static final ComboParameter<WaveletConvolutionMode> convolutionMode = new ComboParameter<WaveletConvolutionMode>(
+	    "Convolution",
+	    "Method of convolving the spectra with the wavelet. FFT is faster for large spectra and scale levels, the results equal the direct method within the rounding error.",
+	    WaveletConvolutionMode.values(), WaveletConvolutionMode.DIRECT);
+
     public WaveletMassDetectorParameters() {
-	super(new Parameter[] { noiseLevel, scaleLevel, waveletWindow });
+	super(new Parameter[] { noiseLevel, scaleLevel, waveletWindow,
+		convolutionMode });
     }
 
     public ExitCode showSetupDialog(Window parent, boolean valueCheckRequired) {
@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.msms;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -35,6 +37,7 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ArrayUtils;
 import net.sf.mzmine.util.ScanUtils;
 
 import com.google.common.collect.Range;
@@ -51,6 +54,10 @@ public class MsMsPeakPickingTask extends AbstractTask {
 
     private SimplePeakList newPeakList;
 
+    // MS scans sorted by retention time
+    private int msScanNumbers[];
+    private double msRTValues[];
+
     public MsMsPeakPickingTask(MZmineProject project, RawDataFile dataFile,
             ParameterSet parameters) {
         this.project = project;
@@ -85,6 +92,7 @@ public class MsMsPeakPickingTask extends AbstractTask {
         setStatus(TaskStatus.PROCESSING);
 
         final Scan scans[] = scanSelection.getMatchingScans(dataFile);
+        sortMSScans();
         totalScans = scans.length;
         for (Scan scan : scans) {
             if (isCanceled())
@@ -99,7 +107,7 @@ public class MsMsPeakPickingTask extends AbstractTask {
                     - (binSize / 2.0), scan.getPrecursorMZ() + (binSize / 2.0));
             DataPoint point;
             DataPoint maxPoint = null;
-            int[] regionScanNumbers = dataFile.getScanNumbers(1, rtWindow);
+            int[] regionScanNumbers = getMSScanNumbers(rtWindow);
             for (int regionScanNumber : regionScanNumbers) {
                 Scan regionScan = dataFile.getScan(regionScanNumber);
                 point = ScanUtils.findBasePeak(regionScan, mzWindow);
@@ -155,4 +163,50 @@ public class MsMsPeakPickingTask extends AbstractTask {
         setStatus(TaskStatus.FINISHED);
     }
 
+    /**
+     * Sorts the MS scans of the data file by retention time, for finding the
+     * MS scans of a retention time window by binary search
+     */
+    private void sortMSScans() {
+        final int scanNumbers[] = dataFile.getScanNumbers(1);
+        final double rtValues[] = new double[scanNumbers.length];
+        Integer order[] = new Integer[scanNumbers.length];
+        for (int i = 0; i < scanNumbers.length; i++) {
+            rtValues[i] = dataFile.getScan(scanNumbers[i]).getRetentionTime();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(rtValues[i1], rtValues[i2]);
+            }
+        });
+        msScanNumbers = new int[scanNumbers.length];
+        msRTValues = new double[scanNumbers.length];
+        for (int i = 0; i < scanNumbers.length; i++) {
+            msScanNumbers[i] = scanNumbers[order[i]];
+            msRTValues[i] = rtValues[order[i]];
+        }
+    }
+
+    /**
+     * Returns the numbers of the MS scans within the retention time window, in
+     * ascending order. Same as dataFile.getScanNumbers(1, rtWindow).
+     */
+    private int[] getMSScanNumbers(Range<Double> rtWindow) {
+
+        // Find the first scan within the window
+        final int first = ArrayUtils.lowerBound(msRTValues,
+                rtWindow.lowerEndpoint());
+
+        int end = first;
+        while ((end < msRTValues.length)
+                && (msRTValues[end] <= rtWindow.upperEndpoint()))
+            end++;
+
+        final int scanNumbers[] = Arrays.copyOfRange(msScanNumbers, first, end);
+        Arrays.sort(scanNumbers);
+        return scanNumbers;
+    }
+
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.project.impl.StorableScan;
+
+/**
+ * Raw data file which does not copy the data points of its scans to the
+ * temporary file. Only the scan index of the original (indexed mzML or mzXML)
+ * file is kept, and the data points are decoded from the original file when
+ * they are needed. Recently decoded scans are kept in a cache limited by the
+ * total number of data points.
+ *
+ * Data points stored later (e.g. mass lists) are written to the temporary file
+ * as usual. When the project is saved, all data points are copied to the
+ * project file, so saved projects do not depend on the original file.
+ */
+public class InPlaceRawDataFile extends RawDataFileImpl {
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+    // Maximum number of data points kept in the decoded scan cache
+    private static final int MAX_CACHED_DATA_POINTS = 2000000;
+
+    private final SpectrumSource source;
+
+    // Scan number in the original file of each storage ID read in place
+    private final Map<Integer, Integer> sourceScanNumbers = new Hashtable<Integer, Integer>();
+    private int lastSourceStorageID = 0;
+
+    // Decoded scans in the order of access, by storage ID
+    private final LinkedHashMap<Integer, DataPoint[]> decodedScans = new LinkedHashMap<Integer, DataPoint[]>(
+            16, 0.75f, true);
+    private int cachedDataPoints = 0;
+
+    public InPlaceRawDataFile(String dataFileName, SpectrumSource source)
+            throws IOException {
+        super(dataFileName);
+        this.source = source;
+    }
+
+    public SpectrumSource getSpectrumSource() {
+        return source;
+    }
+
+    /**
+     * Adds a reference to the scan data points in the original file, if
+     * available. Other scans are stored in the temporary file. The data
+     * points of an InPlaceScan were not decoded, so they must be available.
+     */
+    @Override
+    public synchronized void addScan(Scan newScan) throws IOException {
+
+        if (newScan instanceof StorableScan) {
+            super.addScan(newScan);
+            return;
+        }
+
+        if (!source.containsScan(newScan.getScanNumber())) {
+            if (newScan instanceof InPlaceScan)
+                throw new IOException("Data points of scan #"
+                        + newScan.getScanNumber()
+                        + " cannot be read from the original file of "
+                        + getName());
+            super.addScan(newScan);
+            return;
+        }
+
+        final int storageID = getNextStorageID();
+        sourceScanNumbers.put(storageID, newScan.getScanNumber());
+        lastSourceStorageID = storageID;
+
+        StorableScan storedScan;
+        if (newScan instanceof InPlaceScan) {
+            // The m/z range, base peak, TIC and spectrum type are left unset,
+            // so StorableScan calculates them from the data points when they
+            // are first requested
+            storedScan = new StorableScan(this, storageID,
+                    newScan.getNumberOfDataPoints(), newScan.getScanNumber(),
+                    newScan.getMSLevel(), newScan.getRetentionTime(),
+                    newScan.getPrecursorMZ(), newScan.getPrecursorCharge(),
+                    newScan.getFragmentScanNumbers(), null,
+                    newScan.getPolarity(), newScan.getScanDefinition(), null);
+        } else {
+            storedScan = new StorableScan(newScan, this,
+                    newScan.getNumberOfDataPoints(), storageID);
+        }
+        super.addScan(storedScan);
+
+    }
+
+    @Override
+    protected synchronized int getNextStorageID() {
+        return Math.max(super.getNextStorageID(), lastSourceStorageID + 1);
+    }
+
+    @Override
+    public synchronized SortedSet<Integer> getStorageIDs() {
+        SortedSet<Integer> storageIDs = super.getStorageIDs();
+        storageIDs.addAll(sourceScanNumbers.keySet());
+        return storageIDs;
+    }
+
+    /**
+     * Data points of scans read in place are decoded from the original file,
+     * without holding the lock of this raw data file, so multiple scans can be
+     * decoded in parallel
+     */
+    @Override
+    public DataPoint[] readDataPoints(int ID) throws IOException {
+
+        final Integer scanNumber = sourceScanNumbers.get(ID);
+        if (scanNumber == null)
+            return super.readDataPoints(ID);
+
+        synchronized (decodedScans) {
+            DataPoint cachedDataPoints[] = decodedScans.get(ID);
+            if (cachedDataPoints != null)
+                return cachedDataPoints.clone();
+        }
+
+        DataPoint dataPoints[] = source.readDataPoints(scanNumber);
+
+        synchronized (decodedScans) {
+            if ((dataPoints.length <= MAX_CACHED_DATA_POINTS)
+                    && (!decodedScans.containsKey(ID))) {
+                decodedScans.put(ID, dataPoints);
+                cachedDataPoints += dataPoints.length;
+                Iterator<DataPoint[]> iterator = decodedScans.values()
+                        .iterator();
+                while (cachedDataPoints > MAX_CACHED_DATA_POINTS) {
+                    cachedDataPoints -= iterator.next().length;
+                    iterator.remove();
+                }
+            }
+        }
+
+        return dataPoints.clone();
+
+    }
+
+    @Override
+    public synchronized void removeStoredDataPoints(int ID) throws IOException {
+        if (sourceScanNumbers.remove(ID) == null) {
+            super.removeStoredDataPoints(ID);
+            return;
+        }
+        synchronized (decodedScans) {
+            DataPoint removed[] = decodedScans.remove(ID);
+            if (removed != null)
+                cachedDataPoints -= removed.length;
+        }
+    }
+
+    /**
+     * The m/z range, base peak and TIC of scans read in place are calculated
+     * when first requested, so we do not decode all scans here
+     */
+    @Override
+    protected void updateScanValues(StorableScan scan) {
+        if (!sourceScanNumbers.containsKey(scan.getStorageID()))
+            super.updateScanValues(scan);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            logger.warning("Could not close the original file of " + getName()
+                    + ": " + e);
+        }
+        synchronized (decodedScans) {
+            decodedScans.clear();
+            cachedDataPoints = 0;
+        }
+        super.close();
+    }
+
+}
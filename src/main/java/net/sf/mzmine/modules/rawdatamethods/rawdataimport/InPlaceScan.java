@@ -0,0 +1,54 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+
+/**
+ * Scan whose data points were not decoded during import, only their number is
+ * known. When the scan is added to an InPlaceRawDataFile, its data points are
+ * read from the original file when they are needed, and its m/z range, base
+ * peak, TIC and spectrum type are calculated from the data points when they
+ * are first requested.
+ */
+public class InPlaceScan extends SimpleScan {
+
+    private final int numberOfDataPoints;
+
+    public InPlaceScan(int scanNumber, int msLevel, double retentionTime,
+            double precursorMZ, int precursorCharge, PolarityType polarity,
+            String scanDefinition, int numberOfDataPoints) {
+
+        super(null, scanNumber, msLevel, retentionTime, precursorMZ,
+                precursorCharge, null, new DataPoint[0], null, polarity,
+                scanDefinition, null);
+
+        this.numberOfDataPoints = numberOfDataPoints;
+
+    }
+
+    @Override
+    public int getNumberOfDataPoints() {
+        return numberOfDataPoints;
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * RawDataFileWriter that decouples parsing of raw data files from storing the
+ * scans. The read task (file I/O and decoding) only puts the decoded scans in
+ * a queue, and the scans are written to the underlying writer (compression and
+ * temporary file I/O) by a shared pool of writer threads. Scans of one file
+ * are always written in the order in which they were added.
+ *
+ * All instances share a global memory budget for the queued scans. When the
+ * budget is exhausted, addScan() blocks until the writer threads catch up, so
+ * importing many files in parallel does not run out of memory.
+ */
+public class PipelinedRawDataFileWriter implements RawDataFileWriter {
+
+    private static final Logger logger = Logger
+            .getLogger(PipelinedRawDataFileWriter.class.getName());
+
+    // Approximate heap size of one DataPoint (object + array reference) and
+    // of the rest of a decoded scan
+    private static final long DATA_POINT_SIZE = 40;
+    private static final long SCAN_OVERHEAD_SIZE = 1000;
+
+    // Fraction of the maximum heap size that can be used by queued scans
+    private static final double MEMORY_BUDGET_FRACTION = 0.25;
+
+    private static final long memoryBudget = (long) (Runtime.getRuntime()
+            .maxMemory() * MEMORY_BUDGET_FRACTION);
+    private static long usedMemory = 0;
+    private static final Object memoryLock = new Object();
+
+    private static ExecutorService writerThreads;
+
+    private final RawDataFileWriter writer;
+    private final LinkedList<Scan> queue = new LinkedList<Scan>();
+    private boolean writing = false;
+    private IOException writeError;
+
+    // Throughput statistics
+    private long startTime, lastWriteTime;
+    private volatile int writtenScans;
+    private volatile long writtenDataPoints;
+
+    public PipelinedRawDataFileWriter(RawDataFileWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Adds the scan to the write queue. Blocks while the queued scans of all
+     * files exceed the memory budget.
+     */
+    @Override
+    public void addScan(Scan newScan) throws IOException {
+
+        final long scanSize = estimateSize(newScan);
+        acquireMemory(scanSize);
+
+        synchronized (this) {
+            if (writeError != null) {
+                releaseMemory(scanSize);
+                throw writeError;
+            }
+            if (startTime == 0)
+                startTime = System.currentTimeMillis();
+            queue.add(newScan);
+            if (!writing) {
+                writing = true;
+                getWriterThreads().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeQueuedScans();
+                    }
+                });
+            }
+        }
+
+    }
+
+    /**
+     * Waits until all queued scans are written and finishes the underlying
+     * writer
+     */
+    @Override
+    public RawDataFile finishWriting() throws IOException {
+
+        synchronized (this) {
+            while (writing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(
+                            "Interrupted while waiting for scans to be written");
+                }
+            }
+            if (writeError != null)
+                throw writeError;
+        }
+
+        RawDataFile rawDataFile = writer.finishWriting();
+
+        logger.info("Stored " + writtenScans + " scans (" + writtenDataPoints
+                + " data points) of " + rawDataFile.getName() + ", "
+                + getThroughputDescription());
+
+        return rawDataFile;
+
+    }
+
+    /**
+     * Returns the underlying writer
+     */
+    public RawDataFileWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Returns the number of scans that were already written
+     */
+    public int getWrittenScans() {
+        return writtenScans;
+    }
+
+    /**
+     * Returns the average number of written scans per second
+     */
+    public synchronized double getScansPerSecond() {
+        if (startTime == 0)
+            return 0;
+        final long endTime = writing ? System.currentTimeMillis()
+                : lastWriteTime;
+        final long elapsed = Math.max(1, endTime - startTime);
+        return writtenScans * 1000d / elapsed;
+    }
+
+    /**
+     * Returns a short human-readable description of the write throughput
+     */
+    public String getThroughputDescription() {
+        return String.format("%d scans, %.1f scans/s", writtenScans,
+                getScansPerSecond());
+    }
+
+    /**
+     * Returns the throughput description of the given writer if it is
+     * pipelined, or an empty string otherwise. Used by the read tasks in
+     * their task descriptions.
+     */
+    public static String getThroughputDescription(RawDataFileWriter writer) {
+        if (!(writer instanceof PipelinedRawDataFileWriter))
+            return "";
+        PipelinedRawDataFileWriter pipelinedWriter = (PipelinedRawDataFileWriter) writer;
+        if (pipelinedWriter.getWrittenScans() == 0)
+            return "";
+        return " (" + pipelinedWriter.getThroughputDescription() + ")";
+    }
+
+    private void writeQueuedScans() {
+
+        while (true) {
+
+            Scan scan;
+            synchronized (this) {
+                scan = queue.poll();
+                if (scan == null) {
+                    writing = false;
+                    lastWriteTime = System.currentTimeMillis();
+                    notifyAll();
+                    return;
+                }
+            }
+
+            final long scanSize = estimateSize(scan);
+            try {
+                writer.addScan(scan);
+                writtenScans++;
+                writtenDataPoints += scan.getNumberOfDataPoints();
+            } catch (IOException e) {
+                synchronized (this) {
+                    writeError = e;
+                    for (Scan queuedScan : queue)
+                        releaseMemory(estimateSize(queuedScan));
+                    queue.clear();
+                    writing = false;
+                    notifyAll();
+                }
+                return;
+            } finally {
+                releaseMemory(scanSize);
+            }
+
+        }
+
+    }
+
+    private static long estimateSize(Scan scan) {
+        return SCAN_OVERHEAD_SIZE
+                + DATA_POINT_SIZE * scan.getNumberOfDataPoints();
+    }
+
+    private static void acquireMemory(long size) throws IOException {
+        synchronized (memoryLock) {
+            // A scan larger than the whole budget is accepted when the queues
+            // are empty, otherwise we would wait forever
+            while ((usedMemory > 0) && (usedMemory + size > memoryBudget)) {
+                try {
+                    memoryLock.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(
+                            "Interrupted while waiting for scans to be written");
+                }
+            }
+            usedMemory += size;
+        }
+    }
+
+    private static void releaseMemory(long size) {
+        synchronized (memoryLock) {
+            usedMemory -= size;
+            memoryLock.notifyAll();
+        }
+    }
+
+    private static synchronized ExecutorService getWriterThreads() {
+        if (writerThreads == null) {
+            final int numOfThreads = Math.max(1,
+                    Runtime.getRuntime().availableProcessors() / 2);
+            writerThreads = Executors.newFixedThreadPool(numOfThreads,
+                    new ThreadFactory() {
+                        private int threadCount = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            threadCount++;
+                            Thread thread = new Thread(r,
+                                    "Raw data import writer thread #"
+                                            + threadCount);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return writerThreads;
+    }
+
+}
@@ -41,6 +41,9 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.AgilentCsvReadTask;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzMLReadTask;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzMLReader;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzXMLReader;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzDataReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzXMLReadTask;
@@ -78,6 +81,9 @@ public class RawDataImportModule implements MZmineProcessingModule {
 
         File fileNames[] = parameters
                 .getParameter(RawDataImportParameters.fileNames).getValue();
+        final boolean readInPlace = parameters
+                .getParameter(RawDataImportParameters.readInPlace)
+                .getValue() == Boolean.TRUE;
 
         // Find common prefix in raw file names if in GUI mode
         String commonPrefix = null;
@@ -150,18 +156,6 @@ public class RawDataImportModule implements MZmineProcessingModule {
                 newName = fileNames[i].getName();
             }
 
-            RawDataFileWriter newMZmineFile;
-            try {
-                newMZmineFile = MZmineCore.createNewFile(newName);
-            } catch (IOException e) {
-                MZmineCore.getDesktop().displayErrorMessage(
-                        MZmineCore.getDesktop().getMainWindow(),
-                        "Could not create a new temporary file " + e);
-                logger.log(Level.SEVERE,
-                        "Could not create a new temporary file ", e);
-                return ExitCode.ERROR;
-            }
-
             RawDataFileType fileType = RawDataFileTypeDetector
                     .detectDataFileType(fileNames[i]);
             logger.finest(
@@ -175,6 +169,22 @@ public class RawDataImportModule implements MZmineProcessingModule {
                 continue;
             }
 
+            RawDataFileWriter newMZmineFile = null;
+            try {
+                if (readInPlace)
+                    newMZmineFile = createInPlaceFile(fileType, fileNames[i],
+                            newName);
+                if (newMZmineFile == null)
+                    newMZmineFile = MZmineCore.createNewFile(newName);
+            } catch (IOException e) {
+                MZmineCore.getDesktop().displayErrorMessage(
+                        MZmineCore.getDesktop().getMainWindow(),
+                        "Could not create a new temporary file " + e);
+                logger.log(Level.SEVERE,
+                        "Could not create a new temporary file ", e);
+                return ExitCode.ERROR;
+            }
+
             Task newTask = createOpeningTask(fileType, project, fileNames[i],
                     newMZmineFile);
 
@@ -201,16 +211,72 @@ public class RawDataImportModule implements MZmineProcessingModule {
         return RawDataImportParameters.class;
     }
 
+    /**
+     * Creates a raw data file which reads the data points from the original
+     * file, or returns null if the file type does not support it or the file
+     * is not indexed
+     */
+    private RawDataFileWriter createInPlaceFile(RawDataFileType fileType,
+            File fileName, String newName) throws IOException {
+
+        SpectrumSource source = null;
+        switch (fileType) {
+        case MZML:
+            if (IndexedMzMLReader.isIndexed(fileName))
+                source = new IndexedMzMLReader(fileName);
+            break;
+        case MZXML:
+            if (IndexedMzXMLReader.isIndexed(fileName))
+                source = new IndexedMzXMLReader(fileName);
+            break;
+        default:
+            break;
+        }
+
+        if (source == null) {
+            logger.info("File " + fileName
+                    + " cannot be read in place, its data points will be copied to the temporary file");
+            return null;
+        }
+
+        return new InPlaceRawDataFile(newName, source);
+
+    }
+
     public static Task createOpeningTask(RawDataFileType fileType,
             MZmineProject project, File fileName,
             RawDataFileWriter newMZmineFile) {
         Task newTask = null;
+
+        // The reader of a file read in place is also used to read the scans
+        SpectrumSource source = null;
+        if (newMZmineFile instanceof InPlaceRawDataFile)
+            source = ((InPlaceRawDataFile) newMZmineFile).getSpectrumSource();
+
+        // Decoded scans are written to the temporary file by separate writer
+        // threads, under a global memory budget. Files read in place keep
+        // only the metadata of the scans, so they do not need the writer
+        // threads.
+        if ((newMZmineFile != null)
+                && (!(newMZmineFile instanceof PipelinedRawDataFileWriter))
+                && (source == null))
+            newMZmineFile = new PipelinedRawDataFileWriter(newMZmineFile);
+
         switch (fileType) {
         case MZDATA:
             newTask = new MzDataReadTask(project, fileName, newMZmineFile);
             break;
         case MZML:
-            newTask = new MzMLReadTask(project, fileName, newMZmineFile);
+            // Indexed mzML files can be read by the faster random-access
+            // reader, other files are parsed by jmzml
+            if (source instanceof IndexedMzMLReader)
+                newTask = new IndexedMzMLReadTask(project,
+                        (IndexedMzMLReader) source, newMZmineFile);
+            else if (IndexedMzMLReader.isIndexed(fileName))
+                newTask = new IndexedMzMLReadTask(project, fileName,
+                        newMZmineFile);
+            else
+                newTask = new MzMLReadTask(project, fileName, newMZmineFile);
             break;
         case MZXML:
             newTask = new MzXMLReadTask(project, fileName, newMZmineFile);
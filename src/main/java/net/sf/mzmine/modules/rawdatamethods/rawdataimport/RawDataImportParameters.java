@@ -22,12 +22,14 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
 import java.awt.Window;
 import java.io.File;
 
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.util.ExitCode;
 
 public class RawDataImportParameters extends SimpleParameterSet {
@@ -48,8 +50,13 @@ public class RawDataImportParameters extends SimpleParameterSet {
 
     public static final FileNamesParameter fileNames = new FileNamesParameter();
 
+    public static final BooleanParameter readInPlace = new BooleanParameter(
+            "Read data points from original files",
+            "If checked, the data points of indexed mzML and mzXML files are not copied to the temporary file, but read from the original files when needed. The original files must remain available until the project is saved.",
+            false);
+
     public RawDataImportParameters() {
-        super(new Parameter[] { fileNames });
+        super(new Parameter[] { fileNames, readInPlace });
     }
 
     @Override
@@ -74,6 +81,12 @@ public class RawDataImportParameters extends SimpleParameterSet {
 
         chooser.setMultiSelectionEnabled(true);
 
+        JCheckBox readInPlaceCheckBox = new JCheckBox(readInPlace.getName());
+        readInPlaceCheckBox.setToolTipText(readInPlace.getDescription());
+        readInPlaceCheckBox.setSelected(
+                getParameter(readInPlace).getValue() == Boolean.TRUE);
+        chooser.setAccessory(readInPlaceCheckBox);
+
         int returnVal = chooser.showOpenDialog(parent);
 
         if (returnVal != JFileChooser.APPROVE_OPTION)
@@ -82,6 +95,7 @@ public class RawDataImportParameters extends SimpleParameterSet {
         File selectedFiles[] = chooser.getSelectedFiles();
 
         getParameter(fileNames).setValue(selectedFiles);
+        getParameter(readInPlace).setValue(readInPlaceCheckBox.isSelected());
 
         return ExitCode.OK;
 
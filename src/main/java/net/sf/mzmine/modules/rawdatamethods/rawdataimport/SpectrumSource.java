@@ -0,0 +1,48 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import java.io.IOException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Random access to the data points of the scans in an original raw data file,
+ * used by InPlaceRawDataFile. Implementations must be thread-safe.
+ */
+public interface SpectrumSource {
+
+    /**
+     * Returns true if the data points of the scan with given number can be
+     * read from this source
+     */
+    public boolean containsScan(int scanNumber);
+
+    /**
+     * Reads and decodes the data points of the scan with given number
+     */
+    public DataPoint[] readDataPoints(int scanNumber) throws IOException;
+
+    /**
+     * Closes the underlying file
+     */
+    public void close() throws IOException;
+
+}
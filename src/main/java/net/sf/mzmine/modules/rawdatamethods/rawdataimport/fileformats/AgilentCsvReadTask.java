@@ -19,16 +19,27 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.util.Scanner;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.PipelinedRawDataFileWriter;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
@@ -38,10 +49,14 @@ import com.google.common.collect.Range;
 
 public class AgilentCsvReadTask extends AbstractTask {
 
+    // Number of spectra tokenized by one parser thread at once
+    private static final int BATCH_SIZE = 64;
+
     protected String dataSource;
     private File file;
     private MZmineProject project;
-    private RawDataFileImpl newMZmineFile;
+    private RawDataFileWriter newMZmineFile;
+    private RawDataFileImpl newMZmineFileImpl;
     private RawDataFile finalRawDataFile;
 
     private int totalScans, parsedScans;
@@ -56,67 +71,97 @@ public class AgilentCsvReadTask extends AbstractTask {
 	    RawDataFileWriter newMZmineFile) {
 	this.project = project;
 	this.file = fileToOpen;
-	this.newMZmineFile = (RawDataFileImpl) newMZmineFile;
+	this.newMZmineFile = newMZmineFile;
+
+	// The m/z and RT ranges are set directly on the raw data file
+	RawDataFileWriter writer = newMZmineFile;
+	if (writer instanceof PipelinedRawDataFileWriter)
+	    writer = ((PipelinedRawDataFileWriter) writer).getWriter();
+	this.newMZmineFileImpl = (RawDataFileImpl) writer;
     }
 
     /**
-     * Reads the file.
+     * Reads the file. The lines of the spectra are read on this thread, and
+     * tokenized and converted to scans in parallel, in batches of BATCH_SIZE
+     * lines.
      */
     public void run() {
 
 	setStatus(TaskStatus.PROCESSING);
-	Scanner scanner;
+	BufferedReader reader = null;
+	ExecutorService parserThreads = null;
 
 	try {
 
-	    scanner = new Scanner(this.file);
+	    reader = new BufferedReader(new FileReader(this.file));
 
-	    this.dataSource = this.getMetaData(scanner, "file name");
+	    this.dataSource = this.getMetaData(reader, "file name");
 
-	    String[] range = this.getMetaData(scanner, "mass range").split(",");
-	    newMZmineFile.setMZRange(
+	    String[] range = this.getMetaData(reader, "mass range").split(",");
+	    newMZmineFileImpl.setMZRange(
 		    1,
 		    Range.closed(Double.parseDouble(range[0]),
 			    Double.parseDouble(range[1])));
-	    range = this.getMetaData(scanner, "time range").split(",");
-	    newMZmineFile.setRTRange(
+	    range = this.getMetaData(reader, "time range").split(",");
+	    newMZmineFileImpl.setRTRange(
 		    1,
 		    Range.closed(Double.parseDouble(range[0]),
 			    Double.parseDouble(range[1])));
-	    totalScans = Integer.parseInt(this.getMetaData(scanner,
+	    totalScans = Integer.parseInt(this.getMetaData(reader,
 		    "number of spectra"));
 
 	    // advance to the spectrum data...
-	    while (!scanner.nextLine().trim().equals("[spectra]")) {
+	    String line;
+	    while (!(line = reader.readLine()).trim().equals("[spectra]")) {
 	    }
 
-	    scanner.useDelimiter(",");
+	    final int numOfThreads = Runtime.getRuntime().availableProcessors();
+	    parserThreads = Executors.newFixedThreadPool(numOfThreads);
+	    LinkedList<Future<List<Scan>>> parsedBatches = new LinkedList<Future<List<Scan>>>();
 
-	    for (parsedScans = 0; parsedScans < totalScans; parsedScans++) {
+	    int readScans = 0;
+	    while (readScans < totalScans) {
 
 		if (isCanceled()) {
 		    return;
 		} // if the task is canceled.
 
-		double retentionTime = scanner.nextDouble();
-		int msLevel = scanner.nextInt(); // not sure about this value
-		scanner.next();
-		scanner.next();
-		int charge = (scanner.next().equals("+") ? 1 : -1);
-		scanner.next();
-
-		int spectrumSize = scanner.nextInt();
-		DataPoint[] dataPoints = new DataPoint[spectrumSize];
-		for (int j = 0; j < spectrumSize; j++) {
-		    dataPoints[j] = new SimpleDataPoint(scanner.nextDouble(),
-			    scanner.nextDouble());
+		final int firstScanNumber = readScans + 1;
+		final List<String> lines = new ArrayList<String>(BATCH_SIZE);
+		while ((lines.size() < BATCH_SIZE) && (readScans < totalScans)) {
+		    line = reader.readLine();
+		    if (line == null)
+			throw new IOException("Unexpected end of file " + file
+				+ " after " + readScans + " spectra");
+		    lines.add(line);
+		    readScans++;
 		}
-		newMZmineFile.addScan(new SimpleScan(null, parsedScans + 1,
-			msLevel, retentionTime, 0.0, charge, null,
-			dataPoints, ScanUtils.detectSpectrumType(dataPoints),
-			PolarityType.UNKNOWN, "", null));
 
-		scanner.nextLine();
+		parsedBatches.add(parserThreads
+			.submit(new Callable<List<Scan>>() {
+			    @Override
+			    public List<Scan> call() throws Exception {
+				List<Scan> scans = new ArrayList<Scan>(lines
+					.size());
+				for (int i = 0; i < lines.size(); i++) {
+				    scans.add(parseSpectrum(lines.get(i),
+					    firstScanNumber + i));
+				}
+				return scans;
+			    }
+			}));
+
+		// Limit the number of batches kept in memory
+		if (parsedBatches.size() > 2 * numOfThreads)
+		    addScans(parsedBatches.removeFirst().get());
+
+	    }
+
+	    while (!parsedBatches.isEmpty()) {
+		if (isCanceled()) {
+		    return;
+		}
+		addScans(parsedBatches.removeFirst().get());
 	    }
 
 	    finalRawDataFile = newMZmineFile.finishWriting();
@@ -126,25 +171,77 @@ public class AgilentCsvReadTask extends AbstractTask {
 	    setErrorMessage(e.getMessage());
 	    this.setStatus(TaskStatus.ERROR);
 	    return;
+	} finally {
+	    if (parserThreads != null)
+		parserThreads.shutdownNow();
+	    if (reader != null) {
+		try {
+		    reader.close();
+		} catch (IOException e) {
+		    // Ignore, the file was only read
+		}
+	    }
 	}
 
 	this.setStatus(TaskStatus.FINISHED);
 
     }
 
+    private void addScans(List<Scan> scans) throws IOException {
+	for (Scan scan : scans) {
+	    newMZmineFile.addScan(scan);
+	    parsedScans++;
+	}
+    }
+
+    /**
+     * Parses one line of the [spectra] section: retention time, MS level,
+     * two unused fields, polarity, one unused field, number of data points
+     * and the m/z and intensity values.
+     */
+    private Scan parseSpectrum(String line, int scanNumber) throws IOException {
+
+	String tokens[] = line.split(",");
+	try {
+
+	    double retentionTime = Double.parseDouble(tokens[0].trim());
+	    // not sure about this value
+	    int msLevel = Integer.parseInt(tokens[1].trim());
+	    int charge = (tokens[4].trim().equals("+") ? 1 : -1);
+
+	    int spectrumSize = Integer.parseInt(tokens[6].trim());
+	    DataPoint[] dataPoints = new DataPoint[spectrumSize];
+	    for (int j = 0; j < spectrumSize; j++) {
+		dataPoints[j] = new SimpleDataPoint(
+			Double.parseDouble(tokens[7 + 2 * j].trim()),
+			Double.parseDouble(tokens[8 + 2 * j].trim()));
+	    }
+
+	    return new SimpleScan(null, scanNumber, msLevel, retentionTime,
+		    0.0, charge, null, dataPoints,
+		    ScanUtils.detectSpectrumType(dataPoints),
+		    PolarityType.UNKNOWN, "", null);
+
+	} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+	    throw new IOException("Could not parse spectrum #" + scanNumber
+		    + " in " + file + ": " + e);
+	}
+
+    }
+
     /**
      * Reads meta information on the file. This must be called with the keys in
-     * order, as it does not reset the scanner position after reading.
-     * 
-     * @param scanner
-     *            The Scanner which is reading this AgilentCSV file.
+     * order, as it does not reset the reader position after reading.
+     *
+     * @param reader
+     *            The BufferedReader which is reading this AgilentCSV file.
      * @param key
      *            The key for the metadata to return the value of.
      */
-    private String getMetaData(Scanner scanner, String key) {
-	String line = "";
-	while (!line.trim().startsWith(key) && scanner.hasNextLine()) {
-	    line = scanner.nextLine();
+    private String getMetaData(BufferedReader reader, String key)
+	    throws IOException {
+	String line;
+	while ((line = reader.readLine()) != null) {
 	    if (line.trim().startsWith(key))
 		return line.split(",", 2)[1].trim();
 	}
@@ -161,7 +258,9 @@ public class AgilentCsvReadTask extends AbstractTask {
 
     @Override
     public String getTaskDescription() {
-	return "Opening file " + file;
+	return "Opening file " + file
+		+ PipelinedRawDataFileWriter
+			.getThroughputDescription(newMZmineFile);
     }
 
 }
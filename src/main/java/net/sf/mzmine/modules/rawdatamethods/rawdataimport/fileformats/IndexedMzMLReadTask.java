@@ -0,0 +1,293 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.InPlaceScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.PipelinedRawDataFileWriter;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzMLReader.SpectrumData;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.ScanUtils;
+
+/**
+ * This class reads indexed mzML files using the IndexedMzMLReader. Spectra
+ * are located using the index at the end of the file and decoded in parallel,
+ * in batches, so the file is read only once. Files without an index, or
+ * with an index that cannot be read, are read by MzMLReadTask.
+ */
+public class IndexedMzMLReadTask extends AbstractTask {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    // Number of spectra decoded in parallel before they are added to the file
+    private static final int BATCH_SIZE = 64;
+
+    private File file;
+    private MZmineProject project;
+    private RawDataFileWriter newMZmineFile;
+    private RawDataFile finalRawDataFile;
+    private int totalScans = 0, parsedScans;
+
+    // Reader of the in-place raw data file, which closes it, or null if this
+    // task opens its own reader. Only the metadata of the spectra are read
+    // when the file is read in place.
+    private final IndexedMzMLReader inPlaceReader;
+
+    // Task reading the file if its index cannot be read
+    private volatile MzMLReadTask fallbackTask;
+
+    /*
+     * This stack stores at most 20 consecutive scans. This window serves to
+     * find possible fragments (current scan) that belongs to any of the stored
+     * scans in the stack. See MzMLReadTask.
+     */
+    private static final int PARENT_STACK_SIZE = 20;
+    private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
+
+    public IndexedMzMLReadTask(MZmineProject project, File fileToOpen,
+            RawDataFileWriter newMZmineFile) {
+        this.project = project;
+        this.file = fileToOpen;
+        this.newMZmineFile = newMZmineFile;
+        this.inPlaceReader = null;
+    }
+
+    /**
+     * Creates a task importing the file into an InPlaceRawDataFile, which reads
+     * the data points using given reader. This task does not close the reader.
+     */
+    public IndexedMzMLReadTask(MZmineProject project, IndexedMzMLReader reader,
+            RawDataFileWriter newMZmineFile) {
+        this.project = project;
+        this.file = reader.getFile();
+        this.newMZmineFile = newMZmineFile;
+        this.inPlaceReader = reader;
+    }
+
+    /**
+     * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
+     */
+    public double getFinishedPercentage() {
+        if (fallbackTask != null)
+            return fallbackTask.getFinishedPercentage();
+        return totalScans == 0 ? 0 : (double) parsedScans / totalScans;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+
+        setStatus(TaskStatus.PROCESSING);
+        logger.info("Started parsing file " + file);
+
+        ExecutorService decoderThreads = null;
+        IndexedMzMLReader reader = null;
+
+        try {
+
+            try {
+                reader = (inPlaceReader != null) ? inPlaceReader
+                        : new IndexedMzMLReader(file);
+                totalScans = reader.getNumberOfSpectra();
+            } catch (IOException e) {
+                logger.warning("Could not read the index of " + file
+                        + ", the whole file will be parsed: " + e);
+                readWithoutIndex();
+                return;
+            }
+
+            final int numOfThreads = Math.max(1, Math.min(Runtime.getRuntime()
+                    .availableProcessors(), totalScans));
+            decoderThreads = Executors.newFixedThreadPool(numOfThreads);
+
+            for (int batchStart = 0; batchStart < totalScans; batchStart += BATCH_SIZE) {
+
+                if (isCanceled())
+                    return;
+
+                final int batchEnd = Math.min(batchStart + BATCH_SIZE,
+                        totalScans);
+
+                List<Future<SpectrumData>> batch = new ArrayList<Future<SpectrumData>>();
+                for (int i = batchStart; i < batchEnd; i++) {
+                    final IndexedMzMLReader spectrumReader = reader;
+                    final int spectrumIndex = i;
+                    batch.add(decoderThreads
+                            .submit(new Callable<SpectrumData>() {
+                                @Override
+                                public SpectrumData call() throws Exception {
+                                    if (inPlaceReader != null)
+                                        return spectrumReader
+                                                .readSpectrumMetadata(spectrumIndex);
+                                    return spectrumReader
+                                            .readSpectrum(spectrumIndex);
+                                }
+                            }));
+                }
+
+                for (int i = batchStart; i < batchEnd; i++) {
+
+                    if (isCanceled())
+                        return;
+
+                    SpectrumData spectrum = batch.get(i - batchStart).get();
+
+                    // Ignore scans that are not MS, e.g. UV
+                    if (!spectrum.isMsSpectrum) {
+                        parsedScans++;
+                        continue;
+                    }
+
+                    // Scan numbers are assigned in the order of the file, so
+                    // they do not depend on the order of decoding
+                    final int scanNumber = reader.assignScanNumber(i, spectrum);
+                    final int parentScan = reader.getParentScanNumber(spectrum);
+                    addSpectrum(spectrum, scanNumber, parentScan);
+                    parsedScans++;
+                }
+
+            }
+
+            while (!parentStack.isEmpty()) {
+                SimpleScan scan = parentStack.removeLast();
+                newMZmineFile.addScan(scan);
+            }
+
+            finalRawDataFile = newMZmineFile.finishWriting();
+            project.addFile(finalRawDataFile);
+
+        } catch (Throwable e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage("Error parsing mzML: "
+                    + ExceptionUtils.exceptionToString(e));
+            return;
+        } finally {
+            if (decoderThreads != null)
+                decoderThreads.shutdownNow();
+            if ((reader != null) && (reader != inPlaceReader)) {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    logger.warning("Could not close file " + file + ": " + e);
+                }
+            }
+        }
+
+        if (parsedScans == 0) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage("No scans found");
+            return;
+        }
+
+        logger.info("Finished parsing " + file + ", parsed " + parsedScans
+                + " scans");
+        setStatus(TaskStatus.FINISHED);
+
+    }
+
+    /**
+     * Reads the whole file by MzMLReadTask, taking over its status
+     */
+    private void readWithoutIndex() {
+        fallbackTask = new MzMLReadTask(project, file, newMZmineFile);
+        if (isCanceled())
+            return;
+        fallbackTask.run();
+        setErrorMessage(fallbackTask.getErrorMessage());
+        setStatus(fallbackTask.getStatus());
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        MzMLReadTask task = fallbackTask;
+        if (task != null)
+            task.cancel();
+    }
+
+    private void addSpectrum(SpectrumData spectrum, int scanNumber,
+            int parentScan) throws Exception {
+
+        SimpleScan scan;
+        if (spectrum.metadataOnly) {
+            // The data points will be read from the original file
+            scan = new InPlaceScan(scanNumber, spectrum.msLevel,
+                    spectrum.retentionTime, spectrum.precursorMz,
+                    spectrum.precursorCharge, spectrum.polarity,
+                    spectrum.scanDefinition, spectrum.numberOfDataPoints);
+        } else {
+            DataPoint dataPoints[] = new DataPoint[spectrum.mzValues.length];
+            for (int i = 0; i < dataPoints.length; i++) {
+                dataPoints[i] = new SimpleDataPoint(spectrum.mzValues[i],
+                        spectrum.intensityValues[i]);
+            }
+
+            // Auto-detect whether this scan is centroided
+            MassSpectrumType spectrumType = ScanUtils
+                    .detectSpectrumType(dataPoints);
+
+            scan = new SimpleScan(null, scanNumber, spectrum.msLevel,
+                    spectrum.retentionTime, spectrum.precursorMz,
+                    spectrum.precursorCharge, null, dataPoints, spectrumType,
+                    spectrum.polarity, spectrum.scanDefinition, null);
+        }
+
+        for (SimpleScan s : parentStack) {
+            if (s.getScanNumber() == parentScan) {
+                s.addFragmentScan(scanNumber);
+            }
+        }
+
+        if (parentStack.size() > PARENT_STACK_SIZE) {
+            SimpleScan firstScan = parentStack.removeLast();
+            newMZmineFile.addScan(firstScan);
+        }
+
+        parentStack.addFirst(scan);
+
+    }
+
+    public String getTaskDescription() {
+        return "Opening file " + file
+                + PipelinedRawDataFileWriter
+                        .getThroughputDescription(newMZmineFile);
+    }
+
+}
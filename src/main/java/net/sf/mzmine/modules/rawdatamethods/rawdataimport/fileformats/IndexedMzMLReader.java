@@ -0,0 +1,813 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.SpectrumSource;
+import net.sf.mzmine.util.CompressionUtils;
+
+import org.apache.axis.encoding.Base64;
+
+/**
+ * Random-access reader of indexed mzML files. The offsets of the spectra are
+ * taken from the <indexList> at the end of the file, so each spectrum can be
+ * read and decoded separately, without parsing the rest of the file. The
+ * readSpectrum() method is thread-safe, so spectra can be decoded in parallel.
+ * Binary data arrays are decoded directly into double[] arrays.
+ */
+public class IndexedMzMLReader implements SpectrumSource {
+
+    // The <indexListOffset> element is located at the end of the file
+    private static final int TAIL_SIZE = 4096;
+
+    private static final Pattern INDEX_LIST_OFFSET_PATTERN = Pattern
+            .compile("<indexListOffset>\\s*(\\d+)\\s*</indexListOffset>");
+    private static final Pattern INDEX_PATTERN = Pattern.compile(
+            "<index\\s+name=\"(\\w+)\"\\s*>(.*?)</index>", Pattern.DOTALL);
+    private static final Pattern OFFSET_PATTERN = Pattern.compile(
+            "<offset\\s+idRef=\"([^\"]*)\"[^>]*>\\s*(\\d+)\\s*</offset>");
+    private static final Pattern SCAN_NUMBER_PATTERN = Pattern
+            .compile("scan=([0-9]+)");
+    private static final Pattern ENCODING_PATTERN = Pattern
+            .compile("<\\?xml[^>]*encoding=\"([^\"]+)\"");
+
+    private static final byte SPECTRUM_START[] = "<spectrum".getBytes();
+    private static final byte SPECTRUM_END[] = "</spectrum>".getBytes();
+    private static final byte BINARY_DATA_ARRAY_LIST_START[] = "<binaryDataArrayList"
+            .getBytes();
+
+    // Initial size of the block read at the spectrum offset to find the
+    // metadata, doubled until the <binaryDataArrayList> element is found
+    private static final int INITIAL_METADATA_READ_SIZE = 4096;
+
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            return factory;
+        }
+    };
+
+    /**
+     * Decoded content of one <spectrum> element
+     */
+    public static class SpectrumData {
+        public String id;
+        public int msLevel = 1;
+        public double retentionTime = 0;
+        public PolarityType polarity = PolarityType.UNKNOWN;
+        public String parentId;
+        public double precursorMz = 0;
+        public int precursorCharge = 0;
+        public String scanDefinition;
+        public boolean isMsSpectrum = true;
+        public double mzValues[] = new double[0];
+        public double intensityValues[] = new double[0];
+
+        // True if the binary data arrays were not read, so only the number
+        // of data points is known
+        public boolean metadataOnly = false;
+        public int numberOfDataPoints = 0;
+    }
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long indexListOffset;
+
+    // The index and the header are read when they are first needed, so the
+    // reader can be created quickly, see readIndex()
+    private volatile boolean indexRead = false;
+    private String encoding;
+    private String spectrumIds[];
+    private long spectrumStarts[], spectrumEnds[];
+
+    // Parameters of <referenceableParamGroup> elements, each parameter is
+    // stored as {accession, value, unitAccession}
+    private final Map<String, List<String[]>> paramGroups = new HashMap<String, List<String[]>>();
+
+    // Scan numbers assigned to spectrum IDs, and the index of the spectrum of
+    // each scan number, see assignScanNumber()
+    private final Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
+    private final Map<Integer, Integer> spectrumIndexes = new Hashtable<Integer, Integer>();
+    private int lastScanNumber = 0;
+
+    /**
+     * Opens the given file and finds its index. The index itself is parsed
+     * when the spectra are first read.
+     */
+    public IndexedMzMLReader(File file) throws IOException {
+
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.fileChannel = randomAccessFile.getChannel();
+
+        try {
+            indexListOffset = readIndexListOffset(fileChannel);
+            if (indexListOffset < 0)
+                throw new IOException("File " + file
+                        + " does not contain an mzML index");
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Checks whether the given file ends with a valid <indexListOffset>. Only
+     * the end of the file is read.
+     */
+    public static boolean isIndexed(File file) {
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                return readIndexListOffset(randomAccessFile.getChannel()) >= 0;
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the offset of the <indexList> element, or -1 if the end of the
+     * file does not contain a valid <indexListOffset>
+     */
+    private static long readIndexListOffset(FileChannel channel)
+            throws IOException {
+        final long fileLength = channel.size();
+        final int tailLength = (int) Math.min(TAIL_SIZE, fileLength);
+        String tail = new String(readBytes(channel, fileLength - tailLength,
+                tailLength), "ISO-8859-1");
+        Matcher indexListOffsetMatcher = INDEX_LIST_OFFSET_PATTERN
+                .matcher(tail);
+        if (!indexListOffsetMatcher.find())
+            return -1;
+        final long offset = Long.parseLong(indexListOffsetMatcher.group(1));
+        if ((offset <= 0) || (offset >= fileLength))
+            return -1;
+        return offset;
+    }
+
+    /**
+     * Parses the offsets of all spectra from the index and reads the header of
+     * the file. The spectra are sorted by their offsets, so they are read in
+     * the order of the file.
+     */
+    private void readIndex() throws IOException {
+
+        if (indexRead)
+            return;
+
+        synchronized (this) {
+
+            if (indexRead)
+                return;
+
+            final long fileLength = fileChannel.size();
+
+            // Parse the offsets of all spectra and chromatograms
+            String indexList = new String(readBytes(indexListOffset,
+                    (int) (fileLength - indexListOffset)), "ISO-8859-1");
+            final TreeMap<Long, String> spectra = new TreeMap<Long, String>();
+            ArrayList<Long> allOffsets = new ArrayList<Long>();
+            Matcher indexMatcher = INDEX_PATTERN.matcher(indexList);
+            while (indexMatcher.find()) {
+                final boolean isSpectrumIndex = indexMatcher.group(1).equals(
+                        "spectrum");
+                Matcher offsetMatcher = OFFSET_PATTERN.matcher(indexMatcher
+                        .group(2));
+                while (offsetMatcher.find()) {
+                    final long offset = Long.parseLong(offsetMatcher.group(2));
+                    allOffsets.add(offset);
+                    if (isSpectrumIndex)
+                        spectra.put(offset, unescapeXml(offsetMatcher.group(1)));
+                }
+            }
+            allOffsets.add(indexListOffset);
+
+            if (spectra.isEmpty())
+                throw new IOException("The mzML index of " + file
+                        + " does not contain any spectra");
+
+            // Each spectrum ends before the next indexed element
+            long sortedOffsets[] = new long[allOffsets.size()];
+            for (int i = 0; i < sortedOffsets.length; i++)
+                sortedOffsets[i] = allOffsets.get(i);
+            Arrays.sort(sortedOffsets);
+
+            spectrumIds = new String[spectra.size()];
+            spectrumStarts = new long[spectrumIds.length];
+            spectrumEnds = new long[spectrumIds.length];
+            int i = 0;
+            for (Map.Entry<Long, String> spectrum : spectra.entrySet()) {
+                spectrumIds[i] = spectrum.getValue();
+                spectrumStarts[i] = spectrum.getKey();
+                int next = Arrays.binarySearch(sortedOffsets,
+                        spectrumStarts[i]);
+                while ((next < sortedOffsets.length)
+                        && (sortedOffsets[next] <= spectrumStarts[i]))
+                    next++;
+                spectrumEnds[i] = sortedOffsets[Math.min(next,
+                        sortedOffsets.length - 1)];
+                i++;
+            }
+
+            // The header contains the encoding and the referenceable
+            // parameter groups
+            byte header[] = readBytes(0, (int) spectrumStarts[0]);
+            Matcher encodingMatcher = ENCODING_PATTERN.matcher(new String(
+                    header, 0, Math.min(header.length, 200), "ISO-8859-1"));
+            encoding = encodingMatcher.find() ? encodingMatcher.group(1)
+                    : "UTF-8";
+            readParamGroups(header);
+
+            indexRead = true;
+
+        }
+
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNumberOfSpectra() throws IOException {
+        readIndex();
+        return spectrumIds.length;
+    }
+
+    /**
+     * Returns the IDs of all spectra, in the order of the file
+     */
+    public String[] getSpectrumIds() throws IOException {
+        readIndex();
+        return spectrumIds;
+    }
+
+    /**
+     * Assigns a scan number to the MS spectrum with given index and returns
+     * it. The scan number is the number following "scan=" in the spectrum ID,
+     * or a sequential number for IDs that do not contain it. MS spectra must
+     * be passed in the order of the file and other spectra (e.g. UV) skipped,
+     * then the scan numbers are the same as those assigned by MzMLReadTask.
+     */
+    public synchronized int assignScanNumber(int index, SpectrumData spectrum) {
+        final String scanId = (spectrum.id != null) ? spectrum.id
+                : spectrumIds[index];
+        final int scanNumber = convertScanIdToScanNumber(scanId);
+        if (!spectrumIndexes.containsKey(scanNumber))
+            spectrumIndexes.put(scanNumber, index);
+        return scanNumber;
+    }
+
+    /**
+     * Returns the scan number of the precursor spectrum of given spectrum, or
+     * -1 if it has none. Like in MzMLReadTask, this has to be called after the
+     * scan number of the spectrum itself was assigned.
+     */
+    public synchronized int getParentScanNumber(SpectrumData spectrum) {
+        if (spectrum.parentId == null)
+            return -1;
+        return convertScanIdToScanNumber(spectrum.parentId);
+    }
+
+    private int convertScanIdToScanNumber(String scanId) {
+
+        Integer knownScanNumber = scanIdTable.get(scanId);
+        if (knownScanNumber != null)
+            return knownScanNumber;
+
+        // Some vendors include scan=XX in the ID, some don't, such as
+        // mzML converted from WIFF files
+        final int scanNumber;
+        Matcher matcher = SCAN_NUMBER_PATTERN.matcher(scanId);
+        if (matcher.find()) {
+            scanNumber = Integer.parseInt(matcher.group(1));
+        } else {
+            lastScanNumber++;
+            scanNumber = lastScanNumber;
+        }
+        scanIdTable.put(scanId, scanNumber);
+        return scanNumber;
+    }
+
+    /**
+     * Returns true if a scan number was assigned to a spectrum of this file
+     */
+    @Override
+    public boolean containsScan(int scanNumber) {
+        return spectrumIndexes.containsKey(scanNumber);
+    }
+
+    @Override
+    public DataPoint[] readDataPoints(int scanNumber) throws IOException {
+        Integer index = spectrumIndexes.get(scanNumber);
+        if (index == null)
+            throw new IOException("Scan #" + scanNumber + " not found in "
+                    + file);
+        SpectrumData spectrum = readSpectrum(index);
+        DataPoint dataPoints[] = new DataPoint[spectrum.mzValues.length];
+        for (int i = 0; i < dataPoints.length; i++) {
+            dataPoints[i] = new SimpleDataPoint(spectrum.mzValues[i],
+                    spectrum.intensityValues[i]);
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Reads and decodes the spectrum with given index. This method is
+     * thread-safe.
+     */
+    public SpectrumData readSpectrum(int index) throws IOException {
+        readIndex();
+        return parseSpectrum(index, readSpectrumBytes(index), false);
+    }
+
+    /**
+     * Reads the metadata of the spectrum with given index, without reading
+     * and decoding its binary data arrays. This method is thread-safe.
+     */
+    public SpectrumData readSpectrumMetadata(int index) throws IOException {
+
+        readIndex();
+
+        final long start = spectrumStarts[index];
+        final long length = spectrumEnds[index] - start;
+        int readSize = INITIAL_METADATA_READ_SIZE;
+        while (readSize < length) {
+            byte bytes[] = readBytes(start, readSize);
+            if (!startsWith(bytes, SPECTRUM_START))
+                throw new IOException("Offset of spectrum "
+                        + spectrumIds[index] + " in " + file
+                        + " does not point to a <spectrum> element");
+            int listStart = indexOf(bytes, BINARY_DATA_ARRAY_LIST_START);
+            if (listStart >= 0) {
+                for (int i = listStart; i < bytes.length; i++) {
+                    if (bytes[i] == '>')
+                        return parseSpectrum(index,
+                                Arrays.copyOf(bytes, i + 1), true);
+                }
+            }
+            readSize *= 2;
+        }
+
+        return parseSpectrum(index, readSpectrumBytes(index), true);
+
+    }
+
+    private SpectrumData parseSpectrum(int index, byte spectrumBytes[],
+            boolean metadataOnly) throws IOException {
+        try {
+            return parseSpectrum(spectrumBytes, metadataOnly);
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not parse spectrum "
+                    + spectrumIds[index] + " in " + file + ": " + e);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data in spectrum "
+                    + spectrumIds[index] + " in " + file + ": " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    private byte[] readSpectrumBytes(int index) throws IOException {
+
+        final long start = spectrumStarts[index];
+        final long length = spectrumEnds[index] - start;
+        if ((length <= 0) || (length > Integer.MAX_VALUE))
+            throw new IOException("Invalid offset of spectrum "
+                    + spectrumIds[index] + " in " + file);
+
+        byte bytes[] = readBytes(start, (int) length);
+
+        if (!startsWith(bytes, SPECTRUM_START))
+            throw new IOException("Offset of spectrum " + spectrumIds[index]
+                    + " in " + file + " does not point to a <spectrum> element");
+
+        // Cut the bytes after the closing </spectrum> tag
+        for (int i = bytes.length - SPECTRUM_END.length; i >= 0; i--) {
+            boolean found = true;
+            for (int j = 0; j < SPECTRUM_END.length; j++) {
+                if (bytes[i + j] != SPECTRUM_END[j]) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found)
+                return Arrays.copyOf(bytes, i + SPECTRUM_END.length);
+        }
+
+        throw new IOException("Could not find the end of spectrum "
+                + spectrumIds[index] + " in " + file);
+    }
+
+    private byte[] readBytes(long position, int length) throws IOException {
+        return readBytes(fileChannel, position, length);
+    }
+
+    /**
+     * Positional read, safe to be called from multiple threads
+     */
+    private static byte[] readBytes(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        return buffer.array();
+    }
+
+    private void readParamGroups(byte header[]) {
+
+        try {
+            XMLStreamReader xml = xmlInputFactory.get().createXMLStreamReader(
+                    new ByteArrayInputStream(header), encoding);
+            List<String[]> currentGroup = null;
+            while (xml.hasNext()) {
+                final int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = xml.getLocalName();
+                    if (name.equals("referenceableParamGroup")) {
+                        currentGroup = new ArrayList<String[]>();
+                        paramGroups.put(xml.getAttributeValue(null, "id"),
+                                currentGroup);
+                    } else if (name.equals("cvParam")
+                            && (currentGroup != null)) {
+                        currentGroup.add(new String[] {
+                                xml.getAttributeValue(null, "accession"),
+                                xml.getAttributeValue(null, "value"),
+                                xml.getAttributeValue(null, "unitAccession") });
+                    }
+                }
+                if ((event == XMLStreamConstants.END_ELEMENT)
+                        && xml.getLocalName().equals("referenceableParamGroup"))
+                    currentGroup = null;
+            }
+        } catch (XMLStreamException e) {
+            // The header ends in the middle of the document, so the parser
+            // always fails at its end
+        }
+
+    }
+
+    private SpectrumData parseSpectrum(byte spectrumBytes[],
+            boolean metadataOnly) throws XMLStreamException, IOException,
+            DataFormatException {
+
+        SpectrumData spectrum = new SpectrumData();
+
+        XMLStreamReader xml = xmlInputFactory.get().createXMLStreamReader(
+                new ByteArrayInputStream(spectrumBytes), encoding);
+
+        ParseState state = new ParseState();
+        StringBuilder binaryText = new StringBuilder();
+        int defaultArrayLength = 0;
+
+        while (xml.hasNext()) {
+
+            final int event = xml.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+
+                final String name = xml.getLocalName();
+
+                if (name.equals("spectrum")) {
+                    spectrum.id = xml.getAttributeValue(null, "id");
+                    String length = xml.getAttributeValue(null,
+                            "defaultArrayLength");
+                    if (length != null)
+                        defaultArrayLength = Integer.parseInt(length);
+                } else if (name.equals("binaryDataArrayList")
+                        && metadataOnly) {
+                    break;
+                } else if (name.equals("cvParam")) {
+                    handleCvParam(spectrum, state,
+                            xml.getAttributeValue(null, "accession"),
+                            xml.getAttributeValue(null, "value"),
+                            xml.getAttributeValue(null, "unitAccession"));
+                } else if (name.equals("referenceableParamGroupRef")) {
+                    List<String[]> group = paramGroups.get(xml
+                            .getAttributeValue(null, "ref"));
+                    if (group != null) {
+                        for (String param[] : group)
+                            handleCvParam(spectrum, state, param[0], param[1],
+                                    param[2]);
+                    }
+                } else if (name.equals("scan")) {
+                    state.inScan = true;
+                } else if (name.equals("precursor")) {
+                    state.inPrecursor = true;
+                    state.precursorCount++;
+                    if (state.precursorCount == 1)
+                        spectrum.parentId = xml.getAttributeValue(null,
+                                "spectrumRef");
+                } else if (name.equals("selectedIon")) {
+                    state.inSelectedIon = true;
+                } else if (name.equals("binaryDataArray")) {
+                    state.inBinaryDataArray = true;
+                    state.arrayType = ArrayType.OTHER;
+                    state.valueType = ValueType.FLOAT64;
+                    state.zlibCompression = false;
+                    state.unsupportedCompression = null;
+                    state.arrayLength = defaultArrayLength;
+                    String length = xml.getAttributeValue(null, "arrayLength");
+                    if (length != null)
+                        state.arrayLength = Integer.parseInt(length);
+                } else if (name.equals("binary")) {
+                    binaryText.setLength(0);
+                    state.inBinary = true;
+                }
+
+            } else if (event == XMLStreamConstants.CHARACTERS) {
+
+                if (state.inBinary)
+                    binaryText.append(xml.getTextCharacters(),
+                            xml.getTextStart(), xml.getTextLength());
+
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+
+                final String name = xml.getLocalName();
+
+                if (name.equals("scan")) {
+                    state.inScan = false;
+                } else if (name.equals("precursor")) {
+                    state.inPrecursor = false;
+                } else if (name.equals("selectedIon")) {
+                    state.inSelectedIon = false;
+                } else if (name.equals("binary")) {
+                    state.inBinary = false;
+                } else if (name.equals("binaryDataArray")) {
+                    state.inBinaryDataArray = false;
+                    if (state.arrayType == ArrayType.OTHER)
+                        continue;
+                    if (state.unsupportedCompression != null)
+                        throw new IOException("Unsupported compression "
+                                + state.unsupportedCompression
+                                + " in spectrum " + spectrum.id);
+                    double values[] = decodeBinaryArray(binaryText.toString(),
+                            state);
+                    if (state.arrayType == ArrayType.MZ)
+                        spectrum.mzValues = values;
+                    else
+                        spectrum.intensityValues = values;
+                } else if (name.equals("spectrum")) {
+                    break;
+                }
+
+            }
+        }
+
+        xml.close();
+
+        spectrum.metadataOnly = metadataOnly;
+        spectrum.numberOfDataPoints = metadataOnly ? defaultArrayLength
+                : spectrum.mzValues.length;
+
+        if (spectrum.mzValues.length != spectrum.intensityValues.length)
+            throw new IOException("Spectrum " + spectrum.id
+                    + " has different number of m/z and intensity values");
+
+        if (spectrum.scanDefinition == null)
+            spectrum.scanDefinition = spectrum.id;
+
+        return spectrum;
+
+    }
+
+    private enum ArrayType {
+        MZ, INTENSITY, OTHER
+    }
+
+    private enum ValueType {
+        FLOAT32, FLOAT64, INT32, INT64
+    }
+
+    /**
+     * Position of the parser within the current <spectrum> element
+     */
+    private static class ParseState {
+        boolean inScan, inPrecursor, inSelectedIon, inBinaryDataArray,
+                inBinary;
+        boolean precursorMzFound, scanDefinitionFound;
+        int precursorCount;
+        ArrayType arrayType;
+        ValueType valueType;
+        boolean zlibCompression;
+        String unsupportedCompression;
+        int arrayLength;
+    }
+
+    private void handleCvParam(SpectrumData spectrum, ParseState state,
+            String accession, String value, String unitAccession) {
+
+        if (accession == null)
+            return;
+
+        if (state.inBinaryDataArray) {
+            if (accession.equals("MS:1000514"))
+                state.arrayType = ArrayType.MZ;
+            else if (accession.equals("MS:1000515"))
+                state.arrayType = ArrayType.INTENSITY;
+            else if (accession.equals("MS:1000521"))
+                state.valueType = ValueType.FLOAT32;
+            else if (accession.equals("MS:1000523"))
+                state.valueType = ValueType.FLOAT64;
+            else if (accession.equals("MS:1000519"))
+                state.valueType = ValueType.INT32;
+            else if (accession.equals("MS:1000522"))
+                state.valueType = ValueType.INT64;
+            else if (accession.equals("MS:1000574"))
+                state.zlibCompression = true;
+            else if (accession.startsWith("MS:100231")
+                    || accession.startsWith("MS:100274"))
+                state.unsupportedCompression = accession;
+            return;
+        }
+
+        if (state.inPrecursor) {
+            if (!state.inSelectedIon || (value == null)
+                    || (state.precursorCount > 1))
+                return;
+            // MS:1000040 is used in mzML 1.0, MS:1000744 is used in mzML 1.1.0
+            if ((accession.equals("MS:1000040") || accession
+                    .equals("MS:1000744")) && (!state.precursorMzFound)) {
+                spectrum.precursorMz = Double.parseDouble(value);
+                state.precursorMzFound = true;
+            } else if (accession.equals("MS:1000041")
+                    && (spectrum.precursorCharge == 0)) {
+                spectrum.precursorCharge = Integer.parseInt(value);
+            }
+            return;
+        }
+
+        // Polarity and scan definition (filter string) may appear both in
+        // the spectrum and in the scan
+        if (accession.equals("MS:1000130")) {
+            spectrum.polarity = PolarityType.POSITIVE;
+            return;
+        }
+        if (accession.equals("MS:1000129")) {
+            spectrum.polarity = PolarityType.NEGATIVE;
+            return;
+        }
+        if (accession.equals("MS:1000512")) {
+            if (!state.scanDefinitionFound) {
+                spectrum.scanDefinition = value;
+                state.scanDefinitionFound = true;
+            }
+            return;
+        }
+
+        if (state.inScan) {
+            // Retention time (actually "Scan start time") MS:1000016
+            if (accession.equals("MS:1000016") && (value != null)) {
+                // MS:1000038 is used in mzML 1.0, while UO:0000031 is used in
+                // mzML 1.1.0
+                if ((unitAccession == null)
+                        || (unitAccession.equals("MS:1000038"))
+                        || unitAccession.equals("UO:0000031")) {
+                    spectrum.retentionTime = Double.parseDouble(value);
+                } else {
+                    spectrum.retentionTime = Double.parseDouble(value) / 60d;
+                }
+            }
+            return;
+        }
+
+        // MS level MS:1000511
+        if (accession.equals("MS:1000511") && (value != null)) {
+            spectrum.msLevel = Integer.parseInt(value);
+            return;
+        }
+
+        // Electromagnetic radiation spectrum (e.g. UV) MS:1000804
+        if (accession.equals("MS:1000804"))
+            spectrum.isMsSpectrum = false;
+
+    }
+
+    private double[] decodeBinaryArray(String base64, ParseState state)
+            throws DataFormatException {
+
+        final int valueSize;
+        switch (state.valueType) {
+        case FLOAT32:
+        case INT32:
+            valueSize = 4;
+            break;
+        default:
+            valueSize = 8;
+        }
+
+        byte bytes[] = Base64.decode(base64);
+        if (state.zlibCompression)
+            bytes = CompressionUtils.decompress(bytes, state.arrayLength
+                    * valueSize);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(
+                ByteOrder.LITTLE_ENDIAN);
+        double values[] = new double[bytes.length / valueSize];
+        switch (state.valueType) {
+        case FLOAT32:
+            for (int i = 0; i < values.length; i++)
+                values[i] = buffer.getFloat();
+            break;
+        case FLOAT64:
+            for (int i = 0; i < values.length; i++)
+                values[i] = buffer.getDouble();
+            break;
+        case INT32:
+            for (int i = 0; i < values.length; i++)
+                values[i] = buffer.getInt();
+            break;
+        case INT64:
+            for (int i = 0; i < values.length; i++)
+                values[i] = buffer.getLong();
+            break;
+        }
+        return values;
+
+    }
+
+    private static int indexOf(byte bytes[], byte pattern[]) {
+        search: for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j])
+                    continue search;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte bytes[], byte prefix[]) {
+        if (bytes.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static String unescapeXml(String text) {
+        if (text.indexOf('&') < 0)
+            return text;
+        return text.replace("&lt;", "<").replace("&gt;", ">")
+                .replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.SpectrumSource;
+import net.sf.mzmine.util.CompressionUtils;
+
+import org.apache.axis.encoding.Base64;
+
+/**
+ * Random-access reader of the data points of indexed mzXML files. The offsets
+ * of the scans are taken from the <index name="scan"> element at the end of
+ * the file. Only the <peaks> element of each scan is decoded, the rest of the
+ * scan is read by MzXMLReadTask. The readDataPoints() method is thread-safe.
+ */
+public class IndexedMzXMLReader implements SpectrumSource {
+
+    // The <indexOffset> element is located at the end of the file
+    private static final int TAIL_SIZE = 4096;
+
+    // Initial size of the block read at the scan offset, doubled until the
+    // whole <peaks> element is found
+    private static final int INITIAL_READ_SIZE = 65536;
+
+    private static final Pattern INDEX_OFFSET_PATTERN = Pattern
+            .compile("<indexOffset>\\s*(\\d+)\\s*</indexOffset>");
+    private static final Pattern SCAN_INDEX_PATTERN = Pattern.compile(
+            "<index\\s+name=\"scan\"\\s*>(.*?)</index>", Pattern.DOTALL);
+    private static final Pattern OFFSET_PATTERN = Pattern
+            .compile("<offset\\s+id=\"(\\d+)\"\\s*>\\s*(\\d+)\\s*</offset>");
+    private static final Pattern PEAKS_COUNT_PATTERN = Pattern
+            .compile("peaksCount=\"(\\d+)\"");
+    private static final Pattern PRECISION_PATTERN = Pattern
+            .compile("precision=\"(\\d+)\"");
+    private static final Pattern COMPRESSION_TYPE_PATTERN = Pattern
+            .compile("compressionType=\"([^\"]*)\"");
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long fileLength;
+    private final long indexOffset;
+
+    // Offset of each scan, by scan number. The index is read when it is first
+    // needed, so the reader can be created quickly, see readIndex().
+    private final Map<Integer, Long> scanOffsets = new Hashtable<Integer, Long>();
+    private volatile boolean indexRead = false;
+
+    /**
+     * Opens the given file and finds its index. The index itself is parsed
+     * when the scans are first accessed.
+     */
+    public IndexedMzXMLReader(File file) throws IOException {
+
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.fileChannel = randomAccessFile.getChannel();
+
+        try {
+            fileLength = fileChannel.size();
+            indexOffset = readIndexOffset(fileChannel);
+            if (indexOffset < 0)
+                throw new IOException("File " + file
+                        + " does not contain an mzXML index");
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+    }
+
+    /**
+     * Checks whether the given file ends with a valid <indexOffset>. Only the
+     * end of the file is read.
+     */
+    public static boolean isIndexed(File file) {
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                return readIndexOffset(randomAccessFile.getChannel()) >= 0;
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the offset of the index, or -1 if the end of the file does not
+     * contain a valid <indexOffset>
+     */
+    private static long readIndexOffset(FileChannel channel)
+            throws IOException {
+        final long fileLength = channel.size();
+        final int tailLength = (int) Math.min(TAIL_SIZE, fileLength);
+        String tail = new String(readBytes(channel, fileLength - tailLength,
+                tailLength), "ISO-8859-1");
+        Matcher indexOffsetMatcher = INDEX_OFFSET_PATTERN.matcher(tail);
+        if (!indexOffsetMatcher.find())
+            return -1;
+        final long offset = Long.parseLong(indexOffsetMatcher.group(1));
+        if ((offset <= 0) || (offset >= fileLength))
+            return -1;
+        return offset;
+    }
+
+    /**
+     * Parses the offsets of all scans from the index
+     */
+    private void readIndex() throws IOException {
+
+        if (indexRead)
+            return;
+
+        synchronized (this) {
+
+            if (indexRead)
+                return;
+
+            String index = new String(readBytes(indexOffset,
+                    (int) (fileLength - indexOffset)), "ISO-8859-1");
+            Matcher scanIndexMatcher = SCAN_INDEX_PATTERN.matcher(index);
+            if (!scanIndexMatcher.find())
+                throw new IOException("File " + file
+                        + " does not contain an mzXML scan index");
+            Matcher offsetMatcher = OFFSET_PATTERN.matcher(scanIndexMatcher
+                    .group(1));
+            while (offsetMatcher.find()) {
+                scanOffsets.put(Integer.parseInt(offsetMatcher.group(1)),
+                        Long.parseLong(offsetMatcher.group(2)));
+            }
+
+            if (scanOffsets.isEmpty())
+                throw new IOException("The mzXML index of " + file
+                        + " does not contain any scans");
+
+            indexRead = true;
+
+        }
+
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNumberOfScans() throws IOException {
+        readIndex();
+        return scanOffsets.size();
+    }
+
+    /**
+     * Returns true if the index contains the scan. Returns false if the index
+     * cannot be read, so the scan is stored in the temporary file.
+     */
+    @Override
+    public boolean containsScan(int scanNumber) {
+        try {
+            readIndex();
+        } catch (IOException e) {
+            return false;
+        }
+        return scanOffsets.containsKey(scanNumber);
+    }
+
+    /**
+     * Reads and decodes the <peaks> element of the scan with given number, in
+     * the same way as MzXMLReadTask
+     */
+    @Override
+    public DataPoint[] readDataPoints(int scanNumber) throws IOException {
+
+        readIndex();
+        Long scanOffset = scanOffsets.get(scanNumber);
+        if (scanOffset == null)
+            throw new IOException("Scan #" + scanNumber + " not found in "
+                    + file);
+
+        // Read until the end of the <peaks> element of this scan. The peaks
+        // of a scan always precede its nested scans.
+        String scanText;
+        int peaksStart, peaksTagEnd, peaksEnd;
+        int readSize = INITIAL_READ_SIZE;
+        while (true) {
+            final int length = (int) Math.min(readSize, fileLength
+                    - scanOffset);
+            scanText = new String(readBytes(scanOffset, length), "ISO-8859-1");
+            if (!scanText.startsWith("<scan"))
+                throw new IOException("Invalid offset of scan #" + scanNumber
+                        + " in " + file);
+            peaksStart = scanText.indexOf("<peaks");
+            peaksTagEnd = (peaksStart < 0) ? -1 : scanText.indexOf('>',
+                    peaksStart);
+            if (peaksTagEnd >= 0) {
+                if (scanText.charAt(peaksTagEnd - 1) == '/') {
+                    peaksEnd = peaksTagEnd;
+                    break;
+                }
+                peaksEnd = scanText.indexOf("</peaks>", peaksTagEnd);
+                if (peaksEnd >= 0)
+                    break;
+            }
+            if (scanOffset + length >= fileLength)
+                throw new IOException("No peaks found for scan #"
+                        + scanNumber + " in " + file);
+            readSize *= 2;
+        }
+
+        Matcher peaksCountMatcher = PEAKS_COUNT_PATTERN.matcher(scanText
+                .substring(0, peaksStart));
+        if (!peaksCountMatcher.find())
+            throw new IOException("No peaksCount found for scan #"
+                    + scanNumber + " in " + file);
+        final int peaksCount = Integer.parseInt(peaksCountMatcher.group(1));
+        if ((peaksCount == 0) || (peaksEnd == peaksTagEnd))
+            return new DataPoint[0];
+
+        final String peaksTag = scanText.substring(peaksStart, peaksTagEnd);
+        Matcher precisionMatcher = PRECISION_PATTERN.matcher(peaksTag);
+        final boolean doublePrecision = precisionMatcher.find()
+                && precisionMatcher.group(1).equals("64");
+        Matcher compressionMatcher = COMPRESSION_TYPE_PATTERN
+                .matcher(peaksTag);
+        final boolean compressed = compressionMatcher.find()
+                && !compressionMatcher.group(1).equals("none");
+
+        byte peakBytes[] = Base64.decode(scanText.substring(peaksTagEnd + 1,
+                peaksEnd));
+        final int valueSize = doublePrecision ? 8 : 4;
+        if (compressed) {
+            try {
+                peakBytes = CompressionUtils.decompress(peakBytes, peaksCount
+                        * 2 * valueSize);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed peaks of scan #"
+                        + scanNumber + " in " + file);
+            }
+        }
+
+        if (peakBytes.length < peaksCount * 2 * valueSize)
+            throw new IOException("Corrupt peaks of scan #" + scanNumber
+                    + " in " + file);
+
+        // Always respect this order pairOrder="m/z-int". The mzXML format only
+        // allows byteOrder="network", so the byteOrder attribute is ignored
+        // like in MzXMLReadTask.
+        ByteBuffer peakBuffer = ByteBuffer.wrap(peakBytes);
+        DataPoint dataPoints[] = new DataPoint[peaksCount];
+        for (int i = 0; i < peaksCount; i++) {
+            double mz, intensity;
+            if (doublePrecision) {
+                mz = peakBuffer.getDouble();
+                intensity = peakBuffer.getDouble();
+            } else {
+                mz = peakBuffer.getFloat();
+                intensity = peakBuffer.getFloat();
+            }
+            dataPoints[i] = new SimpleDataPoint(mz, intensity);
+        }
+
+        return dataPoints;
+
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    private byte[] readBytes(long position, int length) throws IOException {
+        return readBytes(fileChannel, position, length);
+    }
+
+    /**
+     * Positional read, safe to be called from multiple threads
+     */
+    private static byte[] readBytes(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        return buffer.array();
+    }
+
+}
@@ -36,6 +36,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.PipelinedRawDataFileWriter;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
@@ -478,7 +479,9 @@ public class MzMLReadTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-        return "Opening file " + file;
+        return "Opening file " + file
+                + PipelinedRawDataFileWriter
+                        .getThroughputDescription(newMZmineFile);
     }
 
     boolean isMsSpectrum(Spectrum spectrum) {
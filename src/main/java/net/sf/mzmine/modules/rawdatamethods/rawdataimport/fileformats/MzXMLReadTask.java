@@ -41,6 +41,10 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.InPlaceRawDataFile;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.InPlaceScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.PipelinedRawDataFileWriter;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.SpectrumSource;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.CompressionUtils;
@@ -72,6 +76,11 @@ public class MzXMLReadTask extends AbstractTask {
     private DefaultHandler handler = new MzXMLHandler();
     private String precision;
 
+    // Original file of an InPlaceRawDataFile, or null. The peaks of the scans
+    // read in place are not decoded.
+    private SpectrumSource inPlaceSource;
+    private boolean skipPeaks = false;
+
     // Retention time parser
     private DatatypeFactory dataTypeFactory;
 
@@ -104,6 +113,9 @@ public class MzXMLReadTask extends AbstractTask {
         this.project = project;
         this.file = fileToOpen;
         this.newMZmineFile = newMZmineFile;
+        if (newMZmineFile instanceof InPlaceRawDataFile)
+            inPlaceSource = ((InPlaceRawDataFile) newMZmineFile)
+                    .getSpectrumSource();
     }
 
     /**
@@ -161,7 +173,9 @@ public class MzXMLReadTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-        return "Opening file " + file;
+        return "Opening file " + file
+                + PipelinedRawDataFileWriter
+                        .getThroughputDescription(newMZmineFile);
     }
 
     private class MzXMLHandler extends DefaultHandler {
@@ -244,9 +258,15 @@ public class MzXMLReadTask extends AbstractTask {
                 msLevelTree++;
                 parentTreeValue[msLevel] = scanNumber;
 
-                buildingScan = new SimpleScan(null, scanNumber, msLevel,
-                        retentionTime, 0, 0, null, new DataPoint[0], null,
-                        polarity, scanId, null);
+                // The data points of scans read in place are not decoded
+                if ((inPlaceSource != null)
+                        && inPlaceSource.containsScan(scanNumber))
+                    buildingScan = new InPlaceScan(scanNumber, msLevel,
+                            retentionTime, 0, 0, polarity, scanId, peaksCount);
+                else
+                    buildingScan = new SimpleScan(null, scanNumber, msLevel,
+                            retentionTime, 0, 0, null, new DataPoint[0],
+                            null, polarity, scanId, null);
 
             }
 
@@ -262,6 +282,7 @@ public class MzXMLReadTask extends AbstractTask {
                 else
                     compressFlag = true;
                 precision = attrs.getValue("precision");
+                skipPeaks = buildingScan instanceof InPlaceScan;
 
             }
 
@@ -335,6 +356,12 @@ public class MzXMLReadTask extends AbstractTask {
             // <peaks>
             if (qName.equalsIgnoreCase("peaks")) {
 
+                // The data points will be read from the original file
+                if (skipPeaks) {
+                    skipPeaks = false;
+                    return;
+                }
+
                 byte[] peakBytes = Base64.decode(charBuffer.toString());
 
                 if (compressFlag) {
@@ -400,7 +427,8 @@ public class MzXMLReadTask extends AbstractTask {
          */
         public void characters(char buf[], int offset, int len)
                 throws SAXException {
-            charBuffer.append(buf, offset, len);
+            if (!skipPeaks)
+                charBuffer.append(buf, offset, len);
         }
     }
 
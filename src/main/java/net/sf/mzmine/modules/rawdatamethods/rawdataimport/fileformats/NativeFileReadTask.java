@@ -37,6 +37,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.PipelinedRawDataFileWriter;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataFileType;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
@@ -184,7 +185,9 @@ public class NativeFileReadTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-        return "Opening file " + file;
+        return "Opening file " + file
+                + PipelinedRawDataFileWriter
+                        .getThroughputDescription(newMZmineFile);
     }
 
     /**
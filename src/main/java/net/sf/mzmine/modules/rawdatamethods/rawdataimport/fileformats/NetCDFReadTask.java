@@ -21,7 +21,14 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,19 +41,20 @@ import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.PipelinedRawDataFileWriter;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.ScanUtils;
 import ucar.ma2.Array;
-import ucar.ma2.Index;
 import ucar.ma2.IndexIterator;
 import ucar.nc2.Attribute;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
 
 /**
- * 
+ * Reads NetCDF (ANDI-MS) files. The mass and intensity values of consecutive
+ * scans are read in chunks and converted to scans in parallel.
  */
 public class NetCDFReadTask extends AbstractTask {
 
@@ -67,6 +75,9 @@ public class NetCDFReadTask extends AbstractTask {
 
     private Variable massValueVariable, intensityValueVariable;
 
+    // Maximum number of mass and intensity values read at once
+    private static final int CHUNK_SIZE = 1 << 20;
+
     // Some software produces netcdf files with a scale factor such as 0.05
     private double massValueScaleFactor = 1;
     private double intensityValueScaleFactor = 1;
@@ -94,23 +105,41 @@ public class NetCDFReadTask extends AbstractTask {
 	setStatus(TaskStatus.PROCESSING);
 	logger.info("Started parsing file " + file);
 
+	ExecutorService converterThreads = null;
+
 	try {
 
 	    // Open file
 	    this.startReading();
 
-	    // Parse scans
-	    Scan buildingScan;
-	    while ((buildingScan = this.readNextScan()) != null) {
+	    // The mass and intensity values are read in large contiguous chunks
+	    // on this thread, because NetcdfFile is not thread-safe. The chunks
+	    // are split into scans in parallel, and the scans are added in the
+	    // original order.
+	    final int numOfThreads = Runtime.getRuntime().availableProcessors();
+	    converterThreads = Executors.newFixedThreadPool(numOfThreads);
+	    LinkedList<Future<List<Scan>>> convertedChunks = new LinkedList<Future<List<Scan>>>();
+
+	    while (scanNum < totalScans) {
 
 		// Check if cancel is requested
 		if (isCanceled()) {
 		    return;
 		}
-		// buildingFile.addScan(scan);
-		newMZmineFile.addScan(buildingScan);
-		parsedScans++;
 
+		convertedChunks.add(converterThreads.submit(readNextChunk()));
+
+		// Limit the number of chunks kept in memory
+		if (convertedChunks.size() > 2 * numOfThreads)
+		    addScans(convertedChunks.removeFirst().get());
+
+	    }
+
+	    while (!convertedChunks.isEmpty()) {
+		if (isCanceled()) {
+		    return;
+		}
+		addScans(convertedChunks.removeFirst().get());
 	    }
 
 	    // Close file
@@ -123,6 +152,9 @@ public class NetCDFReadTask extends AbstractTask {
 	    setErrorMessage(ExceptionUtils.exceptionToString(e));
 	    setStatus(TaskStatus.ERROR);
 	    return;
+	} finally {
+	    if (converterThreads != null)
+		converterThreads.shutdownNow();
 	}
 
 	logger.info("Finished parsing " + file + ", parsed " + parsedScans
@@ -134,7 +166,9 @@ public class NetCDFReadTask extends AbstractTask {
     }
 
     public String getTaskDescription() {
-	return "Opening file " + file;
+	return "Opening file " + file
+		+ PipelinedRawDataFileWriter
+			.getThroughputDescription(newMZmineFile);
     }
 
     public void startReading() throws IOException {
@@ -380,36 +414,101 @@ public class NetCDFReadTask extends AbstractTask {
 	inputFile.close();
     }
 
+    private void addScans(List<Scan> scans) throws IOException {
+	for (Scan scan : scans) {
+	    newMZmineFile.addScan(scan);
+	    parsedScans++;
+	}
+    }
+
     /**
-     * Reads one scan from the file. Requires that general information has
+     * Reads the mass and intensity values of the following scans, up to
+     * CHUNK_SIZE values, using one read of each variable. Returns a task that
+     * splits the values into scans. Requires that general information has
      * already been read.
      */
-    private Scan readNextScan() throws IOException {
+    private Callable<List<Scan>> readNextChunk() throws IOException {
 
-	// Get scan starting position and length
-	int[] scanStartPosition = new int[1];
-	int[] scanLength = new int[1];
-	Integer[] startAndLength = scansIndex.get(scanNum);
+	final int firstScan = scanNum;
+	int chunkStart = scansIndex.get(firstScan)[0];
+	int chunkEnd = chunkStart + scansIndex.get(firstScan)[1];
+	scanNum++;
+	while (scanNum < totalScans) {
+	    Integer[] startAndLength = scansIndex.get(scanNum);
+	    final int newStart = Math.min(chunkStart, startAndLength[0]);
+	    final int newEnd = Math.max(chunkEnd, startAndLength[0]
+		    + startAndLength[1]);
+	    if (newEnd - newStart > CHUNK_SIZE)
+		break;
+	    chunkStart = newStart;
+	    chunkEnd = newEnd;
+	    scanNum++;
+	}
+	final int lastScan = scanNum;
 
-	// End of file
-	if (startAndLength == null) {
-	    return null;
+	// Read mass and intensity values
+	final Array massValueArray;
+	final Array intensityValueArray;
+	if (chunkEnd > chunkStart) {
+	    int[] origin = new int[] { chunkStart };
+	    int[] shape = new int[] { chunkEnd - chunkStart };
+	    try {
+		massValueArray = massValueVariable.read(origin, shape);
+		intensityValueArray = intensityValueVariable.read(origin,
+			shape);
+	    } catch (Exception e) {
+		logger.log(
+			Level.SEVERE,
+			"Could not read from variables mass_values and/or intensity_values.",
+			e);
+		throw (new IOException(
+			"Could not read from variables mass_values and/or intensity_values."));
+	    }
+	} else {
+	    massValueArray = null;
+	    intensityValueArray = null;
 	}
-	scanStartPosition[0] = startAndLength[0];
-	scanLength[0] = startAndLength[1];
+
+	final int chunkOffset = chunkStart;
+
+	return new Callable<List<Scan>>() {
+	    @Override
+	    public List<Scan> call() throws Exception {
+		List<Scan> scans = new ArrayList<Scan>(lastScan - firstScan);
+		for (int i = firstScan; i < lastScan; i++) {
+		    scans.add(createScan(i, massValueArray,
+			    intensityValueArray, chunkOffset));
+		}
+		return scans;
+	    }
+	};
+
+    }
+
+    /**
+     * Creates the scan with given index from the values read by
+     * readNextChunk()
+     */
+    private Scan createScan(int scanIndex, Array massValueArray,
+	    Array intensityValueArray, int chunkOffset) throws IOException {
+
+	// Get scan starting position and length
+	Integer[] startAndLength = scansIndex.get(scanIndex);
+	final int scanStart = startAndLength[0] - chunkOffset;
+	final int scanLength = startAndLength[1];
 
 	// Get retention time of the scan
-	Double retentionTime = scansRetentionTimes.get(scanNum);
+	Double retentionTime = scansRetentionTimes.get(scanIndex);
 	if (retentionTime == null) {
-	    logger.severe("Could not find retention time for scan " + scanNum);
+	    logger.severe("Could not find retention time for scan "
+		    + scanIndex);
 	    throw (new IOException("Could not find retention time for scan "
-		    + scanNum));
+		    + scanIndex));
 	}
 
 	// An empty scan needs special attention..
-	if (scanLength[0] == 0) {
-	    scanNum++;
-	    return new SimpleScan(null, scanNum, 1,
+	if (scanLength == 0) {
+	    return new SimpleScan(null, scanIndex + 1, 1,
 		    retentionTime.doubleValue(), 0, 0, null, new DataPoint[0],
 		    MassSpectrumType.CENTROIDED, PolarityType.UNKNOWN, "", null);
 	}
@@ -420,49 +519,21 @@ public class NetCDFReadTask extends AbstractTask {
 	// Is there any way how to extract scan definition from netcdf?
 	String scanDefinition = "";
 
-	// Read mass and intensity values
-	Array massValueArray;
-	Array intensityValueArray;
-	try {
-	    massValueArray = massValueVariable.read(scanStartPosition,
-		    scanLength);
-	    intensityValueArray = intensityValueVariable.read(
-		    scanStartPosition, scanLength);
-	} catch (Exception e) {
-	    logger.log(
-		    Level.SEVERE,
-		    "Could not read from variables mass_values and/or intensity_values.",
-		    e);
-	    throw (new IOException(
-		    "Could not read from variables mass_values and/or intensity_values."));
-	}
-
-	Index massValuesIndex = massValueArray.getIndex();
-	Index intensityValuesIndex = intensityValueArray.getIndex();
-
-	int arrayLength = massValueArray.getShape()[0];
+	DataPoint dataPoints[] = new DataPoint[scanLength];
 
-	DataPoint dataPoints[] = new DataPoint[arrayLength];
-
-	for (int j = 0; j < arrayLength; j++) {
-	    Index massIndex0 = massValuesIndex.set0(j);
-	    Index intensityIndex0 = intensityValuesIndex.set0(j);
-
-	    double mz = massValueArray.getDouble(massIndex0)
+	for (int j = 0; j < scanLength; j++) {
+	    double mz = massValueArray.getDouble(scanStart + j)
 		    * massValueScaleFactor;
-	    double intensity = intensityValueArray.getDouble(intensityIndex0)
+	    double intensity = intensityValueArray.getDouble(scanStart + j)
 		    * intensityValueScaleFactor;
 	    dataPoints[j] = new SimpleDataPoint(mz, intensity);
-
 	}
 
-	scanNum++;
-
 	// Auto-detect whether this scan is centroided
 	MassSpectrumType spectrumType = ScanUtils
 		.detectSpectrumType(dataPoints);
 
-	SimpleScan buildingScan = new SimpleScan(null, scanNum, 1,
+	SimpleScan buildingScan = new SimpleScan(null, scanIndex + 1, 1,
 		retentionTime.doubleValue(), 0, 0, null, dataPoints,
 		spectrumType, polarity, scanDefinition, null);
 
@@ -20,7 +20,6 @@
 package net.sf.mzmine.modules.visualization.intensityplot;
 
 import java.awt.Window;
-import java.util.Arrays;
 
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -74,8 +73,8 @@ public class IntensityPlotParameters extends SimpleParameterSet {
         if (selectedPeakLists.length > 0) {
             RawDataFile plDataFiles[] = selectedPeakLists[0].getRawDataFiles();
             PeakListRow plRows[] = selectedPeakLists[0].getRows();
-            Arrays.sort(plRows, new PeakListRowSorter(SortingProperty.MZ,
-                    SortingDirection.Ascending));
+            new PeakListRowSorter(SortingProperty.MZ,
+                    SortingDirection.Ascending).sort(plRows);
             getParameter(dataFiles).setChoices(plDataFiles);
             getParameter(dataFiles).setValue(plDataFiles);
         }
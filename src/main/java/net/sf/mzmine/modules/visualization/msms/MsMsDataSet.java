@@ -20,6 +20,10 @@
 package net.sf.mzmine.modules.visualization.msms;
 
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.swing.SwingUtilities;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -29,13 +33,17 @@ import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ArrayUtils;
+import net.sf.mzmine.util.PrecursorIndex;
 
 import org.jfree.data.xy.AbstractXYDataset;
 
 import com.google.common.collect.Range;
 
 /**
- * 
+ * MS/MS visualizer data set. The MS/MS scans are published while they are
+ * processed, with a provisional color, and get their final color when the
+ * intensities of all scans are known.
  */
 class MsMsDataSet extends AbstractXYDataset implements Task {
 
@@ -44,11 +52,13 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
     // For comparing small differences.
     private static final double EPSILON = 0.0000001;
 
+    // Refresh interval (in milliseconds).
+    private static final long REDRAW_INTERVAL = 100L;
+
     private RawDataFile rawDataFile;
-    private Range<Double> totalRTRange, totalMZRange;
-    private int allScanNumbers[], msmsScanNumbers[], totalScans,
-	    totalmsmsScans, processedScans, allProcessedScans, processedColors,
-	    totalEntries, lastMSIndex;
+    private PrecursorIndex precursorIndex;
+    private int msmsScans[], totalScans, totalmsmsScans, processedScans,
+	    allProcessedScans, processedColors, totalEntries;
     private final double[] rtValues, mzValues, intensityValues;
     private IntensityType intensityType;
     private NormalizationType normalizationType;
@@ -56,6 +66,9 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
     private double minPeakInt, maxIntensity;
     private Color[] colorValues;
 
+    // Number of MS/MS scans shown in the plot.
+    private volatile int publishedScans;
+
     private TaskStatus status = TaskStatus.WAITING;
 
     MsMsDataSet(RawDataFile rawDataFile, Range<Double> rtRange,
@@ -65,20 +78,19 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 
 	this.rawDataFile = rawDataFile;
 
-	totalRTRange = rtRange;
-	totalMZRange = mzRange;
 	this.intensityType = intensityType;
 	this.normalizationType = normalizationType;
 	this.minPeakInt = minPeakInt - EPSILON;
 
-	allScanNumbers = rawDataFile.getScanNumbers();
-	msmsScanNumbers = rawDataFile.getScanNumbers(2, rtRange);
+	// MS/MS scans within the RT and precursor m/z ranges
+	precursorIndex = PrecursorIndex.getIndex(rawDataFile);
+	msmsScans = precursorIndex.findFragmentScans(rtRange, mzRange);
 
-	totalScans = allScanNumbers.length;
-	totalmsmsScans = msmsScanNumbers.length;
+	totalScans = msmsScans.length;
+	totalmsmsScans = msmsScans.length;
 	totalEntries = totalmsmsScans;
 
-	scanNumbers = new int[totalScans];
+	scanNumbers = new int[totalmsmsScans];
 	rtValues = new double[totalmsmsScans];
 	mzValues = new double[totalmsmsScans];
 	intensityValues = new double[totalmsmsScans];
@@ -93,6 +105,13 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 
 	status = TaskStatus.PROCESSING;
 	double totalScanIntensity, maxPeakIntensity;
+	long lastRedrawTime = System.currentTimeMillis();
+
+	// Data points of the last parent MS scan, which is usually shared by
+	// several MS/MS scans. MS/MS scans without a parent (-1) get no
+	// precursor intensity.
+	int parentScanNumber = -1;
+	DataPoint parentDataPoints[] = new DataPoint[0];
 
 	for (int index = 0; index < totalScans; index++) {
 
@@ -100,63 +119,53 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 	    if (status == TaskStatus.CANCELED)
 		return;
 
-	    Scan scan = rawDataFile.getScan(allScanNumbers[index]);
-
-	    if (scan.getMSLevel() == 1) {
-		// Store info about MS spectra for MS/MS to allow extraction of
-		// intensity of precursor ion in MS scan.
-		lastMSIndex = index;
-	    } else {
-		Double precursorMZ = scan.getPrecursorMZ(); // Precursor m/z
-							    // value
-		Double scanRT = scan.getRetentionTime(); // Scan RT
-
-		// Calculate total intensity
-		totalScanIntensity = 0;
-		if (intensityType == IntensityType.MS) {
-		    // Get intensity of precursor ion from MS scan
-		    Scan msscan = rawDataFile
-			    .getScan(allScanNumbers[lastMSIndex]);
-		    Double mzTolerance = precursorMZ * 10 / 1000000;
-		    Range<Double> precursorMZRange = Range.closed(precursorMZ
-			    - mzTolerance, precursorMZ + mzTolerance);
-		    DataPoint scanDataPoints[] = msscan
-			    .getDataPointsByMass(precursorMZRange);
-		    for (int x = 0; x < scanDataPoints.length; x++) {
-			totalScanIntensity = totalScanIntensity
-				+ scanDataPoints[x].getIntensity();
-		    }
-		} else if (intensityType == IntensityType.MSMS) {
-		    // Get total intensity of all peaks in MS/MS scan
-		    DataPoint scanDataPoints[] = scan.getDataPoints();
-		    for (int x = 0; x < scanDataPoints.length; x++) {
-			totalScanIntensity = totalScanIntensity
-				+ scanDataPoints[x].getIntensity();
-		    }
+	    final int position = msmsScans[index];
+	    double precursorMZ = precursorIndex.getPrecursorMZ(position);
+	    double scanRT = precursorIndex.getRetentionTime(position);
+
+	    // Calculate total intensity
+	    totalScanIntensity = 0;
+	    if (intensityType == IntensityType.MS) {
+		// Get intensity of precursor ion from parent MS scan
+		final int parent = precursorIndex.getParentScanNumber(position);
+		if (parent != parentScanNumber) {
+		    parentScanNumber = parent;
+		    parentDataPoints = rawDataFile.getScan(parent)
+			    .getDataPoints();
 		}
-
-		maxPeakIntensity = 0;
-		DataPoint scanDataPoints[] = scan.getDataPoints();
+		Double mzTolerance = precursorMZ * 10 / 1000000;
+		totalScanIntensity = getIntensity(parentDataPoints, precursorMZ
+			- mzTolerance, precursorMZ + mzTolerance);
+	    } else if (intensityType == IntensityType.MSMS) {
+		// Get total intensity of all peaks in MS/MS scan
+		DataPoint scanDataPoints[] = rawDataFile.getScan(
+			precursorIndex.getScanNumber(position)).getDataPoints();
 		for (int x = 0; x < scanDataPoints.length; x++) {
-		    if (maxPeakIntensity < scanDataPoints[x].getIntensity()) {
-			maxPeakIntensity = scanDataPoints[x].getIntensity();
-		    }
+		    totalScanIntensity = totalScanIntensity
+			    + scanDataPoints[x].getIntensity();
 		}
+	    }
 
-		if (totalRTRange.contains(scanRT)
-			&& totalMZRange.contains(precursorMZ)
-			&& maxPeakIntensity > minPeakInt) {
-		    // Add values to arrays
-		    rtValues[processedScans] = scanRT;
-		    mzValues[processedScans] = precursorMZ;
-		    intensityValues[processedScans] = totalScanIntensity;
-		    scanNumbers[processedScans] = index + 1; // +1 because loop
-							     // runs from 0 not
-							     // 1
-		    processedScans++;
-		}
+	    maxPeakIntensity = precursorIndex.getBasePeakIntensity(position);
+
+	    if (maxPeakIntensity > minPeakInt) {
+		// Add values to arrays
+		rtValues[processedScans] = scanRT;
+		mzValues[processedScans] = precursorMZ;
+		intensityValues[processedScans] = totalScanIntensity;
+		scanNumbers[processedScans] = precursorIndex
+			.getScanNumber(position);
+		colorValues[processedScans] = MsMsPlotRenderer.pointColor;
+		processedScans++;
+		publishedScans = processedScans;
+	    }
 
+	    // Refresh every REDRAW_INTERVAL ms.
+	    if (System.currentTimeMillis() - lastRedrawTime > REDRAW_INTERVAL) {
+		refresh();
+		lastRedrawTime = System.currentTimeMillis();
 	    }
+
 	    allProcessedScans++;
 
 	}
@@ -168,9 +177,28 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 	    }
 	}
 
+	// Sort the spots by m/z to find the spots of similar m/z
+	final int sortedIndexes[] = new int[processedScans];
+	final double sortedMZValues[] = new double[processedScans];
+	if (normalizationType == NormalizationType.similar) {
+	    Integer order[] = new Integer[processedScans];
+	    for (int i = 0; i < processedScans; i++)
+		order[i] = i;
+	    Arrays.sort(order, new Comparator<Integer>() {
+		@Override
+		public int compare(Integer i1, Integer i2) {
+		    return Double.compare(mzValues[i1], mzValues[i2]);
+		}
+	    });
+	    for (int i = 0; i < processedScans; i++) {
+		sortedIndexes[i] = order[i];
+		sortedMZValues[i] = mzValues[order[i]];
+	    }
+	}
+
 	// Update color table for all spots
-	totalEntries = processedScans - 1;
-	for (int index = 0; index < processedScans - 1; index++) {
+	totalEntries = processedScans;
+	for (int index = 0; index < processedScans; index++) {
 
 	    // Cancel?
 	    if (status == TaskStatus.CANCELED)
@@ -187,7 +215,8 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 		Double mzTolerance = precursorMZ * 10 / 1000000;
 		Range<Double> precursorMZRange = Range.closed(precursorMZ
 			- mzTolerance, precursorMZ + mzTolerance);
-		maxIntensityVal = (double) getMaxZ(precursorMZRange);
+		maxIntensityVal = getMaxZ(precursorMZRange, sortedIndexes,
+			sortedMZValues);
 	    }
 
 	    // Calculate normalized intensity
@@ -208,11 +237,63 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 	    processedColors++;
 	}
 
-	fireDatasetChanged();
+	refresh();
 	status = TaskStatus.FINISHED;
 
     }
 
+    /**
+     * Returns the total intensity of the data points (sorted by m/z) within
+     * the m/z range
+     */
+    private static double getIntensity(DataPoint dataPoints[], double lowerMZ,
+	    double upperMZ) {
+
+	// Find the first data point within the m/z range
+	final int first = ArrayUtils.lowerBound(dataPoints, lowerMZ);
+
+	double intensity = 0;
+	for (int i = first; i < dataPoints.length; i++) {
+	    if (dataPoints[i].getMZ() > upperMZ)
+		break;
+	    intensity += dataPoints[i].getIntensity();
+	}
+	return intensity;
+    }
+
+    /**
+     * Returns the maximum intensity of the spots within the m/z range, at
+     * least 1. Same as getMaxZ(Range), using the spots sorted by m/z.
+     */
+    private double getMaxZ(Range<Double> mzRange, int sortedIndexes[],
+	    double sortedMZValues[]) {
+
+	// Find the first spot within the m/z range
+	final int first = ArrayUtils.lowerBound(sortedMZValues,
+		mzRange.lowerEndpoint());
+
+	double max = 1.0;
+	for (int i = first; i < sortedMZValues.length; i++) {
+	    if (!mzRange.contains(sortedMZValues[i]))
+		break;
+	    if (max < intensityValues[sortedIndexes[i]])
+		max = intensityValues[sortedIndexes[i]];
+	}
+	return max;
+    }
+
+    /**
+     * Notify data set listener (on the EDT).
+     */
+    private void refresh() {
+	SwingUtilities.invokeLater(new Runnable() {
+	    @Override
+	    public void run() {
+		fireDatasetChanged();
+	    }
+	});
+    }
+
     public int getSeriesCount() {
 	return 1;
     }
@@ -222,7 +303,7 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
     }
 
     public int getItemCount(int series) {
-	return totalmsmsScans;
+	return publishedScans;
     }
 
     public Number getX(int series, int item) {
@@ -402,8 +483,11 @@ class MsMsDataSet extends AbstractXYDataset implements Task {
 	if (totalScans == 0) {
 	    return 0;
 	}
-	return (double) 0.5 * (allProcessedScans / totalScans) + 0.5
-		* (100 * processedColors / totalEntries) / 100;
+	if (totalEntries == 0) {
+	    return (double) allProcessedScans / totalScans;
+	}
+	return 0.5 * allProcessedScans / totalScans + 0.5 * processedColors
+		/ totalEntries;
     }
 
     @Override
@@ -24,6 +24,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
 
+import javax.swing.SwingUtilities;
+
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
@@ -36,11 +38,18 @@ import org.jfree.data.xy.XYDataset;
 
 import com.google.common.collect.Range;
 
+/**
+ * Neutral loss visualizer data set. The data points are published while the
+ * scans are processed.
+ */
 class NeutralLossDataSet extends AbstractXYDataset implements Task,
 	XYToolTipGenerator {
 
     private static final long serialVersionUID = 1L;
 
+    // Refresh interval (in milliseconds).
+    private static final long REDRAW_INTERVAL = 100L;
+
     private RawDataFile rawDataFile;
 
     private Range<Double> totalMZRange;
@@ -88,6 +97,7 @@ class NeutralLossDataSet extends AbstractXYDataset implements Task,
 
 	setStatus(TaskStatus.PROCESSING);
 	processedScans = 0;
+	long lastRedrawTime = System.currentTimeMillis();
 
 	for (int scanNumber : scanNumbers) {
 
@@ -161,13 +171,31 @@ class NeutralLossDataSet extends AbstractXYDataset implements Task,
 
 	    processedScans++;
 
+	    // Refresh every REDRAW_INTERVAL ms.
+	    if (System.currentTimeMillis() - lastRedrawTime > REDRAW_INTERVAL) {
+		refresh();
+		lastRedrawTime = System.currentTimeMillis();
+	    }
+
 	}
 
-	fireDatasetChanged();
+	refresh();
 	setStatus(TaskStatus.FINISHED);
 
     }
 
+    /**
+     * Notify data set listener (on the EDT).
+     */
+    private void refresh() {
+	SwingUtilities.invokeLater(new Runnable() {
+	    @Override
+	    public void run() {
+		fireDatasetChanged();
+	    }
+	});
+    }
+
     public void updateOnRangeDataPoints(String rangeType) {
 
 	NeutralLossPlot plot = visualizer.getPlot();
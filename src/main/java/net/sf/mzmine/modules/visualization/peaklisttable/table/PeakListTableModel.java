@@ -19,6 +19,7 @@
 
 package net.sf.mzmine.modules.visualization.peaklisttable.table;
 
+import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
 import net.sf.mzmine.datamodel.Feature;
@@ -27,6 +28,7 @@ import net.sf.mzmine.datamodel.PeakIdentity;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 
 public class PeakListTableModel extends AbstractTableModel {
 
@@ -36,6 +38,9 @@ public class PeakListTableModel extends AbstractTableModel {
     private static final long serialVersionUID = 1L;
     private PeakList peakList;
 
+    // Calculates the quality parameters of the peak list when first shown
+    private Thread qualityParametersThread;
+
     /**
      * Constructor, assign given dataset to this table
      */
@@ -144,10 +149,16 @@ public class PeakListTableModel extends AbstractTableModel {
 	    case DATAPOINTS:
 		return peak.getScanNumbers().length;
 	    case FWHM:
+		if (!qualityParametersReady(peak))
+		    return null;
                 return peak.getFWHM();
             case TF:
+		if (!qualityParametersReady(peak))
+		    return null;
                 return peak.getTailingFactor();
             case AF:
+		if (!qualityParametersReady(peak))
+		    return null;
                 return peak.getAsymmetryFactor();
 	    }
 
@@ -157,6 +168,38 @@ public class PeakListTableModel extends AbstractTableModel {
 
     }
 
+    /**
+     * Returns false while the quality parameters of the peak are not
+     * calculated yet. They are calculated for the whole peak list in a
+     * background thread rather than peak by peak on the event dispatch
+     * thread, and the table is updated when they are ready.
+     */
+    private boolean qualityParametersReady(Feature peak) {
+
+	if (!QualityParameters.isPending(peak))
+	    return true;
+
+	if (qualityParametersThread == null) {
+	    Runnable calculation = new Runnable() {
+		public void run() {
+		    QualityParameters.ensureQualityParameters(peakList);
+		    SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+			    fireTableRowsUpdated(0, getRowCount() - 1);
+			}
+		    });
+		}
+	    };
+	    qualityParametersThread = new Thread(calculation,
+		    "Quality parameters of " + peakList);
+	    qualityParametersThread.start();
+	}
+
+	// Peaks still marked after the calculation are calculated on access
+	return !qualityParametersThread.isAlive();
+
+    }
+
     public boolean isCellEditable(int row, int col) {
 
 	CommonColumnType columnType = getCommonColumn(col);
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.visualization.tic;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.Range;
+
+/**
+ * Chromatograms calculated by TICDataSet, shared by all TIC plots. A
+ * chromatogram is identified by its data file, scans, m/z range and plot
+ * type, so reopening a TIC window or adding a file to it does not read the
+ * scans again.
+ *
+ * The cache does not keep the data files alive; the chromatograms of a file
+ * are dropped when the file is garbage collected. The number of chromatograms
+ * per file is limited, the least recently used one is dropped first.
+ */
+class ChromatogramCache {
+
+    // Maximum number of chromatograms kept per data file.
+    private static final int MAX_CHROMATOGRAMS_PER_FILE = 20;
+
+    private static final Map<RawDataFile, Map<ChromatogramKey, Chromatogram>> chromatograms = new WeakHashMap<RawDataFile, Map<ChromatogramKey, Chromatogram>>();
+
+    /**
+     * Calculated values of one chromatogram. The arrays must not be modified
+     * after the chromatogram was added to the cache.
+     */
+    static class Chromatogram {
+
+        final double[] rtValues;
+        final double[] intensityValues;
+        final double[] basePeakValues;
+        final double intensityMin;
+        final double intensityMax;
+
+        Chromatogram(double[] rtValues, double[] intensityValues,
+                double[] basePeakValues, double intensityMin,
+                double intensityMax) {
+            this.rtValues = rtValues;
+            this.intensityValues = intensityValues;
+            this.basePeakValues = basePeakValues;
+            this.intensityMin = intensityMin;
+            this.intensityMax = intensityMax;
+        }
+    }
+
+    /**
+     * Identifies a chromatogram within the chromatograms of a data file. Does
+     * not reference the data file, so the file can be garbage collected.
+     */
+    private static class ChromatogramKey {
+
+        private final int[] scanNumbers;
+        private final Range<Double> mzRange;
+        private final TICPlotType plotType;
+
+        private ChromatogramKey(Scan scans[], Range<Double> mzRange,
+                TICPlotType plotType) {
+            scanNumbers = new int[scans.length];
+            for (int i = 0; i < scans.length; i++)
+                scanNumbers[i] = scans[i].getScanNumber();
+            this.mzRange = mzRange;
+            this.plotType = plotType;
+        }
+
+        @Override
+        public int hashCode() {
+            return (Arrays.hashCode(scanNumbers) * 31 + mzRange.hashCode())
+                    * 31 + plotType.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChromatogramKey))
+                return false;
+            ChromatogramKey key = (ChromatogramKey) obj;
+            return (plotType == key.plotType) && mzRange.equals(key.mzRange)
+                    && Arrays.equals(scanNumbers, key.scanNumbers);
+        }
+    }
+
+    /**
+     * Returns the cached chromatogram, or null if it has not been calculated
+     */
+    static Chromatogram get(RawDataFile dataFile, Scan scans[],
+            Range<Double> mzRange, TICPlotType plotType) {
+        synchronized (chromatograms) {
+            Map<ChromatogramKey, Chromatogram> fileChromatograms = chromatograms
+                    .get(dataFile);
+            if (fileChromatograms == null)
+                return null;
+            return fileChromatograms.get(new ChromatogramKey(scans, mzRange,
+                    plotType));
+        }
+    }
+
+    /**
+     * Adds a completely calculated chromatogram to the cache
+     */
+    static void put(RawDataFile dataFile, Scan scans[], Range<Double> mzRange,
+            TICPlotType plotType, Chromatogram chromatogram) {
+        synchronized (chromatograms) {
+            Map<ChromatogramKey, Chromatogram> fileChromatograms = chromatograms
+                    .get(dataFile);
+            if (fileChromatograms == null) {
+                fileChromatograms = new LinkedHashMap<ChromatogramKey, Chromatogram>(
+                        16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<ChromatogramKey, Chromatogram> eldest) {
+                        return size() > MAX_CHROMATOGRAMS_PER_FILE;
+                    }
+                };
+                chromatograms.put(dataFile, fileChromatograms);
+            }
+            fileChromatograms.put(new ChromatogramKey(scans, mzRange,
+                    plotType), chromatogram);
+        }
+    }
+
+}
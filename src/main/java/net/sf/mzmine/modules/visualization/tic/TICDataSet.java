@@ -31,10 +31,10 @@ import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.visualization.tic.ChromatogramCache.Chromatogram;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.ScanUtils;
 
 import org.jfree.data.xy.AbstractXYZDataset;
 
@@ -48,6 +48,11 @@ import com.google.common.primitives.Ints;
  * 
  * Added the possibility to switch to TIC plot type from a
  * "non-TICVisualizerWindow" context.
+ * 
+ * The values are published while they are calculated, so the plot shows the
+ * chromatogram growing. Completely calculated chromatograms are kept in the
+ * ChromatogramCache and reused by the following data sets of the same file,
+ * scans, m/z range and plot type.
  */
 public class TICDataSet extends AbstractXYZDataset implements Task {
 
@@ -69,7 +74,10 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
 
     private final Scan scans[];
     private final int totalScans;
-    private int processedScans;
+
+    // Number of scans whose values are calculated, the values are published
+    // by increasing this counter.
+    private volatile int processedScans;
 
     private final double[] basePeakValues;
     private final double[] intensityValues;
@@ -125,6 +133,25 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
         dataFile = file;
         this.scans = scans;
         totalScans = scans.length;
+        errorMessage = null;
+
+        this.plotType = plotType;
+
+        // Has this chromatogram been calculated before?
+        final Chromatogram chromatogram = ChromatogramCache.get(file, scans,
+                rangeMZ, plotType);
+        if (chromatogram != null) {
+
+            basePeakValues = chromatogram.basePeakValues;
+            intensityValues = chromatogram.intensityValues;
+            rtValues = chromatogram.rtValues;
+            intensityMin = chromatogram.intensityMin;
+            intensityMax = chromatogram.intensityMax;
+            processedScans = totalScans;
+            status = TaskStatus.FINISHED;
+            return;
+        }
+
         basePeakValues = new double[totalScans];
         intensityValues = new double[totalScans];
         rtValues = new double[totalScans];
@@ -133,9 +160,6 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
         intensityMax = 0.0;
 
         status = TaskStatus.WAITING;
-        errorMessage = null;
-
-        this.plotType = plotType;
 
         // Start-up the refresh task.
         MZmineCore.getTaskController().addTask(this, TaskPriority.HIGH);
@@ -175,6 +199,10 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
                 // Always redraw when we add last value.
                 refresh();
 
+                ChromatogramCache.put(dataFile, scans, mzRange, plotType,
+                        new Chromatogram(rtValues, intensityValues,
+                                basePeakValues, intensityMin, intensityMax));
+
                 LOG.info("TIC data calculated for " + dataFile);
                 status = TaskStatus.FINISHED;
             }
@@ -353,10 +381,30 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
             // Current scan.
             final Scan scan = scans[index];
 
-            // Determine base peak value.
-            final DataPoint basePeak = mzRange.encloses(scan
-                    .getDataPointMZRange()) ? scan.getHighestDataPoint()
-                    : ScanUtils.findBasePeak(scan, mzRange);
+            // Determine base peak value and total ion count. If the m/z
+            // range does not enclose the scan, both are determined from the
+            // data points within the range, which are read only once.
+            DataPoint basePeak = null;
+            double totalIonCount = 0.0;
+            if (mzRange.encloses(scan.getDataPointMZRange())) {
+
+                basePeak = scan.getHighestDataPoint();
+                totalIonCount = scan.getTIC();
+
+            } else {
+
+                for (final DataPoint dataPoint : scan
+                        .getDataPointsByMass(mzRange)) {
+
+                    totalIonCount += dataPoint.getIntensity();
+                    if (basePeak == null
+                            || dataPoint.getIntensity() > basePeak
+                                    .getIntensity()) {
+
+                        basePeak = dataPoint;
+                    }
+                }
+            }
             if (basePeak != null) {
 
                 basePeakValues[index] = basePeak.getMZ();
@@ -367,8 +415,7 @@ public class TICDataSet extends AbstractXYZDataset implements Task {
             if (plotType == TICPlotType.TIC) {
 
                 // Total ion count.
-                intensity = mzRange.encloses(scan.getDataPointMZRange()) ? scan
-                        .getTIC() : ScanUtils.calculateTIC(scan, mzRange);
+                intensity = totalIonCount;
 
             } else if (plotType == TICPlotType.BASEPEAK && basePeak != null) {
 
@@ -24,7 +24,6 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Collections;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -210,8 +209,8 @@ class TwoDBottomPanel extends JPanel implements TreeModelListener,
 	    }
 	}
 
-	Collections.sort(peakRows, new PeakListRowSorter(
-		SortingProperty.Intensity, SortingDirection.Descending));
+	new PeakListRowSorter(SortingProperty.Intensity,
+		SortingDirection.Descending).sort(peakRows);
 
 	if (threshold > peakRows.size())
 	    threshold = peakRows.size();
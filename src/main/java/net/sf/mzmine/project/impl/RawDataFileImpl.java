@@ -24,15 +24,24 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.annotation.Nonnull;
 
@@ -56,6 +65,13 @@ import com.google.common.primitives.Ints;
  * the storage ID is just deleted from the two TreeMaps. When the project is
  * saved, the contents of the dataPointsFile are consolidated - only data points
  * referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * 
+ * Newly stored blocks are compressed: the m/z values are delta-encoded (as
+ * float bits) and the whole block is deflated. The dataPointsStoredBytes map
+ * keeps the compressed size of each block; blocks without an entry in this map
+ * (e.g. loaded from a saved project) are plain float pairs. Identical blocks
+ * share one copy in the file. Once enough space is occupied by removed blocks,
+ * the file is compacted in a background thread.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -69,9 +85,30 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    dataMaxTIC;
     private final Hashtable<Integer, int[]> scanNumbersCache;
 
+    // Compaction is started when the removed blocks occupy at least this
+    // fraction of the data points file, and at least the given number of bytes
+    private static final double COMPACTION_UNUSED_FRACTION = 0.5;
+    private static final long COMPACTION_MIN_UNUSED_BYTES = 16L << 20;
+
     private ByteBuffer buffer = ByteBuffer.allocate(20000);
+    private byte compressedBuffer[] = new byte[20000];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final CRC32 checksum = new CRC32();
+
     private final TreeMap<Integer, Long> dataPointsOffsets;
     private final TreeMap<Integer, Integer> dataPointsLengths;
+    private final TreeMap<Integer, Integer> dataPointsStoredBytes;
+
+    // Deduplication of identical blocks: checksum of the stored bytes ->
+    // storage ID, and the number of storage IDs referencing each offset
+    private final HashMap<Long, Integer> blockChecksums;
+    private final HashMap<Long, Long> offsetChecksums;
+    private final HashMap<Long, Integer> offsetReferences;
+
+    // Temporary disk usage, read by the status bar without locking
+    private volatile long dataPointsFileLength, unusedBytes;
+    private boolean compactionScheduled = false, compacting = false;
 
     // Temporary file for scan data storage
     private File dataPointsFileName;
@@ -95,6 +132,10 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	scans = new Hashtable<Integer, StorableScan>();
 	dataPointsOffsets = new TreeMap<Integer, Long>();
 	dataPointsLengths = new TreeMap<Integer, Integer>();
+	dataPointsStoredBytes = new TreeMap<Integer, Integer>();
+	blockChecksums = new HashMap<Long, Integer>();
+	offsetChecksums = new HashMap<Long, Long>();
+	offsetReferences = new HashMap<Long, Integer>();
 
     }
 
@@ -135,6 +176,8 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	FileChannel fileChannel = dataPointsFile.getChannel();
 	fileChannel.lock();
 
+	dataPointsFileLength = dataPointsFile.length();
+
 	// Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
 	// bug #4171239. We will try to remove the temporary files in a
 	// shutdown hook registered in the main.ShutDownHook class
@@ -314,19 +357,11 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    openDataPointsFile(newFile);
 	}
 
-	final long currentOffset = dataPointsFile.length();
-
-	final int currentID;
-	if (!dataPointsOffsets.isEmpty())
-	    currentID = dataPointsOffsets.lastKey() + 1;
-	else
-	    currentID = 1;
+	final int currentID = getNextStorageID();
 
 	final int numOfDataPoints = dataPoints.length;
 
-	// Convert the dataPoints into a byte array. Each float takes 4 bytes,
-	// so we get the current float offset by dividing the size of the file
-	// by 4
+	// Each data point takes two 4-byte values
 	final int numOfBytes = numOfDataPoints * 2 * 4;
 
 	if (buffer.capacity() < numOfBytes) {
@@ -335,22 +370,85 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    buffer.clear();
 	}
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	// The m/z values are sorted, so the differences of their float bits are
+	// small numbers that compress well
+	IntBuffer intBuffer = buffer.asIntBuffer();
+	int previousMzBits = 0;
 	for (DataPoint dp : dataPoints) {
-	    floatBuffer.put((float) dp.getMZ());
-	    floatBuffer.put((float) dp.getIntensity());
+	    final int mzBits = Float.floatToIntBits((float) dp.getMZ());
+	    intBuffer.put(mzBits - previousMzBits);
+	    intBuffer.put(Float.floatToIntBits((float) dp.getIntensity()));
+	    previousMzBits = mzBits;
+	}
+
+	deflater.reset();
+	deflater.setInput(buffer.array(), 0, numOfBytes);
+	deflater.finish();
+	int storedBytes = 0;
+	while (!deflater.finished()) {
+	    if (storedBytes == compressedBuffer.length) {
+		compressedBuffer = Arrays.copyOf(compressedBuffer,
+			compressedBuffer.length * 2);
+	    }
+	    storedBytes += deflater.deflate(compressedBuffer, storedBytes,
+		    compressedBuffer.length - storedBytes);
 	}
 
+	// If an identical block is already stored, just point to it
+	checksum.reset();
+	checksum.update(compressedBuffer, 0, storedBytes);
+	final Long checksumKey = (checksum.getValue() << 32) ^ storedBytes;
+	final Integer duplicateID = blockChecksums.get(checksumKey);
+	if ((duplicateID != null)
+		&& (dataPointsLengths.get(duplicateID) == numOfDataPoints)
+		&& isStoredBlockEqual(duplicateID, storedBytes)) {
+	    final long duplicateOffset = dataPointsOffsets.get(duplicateID);
+	    dataPointsOffsets.put(currentID, duplicateOffset);
+	    dataPointsLengths.put(currentID, numOfDataPoints);
+	    dataPointsStoredBytes.put(currentID, storedBytes);
+	    offsetReferences.put(duplicateOffset,
+		    offsetReferences.get(duplicateOffset) + 1);
+	    return currentID;
+	}
+
+	final long currentOffset = dataPointsFile.length();
 	dataPointsFile.seek(currentOffset);
-	dataPointsFile.write(buffer.array(), 0, numOfBytes);
+	dataPointsFile.write(compressedBuffer, 0, storedBytes);
+	dataPointsFileLength = currentOffset + storedBytes;
 
 	dataPointsOffsets.put(currentID, currentOffset);
 	dataPointsLengths.put(currentID, numOfDataPoints);
+	dataPointsStoredBytes.put(currentID, storedBytes);
+	blockChecksums.put(checksumKey, currentID);
+	offsetChecksums.put(currentOffset, checksumKey);
+	offsetReferences.put(currentOffset, 1);
 
 	return currentID;
 
     }
 
+    /**
+     * Compares the first storedBytes of compressedBuffer with the block stored
+     * under given ID
+     */
+    private boolean isStoredBlockEqual(int ID, int storedBytes)
+	    throws IOException {
+
+	final Integer existingBytes = dataPointsStoredBytes.get(ID);
+	if ((existingBytes == null) || (existingBytes != storedBytes))
+	    return false;
+
+	byte existingBlock[] = new byte[storedBytes];
+	dataPointsFile.seek(dataPointsOffsets.get(ID));
+	dataPointsFile.readFully(existingBlock);
+
+	for (int i = 0; i < storedBytes; i++) {
+	    if (existingBlock[i] != compressedBuffer[i])
+		return false;
+	}
+	return true;
+    }
+
     public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
 
 	final Long currentOffset = dataPointsOffsets.get(ID);
@@ -368,16 +466,60 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	    buffer.clear();
 	}
 
-	dataPointsFile.seek(currentOffset);
-	dataPointsFile.read(buffer.array(), 0, numOfBytes);
+	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
 
-	FloatBuffer floatBuffer = buffer.asFloatBuffer();
+	final Integer storedBytes = dataPointsStoredBytes.get(ID);
 
-	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+	// Uncompressed block of float pairs
+	if (storedBytes == null) {
+	    dataPointsFile.seek(currentOffset);
+	    dataPointsFile.read(buffer.array(), 0, numOfBytes);
+
+	    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+
+	    for (int i = 0; i < numOfDataPoints; i++) {
+		float mz = floatBuffer.get();
+		float intensity = floatBuffer.get();
+		dataPoints[i] = new SimpleDataPoint(mz, intensity);
+	    }
+
+	    return dataPoints;
+	}
 
+	if (compressedBuffer.length < storedBytes) {
+	    compressedBuffer = new byte[storedBytes * 2];
+	}
+	dataPointsFile.seek(currentOffset);
+	dataPointsFile.readFully(compressedBuffer, 0, storedBytes);
+
+	inflater.reset();
+	inflater.setInput(compressedBuffer, 0, storedBytes);
+	int inflatedBytes = 0;
+	try {
+	    while (inflatedBytes < numOfBytes) {
+		final int n = inflater.inflate(buffer.array(), inflatedBytes,
+			numOfBytes - inflatedBytes);
+		if ((n == 0)
+			&& (inflater.finished() || inflater.needsInput()))
+		    break;
+		inflatedBytes += n;
+	    }
+	} catch (DataFormatException e) {
+	    throw new IOException("Corrupted data points (storage ID " + ID
+		    + "): " + e.toString());
+	}
+	if (inflatedBytes != numOfBytes) {
+	    throw new IOException("Corrupted data points (storage ID " + ID
+		    + "): expected " + numOfBytes + " bytes, got "
+		    + inflatedBytes);
+	}
+
+	IntBuffer intBuffer = buffer.asIntBuffer();
+	int mzBits = 0;
 	for (int i = 0; i < numOfDataPoints; i++) {
-	    float mz = floatBuffer.get();
-	    float intensity = floatBuffer.get();
+	    mzBits += intBuffer.get();
+	    float mz = Float.intBitsToFloat(mzBits);
+	    float intensity = Float.intBitsToFloat(intBuffer.get());
 	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
 	}
 
@@ -386,8 +528,247 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     }
 
     public synchronized void removeStoredDataPoints(int ID) throws IOException {
-	dataPointsOffsets.remove(ID);
-	dataPointsLengths.remove(ID);
+
+	final Long offset = dataPointsOffsets.remove(ID);
+	final Integer numOfDataPoints = dataPointsLengths.remove(ID);
+	final Integer storedBytes = dataPointsStoredBytes.remove(ID);
+
+	if ((offset == null) || (numOfDataPoints == null))
+	    return;
+
+	// Block still used by another storage ID
+	final Integer references = offsetReferences.get(offset);
+	if ((references != null) && (references > 1)) {
+	    offsetReferences.put(offset, references - 1);
+	    final Long checksumKey = offsetChecksums.get(offset);
+	    if ((checksumKey != null)
+		    && (Integer.valueOf(ID).equals(blockChecksums
+			    .get(checksumKey)))) {
+		for (Map.Entry<Integer, Long> entry : dataPointsOffsets
+			.entrySet()) {
+		    if (entry.getValue().equals(offset)) {
+			blockChecksums.put(checksumKey, entry.getKey());
+			break;
+		    }
+		}
+	    }
+	    return;
+	}
+
+	offsetReferences.remove(offset);
+	final Long checksumKey = offsetChecksums.remove(offset);
+	if (checksumKey != null)
+	    blockChecksums.remove(checksumKey);
+
+	if (storedBytes != null)
+	    unusedBytes += storedBytes;
+	else
+	    unusedBytes += numOfDataPoints * 2 * 4;
+
+	if ((!compactionScheduled) && (!compacting)
+		&& (unusedBytes >= COMPACTION_MIN_UNUSED_BYTES)
+		&& (unusedBytes >= COMPACTION_UNUSED_FRACTION
+			* dataPointsFileLength)) {
+	    compactionScheduled = true;
+	    Thread compactionThread = new Thread(new Runnable() {
+		@Override
+		public void run() {
+		    try {
+			compactDataPointsFile();
+		    } catch (IOException e) {
+			logger.warning("Could not compact file "
+				+ dataPointsFileName + ": " + e.toString());
+		    }
+		}
+	    }, "Data points file compaction thread");
+	    compactionThread.setDaemon(true);
+	    compactionThread.setPriority(Thread.MIN_PRIORITY);
+	    compactionThread.start();
+	}
+
+    }
+
+    /**
+     * Rewrites the data points file, keeping only the blocks that are still
+     * referenced by a storage ID. The storage IDs do not change.
+     * 
+     * Each block is read under a short lock and written to the new file
+     * without holding the lock, so data points can be read, stored and
+     * removed during the copy. Blocks stored in the meantime are copied when
+     * the new file replaces the old one.
+     */
+    public void compactDataPointsFile() throws IOException {
+
+	final RandomAccessFile oldFile;
+	final long oldLength;
+	final TreeMap<Long, Integer> blocks;
+	synchronized (this) {
+	    compactionScheduled = false;
+	    if (compacting || (dataPointsFile == null) || (unusedBytes == 0)
+		    || (!dataPointsFile.getChannel().isOpen()))
+		return;
+	    compacting = true;
+	    oldFile = dataPointsFile;
+	    oldLength = dataPointsFileLength;
+	    blocks = getReferencedBlocks();
+	}
+
+	File newFileName = null;
+	RandomAccessFile newFile = null;
+	boolean replaced = false;
+
+	try {
+	    newFileName = RawDataFileImpl.createNewDataPointsFile();
+	    newFile = new RandomAccessFile(newFileName, "rw");
+	    newFile.getChannel().lock();
+	    newFileName.deleteOnExit();
+
+	    HashMap<Long, Long> movedOffsets = new HashMap<Long, Long>();
+	    byte copyBuffer[] = new byte[1 << 16];
+	    long newOffset = 0;
+
+	    for (Map.Entry<Long, Integer> block : blocks.entrySet()) {
+		final int bytes = block.getValue();
+		if (copyBuffer.length < bytes)
+		    copyBuffer = new byte[bytes * 2];
+		synchronized (this) {
+		    // The file was closed
+		    if (!oldFile.getChannel().isOpen())
+			return;
+		    oldFile.seek(block.getKey());
+		    oldFile.readFully(copyBuffer, 0, bytes);
+		}
+		newFile.write(copyBuffer, 0, bytes);
+		movedOffsets.put(block.getKey(), newOffset);
+		newOffset += bytes;
+	    }
+
+	    synchronized (this) {
+
+		if (!oldFile.getChannel().isOpen())
+		    return;
+
+		// Copy the blocks stored during the copy. Blocks removed during
+		// the copy are left in the new file as unused bytes.
+		long usedBytes = 0;
+		for (Map.Entry<Long, Integer> block : getReferencedBlocks()
+			.entrySet()) {
+		    final int bytes = block.getValue();
+		    usedBytes += bytes;
+		    if (movedOffsets.containsKey(block.getKey()))
+			continue;
+		    if (copyBuffer.length < bytes)
+			copyBuffer = new byte[bytes * 2];
+		    oldFile.seek(block.getKey());
+		    oldFile.readFully(copyBuffer, 0, bytes);
+		    newFile.write(copyBuffer, 0, bytes);
+		    movedOffsets.put(block.getKey(), newOffset);
+		    newOffset += bytes;
+		}
+
+		for (Map.Entry<Integer, Long> entry : dataPointsOffsets
+			.entrySet())
+		    entry.setValue(movedOffsets.get(entry.getValue()));
+
+		HashMap<Long, Long> newOffsetChecksums = new HashMap<Long, Long>();
+		for (Map.Entry<Long, Long> entry : offsetChecksums.entrySet()) {
+		    Long movedOffset = movedOffsets.get(entry.getKey());
+		    if (movedOffset != null)
+			newOffsetChecksums.put(movedOffset, entry.getValue());
+		}
+		offsetChecksums.clear();
+		offsetChecksums.putAll(newOffsetChecksums);
+
+		HashMap<Long, Integer> newOffsetReferences = new HashMap<Long, Integer>();
+		for (Map.Entry<Long, Integer> entry : offsetReferences
+			.entrySet()) {
+		    Long movedOffset = movedOffsets.get(entry.getKey());
+		    if (movedOffset != null)
+			newOffsetReferences.put(movedOffset, entry.getValue());
+		}
+		offsetReferences.clear();
+		offsetReferences.putAll(newOffsetReferences);
+
+		oldFile.close();
+		dataPointsFileName.delete();
+
+		dataPointsFile = newFile;
+		dataPointsFileName = newFileName;
+		dataPointsFileLength = newOffset;
+		unusedBytes = newOffset - usedBytes;
+		replaced = true;
+
+	    }
+
+	    logger.info("Compacted data points file of " + dataFileName
+		    + " from " + (oldLength >> 20) + " MB to "
+		    + (newOffset >> 20) + " MB");
+
+	} finally {
+	    // Unless the new file replaced the old one, the old file is still
+	    // intact, just drop the new one
+	    if (!replaced) {
+		if (newFile != null)
+		    newFile.close();
+		if (newFileName != null)
+		    newFileName.delete();
+	    }
+	    synchronized (this) {
+		compacting = false;
+	    }
+	}
+
+    }
+
+    /**
+     * Returns the offsets and sizes in bytes of the blocks referenced by the
+     * storage IDs, sorted by offset
+     */
+    private TreeMap<Long, Integer> getReferencedBlocks() {
+	TreeMap<Long, Integer> blocks = new TreeMap<Long, Integer>();
+	for (Map.Entry<Integer, Long> entry : dataPointsOffsets.entrySet()) {
+	    final Integer storedBytes = dataPointsStoredBytes.get(entry
+		    .getKey());
+	    final int bytes = (storedBytes != null) ? storedBytes
+		    : dataPointsLengths.get(entry.getKey()) * 2 * 4;
+	    blocks.put(entry.getValue(), bytes);
+	}
+	return blocks;
+    }
+
+    /**
+     * Returns the current size of the temporary data points file in bytes
+     */
+    public long getDataPointsFileSize() {
+	return dataPointsFileLength;
+    }
+
+    /**
+     * Returns the number of bytes in the data points file that are occupied by
+     * removed data points and will be reclaimed by the next compaction
+     */
+    public long getUnusedDataPointsFileSize() {
+	return unusedBytes;
+    }
+
+    /**
+     * Returns a storage ID that is not used by any stored data points.
+     * Subclasses which keep data points outside of the data points file must
+     * make sure their storage IDs are not reused.
+     */
+    protected synchronized int getNextStorageID() {
+	if (!dataPointsOffsets.isEmpty())
+	    return dataPointsOffsets.lastKey() + 1;
+	else
+	    return 1;
+    }
+
+    /**
+     * Returns the storage IDs of all data points that can be read using
+     * readDataPoints(), in ascending order
+     */
+    public synchronized SortedSet<Integer> getStorageIDs() {
+	return new TreeSet<Integer>(dataPointsOffsets.keySet());
     }
 
     public synchronized void addScan(Scan newScan) throws IOException {
@@ -414,13 +795,21 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
      */
     public synchronized RawDataFile finishWriting() throws IOException {
 	for (StorableScan scan : scans.values()) {
-	    scan.updateValues();
+	    updateScanValues(scan);
 	}
 	logger.finest("Writing of scans to file " + dataPointsFileName
 		+ " finished");
 	return this;
     }
 
+    /**
+     * Recalculates the m/z range, base peak and TIC of the scan from its
+     * stored data points
+     */
+    protected void updateScanValues(StorableScan scan) {
+	scan.updateValues();
+    }
+
     public @Nonnull Range<Double> getDataMZRange() {
 	return getDataMZRange(0);
     }
@@ -512,12 +901,22 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 	return dataPointsLengths;
     }
 
+    /**
+     * Returns the compressed sizes of the stored blocks. Storage IDs missing
+     * from this map are stored as uncompressed float pairs.
+     */
+    public synchronized TreeMap<Integer, Integer> getDataPointsStoredBytes() {
+	return dataPointsStoredBytes;
+    }
+
     public synchronized void close() {
 	try {
 	    if(dataPointsFileName != null) {
     	    	dataPointsFile.close();
     	    	dataPointsFileName.delete();
 	    }
+	    deflater.end();
+	    inflater.end();
 	} catch (IOException e) {
 	    logger.warning("Could not close file " + dataPointsFileName + ": "
 		    + e.toString());
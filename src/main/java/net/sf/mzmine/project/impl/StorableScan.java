@@ -230,27 +230,35 @@ public class StorableScan implements Scan {
 	return retentionTime;
     }
 
-    void updateValues() {
+    /**
+     * Calculates the m/z range, base peak and TIC from the data points. The
+     * values are only assigned when complete, because scans whose values were
+     * not set in advance calculate them when first requested, possibly from
+     * multiple threads.
+     */
+    synchronized void updateValues() {
 	DataPoint dataPoints[] = getDataPoints();
 
 	// find m/z range and base peak
 	if (dataPoints.length > 0) {
 
-	    basePeak = dataPoints[0];
-	    mzRange = Range.singleton(dataPoints[0].getMZ());
+	    DataPoint newBasePeak = dataPoints[0];
+	    Range<Double> newMzRange = Range.singleton(dataPoints[0].getMZ());
 	    double tic = 0;
 
 	    for (DataPoint dp : dataPoints) {
 
-		if (dp.getIntensity() > basePeak.getIntensity())
-		    basePeak = dp;
+		if (dp.getIntensity() > newBasePeak.getIntensity())
+		    newBasePeak = dp;
 
-		mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+		newMzRange = newMzRange.span(Range.singleton(dp.getMZ()));
 
 		tic += dp.getIntensity();
 
 	    }
 
+	    basePeak = newBasePeak;
+	    mzRange = newMzRange;
 	    totalIonCurrent = new Double(tic);
 
 	} else {
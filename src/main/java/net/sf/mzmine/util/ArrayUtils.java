@@ -19,6 +19,8 @@
 
 package net.sf.mzmine.util;
 
+import net.sf.mzmine.datamodel.DataPoint;
+
 public class ArrayUtils {
 
     public static <T> int indexOf(T needle, T[] haystack) {
@@ -30,4 +32,38 @@ public class ArrayUtils {
 	return -1;
     }
 
+    /**
+     * Returns the position of the first value in the sorted array equal to or
+     * above the given value, or the length of the array if all values are
+     * below it
+     */
+    public static int lowerBound(double sortedValues[], double value) {
+	int low = 0, high = sortedValues.length;
+	while (low < high) {
+	    final int middle = (low + high) >>> 1;
+	    if (sortedValues[middle] < value)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    /**
+     * Returns the position of the first data point in the array sorted by m/z
+     * with the m/z equal to or above the given m/z, or the length of the
+     * array if all m/z values are below it
+     */
+    public static int lowerBound(DataPoint sortedDataPoints[], double mz) {
+	int low = 0, high = sortedDataPoints.length;
+	while (low < high) {
+	    final int middle = (low + high) >>> 1;
+	    if (sortedDataPoints[middle].getMZ() < mz)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
 }
@@ -59,4 +59,48 @@ public class CompressionUtils {
 	return resultTotal;
     }
 
+    /**
+     * Decompress the zlib-compressed bytes when the size of the decompressed
+     * data is known in advance. This avoids the repeated reallocation of the
+     * result array.
+     * 
+     */
+    public static byte[] decompress(byte compressedBytes[],
+	    int decompressedLength) throws DataFormatException {
+
+	Inflater decompresser = new Inflater();
+
+	decompresser.setInput(compressedBytes);
+
+	byte[] result = new byte[decompressedLength];
+	int resultLength = 0;
+
+	while (resultLength < decompressedLength) {
+	    int inflated = decompresser.inflate(result, resultLength,
+		    decompressedLength - resultLength);
+	    if ((inflated == 0)
+		    && (decompresser.finished() || decompresser.needsInput()))
+		break;
+	    resultLength += inflated;
+	}
+
+	// If there is more data than expected, decompress again without the
+	// length limit
+	if ((resultLength == decompressedLength) && (!decompresser.finished())
+		&& (decompresser.inflate(new byte[1]) > 0)) {
+	    decompresser.end();
+	    return decompress(compressedBytes);
+	}
+
+	decompresser.end();
+
+	if (resultLength < decompressedLength) {
+	    byte shorterResult[] = new byte[resultLength];
+	    System.arraycopy(result, 0, shorterResult, 0, resultLength);
+	    return shorterResult;
+	}
+
+	return result;
+    }
+
 }
@@ -19,14 +19,18 @@
 
 package net.sf.mzmine.util;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
 
-import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.PeakListRow;
 
 /**
  * Compare peak list rows either by ID, average m/z or median area of peaks
  * 
+ * The median values are calculated on each comparison. To sort many rows, use
+ * sort(), which calculates the value of each row once.
  */
 public class PeakListRowSorter implements Comparator<PeakListRow> {
 
@@ -51,28 +55,66 @@ public class PeakListRowSorter implements Comparator<PeakListRow> {
 
     }
 
+    /**
+     * Sorts the rows, calculating the value of each row once. Rows of equal
+     * values keep their order, as in Arrays.sort(rows, this).
+     */
+    public void sort(PeakListRow rows[]) {
+
+	final double values[] = new double[rows.length];
+	Integer order[] = new Integer[rows.length];
+	for (int i = 0; i < rows.length; i++) {
+	    values[i] = getValue(rows[i]);
+	    order[i] = i;
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		if (direction == SortingDirection.Ascending)
+		    return Double.compare(values[i1], values[i2]);
+		else
+		    return Double.compare(values[i2], values[i1]);
+	    }
+	});
+
+	PeakListRow unsortedRows[] = rows.clone();
+	for (int i = 0; i < rows.length; i++)
+	    rows[i] = unsortedRows[order[i]];
+
+    }
+
+    /**
+     * Sorts the rows of the list, calculating the value of each row once
+     */
+    public void sort(List<PeakListRow> rows) {
+	PeakListRow sortedRows[] = rows.toArray(new PeakListRow[0]);
+	sort(sortedRows);
+	ListIterator<PeakListRow> iterator = rows.listIterator();
+	for (PeakListRow row : sortedRows) {
+	    iterator.next();
+	    iterator.set(row);
+	}
+    }
+
     private double getValue(PeakListRow row) {
 	switch (property) {
 	case Area:
-	    Feature[] areaPeaks = row.getPeaks();
-	    double[] peakAreas = new double[areaPeaks.length];
+	    double[] peakAreas = new double[row.getNumberOfPeaks()];
 	    for (int i = 0; i < peakAreas.length; i++)
-		peakAreas[i] = areaPeaks[i].getArea();
+		peakAreas[i] = row.getPeak(i).getArea();
 	    double medianArea = MathUtils.calcQuantile(peakAreas, 0.5);
 	    return medianArea;
 	case Intensity:
-	    Feature[] intensityPeaks = row.getPeaks();
-	    double[] peakIntensities = new double[intensityPeaks.length];
-	    for (int i = 0; i < intensityPeaks.length; i++)
-		peakIntensities[i] = intensityPeaks[i].getArea();
+	    double[] peakIntensities = new double[row.getNumberOfPeaks()];
+	    for (int i = 0; i < peakIntensities.length; i++)
+		peakIntensities[i] = row.getPeak(i).getArea();
 	    double medianIntensity = MathUtils.calcQuantile(peakIntensities,
 		    0.5);
 	    return medianIntensity;
 	case Height:
-	    Feature[] heightPeaks = row.getPeaks();
-	    double[] peakHeights = new double[heightPeaks.length];
+	    double[] peakHeights = new double[row.getNumberOfPeaks()];
 	    for (int i = 0; i < peakHeights.length; i++)
-		peakHeights[i] = heightPeaks[i].getHeight();
+		peakHeights[i] = row.getPeak(i).getHeight();
 	    double medianHeight = MathUtils.calcQuantile(peakHeights, 0.5);
 	    return medianHeight;
 	case MZ:
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+
+import com.google.common.collect.Range;
+
+/**
+ * MS/MS scans (all scans of MS level 2 or higher) of a raw data file sorted by
+ * precursor m/z, with their MS level, retention time, base peak intensity and
+ * parent MS scan. Finding the MS/MS scans of a precursor m/z range takes a
+ * binary search instead of reading all scans of the file.
+ *
+ * The index of a data file is built on first use and shared until the file is
+ * garbage collected. Data files must not be modified after the index was
+ * built.
+ */
+public class PrecursorIndex {
+
+    /**
+     * Builds the index of one data file once. The index is built while
+     * holding the lock of the holder only, so building the index of a large
+     * file does not block the indexes of the other files.
+     */
+    private static class IndexHolder {
+
+	private PrecursorIndex index;
+
+	synchronized PrecursorIndex getIndex(RawDataFile dataFile) {
+	    if (index == null)
+		index = new PrecursorIndex(dataFile);
+	    return index;
+	}
+    }
+
+    private static final Map<RawDataFile, IndexHolder> indexes = new WeakHashMap<RawDataFile, IndexHolder>();
+
+    // MS/MS scans, sorted by precursor m/z
+    private final int scanNumbers[];
+    private final int msLevels[];
+    private final double precursorMZValues[];
+    private final double rtValues[];
+    private final double basePeakIntensities[];
+    private final int parentScanNumbers[];
+
+    /**
+     * Returns the precursor index of given data file, building it if necessary
+     */
+    public static @Nonnull PrecursorIndex getIndex(@Nonnull RawDataFile dataFile) {
+	IndexHolder holder;
+	synchronized (indexes) {
+	    holder = indexes.get(dataFile);
+	    if (holder == null) {
+		holder = new IndexHolder();
+		indexes.put(dataFile, holder);
+	    }
+	}
+	return holder.getIndex(dataFile);
+    }
+
+    private PrecursorIndex(RawDataFile dataFile) {
+
+	final int allScanNumbers[] = dataFile.getScanNumbers();
+
+	final int unsortedScanNumbers[] = new int[allScanNumbers.length];
+	final int unsortedMSLevels[] = new int[allScanNumbers.length];
+	final double unsortedMZValues[] = new double[allScanNumbers.length];
+	final double unsortedRTValues[] = new double[allScanNumbers.length];
+	final double unsortedIntensities[] = new double[allScanNumbers.length];
+	final int unsortedParentScanNumbers[] = new int[allScanNumbers.length];
+
+	// The parent of an MS/MS scan is the last MS scan before it
+	int parentScanNumber = -1;
+	int count = 0;
+	for (int scanNumber : allScanNumbers) {
+	    Scan scan = dataFile.getScan(scanNumber);
+	    if (scan.getMSLevel() < 2) {
+		if (scan.getMSLevel() == 1)
+		    parentScanNumber = scanNumber;
+		continue;
+	    }
+
+	    DataPoint basePeak = scan.getHighestDataPoint();
+	    unsortedScanNumbers[count] = scanNumber;
+	    unsortedMSLevels[count] = scan.getMSLevel();
+	    unsortedMZValues[count] = scan.getPrecursorMZ();
+	    unsortedRTValues[count] = scan.getRetentionTime();
+	    unsortedIntensities[count] = (basePeak == null) ? 0 : basePeak
+		    .getIntensity();
+	    unsortedParentScanNumbers[count] = parentScanNumber;
+	    count++;
+	}
+
+	// Sort by precursor m/z, keeping the scan number order of equal m/z
+	Integer order[] = new Integer[count];
+	for (int i = 0; i < count; i++)
+	    order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Double.compare(unsortedMZValues[i1],
+			unsortedMZValues[i2]);
+	    }
+	});
+
+	scanNumbers = new int[count];
+	msLevels = new int[count];
+	precursorMZValues = new double[count];
+	rtValues = new double[count];
+	basePeakIntensities = new double[count];
+	parentScanNumbers = new int[count];
+	for (int i = 0; i < count; i++) {
+	    scanNumbers[i] = unsortedScanNumbers[order[i]];
+	    msLevels[i] = unsortedMSLevels[order[i]];
+	    precursorMZValues[i] = unsortedMZValues[order[i]];
+	    rtValues[i] = unsortedRTValues[order[i]];
+	    basePeakIntensities[i] = unsortedIntensities[order[i]];
+	    parentScanNumbers[i] = unsortedParentScanNumbers[order[i]];
+	}
+
+    }
+
+    /**
+     * Returns the position of the first MS/MS scan which may have its
+     * precursor m/z within given range
+     */
+    private int findFirst(Range<Double> mzRange) {
+	if (!mzRange.hasLowerBound())
+	    return 0;
+	return ArrayUtils.lowerBound(precursorMZValues,
+		mzRange.lowerEndpoint());
+    }
+
+    /**
+     * Returns the positions of the MS/MS scans within given retention time
+     * range and with precursor m/z within given m/z range, in the order of
+     * their scan numbers. The values of the scans are accessed by these
+     * positions.
+     */
+    public @Nonnull int[] findFragmentScans(@Nonnull Range<Double> rtRange,
+	    @Nonnull Range<Double> mzRange) {
+
+	int matches[] = new int[16];
+	int count = 0;
+	for (int i = findFirst(mzRange); i < precursorMZValues.length; i++) {
+	    if (mzRange.hasUpperBound()
+		    && (precursorMZValues[i] > mzRange.upperEndpoint()))
+		break;
+	    if (!mzRange.contains(precursorMZValues[i])
+		    || !rtRange.contains(rtValues[i]))
+		continue;
+	    if (count == matches.length)
+		matches = Arrays.copyOf(matches, count * 2);
+	    matches[count++] = i;
+	}
+
+	// Restore the scan number order
+	Integer order[] = new Integer[count];
+	for (int i = 0; i < count; i++)
+	    order[i] = matches[i];
+	Arrays.sort(order, new Comparator<Integer>() {
+	    @Override
+	    public int compare(Integer i1, Integer i2) {
+		return Integer.compare(scanNumbers[i1], scanNumbers[i2]);
+	    }
+	});
+	for (int i = 0; i < count; i++)
+	    matches[i] = order[i];
+
+	return Arrays.copyOf(matches, count);
+
+    }
+
+    /**
+     * Finds the MS2 scan with highest base peak intensity, within given
+     * retention time range and with precursor m/z within given m/z range.
+     * Returns -1 if there is no such scan with a non-empty spectrum.
+     */
+    public int findBestFragmentScan(@Nonnull Range<Double> rtRange,
+	    @Nonnull Range<Double> mzRange) {
+
+	int bestFragmentScan = -1;
+	double topBasePeak = 0;
+
+	for (int i = findFirst(mzRange); i < precursorMZValues.length; i++) {
+	    if (mzRange.hasUpperBound()
+		    && (precursorMZValues[i] > mzRange.upperEndpoint()))
+		break;
+	    if ((msLevels[i] != 2) || !mzRange.contains(precursorMZValues[i])
+		    || !rtRange.contains(rtValues[i]))
+		continue;
+
+	    final double basePeakIntensity = basePeakIntensities[i];
+	    if ((basePeakIntensity == 0) || (basePeakIntensity < topBasePeak))
+		continue;
+
+	    // Of scans with equal intensity, prefer the first one
+	    if ((basePeakIntensity > topBasePeak)
+		    || (scanNumbers[i] < bestFragmentScan)) {
+		bestFragmentScan = scanNumbers[i];
+		topBasePeak = basePeakIntensity;
+	    }
+	}
+
+	return bestFragmentScan;
+
+    }
+
+    public int getScanNumber(int position) {
+	return scanNumbers[position];
+    }
+
+    public int getMSLevel(int position) {
+	return msLevels[position];
+    }
+
+    public double getPrecursorMZ(int position) {
+	return precursorMZValues[position];
+    }
+
+    public double getRetentionTime(int position) {
+	return rtValues[position];
+    }
+
+    /**
+     * Returns the intensity of the base peak of the MS/MS scan, or 0 if the
+     * scan has no data points
+     */
+    public double getBasePeakIntensity(int position) {
+	return basePeakIntensities[position];
+    }
+
+    /**
+     * Returns the number of the last MS scan before the MS/MS scan, or -1 if
+     * there is none
+     */
+    public int getParentScanNumber(int position) {
+	return parentScanNumbers[position];
+    }
+
+}
@@ -466,32 +466,8 @@ public class ScanUtils {
 	assert rtRange != null;
 	assert mzRange != null;
 
-	int bestFragmentScan = -1;
-	double topBasePeak = 0;
-
-	int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
-
-	for (int number : fragmentScanNumbers) {
-
-	    Scan scan = dataFile.getScan(number);
-
-	    if (mzRange.contains(scan.getPrecursorMZ())) {
-
-		DataPoint basePeak = scan.getHighestDataPoint();
-
-		// If there is no peak in the scan, basePeak can be null
-		if (basePeak == null)
-		    continue;
-
-		if (basePeak.getIntensity() > topBasePeak) {
-		    bestFragmentScan = scan.getScanNumber();
-		    topBasePeak = basePeak.getIntensity();
-		}
-	    }
-
-	}
-
-	return bestFragmentScan;
+	return PrecursorIndex.getIndex(dataFile).findBestFragmentScan(rtRange,
+		mzRange);
 
     }
 
@@ -47,11 +47,13 @@ public class PeakXICComponent extends JComponent {
     public static final Border componentBorder = BorderFactory
             .createLineBorder(Color.lightGray);
 
-    private Feature peak;
-
     private Range<Double> rtRange;
     private double maxIntensity;
 
+    // Retention time and intensity of the peak in each scan, read once as
+    // the component is painted for each row of a peak list table
+    private double retentionTimes[], intensities[];
+
     /**
      * @param peak
      *            Picked peak to plot
@@ -66,13 +68,30 @@ public class PeakXICComponent extends JComponent {
      */
     public PeakXICComponent(Feature peak, double maxIntensity) {
 
-        this.peak = peak;
-
         // find data boundaries
         RawDataFile dataFile = peak.getDataFile();
         this.rtRange = dataFile.getDataRTRange();
         this.maxIntensity = maxIntensity;
 
+        // get scan numbers, one data point per each scan
+        int scanNumbers[] = peak.getScanNumbers();
+        retentionTimes = new double[scanNumbers.length];
+        intensities = new double[scanNumbers.length];
+
+        // find one datapoint with maximum intensity in each scan
+        for (int i = 0; i < scanNumbers.length; i++) {
+
+            DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+
+            if (dataPoint != null)
+                intensities[i] = dataPoint.getIntensity();
+
+            // get retention time (X value)
+            retentionTimes[i] = dataFile.getScan(scanNumbers[i])
+                    .getRetentionTime();
+
+        }
+
         this.setBorder(componentBorder);
 
         // add tooltip
@@ -94,31 +113,19 @@ public class PeakXICComponent extends JComponent {
         // get canvas size
         Dimension size = getSize();
 
-        // get scan numbers, one data point per each scan
-        RawDataFile dataFile = peak.getDataFile();
-        int scanNumbers[] = peak.getScanNumbers();
-
         // If we have no data, just return
-        if (scanNumbers.length == 0)
+        if (retentionTimes.length == 0)
             return;
 
         // for each datapoint, find [X:Y] coordinates of its point in painted
         // image
-        int xValues[] = new int[scanNumbers.length];
-        int yValues[] = new int[scanNumbers.length];
+        int xValues[] = new int[retentionTimes.length];
+        int yValues[] = new int[retentionTimes.length];
 
-        // find one datapoint with maximum intensity in each scan
-        for (int i = 0; i < scanNumbers.length; i++) {
-
-            double dataPointIntensity = 0;
-            DataPoint dataPoint = peak.getDataPoint(scanNumbers[i]);
+        for (int i = 0; i < retentionTimes.length; i++) {
 
-            if (dataPoint != null)
-                dataPointIntensity = dataPoint.getIntensity();
-
-            // get retention time (X value)
-            double retentionTime = dataFile.getScan(scanNumbers[i])
-                    .getRetentionTime();
+            double dataPointIntensity = intensities[i];
+            double retentionTime = retentionTimes[i];
 
             // calculate [X:Y] coordinates
             final double rtLen = rtRange.upperEndpoint()
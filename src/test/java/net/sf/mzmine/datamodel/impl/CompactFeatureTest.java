@@ -0,0 +1,272 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class CompactFeatureTest {
+
+    private static final RawDataFile dataFile = FixtureUtils.createStub(
+	    RawDataFile.class, "test file", new StubMethods() {
+		@Override
+		public Object invoke(String name, Object args[]) {
+		    throw new UnsupportedOperationException(name);
+		}
+	    });
+
+    /**
+     * The copy has the same values, data points, ranges, quality parameters,
+     * isotope pattern and charge as the copied peak, including scans without
+     * a data point at the start, middle and end of the peak
+     */
+    @Test
+    public void testCopyConstructor() {
+
+	Random random = new Random(1);
+	for (int n = 0; n < 200; n++) {
+	    SimpleFeature peak = createPeak(random, 1 + random.nextInt(40),
+		    random.nextInt(3));
+	    if (random.nextBoolean()) {
+		peak.setFWHM(random.nextDouble());
+		peak.setTailingFactor(random.nextDouble());
+		peak.setAsymmetryFactor(random.nextDouble());
+	    }
+	    if (random.nextBoolean()) {
+		peak.setIsotopePattern(new SimpleIsotopePattern(
+			new DataPoint[] { new SimpleDataPoint(peak.getMZ(), 1) },
+			IsotopePatternStatus.DETECTED, "test"));
+		peak.setCharge(1 + random.nextInt(3));
+	    }
+
+	    assertSamePeak(peak, new CompactFeature(peak));
+	    assertSamePeak(peak, new CompactFeature(new CompactFeature(peak)));
+	}
+
+    }
+
+    /**
+     * The data points of a peak without data points in all scans are found
+     * by scan number, and scans outside of the peak have none
+     */
+    @Test
+    public void testNullDataPoints() {
+
+	int scanNumbers[] = { 3, 4, 7, 8, 9, 15 };
+	DataPoint dataPoints[] = { null, new SimpleDataPoint(100.1, 10), null,
+		new SimpleDataPoint(100.2, 30), new SimpleDataPoint(100.3, 20),
+		null };
+	CompactFeature peak = new CompactFeature(dataFile, 100.2, 1.5, 30,
+		50, scanNumbers, dataPoints, FeatureStatus.DETECTED, 8, -1,
+		Range.closed(1.0, 2.0), Range.closed(100.1, 100.3),
+		Range.closed(10.0, 30.0));
+
+	Assert.assertArrayEquals(scanNumbers, peak.getScanNumbers());
+	for (int scanNumber = 0; scanNumber < 20; scanNumber++) {
+	    DataPoint expected = null;
+	    for (int i = 0; i < scanNumbers.length; i++) {
+		if (scanNumbers[i] == scanNumber)
+		    expected = dataPoints[i];
+	    }
+	    assertSameDataPoint(expected, peak.getDataPoint(scanNumber));
+	}
+
+	// A peak may have no data point at all
+	peak = new CompactFeature(dataFile, 100.2, 1.5, 0, 0, scanNumbers,
+		new DataPoint[scanNumbers.length], FeatureStatus.DETECTED, 8,
+		-1, null, null, null);
+	for (int scanNumber : scanNumbers)
+	    Assert.assertNull(peak.getDataPoint(scanNumber));
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoScans() {
+	new CompactFeature(dataFile, 100, 1, 10, 10, new int[0],
+		new DataPoint[0], FeatureStatus.DETECTED, 1, -1,
+		Range.singleton(1.0), Range.singleton(100.0),
+		Range.singleton(10.0));
+    }
+
+    /**
+     * The ranges are never null. A missing range is the single value of the
+     * RT, m/z or height of the peak.
+     */
+    @Test
+    public void testRanges() {
+
+	CompactFeature peak = new CompactFeature(dataFile, 100.2, 1.5, 30, 50,
+		new int[] { 1, 2 }, new DataPoint[] {
+			new SimpleDataPoint(100.1, 30),
+			new SimpleDataPoint(100.3, 20) },
+		FeatureStatus.DETECTED, 1, -1, Range.closed(1.0, 2.0),
+		Range.closed(100.1, 100.3), Range.closed(20.0, 30.0));
+	Assert.assertEquals(Range.closed(1.0, 2.0),
+		peak.getRawDataPointsRTRange());
+	Assert.assertEquals(Range.closed(100.1, 100.3),
+		peak.getRawDataPointsMZRange());
+	Assert.assertEquals(Range.closed(20.0, 30.0),
+		peak.getRawDataPointsIntensityRange());
+
+	peak = new CompactFeature(dataFile, 100.2, 1.5, 30, 50, new int[] { 1,
+		2 }, new DataPoint[2], FeatureStatus.UNKNOWN, 1, -1, null,
+		null, null);
+	Assert.assertEquals(Range.singleton(1.5),
+		peak.getRawDataPointsRTRange());
+	Assert.assertEquals(Range.singleton(100.2),
+		peak.getRawDataPointsMZRange());
+	Assert.assertEquals(Range.singleton(30.0),
+		peak.getRawDataPointsIntensityRange());
+
+	// Copies of peaks without ranges
+	SimpleFeature simplePeak = new SimpleFeature(dataFile, 100.2, 1.5, 30,
+		50, new int[] { 1, 2 }, new DataPoint[2],
+		FeatureStatus.UNKNOWN, 1, -1, null, null, null);
+	peak = new CompactFeature(simplePeak);
+	Assert.assertEquals(Range.singleton(1.5),
+		peak.getRawDataPointsRTRange());
+	Assert.assertEquals(Range.singleton(100.2),
+		peak.getRawDataPointsMZRange());
+	Assert.assertEquals(Range.singleton(30.0),
+		peak.getRawDataPointsIntensityRange());
+
+    }
+
+    /**
+     * Quality parameters which are not set are null, also after they were
+     * set to null again
+     */
+    @Test
+    public void testQualityParameters() {
+
+	CompactFeature peak = new CompactFeature(createPeak(new Random(2), 10,
+		0));
+	Assert.assertNull(peak.getFWHM());
+	Assert.assertNull(peak.getTailingFactor());
+	Assert.assertNull(peak.getAsymmetryFactor());
+
+	peak.setFWHM(0.5);
+	peak.setTailingFactor(1.25);
+	peak.setAsymmetryFactor(0.75);
+	Assert.assertEquals(0.5, peak.getFWHM(), 0);
+	Assert.assertEquals(1.25, peak.getTailingFactor(), 0);
+	Assert.assertEquals(0.75, peak.getAsymmetryFactor(), 0);
+
+	peak.setFWHM(null);
+	peak.setTailingFactor(null);
+	peak.setAsymmetryFactor(null);
+	Assert.assertNull(peak.getFWHM());
+	Assert.assertNull(peak.getTailingFactor());
+	Assert.assertNull(peak.getAsymmetryFactor());
+
+    }
+
+    /**
+     * Peak of consecutive scan numbers with gaps. Each scan has no data point
+     * at the given probability, in tenths.
+     */
+    private static SimpleFeature createPeak(Random random, int numOfScans,
+	    int nullTenths) {
+
+	int scanNumbers[] = new int[numOfScans];
+	DataPoint dataPoints[] = new DataPoint[numOfScans];
+	int scanNumber = random.nextInt(100);
+	double height = 0;
+	for (int i = 0; i < numOfScans; i++) {
+	    scanNumber += 1 + random.nextInt(3);
+	    scanNumbers[i] = scanNumber;
+	    if (random.nextInt(10) < nullTenths)
+		continue;
+	    dataPoints[i] = new SimpleDataPoint(100 + random.nextDouble(),
+		    random.nextInt(1000));
+	    height = Math.max(height, dataPoints[i].getIntensity());
+	}
+
+	double mz = 100 + random.nextDouble();
+	return new SimpleFeature(dataFile, mz, scanNumbers[0] * 0.1, height,
+		height * 2, scanNumbers, dataPoints, FeatureStatus.DETECTED,
+		scanNumbers[numOfScans / 2], random.nextInt(2) - 1,
+		Range.closed(scanNumbers[0] * 0.1,
+			scanNumbers[numOfScans - 1] * 0.1),
+		Range.closed(mz - 0.01, mz + 0.01), Range.closed(0.0, height));
+
+    }
+
+    private static void assertSamePeak(Feature expected, Feature actual) {
+
+	Assert.assertSame(expected.getDataFile(), actual.getDataFile());
+	Assert.assertEquals(expected.getFeatureStatus(),
+		actual.getFeatureStatus());
+	Assert.assertEquals(expected.getMZ(), actual.getMZ(), 0);
+	Assert.assertEquals(expected.getRT(), actual.getRT(), 0);
+	Assert.assertEquals(expected.getHeight(), actual.getHeight(), 0);
+	Assert.assertEquals(expected.getArea(), actual.getArea(), 0);
+	Assert.assertEquals(expected.getRepresentativeScanNumber(),
+		actual.getRepresentativeScanNumber());
+	Assert.assertEquals(expected.getMostIntenseFragmentScanNumber(),
+		actual.getMostIntenseFragmentScanNumber());
+	Assert.assertEquals(expected.getRawDataPointsRTRange(),
+		actual.getRawDataPointsRTRange());
+	Assert.assertEquals(expected.getRawDataPointsMZRange(),
+		actual.getRawDataPointsMZRange());
+	Assert.assertEquals(expected.getRawDataPointsIntensityRange(),
+		actual.getRawDataPointsIntensityRange());
+	Assert.assertEquals(expected.getFWHM(), actual.getFWHM());
+	Assert.assertEquals(expected.getTailingFactor(),
+		actual.getTailingFactor());
+	Assert.assertEquals(expected.getAsymmetryFactor(),
+		actual.getAsymmetryFactor());
+	IsotopePattern isotopePattern = expected.getIsotopePattern();
+	Assert.assertSame(isotopePattern, actual.getIsotopePattern());
+	Assert.assertEquals(expected.getCharge(), actual.getCharge());
+
+	int scanNumbers[] = expected.getScanNumbers();
+	Assert.assertArrayEquals(scanNumbers, actual.getScanNumbers());
+	for (int scanNumber = scanNumbers[0] - 2; scanNumber <= scanNumbers[scanNumbers.length - 1] + 2; scanNumber++)
+	    assertSameDataPoint(expected.getDataPoint(scanNumber),
+		    actual.getDataPoint(scanNumber));
+
+    }
+
+    private static void assertSameDataPoint(DataPoint expected,
+	    DataPoint actual) {
+	if (expected == null) {
+	    Assert.assertNull(actual);
+	    return;
+	}
+	Assert.assertNotNull(actual);
+	Assert.assertEquals(expected.getMZ(), actual.getMZ(), 0);
+	Assert.assertEquals(expected.getIntensity(), actual.getIntensity(), 0);
+    }
+
+}
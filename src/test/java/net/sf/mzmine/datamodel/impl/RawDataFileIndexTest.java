@@ -0,0 +1,118 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RawDataFileIndexTest {
+
+    /**
+     * Files are numbered in the order they are added, both while they are
+     * searched linearly and after the index switched to a hash map
+     */
+    @Test
+    public void testColumns() {
+
+	RawDataFile files[] = createFiles(40);
+	RawDataFileIndex index = new RawDataFileIndex();
+	Assert.assertEquals(0, index.getNumberOfFiles());
+	Assert.assertEquals(-1, index.getColumn(files[0]));
+
+	for (int i = 0; i < files.length; i++) {
+	    Assert.assertEquals(i, index.addFile(files[i]));
+	    Assert.assertEquals(i + 1, index.getNumberOfFiles());
+	    for (int j = 0; j < files.length; j++)
+		Assert.assertEquals(j <= i ? j : -1, index.getColumn(files[j]));
+	}
+	for (int i = 0; i < files.length; i++)
+	    Assert.assertSame(files[i], index.getFile(i));
+
+    }
+
+    /**
+     * Adding a file again returns its column and does not change the index
+     */
+    @Test
+    public void testAddSameFile() {
+
+	RawDataFile files[] = createFiles(20);
+	for (int numOfFiles : new int[] { 3, 20 }) {
+	    RawDataFileIndex index = new RawDataFileIndex();
+	    for (int i = 0; i < numOfFiles; i++)
+		index.addFile(files[i]);
+	    for (int i = numOfFiles - 1; i >= 0; i--)
+		Assert.assertEquals(i, index.addFile(files[i]));
+	    Assert.assertEquals(numOfFiles, index.getNumberOfFiles());
+	}
+
+    }
+
+    /**
+     * An index of given files keeps their order
+     */
+    @Test
+    public void testIndexOfFiles() {
+
+	RawDataFile files[] = createFiles(20);
+	for (int numOfFiles : new int[] { 0, 1, 16, 17, 20 }) {
+	    RawDataFile indexFiles[] = new RawDataFile[numOfFiles];
+	    for (int i = 0; i < numOfFiles; i++)
+		indexFiles[i] = files[files.length - 1 - i];
+	    RawDataFileIndex index = new RawDataFileIndex(indexFiles);
+	    Assert.assertEquals(numOfFiles, index.getNumberOfFiles());
+	    for (int i = 0; i < numOfFiles; i++) {
+		Assert.assertSame(indexFiles[i], index.getFile(i));
+		Assert.assertEquals(i, index.getColumn(indexFiles[i]));
+	    }
+
+	    // The index grows when another file is added
+	    RawDataFile otherFile = createFile("other file");
+	    Assert.assertEquals(numOfFiles, index.addFile(otherFile));
+	    Assert.assertSame(otherFile, index.getFile(numOfFiles));
+	    Assert.assertEquals(numOfFiles + 1, index.getNumberOfFiles());
+	}
+
+    }
+
+    static RawDataFile[] createFiles(int numOfFiles) {
+	RawDataFile files[] = new RawDataFile[numOfFiles];
+	for (int i = 0; i < numOfFiles; i++)
+	    files[i] = createFile("file " + i);
+	return files;
+    }
+
+    private static RawDataFile createFile(final String name) {
+	return FixtureUtils.createStub(RawDataFile.class, name,
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String methodName, Object args[]) {
+			if (methodName.equals("getName"))
+			    return name;
+			throw new UnsupportedOperationException(methodName);
+		    }
+		});
+    }
+
+}
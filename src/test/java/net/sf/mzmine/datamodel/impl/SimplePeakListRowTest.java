@@ -0,0 +1,320 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.datamodel.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class SimplePeakListRowTest {
+
+    /**
+     * A row of a peak list shares the index of the data files of the list. A
+     * peak of a file which is not in the list gives the row its own index,
+     * and the list and its other rows are not changed.
+     */
+    @Test
+    public void testSharedIndexCopyOnWrite() {
+
+	RawDataFile files[] = RawDataFileIndexTest.createFiles(8);
+	SimplePeakList peakList = new SimplePeakList("test", Arrays.copyOf(
+		files, 5));
+	Random random = new Random(1);
+
+	SimplePeakListRow row1 = new SimplePeakListRow(1);
+	SimplePeakListRow row2 = new SimplePeakListRow(2);
+	Feature peaks[] = new Feature[files.length];
+	for (int i = 0; i < files.length; i++)
+	    peaks[i] = createPeak(random, files[i]);
+	row1.addPeak(files[3], peaks[3]);
+	row1.addPeak(files[1], peaks[1]);
+	row2.addPeak(files[4], peaks[4]);
+	peakList.addRow(row1);
+	peakList.addRow(row2);
+
+	// Files of the peak list keep the shared index
+	row2.addPeak(files[0], peaks[0]);
+	assertFiles(row2, files[0], files[4]);
+
+	// Other files switch the row to its own index
+	row1.addPeak(files[7], peaks[7]);
+	row1.addPeak(files[2], peaks[2]);
+	assertFiles(row1, files[1], files[3], files[7], files[2]);
+	for (int i : new int[] { 1, 2, 3, 7 })
+	    Assert.assertSame(peaks[i], row1.getPeak(files[i]));
+	Assert.assertNull(row1.getPeak(files[0]));
+
+	Assert.assertFalse(peakList.hasRawDataFile(files[7]));
+	for (int i = 0; i < 5; i++)
+	    Assert.assertTrue(peakList.hasRawDataFile(files[i]));
+	Assert.assertFalse(row2.hasPeak(files[7]));
+	Assert.assertNull(row2.getPeak(files[7]));
+	assertFiles(row2, files[0], files[4]);
+
+	// A row with peaks of other files cannot be added to the list
+	try {
+	    peakList.addRow(row1);
+	    Assert.fail();
+	} catch (IllegalArgumentException e) {
+	    // Expected
+	}
+
+	// Rows added to the list afterwards use the list columns
+	SimplePeakListRow row3 = new SimplePeakListRow(3);
+	row3.addPeak(files[4], peaks[4]);
+	row3.addPeak(files[2], peaks[2]);
+	peakList.addRow(row3);
+	assertFiles(row3, files[2], files[4]);
+
+    }
+
+    /**
+     * Peaks added to a row before it is added to a peak list are reordered by
+     * the order of the data files of the list
+     */
+    @Test
+    public void testSetFileIndex() {
+
+	Random random = new Random(2);
+	RawDataFile files[] = RawDataFileIndexTest.createFiles(25);
+	for (int n = 0; n < 100; n++) {
+
+	    // Peak lists of few and many files, in any order
+	    List<RawDataFile> listFiles = new ArrayList<RawDataFile>(
+		    Arrays.asList(files).subList(0, 1 + random.nextInt(25)));
+	    Collections.shuffle(listFiles, random);
+	    SimplePeakList peakList = new SimplePeakList("test",
+		    listFiles.toArray(new RawDataFile[0]));
+
+	    List<RawDataFile> rowFiles = new ArrayList<RawDataFile>(listFiles);
+	    Collections.shuffle(rowFiles, random);
+	    rowFiles = rowFiles.subList(0, random.nextInt(rowFiles.size() + 1));
+	    Map<RawDataFile, Feature> peaks = new LinkedHashMap<RawDataFile, Feature>();
+	    SimplePeakListRow row = new SimplePeakListRow(n);
+	    for (RawDataFile file : rowFiles) {
+		peaks.put(file, createPeak(random, file));
+		row.addPeak(file, peaks.get(file));
+	    }
+	    peakList.addRow(row);
+
+	    List<RawDataFile> expectedFiles = new ArrayList<RawDataFile>();
+	    for (RawDataFile file : listFiles) {
+		if (peaks.containsKey(file))
+		    expectedFiles.add(file);
+	    }
+	    assertFiles(row, expectedFiles.toArray(new RawDataFile[0]));
+	    Feature rowPeaks[] = row.getPeaks();
+	    for (int i = 0; i < expectedFiles.size(); i++) {
+		Assert.assertSame(peaks.get(expectedFiles.get(i)), row.getPeak(i));
+		Assert.assertSame(peaks.get(expectedFiles.get(i)), rowPeaks[i]);
+	    }
+	    for (RawDataFile file : files) {
+		Assert.assertSame(peaks.get(file), row.getPeak(file));
+		Assert.assertEquals(peaks.containsKey(file), row.hasPeak(file));
+	    }
+	}
+
+    }
+
+    /**
+     * Removing peaks keeps the order of the other peaks
+     */
+    @Test
+    public void testRemovePeak() {
+
+	Random random = new Random(3);
+	RawDataFile files[] = RawDataFileIndexTest.createFiles(5);
+	SimplePeakList peakList = new SimplePeakList("test", files);
+	SimplePeakListRow row = new SimplePeakListRow(1);
+	Feature peaks[] = new Feature[files.length];
+	for (int i = 0; i < files.length; i++) {
+	    peaks[i] = createPeak(random, files[i]);
+	    row.addPeak(files[i], peaks[i]);
+	}
+	peakList.addRow(row);
+
+	row.removePeak(files[2]);
+	assertFiles(row, files[0], files[1], files[3], files[4]);
+	Assert.assertNull(row.getPeak(files[2]));
+	Assert.assertFalse(row.hasPeak(peaks[2]));
+	row.removePeak(files[0]);
+	row.removePeak(files[4]);
+	assertFiles(row, files[1], files[3]);
+	Assert.assertSame(peaks[1], row.getPeak(0));
+	Assert.assertSame(peaks[3], row.getPeak(1));
+	try {
+	    row.getPeak(2);
+	    Assert.fail();
+	} catch (IndexOutOfBoundsException e) {
+	    // Expected
+	}
+
+	// Files without a peak are ignored
+	row.removePeak(files[2]);
+	row.removePeak(RawDataFileIndexTest.createFiles(1)[0]);
+	assertFiles(row, files[1], files[3]);
+
+	row.removePeak(files[1]);
+	row.removePeak(files[3]);
+	assertFiles(row);
+	Assert.assertEquals(0, row.getPeaks().length);
+	Assert.assertNull(row.getBestPeak());
+
+	row.addPeak(files[4], peaks[4]);
+	row.addPeak(files[0], peaks[0]);
+	assertFiles(row, files[0], files[4]);
+
+    }
+
+    /**
+     * The average values, charge, best peak and best isotope pattern which
+     * are updated as peaks are added are the ones calculated from all peaks,
+     * as before the averages were updated incrementally
+     */
+    @Test
+    public void testAverageValues() {
+
+	Random random = new Random(4);
+	RawDataFile files[] = RawDataFileIndexTest.createFiles(20);
+	SimplePeakList peakList = new SimplePeakList("test", files);
+	for (int n = 0; n < 50; n++) {
+	    SimplePeakListRow row = new SimplePeakListRow(n);
+	    Map<RawDataFile, Feature> peaks = new LinkedHashMap<RawDataFile, Feature>();
+	    double maxDataPointIntensity = 0;
+	    for (int i = 0; i < 60; i++) {
+		RawDataFile file = files[random.nextInt(files.length)];
+		if ((i == 10) && (row.getNumberOfPeaks() > 0))
+		    peakList.addRow(row);
+		if (random.nextInt(4) == 0) {
+		    peaks.remove(file);
+		    row.removePeak(file);
+		} else {
+		    Feature peak = createPeak(random, file);
+		    peaks.put(file, peak);
+		    row.addPeak(file, peak);
+		    maxDataPointIntensity = Math.max(maxDataPointIntensity,
+			    peak.getRawDataPointsIntensityRange()
+				    .upperEndpoint());
+		}
+		assertAverageValues(peaks.values(), row);
+		Assert.assertEquals(maxDataPointIntensity,
+			row.getDataPointMaxIntensity(), 0);
+	    }
+	}
+
+    }
+
+    private static void assertAverageValues(Collection<Feature> peaks,
+	    PeakListRow row) {
+
+	// Average values as calculated from all peaks
+	double rtSum = 0, mzSum = 0, heightSum = 0, areaSum = 0;
+	int charge = 0;
+	HashSet<Integer> chargeArr = new HashSet<Integer>();
+	Feature bestPeak = null, bestIsotopePeak = null;
+	for (Feature p : peaks) {
+	    rtSum += p.getRT();
+	    mzSum += p.getMZ();
+	    heightSum += p.getHeight();
+	    areaSum += p.getArea();
+	    if (p.getCharge() > 0) {
+		chargeArr.add(p.getCharge());
+		charge = p.getCharge();
+	    }
+	    if ((bestPeak == null) || (p.getHeight() > bestPeak.getHeight()))
+		bestPeak = p;
+	    if ((p.getIsotopePattern() != null)
+		    && ((bestIsotopePeak == null) || (p.getHeight() > bestIsotopePeak
+			    .getHeight())))
+		bestIsotopePeak = p;
+	}
+
+	Assert.assertEquals(peaks.size(), row.getNumberOfPeaks());
+	Assert.assertSame(bestPeak, row.getBestPeak());
+	Assert.assertSame(bestIsotopePeak == null ? null : bestIsotopePeak
+		.getIsotopePattern(), row.getBestIsotopePattern());
+
+	// Rows without peaks have no average values
+	if (peaks.isEmpty())
+	    return;
+	Assert.assertEquals(rtSum / peaks.size(), row.getAverageRT(), 1E-9);
+	Assert.assertEquals(mzSum / peaks.size(), row.getAverageMZ(), 1E-9);
+	Assert.assertEquals(heightSum / peaks.size(), row.getAverageHeight(),
+		1E-6);
+	Assert.assertEquals(areaSum / peaks.size(), row.getAverageArea(), 1E-6);
+	Assert.assertEquals(chargeArr.size() < 2 ? charge : 0,
+		row.getRowCharge());
+
+    }
+
+    private static void assertFiles(PeakListRow row, RawDataFile... files) {
+	Assert.assertArrayEquals(files, row.getRawDataFiles());
+	Assert.assertEquals(files.length, row.getNumberOfPeaks());
+	for (int i = 0; i < files.length; i++) {
+	    Assert.assertSame(files[i], row.getRawDataFile(i));
+	    Assert.assertSame(row.getPeak(files[i]), row.getPeak(i));
+	}
+    }
+
+    /**
+     * Peak of distinct height, with a charge and an isotope pattern in some
+     * cases
+     */
+    private static Feature createPeak(Random random, RawDataFile file) {
+	double mz = 100 + random.nextDouble() * 900;
+	double rt = random.nextDouble() * 60;
+	double height = random.nextDouble() * 1E6;
+	DataPoint dataPoint = new SimpleDataPoint(mz, height);
+	SimpleFeature peak = new SimpleFeature(file, mz, rt, height,
+		height * random.nextDouble() * 10, new int[] { 1 },
+		new DataPoint[] { dataPoint }, FeatureStatus.DETECTED, 1, -1,
+		Range.singleton(rt), Range.singleton(mz), Range.closed(0.0,
+			height * (1 + random.nextDouble())));
+	if (random.nextInt(3) == 0)
+	    peak.setCharge(random.nextInt(3));
+	if (random.nextInt(3) == 0) {
+	    IsotopePattern isotopePattern = new SimpleIsotopePattern(
+		    new DataPoint[] { dataPoint },
+		    IsotopePatternStatus.DETECTED, "test");
+	    peak.setIsotopePattern(isotopePattern);
+	}
+	return peak;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.alignment;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class AlignmentCandidateIndexTest {
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+    private static final int NUMBER_OF_ROWS = 20000;
+    private static final int NUMBER_OF_QUERIES = 5000;
+
+    /**
+     * Compare the candidates returned by the index with
+     * SimplePeakList.getRowsInsideScanAndMZRange(), before and after removing
+     * rows, and log the time of both
+     */
+    @Test
+    public void testGetRowsInsideScanAndMZRange() throws Exception {
+
+	Random random = new Random(1);
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	for (int i = 0; i < NUMBER_OF_ROWS; i++) {
+	    double mz = 100 + random.nextDouble() * 900;
+	    double rt = random.nextDouble() * 60;
+	    peakList.addRow(createRow(mz, rt));
+	}
+
+	List<Range<Double>> mzRanges = new ArrayList<Range<Double>>();
+	List<Range<Double>> rtRanges = new ArrayList<Range<Double>>();
+	for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+	    double mz = 100 + random.nextDouble() * 900;
+	    double rt = random.nextDouble() * 60;
+	    mzRanges.add(Range.closed(mz - 0.5, mz + 0.5));
+	    rtRanges.add(Range.closed(rt - 1, rt + 1));
+	}
+
+	long startTime = System.nanoTime();
+	PeakListRow expected[][] = new PeakListRow[NUMBER_OF_QUERIES][];
+	for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+	    expected[i] = peakList.getRowsInsideScanAndMZRange(
+		    rtRanges.get(i), mzRanges.get(i));
+	}
+	long scanTime = System.nanoTime() - startTime;
+
+	startTime = System.nanoTime();
+	AlignmentCandidateIndex index = new AlignmentCandidateIndex(peakList);
+	PeakListRow found[][] = new PeakListRow[NUMBER_OF_QUERIES][];
+	for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+	    found[i] = index.getRowsInsideScanAndMZRange(rtRanges.get(i),
+		    mzRanges.get(i));
+	}
+	long indexTime = System.nanoTime() - startTime;
+
+	for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+	    Assert.assertArrayEquals(expected[i], found[i]);
+	}
+
+	logger.info(NUMBER_OF_QUERIES + " queries in " + NUMBER_OF_ROWS
+		+ " rows: " + (scanTime / 1000000) + " ms by scanning all rows, "
+		+ (indexTime / 1000000) + " ms using the index");
+
+	// Remove every third row
+	Set<PeakListRow> removed = new HashSet<PeakListRow>();
+	PeakListRow rows[] = peakList.getRows();
+	for (int i = 0; i < rows.length; i += 3) {
+	    index.removeRow(0, rows[i]);
+	    removed.add(rows[i]);
+	}
+
+	for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+	    List<PeakListRow> remaining = new ArrayList<PeakListRow>();
+	    for (PeakListRow row : expected[i]) {
+		if (!removed.contains(row))
+		    remaining.add(row);
+	    }
+	    Assert.assertArrayEquals(remaining.toArray(),
+		    index.getRowsInsideScanAndMZRange(rtRanges.get(i),
+			    mzRanges.get(i)));
+	}
+
+    }
+
+    /**
+     * Creates a row which returns the given m/z and RT as the average m/z and
+     * RT
+     */
+    private static PeakListRow createRow(final double mz, final double rt) {
+	return FixtureUtils.createStub(PeakListRow.class, "m/z " + mz + ", RT "
+		+ rt, new StubMethods() {
+	    @Override
+	    public Object invoke(String name, Object args[]) {
+		if (name.equals("getAverageMZ"))
+		    return mz;
+		if (name.equals("getAverageRT"))
+		    return rt;
+		if (name.equals("getRawDataFiles"))
+		    return new RawDataFile[0];
+		return null;
+	    }
+	});
+    }
+
+}
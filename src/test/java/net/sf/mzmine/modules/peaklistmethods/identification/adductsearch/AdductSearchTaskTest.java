@@ -0,0 +1,224 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.adductsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.PeakListRowSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AdductSearchTaskTest {
+
+    private static final MZTolerance mzTolerance = new MZTolerance(0.001, 10);
+    private static final RTTolerance rtTolerance = new RTTolerance(true, 0.1);
+    private static final double maxAdductHeight = 0.5;
+
+    // The default adducts and a loss, which is below the main peak
+    private static final AdductType adducts[] = concat(
+	    AdductType.getDefaultValues(), new AdductType("[M-H2O]", -18.0106));
+
+    /**
+     * The task adds identities to the current project and repaints the
+     * desktop, which are created by MZmineCore.main()
+     */
+    @BeforeClass
+    public static void initCore() {
+	FixtureUtils.initCore();
+    }
+
+    @AfterClass
+    public static void restoreCore() {
+	FixtureUtils.restoreCore();
+    }
+
+    /**
+     * The identities are the same as the ones found by comparing every pair
+     * of rows, as the task did before the m/z index was used. The main peaks
+     * and the adducts are crowded, so many rows have several identities.
+     */
+    @Test
+    public void testSameIdentitiesAsComparingAllRows() {
+	for (int seed = 1; seed <= 3; seed++) {
+	    PeakList peakList = createPeakList(new Random(seed));
+	    Map<PeakListRow, List<String>> expected = searchAllPairs(peakList);
+	    runTask(peakList);
+
+	    int numOfIdentities = 0;
+	    for (PeakListRow row : peakList.getRows()) {
+		Assert.assertEquals("row " + row.getID(), expected.get(row),
+			FixtureUtils.identityNames(row));
+		numOfIdentities += expected.get(row).size();
+	    }
+	    Assert.assertTrue(numOfIdentities > 100);
+	}
+    }
+
+    /**
+     * An adduct is identified only within the tolerances and below the
+     * maximum height relative to the main peak
+     */
+    @Test
+    public void testSingleAdduct() {
+
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	final double sodiumDifference = adducts[0].getMassDifference();
+	PeakListRow main = FixtureUtils.addRow(peakList, 1, 300.0, 5.0,
+		1000.0);
+	PeakListRow adduct = FixtureUtils.addRow(peakList, 2, 300.0
+		+ sodiumDifference + 0.001, 5.05, 400.0);
+	PeakListRow tooHigh = FixtureUtils.addRow(peakList, 3, 300.0
+		+ sodiumDifference, 5.0, 600.0);
+	PeakListRow tooLate = FixtureUtils.addRow(peakList, 4, 300.0
+		+ sodiumDifference, 5.2, 100.0);
+
+	runTask(peakList);
+
+	Assert.assertEquals(
+		Arrays.asList(new AdductIdentity(main, adducts[0]).getName()),
+		FixtureUtils.identityNames(adduct));
+	Assert.assertEquals(0, main.getPeakIdentities().length);
+	Assert.assertEquals(0, tooHigh.getPeakIdentities().length);
+	Assert.assertEquals(0, tooLate.getPeakIdentities().length);
+
+    }
+
+    private static PeakList createPeakList(Random random) {
+
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	int id = 1;
+
+	// Main peaks with some of their adducts, around the tolerances and
+	// the maximum height
+	for (int i = 0; i < 600; i++) {
+	    final double mz = 100 + random.nextDouble() * 200;
+	    final double rt = random.nextDouble() * 5;
+	    final double height = 1000 + random.nextDouble() * 100000;
+	    FixtureUtils.addRow(peakList, id++, mz, rt, height);
+	    for (AdductType adduct : adducts) {
+		if (random.nextInt(3) != 0)
+		    continue;
+		FixtureUtils.addRow(peakList, id++,
+			mz + adduct.getMassDifference()
+				+ (random.nextDouble() - 0.5) * 0.006, rt
+				+ (random.nextDouble() - 0.5) * 0.3, height
+				* random.nextDouble() * 0.7);
+	    }
+	}
+
+	// Unrelated peaks, some of the same height
+	for (int i = 0; i < 600; i++) {
+	    FixtureUtils.addRow(peakList, id++, 80 + random.nextDouble() * 300,
+		    random.nextDouble() * 5, (i % 10 == 0) ? 5000.0
+			    : random.nextDouble() * 50000);
+	}
+
+	return peakList;
+
+    }
+
+    /**
+     * Identities found by comparing each pair of rows, starting with the
+     * highest main peaks
+     */
+    private static Map<PeakListRow, List<String>> searchAllPairs(
+	    PeakList peakList) {
+
+	PeakListRow rows[] = peakList.getRows();
+	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.Height,
+		SortingDirection.Descending));
+
+	Map<PeakListRow, List<String>> identities = new HashMap<PeakListRow, List<String>>();
+	for (PeakListRow row : rows)
+	    identities.put(row, new ArrayList<String>());
+
+	for (int i = 0; i < rows.length; i++) {
+	    for (int j = 0; j < rows.length; j++) {
+		if (i == j)
+		    continue;
+		for (AdductType adduct : adducts) {
+		    if (mzTolerance.checkWithinTolerance(rows[i].getAverageMZ()
+			    + adduct.getMassDifference(),
+			    rows[j].getAverageMZ())
+			    && rtTolerance.checkWithinTolerance(
+				    rows[i].getAverageRT(),
+				    rows[j].getAverageRT())
+			    && rows[j].getAverageHeight() <= rows[i]
+				    .getAverageHeight() * maxAdductHeight) {
+			// Identities of the same name are added once
+			String name = new AdductIdentity(rows[i], adduct)
+				.getName();
+			if (!identities.get(rows[j]).contains(name))
+			    identities.get(rows[j]).add(name);
+		    }
+		}
+	    }
+	}
+
+	return identities;
+
+    }
+
+    private static void runTask(PeakList peakList) {
+
+	ParameterSet parameters = new AdductSearchParameters();
+	parameters.getParameter(AdductSearchParameters.RT_TOLERANCE).setValue(
+		rtTolerance);
+	parameters.getParameter(AdductSearchParameters.MZ_TOLERANCE).setValue(
+		mzTolerance);
+	parameters.getParameter(AdductSearchParameters.ADDUCTS).setValue(
+		adducts);
+	parameters.getParameter(AdductSearchParameters.MAX_ADDUCT_HEIGHT)
+		.setValue(maxAdductHeight);
+
+	AdductSearchTask task = new AdductSearchTask(parameters, peakList);
+	task.run();
+	Assert.assertEquals(TaskStatus.FINISHED, task.getStatus());
+
+    }
+
+    private static AdductType[] concat(AdductType first[], AdductType last) {
+	AdductType all[] = Arrays.copyOf(first, first.length + 1);
+	all[first.length] = last;
+	return all;
+    }
+
+}
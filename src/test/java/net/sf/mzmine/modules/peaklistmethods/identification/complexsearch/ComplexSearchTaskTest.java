@@ -0,0 +1,250 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.complexsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.IonizationType;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.PeakListRowSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class ComplexSearchTaskTest {
+
+    private static final MZTolerance mzTolerance = new MZTolerance(0.001, 10);
+    private static final double maxComplexHeight = 0.5;
+    private static final IonizationType ionType = IonizationType.POSITIVE_HYDROGEN;
+
+    /**
+     * The task adds identities to the current project and repaints the
+     * desktop, which are created by MZmineCore.main()
+     */
+    @BeforeClass
+    public static void initCore() {
+	FixtureUtils.initCore();
+    }
+
+    @AfterClass
+    public static void restoreCore() {
+	FixtureUtils.restoreCore();
+    }
+
+    /**
+     * The identities are the same as the ones found by comparing each row
+     * with every pair of rows within the RT tolerance, as the task did before
+     * the RT and m/z indexes were used. Both absolute and relative RT
+     * tolerances are tested.
+     */
+    @Test
+    public void testSameIdentitiesAsComparingAllRows() {
+	RTTolerance rtTolerances[] = { new RTTolerance(true, 0.1),
+		new RTTolerance(false, 0.02) };
+	for (int seed = 1; seed <= 2; seed++) {
+	    for (RTTolerance rtTolerance : rtTolerances) {
+		PeakList peakList = createPeakList(new Random(seed));
+		Map<PeakListRow, List<String>> expected = searchAllTriples(
+			peakList, rtTolerance);
+		runTask(peakList, rtTolerance);
+
+		int numOfIdentities = 0;
+		for (PeakListRow row : peakList.getRows()) {
+		    Assert.assertEquals("row " + row.getID(),
+			    expected.get(row), FixtureUtils.identityNames(row));
+		    numOfIdentities += expected.get(row).size();
+		}
+		Assert.assertTrue(numOfIdentities > 100);
+	    }
+	}
+    }
+
+    /**
+     * A complex of two rows, and a dimer of one row, are identified only
+     * within the tolerances and below the maximum height relative to the
+     * component rows
+     */
+    @Test
+    public void testSingleComplex() {
+
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	final double addedMass = ionType.getAddedMass();
+	PeakListRow row1 = FixtureUtils
+		.addRow(peakList, 1, 200.0, 5.0, 1000.0);
+	PeakListRow row2 = FixtureUtils.addRow(peakList, 2, 300.0, 5.05,
+		2000.0);
+	PeakListRow complex = FixtureUtils.addRow(peakList, 3, 500.0
+		- addedMass + 0.002, 5.0, 400.0);
+	PeakListRow dimer = FixtureUtils.addRow(peakList, 4,
+		400.0 - addedMass, 5.0, 100.0);
+	PeakListRow tooHigh = FixtureUtils.addRow(peakList, 5,
+		500.0 - addedMass, 5.05, 600.0);
+	PeakListRow tooLate = FixtureUtils.addRow(peakList, 6,
+		500.0 - addedMass, 5.2, 100.0);
+
+	runTask(peakList, new RTTolerance(true, 0.1));
+
+	Assert.assertEquals(
+		Arrays.asList(new ComplexIdentity(row1, row2).getName()),
+		FixtureUtils.identityNames(complex));
+	Assert.assertEquals(
+		Arrays.asList(new ComplexIdentity(row1, row1).getName()),
+		FixtureUtils.identityNames(dimer));
+	Assert.assertEquals(0, row1.getPeakIdentities().length);
+	Assert.assertEquals(0, tooHigh.getPeakIdentities().length);
+	Assert.assertEquals(0, tooLate.getPeakIdentities().length);
+
+    }
+
+    private static PeakList createPeakList(Random random) {
+
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	final double addedMass = ionType.getAddedMass();
+	int id = 1;
+
+	// Component rows in groups of close RT, some of the same m/z and RT
+	List<List<double[]>> groups = new ArrayList<List<double[]>>();
+	for (int i = 0; i < 20; i++)
+	    groups.add(new ArrayList<double[]>());
+	for (int i = 0; i < 500; i++) {
+	    final int group = i % groups.size();
+	    final double mz = (i % 25 == 0) ? 150.0 : 100 + random
+		    .nextDouble() * 200;
+	    final double rt = (i % 25 == 0) ? 2.5 : 1 + group * 0.15
+		    + random.nextDouble() * 0.08;
+	    final double height = 10000 + random.nextDouble() * 100000;
+	    FixtureUtils.addRow(peakList, id++, mz, rt, height);
+	    groups.get(group).add(new double[] { mz, rt, height });
+	}
+
+	// Complexes of random pairs of components of the same group, around
+	// the tolerances and the maximum height
+	for (int i = 0; i < 500; i++) {
+	    List<double[]> group = groups.get(random.nextInt(groups.size()));
+	    double first[] = group.get(random.nextInt(group.size()));
+	    double second[] = group.get(random.nextInt(group.size()));
+	    FixtureUtils.addRow(peakList, id++, first[0] + second[0] - addedMass
+		    + (random.nextDouble() - 0.5) * 0.012, first[1]
+		    + (random.nextDouble() - 0.5) * 0.1,
+		    Math.min(first[2], second[2]) * random.nextDouble() * 0.7);
+	}
+
+	// Unrelated rows
+	for (int i = 0; i < 500; i++) {
+	    FixtureUtils.addRow(peakList, id++, 100 + random.nextDouble() * 500,
+		    1 + random.nextDouble() * 3, random.nextDouble() * 100000);
+	}
+
+	return peakList;
+
+    }
+
+    /**
+     * Identities found by comparing each row, starting with the highest m/z,
+     * with every pair of other rows within the RT tolerance
+     */
+    private static Map<PeakListRow, List<String>> searchAllTriples(
+	    PeakList peakList, RTTolerance rtTolerance) {
+
+	PeakListRow rows[] = peakList.getRows();
+	Arrays.sort(rows, new PeakListRowSorter(SortingProperty.MZ,
+		SortingDirection.Descending));
+
+	Map<PeakListRow, List<String>> identities = new HashMap<PeakListRow, List<String>>();
+	for (PeakListRow row : rows)
+	    identities.put(row, new ArrayList<String>());
+
+	final double addedMass = ionType.getAddedMass();
+	for (PeakListRow complexRow : rows) {
+	    Range<Double> rtRange = rtTolerance.getToleranceRange(complexRow
+		    .getAverageRT());
+	    PeakListRow testRows[] = peakList.getRowsInsideScanRange(rtRange);
+	    Range<Double> mzRange = mzTolerance.getToleranceRange(complexRow
+		    .getAverageMZ() - addedMass);
+
+	    for (int j = 0; j < testRows.length; j++) {
+		for (int k = j; k < testRows.length; k++) {
+		    if ((complexRow == testRows[j])
+			    || (complexRow == testRows[k]))
+			continue;
+		    final double expectedMass = testRows[j].getAverageMZ()
+			    + testRows[k].getAverageMZ() - 2 * addedMass;
+		    final double complexHeight = complexRow.getAverageHeight();
+		    if (rtRange.contains(testRows[j].getAverageRT())
+			    && rtRange.contains(testRows[k].getAverageRT())
+			    && mzRange.contains(expectedMass)
+			    && complexHeight <= testRows[j].getAverageHeight()
+				    * maxComplexHeight
+			    && complexHeight <= testRows[k].getAverageHeight()
+				    * maxComplexHeight) {
+			// Identities of the same name are added once
+			String name = new ComplexIdentity(testRows[j],
+				testRows[k]).getName();
+			if (!identities.get(complexRow).contains(name))
+			    identities.get(complexRow).add(name);
+		    }
+		}
+	    }
+	}
+
+	return identities;
+
+    }
+
+    private static void runTask(PeakList peakList, RTTolerance rtTolerance) {
+
+	ParameterSet parameters = new ComplexSearchParameters();
+	parameters.getParameter(ComplexSearchParameters.ionizationMethod)
+		.setValue(ionType);
+	parameters.getParameter(ComplexSearchParameters.rtTolerance).setValue(
+		rtTolerance);
+	parameters.getParameter(ComplexSearchParameters.mzTolerance).setValue(
+		mzTolerance);
+	parameters.getParameter(ComplexSearchParameters.maxComplexHeight)
+		.setValue(maxComplexHeight);
+
+	ComplexSearchTask task = new ComplexSearchTask(parameters, peakList);
+	task.run();
+	Assert.assertEquals(TaskStatus.FINISHED, task.getStatus());
+
+    }
+
+}
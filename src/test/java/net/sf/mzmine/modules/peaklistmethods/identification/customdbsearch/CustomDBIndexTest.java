@@ -0,0 +1,245 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.customdbsearch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Range;
+
+public class CustomDBIndexTest {
+
+    private static final FieldItem FIELD_ORDER[] = { FieldItem.FIELD_ID,
+	    FieldItem.FIELD_MZ, FieldItem.FIELD_RT, FieldItem.FIELD_NAME,
+	    FieldItem.FIELD_FORMULA };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+	cacheDirectory = new File(folder.getRoot(), "cache");
+    }
+
+    /**
+     * Compounds found in the index are the ones found by checking every line,
+     * whether the index was read from the database or from the cache file
+     */
+    @Test
+    public void testFindCompounds() throws IOException {
+
+	Random random = new Random(1);
+	List<String> lines = new ArrayList<String>();
+	for (int i = 0; i < 2000; i++) {
+	    // Some compounds without m/z or RT
+	    double mz = (i % 50 == 0) ? 0 : 100 + random.nextDouble() * 100;
+	    double rt = (i % 7 == 0) ? 0 : random.nextDouble() * 30;
+	    lines.add("ID" + i + "," + mz + "," + rt + ",Compound " + i
+		    + ",C" + i);
+	}
+	lines.add("invalid,m/z,1.0,Invalid line,C");
+	File dataBaseFile = writeDataBase("db.csv", lines);
+
+	CustomDBIndex index = load(dataBaseFile);
+	CustomDBIndex cachedIndex = load(dataBaseFile);
+	Assert.assertEquals(2000, index.getNumberOfCompounds());
+	Assert.assertEquals(2000, cachedIndex.getNumberOfCompounds());
+
+	for (int q = 0; q < 500; q++) {
+	    double mz = 100 + random.nextDouble() * 100;
+	    double rt = random.nextDouble() * 30;
+	    Range<Double> mzRange = Range.closed(mz - 0.5, mz + 0.5);
+	    Range<Double> rtRange = Range.closed(rt - 2, rt + 2);
+
+	    List<Integer> expected = new ArrayList<Integer>();
+	    for (int i = 0; i < index.getNumberOfCompounds(); i++) {
+		double lineMZ = index.getMZ(i), lineRT = index.getRT(i);
+		if (((lineMZ == 0) || mzRange.contains(lineMZ))
+			&& ((lineRT == 0) || rtRange.contains(lineRT)))
+		    expected.add(i);
+	    }
+
+	    Assert.assertEquals(expected.toString(), toString(index
+		    .findCompounds(mzRange, rtRange)));
+	    Assert.assertEquals(expected.toString(), toString(cachedIndex
+		    .findCompounds(mzRange, rtRange)));
+	}
+
+	for (int i = 0; i < index.getNumberOfCompounds(); i++) {
+	    Assert.assertEquals(index.getID(i), cachedIndex.getID(i));
+	    Assert.assertEquals(index.getName(i), cachedIndex.getName(i));
+	    Assert.assertEquals(index.getFormula(i), cachedIndex.getFormula(i));
+	    Assert.assertEquals(index.getMZ(i), cachedIndex.getMZ(i), 0);
+	    Assert.assertEquals(index.getRT(i), cachedIndex.getRT(i), 0);
+	}
+
+    }
+
+    /**
+     * The cache file is written without leaving temporary files, and a
+     * damaged cache file is replaced
+     */
+    @Test
+    public void testDamagedCacheFile() throws IOException {
+
+	File dataBaseFile = writeDataBase("db.csv", compounds(0));
+	load(dataBaseFile);
+
+	File cacheFiles[] = cacheDirectory.listFiles();
+	Assert.assertEquals(1, cacheFiles.length);
+	Assert.assertTrue(cacheFiles[0].getName().endsWith(".cache"));
+	final long length = cacheFiles[0].length();
+
+	FileOutputStream out = new FileOutputStream(cacheFiles[0]);
+	out.write(new byte[] { 1, 2, 3 });
+	out.close();
+
+	CustomDBIndex index = load(dataBaseFile);
+	Assert.assertEquals("name0", index.getName(0));
+	Assert.assertEquals(1, cacheDirectory.listFiles().length);
+	Assert.assertEquals(length, cacheFiles[0].length());
+
+    }
+
+    /**
+     * Only the cache file of the last version of a database file is kept, for
+     * each import setting
+     */
+    @Test
+    public void testOldVersionsRemoved() throws IOException {
+
+	File dataBaseFile = writeDataBase("db.csv", compounds(0));
+	load(dataBaseFile);
+	writeDataBase("db.csv", compounds(1));
+	CustomDBIndex index = load(dataBaseFile);
+	Assert.assertEquals("name1", index.getName(0));
+	Assert.assertEquals(1, cacheDirectory.listFiles().length);
+
+	CustomDBIndex.load(dataBaseFile, ',', FIELD_ORDER, true, cacheDirectory);
+	Assert.assertEquals(2, cacheDirectory.listFiles().length);
+
+    }
+
+    /**
+     * The least recently used cache files are removed
+     */
+    @Test
+    public void testNumberOfCacheFilesLimited() throws IOException {
+
+	File firstDataBaseFile = writeDataBase("db0.csv", compounds(0));
+	load(firstDataBaseFile);
+	final File firstCacheFile = cacheDirectory.listFiles()[0];
+
+	// Cache files in the order of use
+	List<File> cacheFiles = new ArrayList<File>();
+	for (int i = 1; i < CustomDBIndex.MAX_CACHE_FILES + 5; i++) {
+
+	    List<File> previousFiles = Arrays.asList(cacheDirectory
+		    .listFiles());
+	    load(writeDataBase("db" + i + ".csv", compounds(i)));
+	    for (File file : cacheDirectory.listFiles()) {
+		if (!previousFiles.contains(file)) {
+		    // Set the modification time in the order of use,
+		    // regardless of the time resolution of the file system
+		    file.setLastModified(i * 1000L);
+		    cacheFiles.add(file);
+		}
+	    }
+	    Assert.assertEquals(i, cacheFiles.size());
+
+	    // The first file is used again, so it is never removed
+	    load(firstDataBaseFile);
+	    Assert.assertTrue(firstCacheFile.exists());
+	    Assert.assertEquals(Math.min(i + 1, CustomDBIndex.MAX_CACHE_FILES),
+		    cacheDirectory.listFiles().length);
+
+	}
+
+	final int numOfKeptFiles = CustomDBIndex.MAX_CACHE_FILES - 1;
+	for (int i = 0; i < cacheFiles.size(); i++) {
+	    Assert.assertEquals(i >= cacheFiles.size() - numOfKeptFiles,
+		    cacheFiles.get(i).exists());
+	}
+
+    }
+
+    /**
+     * Temporary files of cache files being written, which may belong to
+     * other tasks, are neither counted nor removed
+     */
+    @Test
+    public void testTemporaryFilesKept() throws IOException {
+
+	cacheDirectory.mkdirs();
+	File tempFile = new File(cacheDirectory, "db.csv-1.cache.tmp1");
+	Assert.assertTrue(tempFile.createNewFile());
+	tempFile.setLastModified(1000L);
+
+	for (int i = 0; i < CustomDBIndex.MAX_CACHE_FILES; i++)
+	    load(writeDataBase("db" + i + ".csv", compounds(i)));
+
+	Assert.assertTrue(tempFile.exists());
+	Assert.assertEquals(CustomDBIndex.MAX_CACHE_FILES + 1,
+		cacheDirectory.listFiles().length);
+
+    }
+
+    private CustomDBIndex load(File dataBaseFile) throws IOException {
+	return CustomDBIndex.load(dataBaseFile, ',', FIELD_ORDER, false,
+		cacheDirectory);
+    }
+
+    private static List<String> compounds(int version) {
+	List<String> lines = new ArrayList<String>();
+	lines.add("id,100.0,1.0,name" + version + ",C");
+	return lines;
+    }
+
+    private File writeDataBase(String name, List<String> lines)
+	    throws IOException {
+	File file = new File(folder.getRoot(), name);
+	FileOutputStream out = new FileOutputStream(file);
+	for (String line : lines)
+	    out.write((line + "\n").getBytes("UTF-8"));
+	out.close();
+	return file;
+    }
+
+    private static String toString(int lineNumbers[]) {
+	List<Integer> list = new ArrayList<Integer>();
+	for (int lineNumber : lineNumbers)
+	    list.add(lineNumber);
+	return list.toString();
+    }
+
+}
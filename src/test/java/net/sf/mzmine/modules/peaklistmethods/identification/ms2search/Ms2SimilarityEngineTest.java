@@ -0,0 +1,218 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.ms2search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.peaklistmethods.identification.ms2search.Ms2SimilarityEngine.Ms2Match;
+import net.sf.mzmine.modules.peaklistmethods.identification.ms2search.Ms2SimilarityEngine.Ms2Spectrum;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Ms2SimilarityEngineTest {
+
+    private static final String massListName = "masses";
+    private static final MZTolerance mzTolerance = new MZTolerance(0, 20);
+
+    /**
+     * The scores and matched ions are the same as the ones of the nested
+     * loop of Ms2SearchTask before the engine was used, for every pair of
+     * spectra and several thresholds
+     */
+    @Test
+    public void testSameResultsAsComparingAllIons() {
+
+	Random random = new Random(1);
+	Feature features[] = createFeatures(random, 60);
+	Ms2Spectrum spectra[] = new Ms2Spectrum[features.length];
+	for (int i = 0; i < features.length; i++)
+	    spectra[i] = Ms2SimilarityEngine.createSpectrum(features[i],
+		    massListName);
+
+	int numOfMatches = 0;
+	for (double scoreThreshold : new double[] { 0, 1e5 }) {
+	    for (int minIons : new int[] { 1, 3 }) {
+		Ms2SimilarityEngine engine = new Ms2SimilarityEngine(spectra,
+			mzTolerance, scoreThreshold, minIons,
+			Double.POSITIVE_INFINITY);
+		for (int i = 0; i < features.length; i++) {
+		    List<Ms2Match> matches = engine.search(spectra[i]);
+		    int j = 0;
+		    for (Feature libraryFeature : features) {
+			Ms2SearchResult expected = compareAllIons(
+				getIons(features[i]), getIons(libraryFeature));
+			if ((expected.getScore() <= scoreThreshold)
+				|| (expected.getNumIonsMatched() < minIons))
+			    continue;
+			Assert.assertTrue(j < matches.size());
+			Ms2Match match = matches.get(j++);
+			Assert.assertSame(libraryFeature,
+				match.getLibraryFeature());
+			Assert.assertEquals(expected.getScore(),
+				match.getResult().getScore(), 0);
+			Assert.assertEquals(expected.getMatchedIons(),
+				match.getResult().getMatchedIons());
+		    }
+		    Assert.assertEquals(j, matches.size());
+		    numOfMatches += matches.size();
+		}
+	    }
+	}
+
+	// The spectra share enough ions for the thresholds to matter
+	Assert.assertTrue(numOfMatches > features.length * 4);
+
+    }
+
+    /**
+     * Spectra of ions from a common set of fragments, so pairs of spectra
+     * share some ions. An ion of one spectrum may match several close ions
+     * of another.
+     */
+    private static Feature[] createFeatures(Random random, int numOfFeatures) {
+
+	double fragments[] = new double[40];
+	for (int i = 0; i < fragments.length; i++)
+	    fragments[i] = 50 + random.nextDouble() * 450;
+
+	Feature features[] = new Feature[numOfFeatures];
+	for (int i = 0; i < numOfFeatures; i++) {
+	    DataPoint ions[] = new DataPoint[5 + random.nextInt(20)];
+	    for (int j = 0; j < ions.length; j++) {
+		double mz = fragments[random.nextInt(fragments.length)];
+		mz += (random.nextDouble() - 0.5) * mz * 40e-6;
+		ions[j] = new SimpleDataPoint(mz, random.nextDouble() * 1000);
+	    }
+	    Arrays.sort(ions, new DataPointSorter(SortingProperty.MZ,
+		    SortingDirection.Ascending));
+	    features[i] = createFeature(200 + random.nextDouble() * 300, ions);
+	}
+	return features;
+
+    }
+
+    /**
+     * Feature whose most intense fragment scan has a mass list of the given
+     * ions
+     */
+    private static Feature createFeature(final double mz,
+	    final DataPoint ions[]) {
+
+	final MassList massList = FixtureUtils.createStub(MassList.class,
+		massListName, new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getDataPoints"))
+			    return ions;
+			return null;
+		    }
+		});
+	final Scan scan = FixtureUtils.createStub(Scan.class, "MS2 scan",
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getMassList")
+				&& args[0].equals(massListName))
+			    return massList;
+			if (name.equals("getPrecursorMZ"))
+			    return mz;
+			return null;
+		    }
+		});
+	final RawDataFile dataFile = FixtureUtils.createStub(
+		RawDataFile.class, "test file", new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getScan"))
+			    return scan;
+			return null;
+		    }
+		});
+	return FixtureUtils.createStub(Feature.class, "feature " + mz,
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getDataFile"))
+			    return dataFile;
+			if (name.equals("getMostIntenseFragmentScanNumber"))
+			    return 1;
+			if (name.equals("getMZ"))
+			    return mz;
+			return null;
+		    }
+		});
+
+    }
+
+    private static DataPoint[] getIons(Feature feature) {
+	return feature.getDataFile()
+		.getScan(feature.getMostIntenseFragmentScanNumber())
+		.getMassList(massListName).getDataPoints();
+    }
+
+    /**
+     * The comparison of Ms2SearchTask.simpleMS2similarity() before the
+     * engine was used
+     */
+    private static Ms2SearchResult compareAllIons(DataPoint ionsA[],
+	    DataPoint ionsB[]) {
+
+	double runningScoreTotal = 0.0;
+	double mzRangePPM = mzTolerance.getPpmTolerance();
+	List<DataPoint> matchedIons = new ArrayList<DataPoint>();
+
+	double ionsBMaxMZ = ionsB[ionsB.length - 1].getMZ();
+	for (int i = 0; i < ionsA.length; i++) {
+	    double iMZ = ionsA[i].getMZ();
+	    double mzRangeAbsolute = iMZ * 1e-6 * mzRangePPM;
+	    if (iMZ - mzRangeAbsolute > ionsBMaxMZ)
+		break;
+	    for (int j = 0; j < ionsB.length; j++) {
+		double jMZ = ionsB[j].getMZ();
+		if (iMZ < jMZ - mzRangeAbsolute)
+		    break;
+		if (Math.abs(iMZ - jMZ) < mzRangeAbsolute) {
+		    runningScoreTotal += ionsA[i].getIntensity()
+			    * ionsB[j].getIntensity();
+		    matchedIons.add(ionsA[i]);
+		}
+	    }
+	}
+	return new Ms2SearchResult(runningScoreTotal, "simple", matchedIons);
+
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.nist;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchRunner.SearchResultsHandler;
+import net.sf.mzmine.modules.peaklistmethods.identification.nist.NistMsSearchRunner.SearchSpectrum;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NistMsSearchRunnerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Emulates NIST MS Search: reads the spectra file named in the locator
+     * files of the working directory and writes a results block with two hits
+     * for each spectrum. The first hit has match factors 900/850, the second
+     * 700/700. The molecular weight of the hits is the number of peaks of the
+     * spectrum.
+     */
+    public static class NistMsSearchStub {
+
+	public static void main(String args[]) throws IOException {
+
+	    final File dir = new File(System.getProperty("user.dir"));
+	    final String locatorFile2 = readFirstLine(new File(dir,
+		    NistMsSearchRunner.PRIMARY_LOCATOR_FILE_NAME));
+	    final String spectraFile = readFirstLine(new File(locatorFile2))
+		    .replace(" Append", "");
+
+	    final PrintWriter results = new PrintWriter(new FileWriter(
+		    new File(dir, NistMsSearchRunner.SEARCH_RESULTS_FILE_NAME)));
+	    final BufferedReader spectra = new BufferedReader(new FileReader(
+		    spectraFile));
+	    String line;
+	    String name = null;
+	    while ((line = spectra.readLine()) != null) {
+		if (line.startsWith("Name: "))
+		    name = line.substring(6);
+		if (line.startsWith("Num Peaks: ")) {
+		    final String numPeaks = line.substring(11);
+		    results.println("Unknown: " + name);
+		    results.println("Hit 1  : <<Compound of " + name
+			    + ">>; <<C6H6>>; MF: 900; RMF: 850; Prob: 50.0; "
+			    + "CAS:71-43-2; Mw: " + numPeaks + "; Id: 1.");
+		    results.println("Hit 2  : <<Other compound>>; <<C7H8>>; "
+			    + "MF: 700; RMF: 700; Prob: 10.0; CAS:108-88-3; "
+			    + "Mw: " + numPeaks + "; Id: 2.");
+		}
+	    }
+	    spectra.close();
+	    results.close();
+
+	    new File(dir, NistMsSearchRunner.SEARCH_POLL_FILE_NAME)
+		    .createNewFile();
+	}
+
+	private static String readFirstLine(File file) throws IOException {
+	    final BufferedReader reader = new BufferedReader(
+		    new FileReader(file));
+	    try {
+		return reader.readLine();
+	    } finally {
+		reader.close();
+	    }
+	}
+
+    }
+
+    private NistMsSearchRunner createRunner(File nistMsSearchDir)
+	    throws URISyntaxException {
+
+	// Run the stub in a new JVM, like the NIST MS Search executable
+	final File javaExecutable = new File(new File(
+		System.getProperty("java.home"), "bin"), "java");
+	final String classPath = new File(NistMsSearchStub.class
+		.getProtectionDomain().getCodeSource().getLocation().toURI())
+		.getPath();
+	final List<String> command = new ArrayList<String>(Arrays.asList(
+		javaExecutable.getPath(), "-cp", classPath,
+		NistMsSearchStub.class.getName()));
+	command.addAll(Arrays.asList(NistMsSearchRunner.COMMAND_LINE_ARGS));
+
+	return new NistMsSearchRunner(nistMsSearchDir, command, 800, 800);
+    }
+
+    /**
+     * All spectra of a batch are searched by one invocation, and the results
+     * of each spectrum are passed to the handler
+     */
+    @Test
+    public void testBatchSearch() throws Exception {
+
+	final File nistMsSearchDir = temporaryFolder.newFolder();
+	final NistMsSearchRunner runner = createRunner(nistMsSearchDir);
+
+	final List<SearchSpectrum> spectra = new ArrayList<SearchSpectrum>();
+	for (int rowID = 1; rowID <= 5; rowID++) {
+	    final double masses[] = new double[rowID];
+	    final double intensities[] = new double[rowID];
+	    for (int i = 0; i < rowID; i++) {
+		masses[i] = 100.0 + i;
+		intensities[i] = 1000.0 * (i + 1);
+	    }
+	    spectra.add(new SearchSpectrum(rowID, " of test", masses,
+		    intensities));
+	}
+
+	final Map<Integer, List<PeakIdentity>> results = new LinkedHashMap<Integer, List<PeakIdentity>>();
+	try {
+	    runner.configureLocatorFiles();
+	    final File spectraFile = NistMsSearchRunner
+		    .writeSpectraFile(spectra);
+	    Assert.assertTrue(runner.search(spectraFile));
+	    runner.readSearchResults(spectra, new SearchResultsHandler() {
+		@Override
+		public void searchResults(int rowID,
+			List<PeakIdentity> identities) {
+		    results.put(rowID, identities);
+		}
+	    });
+	} finally {
+	    runner.close();
+	}
+
+	Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5),
+		new ArrayList<Integer>(results.keySet()));
+	for (Map.Entry<Integer, List<PeakIdentity>> entry : results
+		.entrySet()) {
+
+	    // The second hit is below the match factor thresholds
+	    Assert.assertEquals(1, entry.getValue().size());
+	    final PeakIdentity identity = entry.getValue().get(0);
+	    Assert.assertEquals("Compound of Row " + entry.getKey()
+		    + " of test", identity.getName());
+	    Assert.assertEquals("900", identity
+		    .getPropertyValue(NistMsSearchRunner.MATCH_FACTOR_PROPERTY));
+	    Assert.assertEquals(String.valueOf(entry.getKey()), identity
+		    .getPropertyValue(NistMsSearchRunner.MOLECULAR_WEIGHT_PROPERTY));
+	}
+
+	// The locator file is removed after the search
+	final File locatorFile2 = new File(nistMsSearchDir,
+		NistMsSearchRunner.SECONDARY_LOCATOR_FILE_NAME);
+	Assert.assertFalse(locatorFile2.exists());
+
+    }
+
+    /**
+     * Results of spectra which were not searched are rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnexpectedResults() throws Exception {
+
+	final File nistMsSearchDir = temporaryFolder.newFolder();
+	final NistMsSearchRunner runner = createRunner(nistMsSearchDir);
+
+	final PrintWriter results = new PrintWriter(new FileWriter(new File(
+		nistMsSearchDir, NistMsSearchRunner.SEARCH_RESULTS_FILE_NAME)));
+	results.println("Unknown: Row 7 of test");
+	results.close();
+
+	final List<SearchSpectrum> spectra = Arrays.asList(new SearchSpectrum(
+		1, "", new double[] { 100.0 }, new double[] { 1000.0 }));
+	runner.readSearchResults(spectra, new SearchResultsHandler() {
+	    @Override
+	    public void searchResults(int rowID, List<PeakIdentity> identities) {
+	    }
+	});
+
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.identification.onlinedbsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.util.InetUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class CachedDBGatewayTest {
+
+    private static final long ONE_HOUR = 3600000;
+
+    // Time the stub server takes to answer a request
+    private static final long RESPONSE_TIME = 200;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<String> requestedQueries = Collections
+	    .synchronizedList(new ArrayList<String>());
+    private final AtomicInteger runningRequests = new AtomicInteger();
+    private final AtomicInteger maxRunningRequests = new AtomicInteger();
+
+    // Requests started, and the latch the requests wait for before they are
+    // answered
+    private volatile CountDownLatch startedRequests = new CountDownLatch(0);
+    private volatile CountDownLatch heldRequests = new CountDownLatch(0);
+
+    /**
+     * Starts a local HTTP server, which returns compound IDs for /find and
+     * name and formula for /compound
+     */
+    @Before
+    public void startServer() throws IOException {
+	server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+	server.createContext("/", new HttpHandler() {
+	    @Override
+	    public void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		requestedQueries.add(exchange.getRequestURI().getQuery());
+		int running = runningRequests.incrementAndGet();
+		synchronized (maxRunningRequests) {
+		    maxRunningRequests.set(Math.max(maxRunningRequests.get(),
+			    running));
+		}
+		startedRequests.countDown();
+		try {
+		    heldRequests.await(10, TimeUnit.SECONDS);
+		    Thread.sleep(RESPONSE_TIME);
+		} catch (InterruptedException e) {
+		    // Answer immediately
+		}
+		// The request is finished before the client receives the
+		// response, and may send the next request
+		runningRequests.decrementAndGet();
+		String query = exchange.getRequestURI().getQuery();
+		String response;
+		if (exchange.getRequestURI().getPath().equals("/find"))
+		    response = query + "-1," + query + "-2";
+		else
+		    response = "Compound " + query + ";C6H12O6";
+		byte bytes[] = response.getBytes("UTF-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream output = exchange.getResponseBody();
+		output.write(bytes);
+		output.close();
+	    }
+	});
+	serverThreads = Executors.newCachedThreadPool();
+	server.setExecutor(serverThreads);
+	server.start();
+    }
+
+    @After
+    public void stopServer() {
+	server.stop(0);
+	serverThreads.shutdownNow();
+    }
+
+    /**
+     * Gateway which queries the local server
+     */
+    private class StubGateway implements DBGateway {
+
+	private String getBaseURL() {
+	    return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@Override
+	public String[] findCompounds(double mass, MZTolerance mzTolerance,
+		int numOfResults, ParameterSet parameters) throws IOException {
+	    return InetUtils.retrieveData(
+		    new URL(getBaseURL() + "/find?" + mass)).split(",");
+	}
+
+	@Override
+	public DBCompound getCompound(String ID, ParameterSet parameters)
+		throws IOException {
+	    URL compoundURL = new URL(getBaseURL() + "/compound?" + ID);
+	    String values[] = InetUtils.retrieveData(compoundURL).split(";");
+	    DBCompound compound = new DBCompound(OnlineDatabase.KEGG, ID,
+		    values[0], values[1], compoundURL, null, null);
+	    compound.setPropertyValue("Extra property", "Extra value");
+	    return compound;
+	}
+
+    }
+
+    private CachedDBGateway createGateway(File cacheDirectory,
+	    long timeToLive, int maxConcurrentRequests) {
+	return new CachedDBGateway(OnlineDatabase.KEGG, new StubGateway(),
+		cacheDirectory, timeToLive, new CachedDBGateway.RequestLimiter(
+			maxConcurrentRequests, 1000));
+    }
+
+    /**
+     * Repeated queries are answered from the memory cache, and from the cache
+     * directory by a new gateway
+     */
+    @Test
+    public void testCache() throws Exception {
+
+	final File cacheDirectory = temporaryFolder.newFolder();
+	final MZTolerance mzTolerance = new MZTolerance(0.001, 5);
+
+	CachedDBGateway gateway = createGateway(cacheDirectory, ONE_HOUR, 4);
+	String compoundIDs[] = gateway.findCompounds(180.0634, mzTolerance, 10,
+		null);
+	Assert.assertArrayEquals(new String[] { "180.0634-1", "180.0634-2" },
+		compoundIDs);
+	DBCompound compound = gateway.getCompound(compoundIDs[0], null);
+	Assert.assertEquals(2, requests.get());
+
+	gateway.findCompounds(180.0634, mzTolerance, 10, null);
+	gateway.getCompound(compoundIDs[0], null);
+	Assert.assertEquals(2, requests.get());
+
+	CachedDBGateway newGateway = createGateway(cacheDirectory, ONE_HOUR, 4);
+	Assert.assertArrayEquals(compoundIDs,
+		newGateway.findCompounds(180.0634, mzTolerance, 10, null));
+	DBCompound cachedCompound = newGateway.getCompound(compoundIDs[0],
+		null);
+	Assert.assertEquals(2, requests.get());
+	Assert.assertEquals(compound.getAllProperties(),
+		cachedCompound.getAllProperties());
+	Assert.assertEquals("Extra value",
+		cachedCompound.getPropertyValue("Extra property"));
+	Assert.assertEquals("C6H12O6",
+		cachedCompound.getPropertyValue(PeakIdentity.PROPERTY_FORMULA));
+
+	// A different query is sent to the server
+	newGateway.findCompounds(180.0635, mzTolerance, 10, null);
+	Assert.assertEquals(3, requests.get());
+
+    }
+
+    /**
+     * Expired results are retrieved again
+     */
+    @Test
+    public void testExpiredCache() throws Exception {
+
+	final File cacheDirectory = temporaryFolder.newFolder();
+	final MZTolerance mzTolerance = new MZTolerance(0.001, 5);
+
+	createGateway(cacheDirectory, -1, 4).findCompounds(100, mzTolerance,
+		10, null);
+	createGateway(cacheDirectory, -1, 4).findCompounds(100, mzTolerance,
+		10, null);
+	Assert.assertEquals(2, requests.get());
+
+    }
+
+    /**
+     * Expired results are removed when the cache directory is first used,
+     * and the least recently used results when there are too many. Other
+     * files, like results being written, are kept.
+     */
+    @Test
+    public void testOldCacheFilesRemoved() throws Exception {
+
+	final File cacheDirectory = temporaryFolder.newFolder();
+	final long now = System.currentTimeMillis();
+	File expiredFile = createFile(cacheDirectory, "expired.cache", now
+		- 2 * ONE_HOUR);
+	File tempFile = createFile(cacheDirectory, "expired.cache.tmp1", now
+		- 2 * ONE_HOUR);
+	File cacheFiles[] = new File[8];
+	for (int i = 0; i < cacheFiles.length; i++)
+	    cacheFiles[i] = createFile(cacheDirectory, i + ".cache", now - i
+		    * 1000);
+
+	createGateway(cacheDirectory, ONE_HOUR, 4).findCompounds(100,
+		new MZTolerance(0.001, 5), 10, null);
+	Assert.assertFalse(expiredFile.exists());
+	Assert.assertTrue(tempFile.exists());
+	Assert.assertEquals(1, requests.get());
+	for (File cacheFile : cacheFiles)
+	    Assert.assertTrue(cacheFile.exists());
+
+	// The result of the query and the 5 most recently used files are left
+	Assert.assertEquals(6, CachedDBGateway.removeOldCacheFiles(
+		cacheDirectory, ONE_HOUR, 8));
+	for (int i = 0; i < cacheFiles.length; i++)
+	    Assert.assertEquals(i < 5, cacheFiles[i].exists());
+	Assert.assertTrue(tempFile.exists());
+
+    }
+
+    private static File createFile(File directory, String name,
+	    long lastModified) throws IOException {
+	File file = new File(directory, name);
+	Assert.assertTrue(file.createNewFile());
+	Assert.assertTrue(file.setLastModified(lastModified));
+	return file;
+    }
+
+    /**
+     * Identical queries running at the same time are sent once, and the
+     * number of concurrent queries is limited
+     */
+    @Test
+    public void testConcurrentQueries() throws Exception {
+
+	final File cacheDirectory = temporaryFolder.newFolder();
+	final MZTolerance mzTolerance = new MZTolerance(0.001, 5);
+	final CachedDBGateway gateway = createGateway(cacheDirectory,
+		ONE_HOUR, 2);
+
+	ExecutorService threads = Executors.newFixedThreadPool(8);
+	try {
+
+	    List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+	    for (int i = 0; i < 8; i++) {
+		results.add(threads.submit(new Callable<String[]>() {
+		    @Override
+		    public String[] call() throws IOException {
+			return gateway.findCompounds(200, mzTolerance, 10,
+				null);
+		    }
+		}));
+	    }
+	    for (Future<String[]> result : results)
+		Assert.assertEquals("200.0-1", result.get()[0]);
+	    Assert.assertEquals(1, requests.get());
+
+	    // The requests are held until the limit of running requests is
+	    // reached
+	    results.clear();
+	    startedRequests = new CountDownLatch(2);
+	    heldRequests = new CountDownLatch(1);
+	    for (int i = 0; i < 8; i++) {
+		final double mass = 300 + i;
+		results.add(threads.submit(new Callable<String[]>() {
+		    @Override
+		    public String[] call() throws IOException {
+			return gateway.findCompounds(mass, mzTolerance, 10,
+				null);
+		    }
+		}));
+	    }
+	    Assert.assertTrue(startedRequests.await(10, TimeUnit.SECONDS));
+	    Thread.sleep(RESPONSE_TIME);
+	    Assert.assertEquals(2, runningRequests.get());
+	    heldRequests.countDown();
+	    for (Future<String[]> result : results)
+		result.get();
+	    Assert.assertEquals(9, requests.get());
+	    for (int i = 0; i < 8; i++) {
+		Assert.assertEquals(1, Collections.frequency(requestedQueries,
+			String.valueOf(300.0 + i)));
+	    }
+	    Assert.assertTrue(maxRunningRequests.get() <= 2);
+
+	} finally {
+	    threads.shutdownNow();
+	}
+
+    }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.isotopes.deisotoper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IsotopeGrouperTaskTest {
+
+    private static final double isotopeDistance = 1.0033;
+
+    private static final int NUMBER_OF_PATTERNS = 800;
+    private static final int NUMBER_OF_NOISE_PEAKS = 1500;
+
+    private static final MZTolerance mzTolerance = new MZTolerance(0.003, 10);
+    private static final RTTolerance rtTolerance = new RTTolerance(true, 0.2);
+
+    /**
+     * The deisotoped peak list is the same as the one created by fitting the
+     * patterns over all peaks, one peak after another, as the grouper did
+     * before fitting in parallel. The peaks are crowded, so many fitted
+     * patterns are invalidated by higher peaks of the same round.
+     */
+    @Test
+    public void testSameResultAsSequentialFitting() {
+	for (boolean monotonicShape : new boolean[] { false, true }) {
+	    PeakList peakList = createPeakList(new Random(1));
+	    Assert.assertEquals(describe(fitSequentially(peakList, 3,
+		    monotonicShape)), describe(runTask(peakList, 3,
+		    monotonicShape)));
+	}
+    }
+
+    /**
+     * Peaks of a charge 2 pattern are grouped to the highest peak, and the
+     * unrelated peak is kept
+     */
+    @Test
+    public void testSinglePattern() {
+
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	FixtureUtils.addRow(peakList, 1, 500.0, 10.0, 1000.0);
+	FixtureUtils.addRow(peakList, 2, 500.0 + isotopeDistance / 2, 10.05,
+		600.0);
+	FixtureUtils.addRow(peakList, 3, 500.0 + isotopeDistance, 10.0, 200.0);
+	FixtureUtils.addRow(peakList, 4, 500.0 + isotopeDistance / 2, 12.0,
+		100.0);
+
+	PeakListRow rows[] = runTask(peakList, 3, true).getRows();
+	Assert.assertEquals(2, rows.length);
+	Assert.assertEquals(1, rows[0].getID());
+	Feature peak = rows[0].getPeaks()[0];
+	Assert.assertEquals(2, peak.getCharge());
+	Assert.assertEquals(3, peak.getIsotopePattern().getNumberOfDataPoints());
+	Assert.assertEquals(4, rows[1].getID());
+	Assert.assertNull(rows[1].getPeaks()[0].getIsotopePattern());
+
+    }
+
+    private static PeakList createPeakList(Random random) {
+
+	RawDataFile dataFile = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", dataFile);
+	int id = 1;
+
+	// Patterns of up to 5 isotopes of decreasing height, in a narrow m/z
+	// and RT range so the patterns overlap
+	for (int i = 0; i < NUMBER_OF_PATTERNS; i++) {
+	    final int charge = 1 + random.nextInt(3);
+	    final double mz = 200 + random.nextDouble() * 100;
+	    final double rt = random.nextDouble() * 10;
+	    final int isotopes = 1 + random.nextInt(5);
+	    double height = 1000 + random.nextDouble() * 100000;
+	    for (int j = 0; j < isotopes; j++) {
+		FixtureUtils.addRow(peakList, id++, mz + j * isotopeDistance
+			/ charge + (random.nextDouble() - 0.5) * 0.004, rt
+			+ (random.nextDouble() - 0.5) * 0.2, height);
+		height *= 0.3 + random.nextDouble() * 0.9;
+	    }
+	}
+
+	for (int i = 0; i < NUMBER_OF_NOISE_PEAKS; i++) {
+	    FixtureUtils.addRow(peakList, id++,
+		    200 + random.nextDouble() * 100, random.nextDouble() * 10,
+		    random.nextDouble() * 50000);
+	}
+
+	return peakList;
+
+    }
+
+    private static PeakList runTask(PeakList peakList, int maximumCharge,
+	    boolean monotonicShape) {
+
+	final List<PeakList> addedPeakLists = new ArrayList<PeakList>();
+	MZmineProject project = FixtureUtils.createProject(addedPeakLists);
+
+	ParameterSet parameters = new IsotopeGrouperParameters();
+	parameters.getParameter(IsotopeGrouperParameters.suffix).setValue(
+		"deisotoped");
+	parameters.getParameter(IsotopeGrouperParameters.mzTolerance)
+		.setValue(mzTolerance);
+	parameters.getParameter(IsotopeGrouperParameters.rtTolerance)
+		.setValue(rtTolerance);
+	parameters.getParameter(IsotopeGrouperParameters.monotonicShape)
+		.setValue(monotonicShape);
+	parameters.getParameter(IsotopeGrouperParameters.maximumCharge)
+		.setValue(maximumCharge);
+	parameters.getParameter(IsotopeGrouperParameters.representativeIsotope)
+		.setValue(IsotopeGrouperParameters.ChooseTopIntensity);
+	parameters.getParameter(IsotopeGrouperParameters.autoRemove).setValue(
+		false);
+
+	IsotopeGrouperTask task = new IsotopeGrouperTask(project, peakList,
+		parameters);
+	task.run();
+	Assert.assertEquals(TaskStatus.FINISHED, task.getStatus());
+	Assert.assertEquals(1, addedPeakLists.size());
+	return addedPeakLists.get(0);
+
+    }
+
+    /**
+     * Describes each row by its ID, and the charge and isotopes of its peak
+     */
+    private static List<String> describe(PeakList peakList) {
+	List<String> description = new ArrayList<String>();
+	for (PeakListRow row : peakList.getRows()) {
+	    Feature peak = row.getPeaks()[0];
+	    StringBuilder s = new StringBuilder();
+	    s.append(row.getID() + " " + peak.getMZ() + " z=" + peak.getCharge());
+	    if (peak.getIsotopePattern() != null) {
+		for (DataPoint isotope : peak.getIsotopePattern()
+			.getDataPoints())
+		    s.append(" " + isotope.getMZ());
+	    }
+	    description.add(s.toString());
+	}
+	return description;
+    }
+
+    /**
+     * Groups the isotopes by fitting the patterns over all remaining peaks,
+     * one peak after another
+     */
+    private static PeakList fitSequentially(PeakList peakList,
+	    int maximumCharge, boolean monotonicShape) {
+
+	RawDataFile dataFile = peakList.getRawDataFile(0);
+	SimplePeakList deisotopedPeakList = new SimplePeakList("expected",
+		dataFile);
+
+	Feature[] sortedPeaks = peakList.getPeaks(dataFile);
+	Arrays.sort(sortedPeaks, new PeakSorter(SortingProperty.Height,
+		SortingDirection.Descending));
+
+	for (int ind = 0; ind < sortedPeaks.length; ind++) {
+
+	    Feature aPeak = sortedPeaks[ind];
+	    if (aPeak == null)
+		continue;
+
+	    int bestFitCharge = 0;
+	    int bestFitScore = -1;
+	    Vector<Feature> bestFitPeaks = null;
+	    for (int charge = 1; charge <= maximumCharge; charge++) {
+		Vector<Feature> fittedPeaks = new Vector<Feature>();
+		fittedPeaks.add(aPeak);
+		if (!monotonicShape)
+		    fitHalfPattern(aPeak, charge, -1, fittedPeaks, sortedPeaks);
+		fitHalfPattern(aPeak, charge, 1, fittedPeaks, sortedPeaks);
+		int score = fittedPeaks.size();
+		if ((score > bestFitScore)
+			|| ((score == bestFitScore) && (bestFitCharge > charge))) {
+		    bestFitScore = score;
+		    bestFitCharge = charge;
+		    bestFitPeaks = fittedPeaks;
+		}
+	    }
+
+	    PeakListRow oldRow = peakList.getPeakRow(aPeak);
+	    if (bestFitPeaks.size() == 1) {
+		deisotopedPeakList.addRow(oldRow);
+		continue;
+	    }
+
+	    Feature originalPeaks[] = bestFitPeaks.toArray(new Feature[0]);
+	    DataPoint isotopes[] = new DataPoint[originalPeaks.length];
+	    for (int i = 0; i < isotopes.length; i++)
+		isotopes[i] = new SimpleDataPoint(originalPeaks[i].getMZ(),
+			originalPeaks[i].getHeight());
+	    Arrays.sort(originalPeaks, new PeakSorter(SortingProperty.Height,
+		    SortingDirection.Descending));
+
+	    Feature newPeak = new SimpleFeature(originalPeaks[0]);
+	    newPeak.setIsotopePattern(new SimpleIsotopePattern(isotopes,
+		    IsotopePatternStatus.DETECTED, aPeak.toString()));
+	    newPeak.setCharge(bestFitCharge);
+	    SimplePeakListRow newRow = new SimplePeakListRow(oldRow.getID());
+	    newRow.addPeak(dataFile, newPeak);
+	    deisotopedPeakList.addRow(newRow);
+
+	    for (int i = 0; i < sortedPeaks.length; i++) {
+		if (bestFitPeaks.contains(sortedPeaks[i]))
+		    sortedPeaks[i] = null;
+	    }
+
+	}
+
+	return deisotopedPeakList;
+
+    }
+
+    private static void fitHalfPattern(Feature p, int charge, int direction,
+	    Vector<Feature> fittedPeaks, Feature[] sortedPeaks) {
+
+	double mainMZ = p.getMZ();
+	double mainRT = p.getRT();
+
+	boolean followingPeakFound;
+	int n = 1;
+	do {
+	    followingPeakFound = false;
+	    Vector<Feature> goodCandidates = new Vector<Feature>();
+	    for (Feature candidatePeak : sortedPeaks) {
+		if (candidatePeak == null)
+		    continue;
+		double isotopeMZ = candidatePeak.getMZ() - isotopeDistance
+			* direction * n / (double) charge;
+		if (mzTolerance.checkWithinTolerance(isotopeMZ, mainMZ)
+			&& rtTolerance.checkWithinTolerance(
+				candidatePeak.getRT(), mainRT)
+			&& (!fittedPeaks.contains(candidatePeak))) {
+		    goodCandidates.add(candidatePeak);
+		}
+	    }
+	    if (!goodCandidates.isEmpty()) {
+		fittedPeaks.addAll(goodCandidates);
+		n++;
+		followingPeakFound = true;
+	    }
+	} while (followingPeakFound);
+
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PolarityType;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscience.cdk.config.Isotopes;
+import org.openscience.cdk.interfaces.IIsotope;
+import org.openscience.cdk.interfaces.IMolecularFormula;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
+
+public class ConvolutionIsotopePatternCalculatorTest {
+
+    private static final String FORMULAS[] = { "C", "C6H12O6", "C37H61O9S2",
+	    "C100H202", "C20H25N3O", "C12H4Cl6", "C6H12O6" };
+
+    /**
+     * Mass of the electron, as used by IsotopePatternCalculator
+     */
+    private static final double ELECTRON_MASS = 5.4857990943E-4;
+
+    /**
+     * The intensities and intensity-weighted masses per nominal mass equal
+     * those of a brute-force expansion of the formula atom by atom, and all
+     * isotopes of the expansion above the minimum abundance are predicted
+     * within the merging tolerance
+     */
+    @Test
+    public void testSameAsBruteForce() throws Exception {
+
+	for (double minAbundance : new double[] { 1E-7, 0.001 }) {
+	    IsotopePattern patterns[] = IsotopePatternCalculator
+		    .calculateIsotopePatterns(FORMULAS, minAbundance, 1,
+			    PolarityType.POSITIVE);
+	    Assert.assertEquals(FORMULAS.length, patterns.length);
+
+	    for (int f = 0; f < FORMULAS.length; f++) {
+		TreeMap<Double, Double> expected = expandAtomByAtom(FORMULAS[f]);
+		DataPoint dataPoints[] = patterns[f].getDataPoints();
+
+		double previousMZ = 0;
+		double maxIntensity = 0;
+		for (DataPoint dp : dataPoints) {
+		    Assert.assertTrue(dp.getMZ() > previousMZ);
+		    Assert.assertTrue(dp.getIntensity() >= minAbundance);
+		    previousMZ = dp.getMZ();
+		    maxIntensity = Math.max(maxIntensity, dp.getIntensity());
+		}
+		Assert.assertEquals(1, maxIntensity, 1E-12);
+
+		// Isotopes of the expansion clearly above the minimum abundance
+		for (Map.Entry<Double, Double> isotope : expected.entrySet()) {
+		    if (isotope.getValue() < minAbundance * 1.1)
+			continue;
+		    final double mz = isotope.getKey() - ELECTRON_MASS;
+		    boolean found = false;
+		    for (DataPoint dp : dataPoints) {
+			if (Math.abs(dp.getMZ() - mz) < 0.0001)
+			    found = true;
+		    }
+		    Assert.assertTrue(FORMULAS[f] + " " + mz, found);
+		}
+
+		// Sums per nominal mass, which do not depend on merging
+		if (minAbundance > 1E-7)
+		    continue;
+		TreeMap<Long, double[]> expectedSums = sumPerNominalMass(
+			expected, 0);
+		TreeMap<Double, Double> predicted = new TreeMap<Double, Double>();
+		for (DataPoint dp : dataPoints)
+		    predicted.put(dp.getMZ(), dp.getIntensity());
+		TreeMap<Long, double[]> predictedSums = sumPerNominalMass(
+			predicted, ELECTRON_MASS);
+		Assert.assertTrue(expectedSums.keySet().containsAll(
+			predictedSums.keySet()));
+		for (Map.Entry<Long, double[]> sum : expectedSums.entrySet()) {
+		    double predictedSum[] = predictedSums.get(sum.getKey());
+		    if (predictedSum == null)
+			predictedSum = new double[2];
+		    Assert.assertEquals(FORMULAS[f], sum.getValue()[0],
+			    predictedSum[0], 1E-5);
+		    if (sum.getValue()[0] > 1E-3)
+			Assert.assertEquals(FORMULAS[f], sum.getValue()[1],
+				predictedSum[1], 1E-5);
+		}
+	    }
+	}
+
+    }
+
+    /**
+     * The element distributions kept by one calculator do not change the
+     * patterns of the following formulas, and the ion masses follow the
+     * charge and polarity
+     */
+    @Test
+    public void testBatchAndIonMasses() throws Exception {
+
+	IsotopePattern batch[] = IsotopePatternCalculator
+		.calculateIsotopePatterns(FORMULAS, 0.001, 2,
+			PolarityType.NEGATIVE);
+	IsotopePattern neutral[] = IsotopePatternCalculator
+		.calculateIsotopePatterns(FORMULAS, 0.001, 0,
+			PolarityType.POSITIVE);
+
+	for (int f = 0; f < FORMULAS.length; f++) {
+	    IMolecularFormula cdkFormula = MolecularFormulaManipulator
+		    .getMolecularFormula(FORMULAS[f],
+			    SilentChemObjectBuilder.getInstance());
+	    IsotopePattern single = new ConvolutionIsotopePatternCalculator(
+		    0.001).calculateIsotopePattern(cdkFormula, 2,
+		    PolarityType.NEGATIVE);
+	    DataPoint expected[] = single.getDataPoints();
+	    DataPoint actual[] = batch[f].getDataPoints();
+	    DataPoint neutralDataPoints[] = neutral[f].getDataPoints();
+	    Assert.assertEquals(expected.length, actual.length);
+	    Assert.assertEquals(expected.length, neutralDataPoints.length);
+	    for (int i = 0; i < expected.length; i++) {
+		Assert.assertEquals(expected[i].getMZ(), actual[i].getMZ(), 0);
+		Assert.assertEquals(expected[i].getIntensity(),
+			actual[i].getIntensity(), 0);
+		Assert.assertEquals(
+			(neutralDataPoints[i].getMZ() + 2 * ELECTRON_MASS) / 2,
+			actual[i].getMZ(), 1E-9);
+	    }
+	}
+
+    }
+
+    /**
+     * Isotopes of the formula with masses and abundances relative to the
+     * highest isotope, calculated by adding one atom at a time. Equal masses
+     * from different orders of the atoms are added together.
+     */
+    private static TreeMap<Double, Double> expandAtomByAtom(String formula)
+	    throws Exception {
+
+	Isotopes isotopeFactory = Isotopes.getInstance();
+	TreeMap<Double, Double> distribution = new TreeMap<Double, Double>();
+	distribution.put(0.0, 1.0);
+
+	Matcher matcher = Pattern.compile("([A-Z][a-z]?)(\\d*)").matcher(
+		formula);
+	while (matcher.find()) {
+	    final int atoms = matcher.group(2).isEmpty() ? 1 : Integer
+		    .parseInt(matcher.group(2));
+	    IIsotope elementIsotopes[] = isotopeFactory.getIsotopes(matcher
+		    .group(1));
+	    for (int n = 0; n < atoms; n++) {
+		TreeMap<Double, Double> next = new TreeMap<Double, Double>();
+		for (Map.Entry<Double, Double> isotope : distribution
+			.entrySet()) {
+		    for (IIsotope elementIsotope : elementIsotopes) {
+			Double abundance = elementIsotope.getNaturalAbundance();
+			if ((abundance == null) || (abundance <= 0))
+			    continue;
+			double mass = Math.round((isotope.getKey() + elementIsotope
+				.getExactMass()) * 1E9) / 1E9;
+			double probability = isotope.getValue() * abundance
+				/ 100;
+			if (probability < 1E-15)
+			    continue;
+			Double previous = next.get(mass);
+			next.put(mass, (previous == null ? 0 : previous)
+				+ probability);
+		    }
+		}
+		distribution = next;
+	    }
+	}
+
+	double maxAbundance = 0;
+	for (double abundance : distribution.values())
+	    maxAbundance = Math.max(maxAbundance, abundance);
+	for (Map.Entry<Double, Double> isotope : distribution.entrySet())
+	    isotope.setValue(isotope.getValue() / maxAbundance);
+	return distribution;
+
+    }
+
+    /**
+     * Returns the summed intensities and intensity-weighted masses of the
+     * isotopes per nominal mass
+     */
+    private static TreeMap<Long, double[]> sumPerNominalMass(
+	    TreeMap<Double, Double> isotopes, double massShift) {
+	TreeMap<Long, double[]> sums = new TreeMap<Long, double[]>();
+	for (Map.Entry<Double, Double> isotope : isotopes.entrySet()) {
+	    final double mass = isotope.getKey() + massShift;
+	    double sum[] = sums.get(Math.round(mass));
+	    if (sum == null) {
+		sum = new double[2];
+		sums.put(Math.round(mass), sum);
+	    }
+	    sum[0] += isotope.getValue();
+	    sum[1] += mass * isotope.getValue();
+	}
+	for (double sum[] : sums.values())
+	    sum[1] /= sum[0];
+	return sums;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.isotopes.isotopeprediction;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.PolarityType;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IMolecularFormula;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
+
+public class IsotopePatternCalculatorTest {
+
+    /**
+     * Patterns of the cache equal the patterns of the generator for the same
+     * minimum abundance, whichever minimum abundances the formula was
+     * requested with before
+     */
+    @Test
+    public void testCachedSameAsGenerated() {
+
+	final String formulas[] = { "C37H62O9S2", "C12H4Cl6", "C20H26N3O" };
+	final double minAbundances[] = { 0.001, 0.05, 1E-5, 0.2, 0.05 };
+	for (String formula : formulas) {
+	    for (double minAbundance : minAbundances) {
+		IsotopePattern cachedPattern = IsotopePatternCalculator
+			.calculateIsotopePattern(formula, minAbundance, 1,
+				PolarityType.POSITIVE);
+		assertSamePattern(
+			generatePattern(formula, minAbundance, 1,
+				PolarityType.POSITIVE), cachedPattern);
+
+		// The cache hit is the same pattern
+		Assert.assertSame(cachedPattern, IsotopePatternCalculator
+			.calculateIsotopePattern(formula, minAbundance, 1,
+				PolarityType.POSITIVE));
+	    }
+	}
+
+    }
+
+    /**
+     * Patterns of different charge or polarity are cached separately
+     */
+    @Test
+    public void testChargeAndPolarity() {
+
+	final String formula = "C6H13O6";
+	for (int charge = 1; charge <= 2; charge++) {
+	    for (PolarityType polarity : new PolarityType[] {
+		    PolarityType.POSITIVE, PolarityType.NEGATIVE }) {
+		assertSamePattern(generatePattern(formula, 0.001, charge,
+			polarity), IsotopePatternCalculator
+			.calculateIsotopePattern(formula, 0.001, charge,
+				polarity));
+	    }
+	}
+
+    }
+
+    private static IsotopePattern generatePattern(String formula,
+	    double minAbundance, int charge, PolarityType polarity) {
+	IMolecularFormula cdkFormula = MolecularFormulaManipulator
+		.getMolecularFormula(formula,
+			SilentChemObjectBuilder.getInstance());
+	return IsotopePatternCalculator.calculateIsotopePattern(cdkFormula,
+		minAbundance, charge, polarity);
+    }
+
+    private static void assertSamePattern(IsotopePattern expected,
+	    IsotopePattern actual) {
+	Assert.assertEquals(expected.getDescription(), actual.getDescription());
+	Assert.assertEquals(expected.getStatus(), actual.getStatus());
+	DataPoint expectedDataPoints[] = expected.getDataPoints();
+	DataPoint actualDataPoints[] = actual.getDataPoints();
+	Assert.assertEquals(expectedDataPoints.length, actualDataPoints.length);
+	for (int i = 0; i < expectedDataPoints.length; i++) {
+	    Assert.assertEquals(expectedDataPoints[i].getMZ(),
+		    actualDataPoints[i].getMZ(), 0);
+	    Assert.assertEquals(expectedDataPoints[i].getIntensity(),
+		    actualDataPoints[i].getIntensity(), 0);
+	}
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.normalization.standardcompound;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakSelection;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.PeakMeasurementType;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class StandardCompoundNormalizerTaskTest {
+
+    private static final int NUM_OF_FILES = 3;
+    private static final int NUM_OF_STANDARDS = 12;
+
+    /**
+     * The parameters use the number formats of the configuration, which is
+     * created by MZmineCore.main()
+     */
+    @BeforeClass
+    public static void initConfiguration() {
+	FixtureUtils.initConfiguration();
+    }
+
+    @AfterClass
+    public static void restoreCore() {
+	FixtureUtils.restoreCore();
+    }
+
+    /**
+     * The nearest standards are the ones found by comparing each row with
+     * every standard, as the task did before the standards were sorted by
+     * m/z. Rows and standards lie on a grid, so many rows have several
+     * nearest standards, and the last of them is used. A balance of 0 or
+     * below must not stop the search early.
+     */
+    @Test
+    public void testNearestStandard() {
+	for (double balance : new double[] { 0, -1, -0.5, 0.3, 1, 10 }) {
+	    for (int seed = 1; seed <= 2; seed++) {
+		// Standards at the RT values of the rows, or between them
+		PeakList peakList = createPeakList(new Random(seed),
+			(seed == 1) ? 0 : 0.5);
+		PeakListRow standards[] = getStandards(peakList);
+
+		int numOfTies = 0;
+		for (PeakListRow row : peakList.getRows()) {
+		    if (!isStandard(row, standards)
+			    && (countNearestStandards(row, standards, balance) > 1))
+			numOfTies++;
+		}
+		Assert.assertTrue(numOfTies > 20);
+
+		checkNormalization(peakList, StandardUsageType.Nearest,
+			balance, PeakMeasurementType.HEIGHT);
+		checkNormalization(peakList, StandardUsageType.Nearest,
+			balance, PeakMeasurementType.AREA);
+	    }
+	}
+    }
+
+    /**
+     * The weighted factors are the same as the ones calculated for each row
+     * and data file separately
+     */
+    @Test
+    public void testWeightedStandards() {
+	for (double balance : new double[] { 0, -1, 1, 10 }) {
+	    PeakList peakList = createPeakList(new Random(3), 0.5);
+	    checkNormalization(peakList, StandardUsageType.Weighted, balance,
+		    PeakMeasurementType.HEIGHT);
+	    checkNormalization(peakList, StandardUsageType.Weighted, balance,
+		    PeakMeasurementType.AREA);
+	}
+    }
+
+    private static void checkNormalization(PeakList peakList,
+	    StandardUsageType type, double balance,
+	    PeakMeasurementType measurementType) {
+
+	PeakListRow standards[] = getStandards(peakList);
+	PeakList normalizedPeakList = runTask(peakList, type, balance,
+		measurementType);
+	RawDataFile files[] = peakList.getRawDataFiles();
+
+	int index = 0;
+	for (PeakListRow row : peakList.getRows()) {
+	    if (isStandard(row, standards))
+		continue;
+	    PeakListRow normalizedRow = normalizedPeakList.getRow(index++);
+	    Assert.assertEquals(row.getID(), normalizedRow.getID());
+	    for (RawDataFile file : files) {
+		Feature peak = row.getPeak(file);
+		Feature normalizedPeak = normalizedRow.getPeak(file);
+		if (peak == null) {
+		    Assert.assertNull(normalizedPeak);
+		    continue;
+		}
+		double factor = calculateFactor(row, file, standards, type,
+			balance, measurementType);
+		String message = type + " " + balance + " row " + row.getID();
+		Assert.assertEquals(message, peak.getHeight() / factor,
+			normalizedPeak.getHeight(), 0);
+		Assert.assertEquals(message, peak.getArea() / factor,
+			normalizedPeak.getArea(), 0);
+	    }
+	}
+	Assert.assertEquals(index, normalizedPeakList.getNumberOfRows());
+
+    }
+
+    /**
+     * Normalization factor as calculated before the engine was used
+     */
+    private static double calculateFactor(PeakListRow row, RawDataFile file,
+	    PeakListRow standards[], StandardUsageType type, double balance,
+	    PeakMeasurementType measurementType) {
+
+	double factors[], weights[];
+	if (type == StandardUsageType.Nearest) {
+	    PeakListRow nearestStandard = null;
+	    double nearestDistance = Double.MAX_VALUE;
+	    for (PeakListRow standard : standards) {
+		double distance = getDistance(row, standard, balance);
+		if (distance <= nearestDistance) {
+		    nearestStandard = standard;
+		    nearestDistance = distance;
+		}
+	    }
+	    Feature standardPeak = nearestStandard.getPeak(file);
+	    factors = new double[] { (standardPeak == null) ? 1.0 : getValue(
+		    standardPeak, measurementType) };
+	    weights = new double[] { 1.0f };
+	} else {
+	    factors = new double[standards.length];
+	    weights = new double[standards.length];
+	    for (int i = 0; i < standards.length; i++) {
+		Feature standardPeak = standards[i].getPeak(file);
+		if (standardPeak == null) {
+		    factors[i] = 1.0;
+		    weights[i] = 0.0;
+		} else {
+		    factors[i] = getValue(standardPeak, measurementType);
+		    weights[i] = 1 / getDistance(row, standards[i], balance);
+		}
+	    }
+	}
+
+	double weightedSum = 0.0f;
+	double sumOfWeights = 0.0f;
+	for (int i = 0; i < factors.length; i++) {
+	    weightedSum += factors[i] * weights[i];
+	    sumOfWeights += weights[i];
+	}
+	double factor = weightedSum / sumOfWeights;
+	factor = factor / 100.0f;
+	if (factor == 0.0)
+	    factor = Double.MIN_VALUE;
+	return factor;
+
+    }
+
+    private static int countNearestStandards(PeakListRow row,
+	    PeakListRow standards[], double balance) {
+	double nearestDistance = Double.MAX_VALUE;
+	int count = 0;
+	for (PeakListRow standard : standards) {
+	    double distance = getDistance(row, standard, balance);
+	    if (distance < nearestDistance) {
+		nearestDistance = distance;
+		count = 1;
+	    } else if (distance == nearestDistance)
+		count++;
+	}
+	return count;
+    }
+
+    private static double getDistance(PeakListRow row, PeakListRow standard,
+	    double balance) {
+	return balance * Math.abs(row.getAverageMZ() - standard.getAverageMZ())
+		+ Math.abs(row.getAverageRT() - standard.getAverageRT());
+    }
+
+    private static double getValue(Feature peak,
+	    PeakMeasurementType measurementType) {
+	if (measurementType == PeakMeasurementType.HEIGHT)
+	    return peak.getHeight();
+	return peak.getArea();
+    }
+
+    private static PeakList runTask(PeakList peakList, StandardUsageType type,
+	    double balance, PeakMeasurementType measurementType) {
+
+	List<PeakSelection> selections = new ArrayList<PeakSelection>();
+	for (PeakListRow standard : getStandards(peakList))
+	    selections.add(new PeakSelection(Range.singleton(standard.getID()),
+		    null, null, null));
+
+	ParameterSet parameters = new StandardCompoundNormalizerParameters();
+	parameters.getParameter(StandardCompoundNormalizerParameters.suffix)
+		.setValue("normalized");
+	parameters.getParameter(
+		StandardCompoundNormalizerParameters.standardUsageType)
+		.setValue(type);
+	parameters.getParameter(
+		StandardCompoundNormalizerParameters.peakMeasurementType)
+		.setValue(measurementType);
+	parameters.getParameter(
+		StandardCompoundNormalizerParameters.MZvsRTBalance).setValue(
+		balance);
+	parameters.getParameter(StandardCompoundNormalizerParameters.autoRemove)
+		.setValue(false);
+	parameters.getParameter(
+		StandardCompoundNormalizerParameters.standardCompounds)
+		.setValue(selections);
+
+	final List<PeakList> peakLists = new ArrayList<PeakList>();
+	MZmineProject project = FixtureUtils.createProject(peakLists);
+
+	StandardCompoundNormalizerTask task = new StandardCompoundNormalizerTask(
+		project, peakList, parameters);
+	task.run();
+	Assert.assertEquals(TaskStatus.FINISHED, task.getStatus());
+	Assert.assertEquals(1, peakLists.size());
+	return peakLists.get(0);
+
+    }
+
+    /**
+     * Peak list of rows and standards on a grid of m/z and RT values. The RT
+     * values of the standards are shifted by given offset; with an offset of
+     * 0.5, no row has a distance of 0 to a standard. Some peaks are missing
+     * in some files.
+     */
+    private static PeakList createPeakList(Random random,
+	    double standardRTOffset) {
+
+	RawDataFile files[] = new RawDataFile[NUM_OF_FILES];
+	for (int f = 0; f < files.length; f++)
+	    files[f] = FixtureUtils.createStub(RawDataFile.class);
+	SimplePeakList peakList = new SimplePeakList("test", files);
+
+	for (int id = 1; id <= 400; id++) {
+	    final boolean standard = id % (400 / NUM_OF_STANDARDS) == 0;
+	    double mz = 100 + random.nextInt(10);
+	    double rt = random.nextInt(10) + (standard ? standardRTOffset : 0);
+	    SimplePeakListRow row = new SimplePeakListRow(id);
+	    for (RawDataFile file : files) {
+		if (random.nextInt(10) == 0)
+		    continue;
+		double height = 100 + random.nextDouble() * 10000;
+		row.addPeak(file, createPeak(file, mz, rt, height,
+			height * (1 + random.nextDouble())));
+	    }
+	    peakList.addRow(row);
+	}
+
+	return peakList;
+
+    }
+
+    private static PeakListRow[] getStandards(PeakList peakList) {
+	List<PeakListRow> standards = new ArrayList<PeakListRow>();
+	for (PeakListRow row : peakList.getRows()) {
+	    if (row.getID() % (400 / NUM_OF_STANDARDS) == 0)
+		standards.add(row);
+	}
+	Assert.assertEquals(NUM_OF_STANDARDS, standards.size());
+	return standards.toArray(new PeakListRow[0]);
+    }
+
+    private static boolean isStandard(PeakListRow row, PeakListRow standards[]) {
+	for (PeakListRow standard : standards) {
+	    if (standard == row)
+		return true;
+	}
+	return false;
+    }
+
+    private static Feature createPeak(RawDataFile file, double mz, double rt,
+	    double height, double area) {
+	return new SimpleFeature(file, mz, rt, height, area, new int[] { 1 },
+		new DataPoint[] { new SimpleDataPoint(mz, height) },
+		FeatureStatus.DETECTED, 1, -1, Range.singleton(rt),
+		Range.singleton(mz), Range.singleton(height));
+    }
+
+}
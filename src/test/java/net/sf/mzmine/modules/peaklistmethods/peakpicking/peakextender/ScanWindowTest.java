@@ -0,0 +1,292 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.peakextender;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+import net.sf.mzmine.util.ScanUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class ScanWindowTest {
+
+    /**
+     * Number of scans of the test data file. MS2 scans are interleaved with
+     * the MS1 scans, scan numbers 20 to 24 are missing, and the last MS1 scan
+     * number is beyond the number of scans.
+     */
+    private static final int NUM_OF_SCANS = 60;
+
+    /**
+     * Only MS1 scans numbered from 1 to the number of scans are included, in
+     * scan number order
+     */
+    @Test
+    public void testScanNumbers() {
+
+	TestDataFile testFile = new TestDataFile(new Random(1));
+	ScanWindow window = new ScanWindow(testFile.dataFile);
+
+	List<Integer> expected = new ArrayList<Integer>();
+	for (int scanNumber : testFile.ms1ScanNumbers) {
+	    if (scanNumber <= NUM_OF_SCANS)
+		expected.add(scanNumber);
+	}
+	Assert.assertEquals(expected.size(), window.getNumberOfScans());
+	for (int i = 0; i < expected.size(); i++)
+	    Assert.assertEquals((int) expected.get(i), window.getScanNumber(i));
+
+	// Positions of scan numbers in the gap and of MS2 scans
+	for (int scanNumber = 0; scanNumber <= NUM_OF_SCANS + 5; scanNumber++) {
+	    int position = window.findPosition(scanNumber);
+	    if (position < window.getNumberOfScans())
+		Assert.assertTrue(window.getScanNumber(position) >= scanNumber);
+	    if (position > 0)
+		Assert.assertTrue(window.getScanNumber(position - 1) < scanNumber);
+	}
+	Assert.assertEquals(window.findPosition(25), window.findPosition(20));
+	Assert.assertEquals(window.getNumberOfScans(),
+		window.findPosition(NUM_OF_SCANS + 1));
+
+	// No scan is decoded before a base peak is searched
+	Assert.assertEquals(0, testFile.decodedScans.get());
+
+    }
+
+    /**
+     * The base peaks are the ones found by ScanUtils.findBasePeak, including
+     * data points of equal intensity and ranges without data points, whether
+     * the scans stay in the window or are decoded again
+     */
+    @Test
+    public void testBasePeaks() {
+	for (int maxDecodedDataPoints : new int[] { 10000000, 100, 1 }) {
+	    TestDataFile testFile = new TestDataFile(new Random(2));
+	    ScanWindow window = new ScanWindow(testFile.dataFile,
+		    maxDecodedDataPoints);
+	    Random random = new Random(3);
+	    for (int i = 0; i < 20000; i++) {
+		int position = random.nextInt(window.getNumberOfScans());
+		Range<Double> mzRange = createMZRange(random);
+		Scan scan = testFile.dataFile.getScan(window
+			.getScanNumber(position));
+		assertSameDataPoint(ScanUtils.findBasePeak(scan, mzRange),
+			window.findBasePeak(position, mzRange));
+	    }
+	}
+    }
+
+    /**
+     * The least recently used scans are dropped when the window is full, and
+     * the last decoded scan is always kept
+     */
+    @Test
+    public void testEviction() {
+
+	TestDataFile testFile = new TestDataFile(new Random(4));
+	Range<Double> mzRange = Range.closed(100.0, 200.0);
+
+	// All scans have 30 data points, so the window keeps 2 of them
+	ScanWindow window = new ScanWindow(testFile.dataFile, 60);
+	window.findBasePeak(0, mzRange);
+	window.findBasePeak(1, mzRange);
+	Assert.assertEquals(2, testFile.decodedScans.get());
+	window.findBasePeak(0, mzRange);
+	Assert.assertEquals(2, testFile.decodedScans.get());
+
+	// Scan 1 is the least recently used one
+	window.findBasePeak(2, mzRange);
+	Assert.assertEquals(3, testFile.decodedScans.get());
+	window.findBasePeak(0, mzRange);
+	window.findBasePeak(2, mzRange);
+	Assert.assertEquals(3, testFile.decodedScans.get());
+	window.findBasePeak(1, mzRange);
+	Assert.assertEquals(4, testFile.decodedScans.get());
+
+	// A window smaller than one scan keeps the last scan
+	window = new ScanWindow(testFile.dataFile, 1);
+	window.findBasePeak(3, mzRange);
+	window.findBasePeak(3, mzRange);
+	Assert.assertEquals(5, testFile.decodedScans.get());
+	window.findBasePeak(4, mzRange);
+	window.findBasePeak(3, mzRange);
+	Assert.assertEquals(7, testFile.decodedScans.get());
+
+    }
+
+    /**
+     * Threads searching in a tiny window find the same base peaks
+     */
+    @Test
+    public void testParallelSearch() throws Exception {
+
+	final TestDataFile testFile = new TestDataFile(new Random(5));
+	final ScanWindow window = new ScanWindow(testFile.dataFile, 90);
+	ExecutorService threads = Executors.newFixedThreadPool(4);
+	try {
+	    List<Future<?>> futures = new ArrayList<Future<?>>();
+	    for (int t = 0; t < 4; t++) {
+		final int seed = t;
+		futures.add(threads.submit(new Runnable() {
+		    public void run() {
+			Random random = new Random(seed);
+			for (int i = 0; i < 5000; i++) {
+			    int position = random.nextInt(window
+				    .getNumberOfScans());
+			    Range<Double> mzRange = createMZRange(random);
+			    Scan scan = testFile.dataFile.getScan(window
+				    .getScanNumber(position));
+			    assertSameDataPoint(
+				    ScanUtils.findBasePeak(scan, mzRange),
+				    window.findBasePeak(position, mzRange));
+			}
+		    }
+		}));
+	    }
+	    for (Future<?> future : futures)
+		future.get();
+	} finally {
+	    threads.shutdownNow();
+	}
+
+    }
+
+    /**
+     * Range within or around the m/z values of the scans, sometimes with its
+     * endpoints at m/z values of data points
+     */
+    private static Range<Double> createMZRange(Random random) {
+	double lower = 99 + random.nextInt(110) * 0.5;
+	if (random.nextBoolean())
+	    lower += random.nextDouble() * 0.5;
+	double upper = lower + random.nextInt(4) * 0.5;
+	if (random.nextBoolean())
+	    upper += random.nextDouble() * 5;
+	return Range.closed(lower, upper);
+    }
+
+    private static void assertSameDataPoint(DataPoint expected,
+	    DataPoint actual) {
+	if (expected == null) {
+	    Assert.assertNull(actual);
+	    return;
+	}
+	Assert.assertNotNull(actual);
+	Assert.assertEquals(expected.getMZ(), actual.getMZ(), 0);
+	Assert.assertEquals(expected.getIntensity(), actual.getIntensity(), 0);
+    }
+
+    /**
+     * Data file of MS1 and MS2 scans of 30 data points each. The m/z values
+     * are multiples of 0.5 between 100 and 150 and the intensities are
+     * multiples of 10, so many data points have the same intensity.
+     */
+    private static class TestDataFile {
+
+	final RawDataFile dataFile;
+	final int ms1ScanNumbers[];
+	final AtomicInteger decodedScans = new AtomicInteger();
+
+	TestDataFile(Random random) {
+
+	    final Scan scans[] = new Scan[NUM_OF_SCANS + 6];
+	    List<Integer> ms1Numbers = new ArrayList<Integer>();
+	    for (int scanNumber = 1; scanNumber < scans.length; scanNumber++) {
+		if ((scanNumber >= 20) && (scanNumber < 25))
+		    continue;
+		final boolean ms1 = (scanNumber % 3 != 0);
+		if (ms1
+			&& ((scanNumber <= NUM_OF_SCANS) || (scanNumber == scans.length - 1)))
+		    ms1Numbers.add(scanNumber);
+		DataPoint dataPoints[] = new DataPoint[30];
+		double mz = 100;
+		for (int i = 0; i < dataPoints.length; i++) {
+		    mz += 0.5 + random.nextInt(3) * 0.5;
+		    dataPoints[i] = new SimpleDataPoint(mz,
+			    random.nextInt(10) * 10.0);
+		}
+		scans[scanNumber] = createScan(dataPoints, decodedScans);
+	    }
+
+	    ms1ScanNumbers = new int[ms1Numbers.size()];
+	    for (int i = 0; i < ms1ScanNumbers.length; i++)
+		ms1ScanNumbers[i] = ms1Numbers.get(i);
+
+	    dataFile = FixtureUtils.createStub(RawDataFile.class, "test",
+		    new StubMethods() {
+			@Override
+			public Object invoke(String name, Object args[]) {
+			    if (name.equals("getScanNumbers")
+				    && (args.length == 1)
+				    && ((Integer) args[0] == 1))
+				return ms1ScanNumbers.clone();
+			    if (name.equals("getNumOfScans"))
+				return NUM_OF_SCANS;
+			    if (name.equals("getScan"))
+				return scans[(Integer) args[0]];
+			    throw new UnsupportedOperationException(name);
+			}
+		    });
+
+	}
+
+	private static Scan createScan(final DataPoint dataPoints[],
+		final AtomicInteger decodedScans) {
+	    return FixtureUtils.createStub(Scan.class, "test scan",
+		    new StubMethods() {
+			@Override
+			public Object invoke(String name, Object args[]) {
+			    if (name.equals("getDataPoints")) {
+				decodedScans.incrementAndGet();
+				return dataPoints.clone();
+			    }
+			    if (name.equals("getDataPointsByMass")) {
+				@SuppressWarnings("unchecked")
+				Range<Double> mzRange = (Range<Double>) args[0];
+				List<DataPoint> selected = new ArrayList<DataPoint>();
+				for (DataPoint dataPoint : dataPoints) {
+				    if (mzRange.contains(dataPoint.getMZ()))
+					selected.add(dataPoint);
+				}
+				return selected.toArray(new DataPoint[0]);
+			    }
+			    throw new UnsupportedOperationException(name);
+			}
+		    });
+	}
+
+    }
+
+}
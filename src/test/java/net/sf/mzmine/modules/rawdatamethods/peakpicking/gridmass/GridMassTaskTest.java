@@ -0,0 +1,280 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.gridmass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class GridMassTaskTest {
+
+    /**
+     * Peaks found in the synthetic data file by the implementation which
+     * processed all phases in single-threaded loops: row ID, m/z, RT, height
+     * and area
+     */
+    private static final String EXPECTED_PEAKS[] = {
+	    "1 112.65024719083131 2.32 2697.058212347798 6018.428420500482",
+	    "2 112.6500877804498 2.59 692.9483799134427 1186.2196615203654",
+	    "3 112.65008651895616 2.43 8404.203845623693 73982.08375601297",
+	    "4 128.2764060399523 1.07 4225.09078150173 64742.27574372394",
+	    "5 132.83631996898941 1.45 4011.796569718336 51561.72731996146",
+	    "6 150.5002421939865 2.0300000000000002 549.9873153862698 93511.63376378591",
+	    "7 186.806039387088 2.24 8045.386574154448 45223.250189485705",
+	    "8 193.4711496421668 0.52 4242.272608579818 70005.84943833851",
+	    "9 225.8105083075572 0.28 5529.875870188054 18912.251677871966",
+	    "10 237.43998945332572 1.6 3334.542051748881 37607.73934030705",
+	    "11 250.50007402559146 2.11 549.9883568933968 93503.74330873498",
+	    "12 288.79111113285956 2.48 5918.9229716819955 33192.9988682798",
+	    "13 350.49962717973426 1.81 549.8843279277801 93865.90156218813",
+	    "14 353.97838165333826 2.9 3489.039331130556 43998.50678492337",
+	    "15 424.2291595956921 1.3 4772.303490998167 47246.21738655896",
+	    "16 450.50029641227405 0.65 549.8954967228365 93396.88968673535",
+	    "17 457.7826129304081 1.72 8271.571223970175 57011.7246571541",
+	    "18 488.17852971564406 1.0 4474.43927023406 34697.79835713239",
+	    "19 514.2758472526573 0.84 1844.4047326273007 10992.159749814355",
+	    "20 517.2883339215232 2.35 4416.818074676855 74373.82795809886",
+	    "21 522.1205103453335 2.48 8375.63950109773 44315.49232646948",
+	    "22 550.5001094621471 1.3900000000000001 549.890719418382 93780.61499426325",
+	    "23 625.1153734937141 2.06 1207.9571522769406 13732.80385464131",
+	    "24 629.6577035001457 2.69 3872.6116373710393 48207.40474488765",
+	    "25 665.13976139439 1.3900000000000001 5451.709252602784 41449.4570651233",
+	    "26 671.6001307491312 0.38 325.08257870555644 3382.054714988796",
+	    "27 693.2656629644299 1.84 3666.0074853160404 37962.21118659796",
+	    "28 698.9934330007949 2.71 2812.115396604803 24042.706075306676",
+	    "29 727.5235593226639 2.73 8098.8812089446365 48543.35280536595",
+	    "30 729.8732011015214 0.9500000000000001 3758.371726965273 43668.35897074757",
+	    "31 748.1111271219256 1.16 1070.36796004224 3502.2878049279057",
+	    "32 752.9049531054143 2.38 8545.17531831553 131666.6632333669",
+	    "33 753.4704821339812 1.53 3807.9203731000557 55951.77058673059",
+	    "34 754.8073609267342 2.05 2825.239884272734 21593.206758918266",
+	    "35 764.1832010088809 2.57 7613.250917808419 61962.3428665353",
+	    "36 774.9159731216848 1.16 5995.033409935099 34034.67720697725",
+	    "37 776.152042229469 1.71 7569.513601742552 88904.55959010437",
+	    "38 797.6092384642383 0.84 3788.3056338725855 62674.973553408556",
+	    "39 876.5419275684943 2.09 8048.53953648563 43628.844147572556",
+	    "40 879.1178092617583 1.46 6379.685740350721 59584.359470868745",
+	    "41 884.6332954433897 2.42 3795.9890209500227 46584.97450600533",
+	    "42 904.6386325415278 1.8 823.1199875494259 14537.807848758943",
+	    "43 913.2631679345807 2.5 9671.209594627702 66983.81780593356",
+	    "44 946.1559275413827 1.1500000000000001 7747.853766726852 98732.20412296981",
+	    "45 954.8736966903964 2.46 3741.029816787115 47090.96602215317",
+	    "46 976.6325455270506 2.14 2969.7443254195036 30392.54040164092",
+	    "47 986.4820754780503 0.39 5479.324817894203 67118.11945641096" };
+
+    /**
+     * The parameters use the number formats of the configuration, which is
+     * created by MZmineCore.main()
+     */
+    @BeforeClass
+    public static void initConfiguration() {
+	FixtureUtils.initConfiguration();
+    }
+
+    @AfterClass
+    public static void restoreCore() {
+	FixtureUtils.restoreCore();
+    }
+
+    /**
+     * The peaks are the same as the ones of the single-threaded
+     * implementation, and do not depend on the number of threads
+     */
+    @Test
+    public void testSamePeaksWithAnyNumberOfThreads() {
+
+	RawDataFile dataFile = createDataFile(new Random(42), 300, 40, 40);
+
+	List<String> singleThreaded = detectPeaks(dataFile, 1);
+	Assert.assertEquals(Arrays.asList(EXPECTED_PEAKS),
+		peakValues(singleThreaded));
+	Assert.assertEquals(singleThreaded, detectPeaks(dataFile, 3));
+	Assert.assertEquals(singleThreaded, detectPeaks(dataFile, 8));
+
+    }
+
+    /**
+     * Runs the task with default parameters, returns the rows of the new
+     * peak list with their comments and peak ranges
+     */
+    private static List<String> detectPeaks(RawDataFile dataFile,
+	    int numOfThreads) {
+
+	final List<PeakList> peakLists = new ArrayList<PeakList>();
+	MZmineProject project = FixtureUtils.createProject(peakLists);
+
+	ParameterSet parameters = new GridMassParameters();
+	GridMassTask task = new GridMassTask(project, dataFile, parameters);
+	task.setNumberOfThreads(numOfThreads);
+	task.run();
+	Assert.assertEquals(TaskStatus.FINISHED, task.getStatus());
+	Assert.assertEquals(1, peakLists.size());
+
+	List<String> rows = new ArrayList<String>();
+	for (PeakListRow row : peakLists.get(0).getRows()) {
+	    Feature peak = row.getPeaks()[0];
+	    // The comment starts with the spot ID, which is counted over all
+	    // tasks
+	    String comment = row.getComment();
+	    comment = comment.substring(comment.indexOf(':'));
+	    rows.add(row.getID() + " " + peak.getMZ() + " " + peak.getRT()
+		    + " " + peak.getHeight() + " " + peak.getArea() + " "
+		    + comment + " " + peak.getRawDataPointsMZRange()
+		    + " " + peak.getRawDataPointsRTRange() + " "
+		    + peak.getRawDataPointsIntensityRange());
+	}
+	return rows;
+
+    }
+
+    /**
+     * Row ID, m/z, RT, height and area of each row
+     */
+    private static List<String> peakValues(List<String> rows) {
+	List<String> values = new ArrayList<String>();
+	for (String row : rows) {
+	    String fields[] = row.split(" ");
+	    values.add(fields[0] + " " + fields[1] + " " + fields[2] + " "
+		    + fields[3] + " " + fields[4]);
+	}
+	return values;
+    }
+
+    /**
+     * Data file of Gaussian peaks of different widths, random noise and a few
+     * constant traces
+     */
+    private static RawDataFile createDataFile(Random random,
+	    final int numOfScans, int numOfPeaks, int numOfNoisePoints) {
+
+	double peakMZ[] = new double[numOfPeaks];
+	double peakRT[] = new double[numOfPeaks];
+	double peakWidth[] = new double[numOfPeaks];
+	double peakHeight[] = new double[numOfPeaks];
+	for (int p = 0; p < numOfPeaks; p++) {
+	    peakMZ[p] = 100 + random.nextDouble() * 900;
+	    peakRT[p] = random.nextDouble() * numOfScans * 0.01;
+	    peakWidth[p] = 0.02 + random.nextDouble() * 0.1;
+	    peakHeight[p] = 50 + random.nextDouble() * 10000;
+	}
+
+	final Scan scans[] = new Scan[numOfScans];
+	for (int i = 0; i < numOfScans; i++) {
+	    final double rt = i * 0.01;
+	    List<DataPoint> dataPoints = new ArrayList<DataPoint>();
+	    for (int n = 0; n < numOfNoisePoints; n++)
+		dataPoints.add(new SimpleDataPoint(
+			100 + random.nextDouble() * 900,
+			random.nextDouble() * 40));
+	    for (int p = 0; p < numOfPeaks; p++) {
+		double d = (rt - peakRT[p]) / peakWidth[p];
+		if (Math.abs(d) < 4)
+		    dataPoints.add(new SimpleDataPoint(peakMZ[p]
+			    + random.nextGaussian() * 0.002, peakHeight[p]
+			    * Math.exp(-d * d / 2) + random.nextDouble() * 5));
+	    }
+	    for (int t = 0; t < 5; t++)
+		dataPoints.add(new SimpleDataPoint(150.5 + t * 100
+			+ random.nextGaussian() * 0.002,
+			500 + random.nextDouble() * 50));
+	    Collections.sort(dataPoints, new Comparator<DataPoint>() {
+		@Override
+		public int compare(DataPoint dp1, DataPoint dp2) {
+		    return Double.compare(dp1.getMZ(), dp2.getMZ());
+		}
+	    });
+	    scans[i] = createScan(i + 1, rt,
+		    dataPoints.toArray(new DataPoint[0]));
+	}
+
+	final int scanNumbers[] = new int[numOfScans];
+	for (int i = 0; i < numOfScans; i++)
+	    scanNumbers[i] = i + 1;
+
+	return FixtureUtils.createStub(RawDataFile.class, "test",
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getScanNumbers"))
+			    return scanNumbers.clone();
+			if (name.equals("getScan")) {
+			    int scanNumber = (Integer) args[0];
+			    return (scanNumber >= 1 && scanNumber <= numOfScans) ? scans[scanNumber - 1]
+				    : null;
+			}
+			if (name.equals("getDataRTRange"))
+			    return Range.closed(0.0, (numOfScans - 1) * 0.01);
+			throw new UnsupportedOperationException(name);
+		    }
+		});
+
+    }
+
+    private static Scan createScan(final int scanNumber, final double rt,
+	    final DataPoint dataPoints[]) {
+	return FixtureUtils.createStub(Scan.class, "scan #" + scanNumber,
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getScanNumber"))
+			    return scanNumber;
+			if (name.equals("getRetentionTime"))
+			    return rt;
+			if (name.equals("getMSLevel"))
+			    return 1;
+			if (name.equals("getPolarity"))
+			    return PolarityType.POSITIVE;
+			if (name.equals("getSpectrumType"))
+			    return MassSpectrumType.CENTROIDED;
+			if (name.equals("getDataPoints"))
+			    return dataPoints.clone();
+			if (name.equals("getNumberOfDataPoints"))
+			    return dataPoints.length;
+			throw new UnsupportedOperationException(name);
+		    }
+		});
+    }
+
+}
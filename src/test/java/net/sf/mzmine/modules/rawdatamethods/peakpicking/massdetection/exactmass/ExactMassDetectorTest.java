@@ -0,0 +1,288 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.exactmass;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionBuffers;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ExactMassDetectorTest {
+
+    private static final double NOISE_LEVEL = 500;
+
+    /**
+     * The parameters use the number formats of the configuration, which is
+     * created by MZmineCore.main()
+     */
+    @BeforeClass
+    public static void initConfiguration() {
+	FixtureUtils.initConfiguration();
+    }
+
+    @AfterClass
+    public static void restoreCore() {
+	FixtureUtils.restoreCore();
+    }
+
+    /**
+     * The mass lists are the same as the ones of the previous implementation,
+     * which kept the candidate peaks in tree sets. The buffers are reused for
+     * scans of different sizes.
+     */
+    @Test
+    public void testSameMassesAsTreeSetImplementation() {
+
+	ParameterSet parameters = new ExactMassDetectorParameters();
+	parameters.getParameter(ExactMassDetectorParameters.noiseLevel)
+		.setValue(NOISE_LEVEL);
+
+	ExactMassDetector detector = new ExactMassDetector();
+	MassDetectionBuffers buffers = new MassDetectionBuffers();
+	Random random = new Random(1);
+	int numOfMasses = 0;
+	for (int i = 0; i < 200; i++) {
+	    DataPoint dataPoints[] = createProfileSpectrum(random,
+		    random.nextInt(3000));
+	    Scan scan = FixtureUtils.createScan(dataPoints);
+	    DataPoint expected[] = getMassValuesWithTreeSets(dataPoints,
+		    NOISE_LEVEL);
+	    assertSameDataPoints(expected,
+		    detector.getMassValues(scan, parameters, buffers));
+	    assertSameDataPoints(expected,
+		    detector.getMassValues(scan, parameters));
+	    numOfMasses += expected.length;
+	}
+	Assert.assertTrue(numOfMasses > 1000);
+
+    }
+
+    /**
+     * Peaks with a flat side at half of their intensity have no exact mass
+     * (not a number). Such peaks are ordered last, and peaks of the same
+     * exact mass and intensity are reported once.
+     */
+    @Test
+    public void testFlatPeakSides() {
+
+	ParameterSet parameters = new ExactMassDetectorParameters();
+	parameters.getParameter(ExactMassDetectorParameters.noiseLevel)
+		.setValue(NOISE_LEVEL);
+
+	double intensities[] = { 0, 200, 1000, 500, 500, 100, 0, 200, 1000,
+		500, 500, 100, 0, 700, 1400, 700, 0, 300, 2000, 1000, 1000, 300,
+		0 };
+	DataPoint dataPoints[] = new DataPoint[intensities.length];
+	for (int i = 0; i < dataPoints.length; i++)
+	    dataPoints[i] = new SimpleDataPoint(100 + i * 0.01, intensities[i]);
+
+	DataPoint expected[] = getMassValuesWithTreeSets(dataPoints,
+		NOISE_LEVEL);
+	Assert.assertEquals(3, expected.length);
+	Assert.assertTrue(Double.isNaN(expected[2].getMZ()));
+	assertSameDataPoints(expected, new ExactMassDetector().getMassValues(
+		FixtureUtils.createScan(dataPoints), parameters,
+		new MassDetectionBuffers()));
+
+    }
+
+    @Test
+    public void testEmptyScan() {
+	ParameterSet parameters = new ExactMassDetectorParameters();
+	parameters.getParameter(ExactMassDetectorParameters.noiseLevel)
+		.setValue(NOISE_LEVEL);
+	Assert.assertEquals(0, new ExactMassDetector().getMassValues(
+		FixtureUtils.createScan(new DataPoint[0]), parameters).length);
+    }
+
+    /**
+     * Profile spectrum of overlapping peaks with noise, separated by regions
+     * of zero intensity. Some data points have equal intensities.
+     */
+    private static DataPoint[] createProfileSpectrum(Random random,
+	    int numOfDataPoints) {
+	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+	double mz = 100;
+	double intensity = 0;
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    mz += 0.001 + random.nextInt(3) * 0.0005;
+	    if (random.nextInt(100) == 0) {
+		// Zero intensity region
+		intensity = 0;
+	    } else if (random.nextInt(20) == 0) {
+		// Same intensity as the previous data point
+	    } else if (random.nextInt(3) == 0) {
+		intensity = random.nextInt(10) * 100.0;
+	    } else {
+		intensity = Math.abs(Math.sin(i * 0.3)) * 10000
+			+ random.nextInt(1000);
+	    }
+	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
+	}
+	return dataPoints;
+    }
+
+    private static void assertSameDataPoints(DataPoint expected[],
+	    DataPoint actual[]) {
+	Assert.assertEquals(expected.length, actual.length);
+	for (int i = 0; i < expected.length; i++) {
+	    Assert.assertEquals(expected[i].getMZ(), actual[i].getMZ(), 0);
+	    Assert.assertEquals(expected[i].getIntensity(),
+		    actual[i].getIntensity(), 0);
+	}
+    }
+
+    /**
+     * Candidate m/z peak of the previous implementation, with the non-zero
+     * data points of the peak
+     */
+    private static class CandidatePeak implements DataPoint {
+
+	private double mz;
+	private final double intensity;
+	private final DataPoint rawDataPoints[];
+
+	CandidatePeak(DataPoint dataPoint, DataPoint rawDataPoints[]) {
+	    this.mz = dataPoint.getMZ();
+	    this.intensity = dataPoint.getIntensity();
+	    this.rawDataPoints = rawDataPoints;
+	}
+
+	@Override
+	public double getMZ() {
+	    return mz;
+	}
+
+	@Override
+	public double getIntensity() {
+	    return intensity;
+	}
+    }
+
+    /**
+     * Mass detection as implemented before the detector used the buffers
+     */
+    private static DataPoint[] getMassValuesWithTreeSets(
+	    DataPoint scanDataPoints[], double noiseLevel) {
+
+	TreeSet<CandidatePeak> mzPeaks = new TreeSet<CandidatePeak>(
+		new DataPointSorter(SortingProperty.MZ,
+			SortingDirection.Ascending));
+	TreeSet<CandidatePeak> candidatePeaks = new TreeSet<CandidatePeak>(
+		new DataPointSorter(SortingProperty.Intensity,
+			SortingDirection.Descending));
+
+	// Local maxima
+	if (scanDataPoints.length > 0) {
+	    DataPoint localMaximum = scanDataPoints[0];
+	    List<DataPoint> rangeDataPoints = new ArrayList<DataPoint>();
+	    boolean ascending = true;
+	    for (int i = 0; i < scanDataPoints.length - 1; i++) {
+		boolean nextIsBigger = scanDataPoints[i + 1].getIntensity() > scanDataPoints[i]
+			.getIntensity();
+		boolean nextIsZero = scanDataPoints[i + 1].getIntensity() == 0;
+		boolean currentIsZero = scanDataPoints[i].getIntensity() == 0;
+		if (currentIsZero)
+		    continue;
+		rangeDataPoints.add(scanDataPoints[i]);
+		if (ascending && (!nextIsBigger)) {
+		    localMaximum = scanDataPoints[i];
+		    ascending = false;
+		    continue;
+		}
+		if ((!ascending) && (nextIsBigger || nextIsZero)) {
+		    if (localMaximum.getIntensity() > noiseLevel) {
+			candidatePeaks.add(new CandidatePeak(localMaximum,
+				rangeDataPoints.toArray(new DataPoint[0])));
+		    }
+		    ascending = true;
+		    rangeDataPoints.clear();
+		}
+	    }
+	}
+
+	// Exact masses, starting with the highest peak
+	while (candidatePeaks.size() > 0) {
+	    CandidatePeak candidate = candidatePeaks.first();
+	    candidate.mz = calculateExactMass(candidate);
+	    mzPeaks.add(candidate);
+	    candidatePeaks.remove(candidate);
+	}
+
+	return mzPeaks.toArray(new DataPoint[0]);
+
+    }
+
+    private static double calculateExactMass(CandidatePeak candidate) {
+
+	double xRight = -1, xLeft = -1;
+	double halfIntensity = candidate.getIntensity() / 2;
+	DataPoint rangeDataPoints[] = candidate.rawDataPoints;
+
+	for (int i = 0; i < rangeDataPoints.length - 1; i++) {
+
+	    if ((rangeDataPoints[i].getIntensity() <= halfIntensity)
+		    && (rangeDataPoints[i].getMZ() < candidate.getMZ())
+		    && (rangeDataPoints[i + 1].getIntensity() >= halfIntensity)) {
+		double leftY1 = rangeDataPoints[i].getIntensity();
+		double leftX1 = rangeDataPoints[i].getMZ();
+		double leftY2 = rangeDataPoints[i + 1].getIntensity();
+		double leftX2 = rangeDataPoints[i + 1].getMZ();
+		double mLeft = (leftY1 - leftY2) / (leftX1 - leftX2);
+		xLeft = leftX1 + (((halfIntensity) - leftY1) / mLeft);
+		continue;
+	    }
+
+	    if ((rangeDataPoints[i].getIntensity() >= halfIntensity)
+		    && (rangeDataPoints[i].getMZ() > candidate.getMZ())
+		    && (rangeDataPoints[i + 1].getIntensity() <= halfIntensity)) {
+		double rightY1 = rangeDataPoints[i].getIntensity();
+		double rightX1 = rangeDataPoints[i].getMZ();
+		double rightY2 = rangeDataPoints[i + 1].getIntensity();
+		double rightX2 = rangeDataPoints[i + 1].getMZ();
+		double mRight = (rightY1 - rightY2) / (rightX1 - rightX2);
+		xRight = rightX1 + (((halfIntensity) - rightY1) / mRight);
+		break;
+	    }
+	}
+
+	if ((xRight == -1) || (xLeft == -1))
+	    return candidate.getMZ();
+
+	return (xLeft + xRight) / 2;
+
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionBuffers;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.DataPointSorter;
+import net.sf.mzmine.util.FixtureUtils;
+import net.sf.mzmine.util.SortingDirection;
+import net.sf.mzmine.util.SortingProperty;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RecursiveMassDetectorTest {
+
+    private static final double NOISE_LEVEL = 500;
+    private static final double MIN_WIDTH = 0.003;
+    private static final double MAX_WIDTH = 0.01;
+
+    /**
+     * The parameters use the number formats of the configuration, which is
+     * created by MZmineCore.main()
+     */
+    @BeforeClass
+    public static void initConfiguration() {
+	FixtureUtils.initConfiguration();
+    }
+
+    @AfterClass
+    public static void restoreCore() {
+	FixtureUtils.restoreCore();
+    }
+
+    /**
+     * The mass lists are the same as the ones of the previous implementation,
+     * which kept the m/z peaks in a tree set. The buffers are reused for scans
+     * of different sizes, and the peak indexes grow beyond their initial size.
+     */
+    @Test
+    public void testSameMassesAsTreeSetImplementation() {
+
+	ParameterSet parameters = new RecursiveMassDetectorParameters();
+	parameters.getParameter(RecursiveMassDetectorParameters.noiseLevel)
+		.setValue(NOISE_LEVEL);
+	parameters.getParameter(
+		RecursiveMassDetectorParameters.minimumMZPeakWidth).setValue(
+		MIN_WIDTH);
+	parameters.getParameter(
+		RecursiveMassDetectorParameters.maximumMZPeakWidth).setValue(
+		MAX_WIDTH);
+
+	RecursiveMassDetector detector = new RecursiveMassDetector();
+	MassDetectionBuffers buffers = new MassDetectionBuffers();
+	Random random = new Random(1);
+	int numOfMasses = 0;
+	for (int i = 0; i < 200; i++) {
+	    DataPoint dataPoints[] = createProfileSpectrum(random,
+		    1 + random.nextInt(3000));
+	    Scan scan = FixtureUtils.createScan(dataPoints);
+	    DataPoint expected[] = getMassValuesWithTreeSet(dataPoints);
+	    assertSameDataPoints(expected,
+		    detector.getMassValues(scan, parameters, buffers));
+	    assertSameDataPoints(expected,
+		    detector.getMassValues(scan, parameters));
+	    numOfMasses += expected.length;
+	}
+	Assert.assertTrue(numOfMasses > 1000);
+
+    }
+
+    /**
+     * Profile spectrum of overlapping peaks with noise. Some data points have
+     * equal intensities and some are below the noise level.
+     */
+    private static DataPoint[] createProfileSpectrum(Random random,
+	    int numOfDataPoints) {
+	DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+	double mz = 100;
+	double intensity = 0;
+	for (int i = 0; i < numOfDataPoints; i++) {
+	    mz += 0.001 + random.nextInt(3) * 0.0005;
+	    if (random.nextInt(100) == 0) {
+		intensity = 0;
+	    } else if (random.nextInt(20) == 0) {
+		// Same intensity as the previous data point
+	    } else if (random.nextInt(3) == 0) {
+		intensity = random.nextInt(10) * 100.0;
+	    } else {
+		intensity = Math.abs(Math.sin(i * 0.3)) * 10000
+			+ random.nextInt(1000);
+	    }
+	    dataPoints[i] = new SimpleDataPoint(mz, intensity);
+	}
+	return dataPoints;
+    }
+
+    private static void assertSameDataPoints(DataPoint expected[],
+	    DataPoint actual[]) {
+	Assert.assertEquals(expected.length, actual.length);
+	for (int i = 0; i < expected.length; i++) {
+	    Assert.assertEquals(expected[i].getMZ(), actual[i].getMZ(), 0);
+	    Assert.assertEquals(expected[i].getIntensity(),
+		    actual[i].getIntensity(), 0);
+	}
+    }
+
+    /**
+     * Mass detection as implemented before the detector used the buffers
+     */
+    private static DataPoint[] getMassValuesWithTreeSet(DataPoint dataPoints[]) {
+	TreeSet<DataPoint> mzPeaks = new TreeSet<DataPoint>(
+		new DataPointSorter(SortingProperty.MZ,
+			SortingDirection.Ascending));
+	recursiveThreshold(mzPeaks, dataPoints, 1, dataPoints.length - 1,
+		NOISE_LEVEL, 0);
+	return mzPeaks.toArray(new DataPoint[0]);
+    }
+
+    private static int recursiveThreshold(TreeSet<DataPoint> mzPeaks,
+	    DataPoint dataPoints[], int startInd, int stopInd,
+	    double curentNoiseLevel, int recuLevel) {
+
+	int peakStartInd, peakStopInd, peakMaxInd;
+	double peakWidthMZ;
+
+	for (int ind = startInd; ind < stopInd; ind++) {
+
+	    double localMinimum = Double.MAX_VALUE;
+	    if (dataPoints[ind].getIntensity() <= curentNoiseLevel)
+		continue;
+
+	    peakStartInd = ind;
+	    peakMaxInd = peakStartInd;
+
+	    while ((ind < stopInd)
+		    && (dataPoints[ind].getIntensity() > curentNoiseLevel)) {
+		boolean isLocalMinimum = (dataPoints[ind - 1].getIntensity() > dataPoints[ind]
+			.getIntensity())
+			&& (dataPoints[ind].getIntensity() < dataPoints[ind + 1]
+				.getIntensity());
+		if (isLocalMinimum
+			&& (dataPoints[ind].getIntensity() < localMinimum))
+		    localMinimum = dataPoints[ind].getIntensity();
+		if (dataPoints[ind].getIntensity() > dataPoints[peakMaxInd]
+			.getIntensity())
+		    peakMaxInd = ind;
+		ind++;
+	    }
+
+	    peakStopInd = ind;
+	    peakWidthMZ = dataPoints[peakStopInd].getMZ()
+		    - dataPoints[peakStartInd].getMZ();
+
+	    if ((peakWidthMZ >= MIN_WIDTH) && (peakWidthMZ <= MAX_WIDTH)) {
+		mzPeaks.add(dataPoints[peakMaxInd]);
+		if (recuLevel > 0)
+		    return ind;
+	    }
+
+	    if ((peakWidthMZ > MAX_WIDTH) && (localMinimum < Double.MAX_VALUE)) {
+		ind = recursiveThreshold(mzPeaks, dataPoints, peakStartInd,
+			peakStopInd, localMinimum, recuLevel + 1);
+	    }
+
+	}
+
+	return stopInd;
+
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MexicanHatKernelTest {
+
+    /**
+     * The FFT convolution equals the direct convolution within the rounding
+     * error, including the zero regions of the spectrum
+     */
+    @Test
+    public void testFFTConvolution() {
+
+	final Random random = new Random(1);
+	for (int scaleLevel : new int[] { 1, 7, 60 }) {
+
+	    final MexicanHatKernel kernel = MexicanHatKernel.getKernel(
+		    scaleLevel, 0.3);
+	    Assert.assertSame(kernel, MexicanHatKernel.getKernel(scaleLevel, 0.3));
+
+	    // Profile peaks separated by regions of zero intensity
+	    final double intensities[] = new double[3 * kernel.getFFTSize() + 17];
+	    for (int i = 0; i < intensities.length; i++) {
+		if ((i / 500) % 3 != 0)
+		    intensities[i] = Math.abs(Math.sin(i * 0.05))
+			    * (1000 + random.nextInt(100000));
+	    }
+
+	    final double direct[] = kernel.convolveDirect(intensities);
+	    final double fft[] = kernel.convolveFFT(intensities);
+
+	    double maxIntensity = 0;
+	    for (double intensity : direct)
+		maxIntensity = Math.max(maxIntensity, intensity);
+	    for (int i = 0; i < intensities.length; i++) {
+		Assert.assertEquals(direct[i], fft[i], maxIntensity * 1E-12);
+		if (direct[i] == 0)
+		    Assert.assertEquals(0, fft[i], 0);
+	    }
+	}
+
+    }
+
+}
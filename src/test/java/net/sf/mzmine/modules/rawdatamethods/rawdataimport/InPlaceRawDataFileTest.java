@@ -0,0 +1,197 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.project.impl.StorableScan;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class InPlaceRawDataFileTest {
+
+    /**
+     * Spectrum source keeping the data points in memory and counting the
+     * reads
+     */
+    private static class TestSpectrumSource implements SpectrumSource {
+
+        private final Map<Integer, DataPoint[]> scans = new HashMap<Integer, DataPoint[]>();
+        private int reads = 0;
+        private boolean closed = false;
+
+        @Override
+        public boolean containsScan(int scanNumber) {
+            return scans.containsKey(scanNumber);
+        }
+
+        @Override
+        public synchronized DataPoint[] readDataPoints(int scanNumber)
+                throws IOException {
+            reads++;
+            return scans.get(scanNumber).clone();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private TestSpectrumSource source;
+    private InPlaceRawDataFile dataFile;
+
+    private final DataPoint sourceDataPoints[] = {
+            new SimpleDataPoint(100.0, 5.0), new SimpleDataPoint(150.0, 20.0),
+            new SimpleDataPoint(200.0, 10.0) };
+
+    @Before
+    public void setUp() throws IOException {
+        source = new TestSpectrumSource();
+        source.scans.put(1, sourceDataPoints);
+        dataFile = new InPlaceRawDataFile("test", source);
+    }
+
+    @After
+    public void tearDown() {
+        dataFile.close();
+    }
+
+    private InPlaceScan createInPlaceScan(int scanNumber) {
+        return new InPlaceScan(scanNumber, 1, 1.5, 0, 0,
+                PolarityType.POSITIVE, "", 3);
+    }
+
+    /**
+     * Data points of scans read in place are read from the source when
+     * needed, and cached. The values calculated from the data points are
+     * calculated when first requested.
+     */
+    @Test
+    public void testReadInPlace() throws IOException {
+
+        dataFile.addScan(createInPlaceScan(1));
+        dataFile.finishWriting();
+
+        Assert.assertEquals(0, source.reads);
+        Scan scan = dataFile.getScan(1);
+        Assert.assertEquals(3, scan.getNumberOfDataPoints());
+        Assert.assertEquals(0, source.reads);
+
+        Assert.assertEquals(35.0, scan.getTIC(), 0);
+        Assert.assertEquals(Range.closed(100.0, 200.0),
+                scan.getDataPointMZRange());
+        Assert.assertEquals(150.0, scan.getHighestDataPoint().getMZ(), 0);
+        Assert.assertEquals(Range.closed(100.0, 200.0),
+                scan.getScanningMZRange());
+        Assert.assertNotNull(scan.getSpectrumType());
+        Assert.assertEquals(1, source.reads);
+
+        assertDataPoints(sourceDataPoints, scan.getDataPoints());
+        Assert.assertEquals(1, source.reads);
+
+        // Modifying the returned array does not modify the cache
+        DataPoint dataPoints[] = scan.getDataPoints();
+        dataPoints[0] = null;
+        assertDataPoints(sourceDataPoints, scan.getDataPoints());
+        Assert.assertEquals(1, source.reads);
+
+    }
+
+    /**
+     * Scans which are not in the source are stored in the temporary file, and
+     * the storage IDs of both kinds of scans are unique
+     */
+    @Test
+    public void testMixedStorage() throws IOException {
+
+        DataPoint storedDataPoints[] = { new SimpleDataPoint(300.0, 1.0),
+                new SimpleDataPoint(400.0, 2.0) };
+
+        dataFile.addScan(createInPlaceScan(1));
+        dataFile.addScan(new SimpleScan(null, 2, 1, 2.0, 0, 0, null,
+                storedDataPoints, MassSpectrumType.CENTROIDED,
+                PolarityType.POSITIVE, "", null));
+        dataFile.finishWriting();
+
+        assertDataPoints(storedDataPoints, dataFile.getScan(2).getDataPoints());
+        assertDataPoints(sourceDataPoints, dataFile.getScan(1).getDataPoints());
+        Assert.assertEquals(1, source.reads);
+
+        final int inPlaceID = ((StorableScan) dataFile.getScan(1))
+                .getStorageID();
+        final int storedID = ((StorableScan) dataFile.getScan(2))
+                .getStorageID();
+        Assert.assertTrue(inPlaceID != storedID);
+
+        SortedSet<Integer> storageIDs = dataFile.getStorageIDs();
+        Assert.assertEquals(2, storageIDs.size());
+        Assert.assertTrue(storageIDs.contains(inPlaceID));
+        Assert.assertTrue(storageIDs.contains(storedID));
+
+        // New data points (e.g. mass lists) do not reuse the storage IDs
+        final int newID = dataFile.storeDataPoints(storedDataPoints);
+        Assert.assertTrue(newID > Math.max(inPlaceID, storedID));
+
+        dataFile.removeStoredDataPoints(inPlaceID);
+        Assert.assertFalse(dataFile.getStorageIDs().contains(inPlaceID));
+        Assert.assertTrue(dataFile.getStorageIDs().contains(storedID));
+
+    }
+
+    /**
+     * Scans whose data points were not decoded must be in the source
+     */
+    @Test(expected = IOException.class)
+    public void testInPlaceScanNotInSource() throws IOException {
+        dataFile.addScan(createInPlaceScan(5));
+    }
+
+    @Test
+    public void testCloseClosesSource() {
+        dataFile.close();
+        Assert.assertTrue(source.closed);
+    }
+
+    private static void assertDataPoints(DataPoint expected[],
+            DataPoint actual[]) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i].getMZ(), actual[i].getMZ(), 0);
+            Assert.assertEquals(expected[i].getIntensity(),
+                    actual[i].getIntensity(), 0);
+        }
+    }
+
+}
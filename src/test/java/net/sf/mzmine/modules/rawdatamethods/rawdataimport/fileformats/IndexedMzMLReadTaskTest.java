@@ -0,0 +1,124 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexedMzMLReadTaskTest {
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+    /**
+     * Test that the IndexedMzMLReadTask produces the same scans as the
+     * jmzml-based MzMLReadTask
+     */
+    @Test
+    public void testSameScansAsMzMLReadTask() throws Exception {
+
+	File inputFiles[] = new File("src/test/resources").listFiles();
+
+	Assert.assertNotNull(inputFiles);
+
+	int filesTested = 0;
+
+	for (File inputFile : inputFiles) {
+
+	    if (!inputFile.getName().toLowerCase().endsWith(".mzml"))
+		continue;
+
+	    if (!IndexedMzMLReader.isIndexed(inputFile))
+		continue;
+
+	    logger.info("Comparing indexed and jmzml mzML readers on file "
+		    + inputFile.getName());
+
+	    MZmineProject project = new MZmineProjectImpl();
+
+	    RawDataFileImpl jmzmlFile = new RawDataFileImpl(inputFile.getName());
+	    runTask(new MzMLReadTask(project, inputFile, jmzmlFile), inputFile);
+
+	    RawDataFileImpl indexedFile = new RawDataFileImpl(
+		    inputFile.getName());
+	    runTask(new IndexedMzMLReadTask(project, inputFile, indexedFile),
+		    inputFile);
+
+	    Assert.assertArrayEquals(jmzmlFile.getScanNumbers(),
+		    indexedFile.getScanNumbers());
+
+	    for (int scanNumber : jmzmlFile.getScanNumbers()) {
+		Scan expected = jmzmlFile.getScan(scanNumber);
+		Scan actual = indexedFile.getScan(scanNumber);
+		String scanName = "scan " + scanNumber + " in "
+			+ inputFile.getName();
+
+		Assert.assertEquals(scanName, expected.getMSLevel(),
+			actual.getMSLevel());
+		Assert.assertEquals(scanName, expected.getRetentionTime(),
+			actual.getRetentionTime(), 0);
+		Assert.assertEquals(scanName, expected.getPrecursorMZ(),
+			actual.getPrecursorMZ(), 0);
+		Assert.assertEquals(scanName, expected.getPrecursorCharge(),
+			actual.getPrecursorCharge());
+		Assert.assertEquals(scanName, expected.getPolarity(),
+			actual.getPolarity());
+		Assert.assertEquals(scanName, expected.getScanDefinition(),
+			actual.getScanDefinition());
+		Assert.assertTrue(scanName, Arrays.equals(
+			expected.getFragmentScanNumbers(),
+			actual.getFragmentScanNumbers()));
+
+		DataPoint expectedDataPoints[] = expected.getDataPoints();
+		DataPoint actualDataPoints[] = actual.getDataPoints();
+		Assert.assertEquals(scanName, expectedDataPoints.length,
+			actualDataPoints.length);
+		for (int i = 0; i < expectedDataPoints.length; i++) {
+		    Assert.assertEquals(scanName, expectedDataPoints[i].getMZ(),
+			    actualDataPoints[i].getMZ(), 0);
+		    Assert.assertEquals(scanName,
+			    expectedDataPoints[i].getIntensity(),
+			    actualDataPoints[i].getIntensity(), 0);
+		}
+	    }
+	    filesTested++;
+	}
+
+	Assert.assertTrue(filesTested > 0);
+    }
+
+    private void runTask(Task readTask, File inputFile) {
+	readTask.run();
+	Assert.assertEquals("Could not read " + inputFile.getName(),
+		TaskStatus.FINISHED, readTask.getStatus());
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzMLReader.SpectrumData;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexedMzMLReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Scan numbers are assigned to MS spectra only, in the order of the file,
+     * in the same way as MzMLReadTask assigns them
+     */
+    @Test
+    public void testScanNumbersOfMsSpectra() throws Exception {
+
+        // The UV spectrum must not take a sequential scan number. The parent
+        // of the last spectrum is not in the file, so it takes the next
+        // sequential number.
+        File file = writeIndexedMzML(new String[][] {
+                { "uv=1", null, "1", "true" },
+                { "index=0", null, "1", "false" },
+                { "index=1", "index=0", "2", "false" },
+                { "controllerType=0 scan=7", null, "1", "false" },
+                { "index=2", "index=9", "2", "false" } });
+
+        Assert.assertTrue(IndexedMzMLReader.isIndexed(file));
+
+        IndexedMzMLReader reader = new IndexedMzMLReader(file);
+        try {
+            Assert.assertEquals(5, reader.getNumberOfSpectra());
+
+            List<Integer> scanNumbers = new ArrayList<Integer>();
+            List<Integer> parentScanNumbers = new ArrayList<Integer>();
+            for (int i = 0; i < reader.getNumberOfSpectra(); i++) {
+                SpectrumData spectrum = reader.readSpectrum(i);
+                if (!spectrum.isMsSpectrum)
+                    continue;
+                scanNumbers.add(reader.assignScanNumber(i, spectrum));
+                parentScanNumbers.add(reader.getParentScanNumber(spectrum));
+            }
+
+            Assert.assertEquals("[1, 2, 7, 3]", scanNumbers.toString());
+            Assert.assertEquals("[-1, 1, -1, 4]",
+                    parentScanNumbers.toString());
+
+            Assert.assertTrue(reader.containsScan(1));
+            Assert.assertTrue(reader.containsScan(7));
+            Assert.assertFalse(reader.containsScan(4));
+            Assert.assertEquals(2, reader.readDataPoints(2).length);
+        } finally {
+            reader.close();
+        }
+
+    }
+
+    @Test
+    public void testNotIndexed() throws Exception {
+        File file = folder.newFile("notindexed.mzML");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("<?xml version=\"1.0\"?><mzML></mzML>".getBytes("UTF-8"));
+        out.close();
+        Assert.assertFalse(IndexedMzMLReader.isIndexed(file));
+    }
+
+    /**
+     * Writes an indexed mzML file with given spectra, each described as {id,
+     * precursor spectrumRef, MS level, UV}. The index lists the spectra in
+     * reverse order, which is valid but not the order of the file.
+     */
+    private File writeIndexedMzML(String spectra[][]) throws IOException {
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<indexedmzML><mzML><run id=\"test\"><spectrumList count=\""
+                + spectra.length + "\">\n");
+
+        // Two data points in 64-bit float, little endian, not compressed
+        final String mzArray = "AAAAAAAAWUAAAAAAAABpQA==";
+        final String intensityArray = "AAAAAAAA8D8AAAAAAAAAQA==";
+
+        long offsets[] = new long[spectra.length];
+        for (int i = 0; i < spectra.length; i++) {
+            offsets[i] = xml.length();
+            xml.append("<spectrum index=\"" + i + "\" id=\"" + spectra[i][0]
+                    + "\" defaultArrayLength=\"2\">\n");
+            if (Boolean.parseBoolean(spectra[i][3]))
+                xml.append("<cvParam accession=\"MS:1000804\"/>\n");
+            xml.append("<cvParam accession=\"MS:1000511\" value=\""
+                    + spectra[i][2] + "\"/>\n");
+            xml.append("<scanList count=\"1\"><scan>"
+                    + "<cvParam accession=\"MS:1000016\" value=\"" + (i + 1)
+                    + "\" unitAccession=\"UO:0000031\"/></scan></scanList>\n");
+            if (spectra[i][1] != null)
+                xml.append("<precursorList count=\"1\"><precursor spectrumRef=\""
+                        + spectra[i][1] + "\"/></precursorList>\n");
+            xml.append("<binaryDataArrayList count=\"2\">\n");
+            xml.append("<binaryDataArray encodedLength=\"24\">"
+                    + "<cvParam accession=\"MS:1000523\"/>"
+                    + "<cvParam accession=\"MS:1000514\"/><binary>" + mzArray
+                    + "</binary></binaryDataArray>\n");
+            xml.append("<binaryDataArray encodedLength=\"24\">"
+                    + "<cvParam accession=\"MS:1000523\"/>"
+                    + "<cvParam accession=\"MS:1000515\"/><binary>"
+                    + intensityArray + "</binary></binaryDataArray>\n");
+            xml.append("</binaryDataArrayList>\n</spectrum>\n");
+        }
+        xml.append("</spectrumList></run></mzML>\n");
+
+        final long indexListOffset = xml.length();
+        xml.append("<indexList count=\"1\"><index name=\"spectrum\">\n");
+        for (int i = spectra.length - 1; i >= 0; i--)
+            xml.append("<offset idRef=\"" + spectra[i][0] + "\">" + offsets[i]
+                    + "</offset>\n");
+        xml.append("</index></indexList>\n");
+        xml.append("<indexListOffset>" + indexListOffset
+                + "</indexListOffset>\n</indexedmzML>\n");
+
+        File file = folder.newFile("test.mzML");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(xml.toString().getBytes("UTF-8"));
+        out.close();
+        return file;
+
+    }
+
+}
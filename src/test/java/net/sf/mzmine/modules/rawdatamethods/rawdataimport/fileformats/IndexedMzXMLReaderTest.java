@@ -0,0 +1,246 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.InPlaceRawDataFile;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+import org.apache.axis.encoding.Base64;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexedMzXMLReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // {m/z, intensity} pairs of the test scans
+    private static final double SCANS[][][] = {
+            { { 100.25, 10.0 }, { 150.5, 40.0 }, { 200.75, 20.0 } },
+            { { 50.125, 3.0 }, { 75.0625, 1.5 } },
+            { { 300.0, 7.0 }, { 400.0, 9.0 } }, {} };
+
+    /**
+     * Writes an indexed mzXML file with the test scans. The first scan is
+     * stored in 32-bit precision, the second one in 64-bit precision with zlib
+     * compression. The fourth scan is empty. The other scans have the summary
+     * attributes of the original spectrum (scan window, TIC before
+     * centroiding), which do not match their data points.
+     */
+    private File writeIndexedMzXML() throws IOException {
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n");
+        xml.append("<mzXML><msRun scanCount=\"" + SCANS.length + "\">\n");
+
+        long offsets[] = new long[SCANS.length];
+        for (int i = 0; i < SCANS.length; i++) {
+            final int scanNumber = i + 1;
+            final int msLevel = (scanNumber == 2) ? 2 : 1;
+            final boolean doublePrecision = (scanNumber == 2);
+            final double dataPoints[][] = SCANS[i];
+
+            offsets[i] = xml.length();
+            xml.append("<scan num=\"" + scanNumber + "\" msLevel=\""
+                    + msLevel + "\" peaksCount=\"" + dataPoints.length
+                    + "\" polarity=\"+\" retentionTime=\"PT" + (scanNumber * 6)
+                    + ".0S\"");
+            if (dataPoints.length > 0)
+                xml.append(" centroided=\"1\" lowMz=\"50.0\" highMz=\"2000.0\""
+                        + " basePeakMz=\"1000.0\" basePeakIntensity=\"1.0\""
+                        + " totIonCurrent=\"1.0\"");
+            xml.append(">\n");
+            if (msLevel == 2)
+                xml.append("<precursorMz precursorCharge=\"2\">150.5</precursorMz>\n");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (double dataPoint[] : dataPoints) {
+                if (doublePrecision) {
+                    out.writeDouble(dataPoint[0]);
+                    out.writeDouble(dataPoint[1]);
+                } else {
+                    out.writeFloat((float) dataPoint[0]);
+                    out.writeFloat((float) dataPoint[1]);
+                }
+            }
+            out.close();
+            byte peakBytes[] = bytes.toByteArray();
+            if (doublePrecision)
+                peakBytes = compress(peakBytes);
+
+            xml.append("<peaks precision=\"" + (doublePrecision ? 64 : 32)
+                    + "\" byteOrder=\"network\" pairOrder=\"m/z-int\"");
+            if (doublePrecision)
+                xml.append(" compressionType=\"zlib\" compressedLen=\""
+                        + peakBytes.length + "\"");
+            xml.append(">" + Base64.encode(peakBytes) + "</peaks>\n");
+            xml.append("</scan>\n");
+        }
+        xml.append("</msRun>\n");
+
+        final long indexOffset = xml.length();
+        xml.append("<index name=\"scan\">\n");
+        for (int i = 0; i < SCANS.length; i++)
+            xml.append("<offset id=\"" + (i + 1) + "\">" + offsets[i]
+                    + "</offset>\n");
+        xml.append("</index>\n");
+        xml.append("<indexOffset>" + indexOffset + "</indexOffset>\n");
+        xml.append("</mzXML>\n");
+
+        File file = folder.newFile("test.mzXML");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(xml.toString().getBytes("ISO-8859-1"));
+        out.close();
+        return file;
+
+    }
+
+    private static byte[] compress(byte bytes[]) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte buffer[] = new byte[bytes.length + 100];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        byte compressed[] = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    @Test
+    public void testReadDataPoints() throws IOException {
+
+        File file = writeIndexedMzXML();
+        Assert.assertTrue(IndexedMzXMLReader.isIndexed(file));
+
+        IndexedMzXMLReader reader = new IndexedMzXMLReader(file);
+        try {
+            Assert.assertEquals(SCANS.length, reader.getNumberOfScans());
+            Assert.assertFalse(reader.containsScan(SCANS.length + 1));
+            for (int i = 0; i < SCANS.length; i++) {
+                Assert.assertTrue(reader.containsScan(i + 1));
+                DataPoint dataPoints[] = reader.readDataPoints(i + 1);
+                Assert.assertEquals(SCANS[i].length, dataPoints.length);
+                for (int j = 0; j < dataPoints.length; j++) {
+                    Assert.assertEquals(SCANS[i][j][0],
+                            dataPoints[j].getMZ(), 0);
+                    Assert.assertEquals(SCANS[i][j][1],
+                            dataPoints[j].getIntensity(), 0);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+    }
+
+    @Test
+    public void testNotIndexed() throws IOException {
+        File file = folder.newFile("notindexed.mzXML");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("<?xml version=\"1.0\"?><mzXML></mzXML>".getBytes("UTF-8"));
+        out.close();
+        Assert.assertFalse(IndexedMzXMLReader.isIndexed(file));
+    }
+
+    /**
+     * Importing the file in place gives the same scans as importing it to the
+     * temporary file
+     */
+    @Test
+    public void testSameScansInPlace() throws Exception {
+
+        File file = writeIndexedMzXML();
+        MZmineProject project = new MZmineProjectImpl();
+
+        RawDataFileImpl copiedFile = new RawDataFileImpl(file.getName());
+        MzXMLReadTask copyTask = new MzXMLReadTask(project, file, copiedFile);
+        copyTask.run();
+        Assert.assertEquals(TaskStatus.FINISHED, copyTask.getStatus());
+
+        InPlaceRawDataFile inPlaceFile = new InPlaceRawDataFile(
+                file.getName(), new IndexedMzXMLReader(file));
+        MzXMLReadTask inPlaceTask = new MzXMLReadTask(project, file,
+                inPlaceFile);
+        inPlaceTask.run();
+        Assert.assertEquals(TaskStatus.FINISHED, inPlaceTask.getStatus());
+
+        Assert.assertArrayEquals(copiedFile.getScanNumbers(),
+                inPlaceFile.getScanNumbers());
+
+        for (int scanNumber : copiedFile.getScanNumbers()) {
+            Scan expected = copiedFile.getScan(scanNumber);
+            Scan actual = inPlaceFile.getScan(scanNumber);
+            String scanName = "scan " + scanNumber;
+
+            Assert.assertEquals(scanName, expected.getMSLevel(),
+                    actual.getMSLevel());
+            Assert.assertEquals(scanName, expected.getRetentionTime(),
+                    actual.getRetentionTime(), 0);
+            Assert.assertEquals(scanName, expected.getPrecursorMZ(),
+                    actual.getPrecursorMZ(), 0);
+            Assert.assertEquals(scanName, expected.getPrecursorCharge(),
+                    actual.getPrecursorCharge());
+            Assert.assertEquals(scanName, expected.getNumberOfDataPoints(),
+                    actual.getNumberOfDataPoints());
+            Assert.assertEquals(scanName, expected.getDataPointMZRange(),
+                    actual.getDataPointMZRange());
+            Assert.assertEquals(scanName, expected.getTIC(), actual.getTIC(),
+                    1e-9);
+            Assert.assertEquals(scanName, expected.getSpectrumType(),
+                    actual.getSpectrumType());
+            if (expected.getHighestDataPoint() != null)
+                Assert.assertEquals(scanName, expected.getHighestDataPoint()
+                        .getMZ(), actual.getHighestDataPoint().getMZ(), 0);
+
+            DataPoint expectedDataPoints[] = expected.getDataPoints();
+            DataPoint actualDataPoints[] = actual.getDataPoints();
+            Assert.assertEquals(scanName, expectedDataPoints.length,
+                    actualDataPoints.length);
+            for (int i = 0; i < expectedDataPoints.length; i++) {
+                Assert.assertEquals(scanName, expectedDataPoints[i].getMZ(),
+                        actualDataPoints[i].getMZ(), 0);
+                Assert.assertEquals(scanName,
+                        expectedDataPoints[i].getIntensity(),
+                        actualDataPoints[i].getIntensity(), 0);
+            }
+        }
+
+        copiedFile.close();
+        inPlaceFile.close();
+
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RawDataFileImplTest {
+
+    /**
+     * Data points read, stored and removed while the file is compacted are
+     * the same after the compaction, including blocks shared by several
+     * storage IDs. A second compaction reclaims the blocks removed during the
+     * first one.
+     */
+    @Test
+    public void testStorageDuringCompaction() throws Exception {
+
+	final RawDataFileImpl dataFile = new RawDataFileImpl("test");
+	try {
+	    Random random = new Random(1);
+	    Map<Integer, DataPoint[]> stored = new HashMap<Integer, DataPoint[]>();
+	    List<Integer> storageIDs = new ArrayList<Integer>();
+	    DataPoint dataPoints[] = null;
+	    for (int i = 0; i < 2000; i++) {
+		// Some blocks are stored twice
+		if ((dataPoints == null) || (random.nextInt(10) != 0))
+		    dataPoints = createDataPoints(random);
+		store(dataFile, dataPoints, stored, storageIDs);
+	    }
+	    for (int i = 0; i < 1000; i++)
+		remove(dataFile, random, stored, storageIDs);
+	    final long originalSize = dataFile.getDataPointsFileSize();
+
+	    final AtomicReference<Exception> compactionError = new AtomicReference<Exception>();
+	    Thread compactionThread = new Thread(new Runnable() {
+		@Override
+		public void run() {
+		    try {
+			dataFile.compactDataPointsFile();
+		    } catch (Exception e) {
+			compactionError.set(e);
+		    }
+		}
+	    });
+	    compactionThread.start();
+
+	    for (int n = 0; (n < 300) || compactionThread.isAlive(); n++) {
+		switch (random.nextInt(3)) {
+		case 0:
+		    store(dataFile, createDataPoints(random), stored,
+			    storageIDs);
+		    break;
+		case 1:
+		    remove(dataFile, random, stored, storageIDs);
+		    break;
+		default:
+		    int storageID = storageIDs.get(random.nextInt(storageIDs
+			    .size()));
+		    assertSameDataPoints(stored.get(storageID),
+			    dataFile.readDataPoints(storageID));
+		}
+	    }
+	    compactionThread.join();
+	    Assert.assertNull(compactionError.get());
+	    Assert.assertTrue(dataFile.getDataPointsFileSize() < originalSize);
+
+	    for (int storageID : storageIDs)
+		assertSameDataPoints(stored.get(storageID),
+			dataFile.readDataPoints(storageID));
+	    Assert.assertEquals(storageIDs.size(), dataFile.getStorageIDs()
+		    .size());
+
+	    dataFile.compactDataPointsFile();
+	    Assert.assertEquals(0, dataFile.getUnusedDataPointsFileSize());
+	    for (int storageID : storageIDs)
+		assertSameDataPoints(stored.get(storageID),
+			dataFile.readDataPoints(storageID));
+	} finally {
+	    dataFile.close();
+	}
+
+    }
+
+    /**
+     * Data points of ascending m/z values, which are exact float values as
+     * they are stored in the file
+     */
+    private static DataPoint[] createDataPoints(Random random) {
+	DataPoint dataPoints[] = new DataPoint[100 + random.nextInt(400)];
+	float mz = 100;
+	for (int i = 0; i < dataPoints.length; i++) {
+	    mz += random.nextFloat();
+	    dataPoints[i] = new SimpleDataPoint(mz, random.nextFloat() * 1e5f);
+	}
+	return dataPoints;
+    }
+
+    private static void store(RawDataFileImpl dataFile,
+	    DataPoint dataPoints[], Map<Integer, DataPoint[]> stored,
+	    List<Integer> storageIDs) throws Exception {
+	int storageID = dataFile.storeDataPoints(dataPoints);
+	stored.put(storageID, dataPoints);
+	storageIDs.add(storageID);
+    }
+
+    private static void remove(RawDataFileImpl dataFile, Random random,
+	    Map<Integer, DataPoint[]> stored, List<Integer> storageIDs)
+	    throws Exception {
+	int storageID = storageIDs.remove(random.nextInt(storageIDs.size()));
+	stored.remove(storageID);
+	dataFile.removeStoredDataPoints(storageID);
+    }
+
+    private static void assertSameDataPoints(DataPoint expected[],
+	    DataPoint actual[]) {
+	Assert.assertEquals(expected.length, actual.length);
+	for (int i = 0; i < expected.length; i++) {
+	    Assert.assertEquals(expected[i].getMZ(), actual[i].getMZ(), 0);
+	    Assert.assertEquals(expected[i].getIntensity(),
+		    actual[i].getIntensity(), 0);
+	}
+    }
+
+}
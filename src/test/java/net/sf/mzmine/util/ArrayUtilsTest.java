@@ -0,0 +1,65 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArrayUtilsTest {
+
+    /**
+     * The lower bound is the first position of a value equal to or above the
+     * searched value, also for repeated values, values outside of the array
+     * and empty arrays
+     */
+    @Test
+    public void testLowerBound() {
+
+	Random random = new Random(1);
+	for (int n = 0; n < 200; n++) {
+	    // Few distinct values, so many values are repeated
+	    double values[] = new double[random.nextInt(30)];
+	    for (int i = 0; i < values.length; i++)
+		values[i] = random.nextInt(10);
+	    Arrays.sort(values);
+	    DataPoint dataPoints[] = new DataPoint[values.length];
+	    for (int i = 0; i < values.length; i++)
+		dataPoints[i] = new SimpleDataPoint(values[i], 1);
+
+	    for (double value = -1; value <= 11; value += 0.5) {
+		int expected = 0;
+		while ((expected < values.length) && (values[expected] < value))
+		    expected++;
+		Assert.assertEquals(expected,
+			ArrayUtils.lowerBound(values, value));
+		Assert.assertEquals(expected,
+			ArrayUtils.lowerBound(dataPoints, value));
+	    }
+	}
+
+    }
+
+}
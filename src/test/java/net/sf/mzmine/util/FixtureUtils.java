@@ -0,0 +1,241 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.desktop.impl.HeadLessDesktop;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.main.impl.MZmineConfigurationImpl;
+import net.sf.mzmine.project.impl.ProjectManagerImpl;
+
+import com.google.common.collect.Range;
+
+/**
+ * Fixtures shared by the tests: stubs of MZmine interfaces, simple peak list
+ * rows, and the MZmineCore configuration, project manager and desktop which
+ * tasks expect to be created by MZmineCore.main()
+ */
+public class FixtureUtils {
+
+    // Values of the MZmineCore fields before they were set by a test
+    private static final Map<String, Object> originalCoreFields = new HashMap<String, Object>();
+
+    /**
+     * Methods of a stub. Equals, hashCode and toString are implemented by
+     * the stub itself.
+     */
+    public static abstract class StubMethods {
+
+	public abstract Object invoke(String methodName, Object args[])
+		throws Exception;
+
+    }
+
+    /**
+     * Returns a stub whose methods all return null, or 0 or false
+     */
+    public static <T> T createStub(Class<T> type) {
+	return createStub(type, "test", new StubMethods() {
+	    @Override
+	    public Object invoke(String methodName, Object args[]) {
+		return null;
+	    }
+	});
+    }
+
+    /**
+     * Returns a stub of given name, whose methods are implemented by given
+     * methods. Methods returning a primitive type return 0 or false where
+     * the given methods return null. The stub is only equal to itself.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createStub(Class<T> type, final String name,
+	    final StubMethods methods) {
+	InvocationHandler handler = new InvocationHandler() {
+	    @Override
+	    public Object invoke(Object proxy, Method method, Object[] args)
+		    throws Exception {
+		String methodName = method.getName();
+		if (methodName.equals("equals") && (args.length == 1))
+		    return proxy == args[0];
+		if (methodName.equals("hashCode") && (args == null))
+		    return System.identityHashCode(proxy);
+		if (methodName.equals("toString") && (args == null))
+		    return name;
+		Object value = methods.invoke(methodName, args);
+		// Unboxing null would fail
+		Class<?> returnType = method.getReturnType();
+		if ((value == null) && returnType.isPrimitive()
+			&& (returnType != void.class))
+		    return Array.get(Array.newInstance(returnType, 1), 0);
+		return value;
+	    }
+	};
+	return (T) Proxy.newProxyInstance(type.getClassLoader(),
+		new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * Returns a project which adds the peak lists added to it to given list
+     */
+    public static MZmineProject createProject(final List<PeakList> peakLists) {
+	return createStub(MZmineProject.class, "test project",
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String methodName, Object args[]) {
+			if (methodName.equals("addPeakList"))
+			    peakLists.add((PeakList) args[0]);
+			return null;
+		    }
+		});
+    }
+
+    /**
+     * Returns a scan of given data points. Its other methods return null.
+     */
+    public static Scan createScan(final DataPoint dataPoints[]) {
+	return createStub(Scan.class, "test scan", new StubMethods() {
+	    @Override
+	    public Object invoke(String methodName, Object args[]) {
+		if (methodName.equals("getDataPoints"))
+		    return dataPoints.clone();
+		if (methodName.equals("getNumberOfDataPoints"))
+		    return dataPoints.length;
+		return null;
+	    }
+	});
+    }
+
+    /**
+     * Adds a row of a single peak of given values to the peak list of one
+     * data file
+     */
+    public static PeakListRow addRow(SimplePeakList peakList, int id,
+	    double mz, double rt, double height) {
+	RawDataFile dataFile = peakList.getRawDataFile(0);
+	Feature peak = new SimpleFeature(dataFile, mz, rt, height, height,
+		new int[] { 1 },
+		new DataPoint[] { new SimpleDataPoint(mz, height) },
+		FeatureStatus.DETECTED, 1, -1, Range.singleton(rt),
+		Range.singleton(mz), Range.singleton(height));
+	SimplePeakListRow row = new SimplePeakListRow(id);
+	row.addPeak(dataFile, peak);
+	peakList.addRow(row);
+	return row;
+    }
+
+    /**
+     * Returns the names of the identities of the row
+     */
+    public static List<String> identityNames(PeakListRow row) {
+	List<String> names = new ArrayList<String>();
+	for (PeakIdentity identity : row.getPeakIdentities())
+	    names.add(identity.getName());
+	return names;
+    }
+
+    /**
+     * Creates the configuration of MZmineCore, if there is none. Number
+     * formats of the parameters are read from the configuration.
+     */
+    public static void initConfiguration() {
+	if (MZmineCore.getConfiguration() == null)
+	    setCoreField("configuration", new MZmineConfigurationImpl());
+    }
+
+    /**
+     * Creates the configuration, project manager and desktop of MZmineCore,
+     * if they do not exist. Tasks add their results to the current project
+     * and repaint the desktop.
+     */
+    public static void initCore() {
+	initConfiguration();
+	if (MZmineCore.getProjectManager() == null) {
+	    ProjectManagerImpl projectManager = new ProjectManagerImpl();
+	    projectManager.initModule();
+	    setCoreField("projectManager", projectManager);
+	}
+	if (MZmineCore.getDesktop() == null)
+	    setCoreField("desktop", new HeadLessDesktop());
+    }
+
+    /**
+     * Restores the MZmineCore fields set by initConfiguration and initCore
+     */
+    public static void restoreCore() {
+	synchronized (originalCoreFields) {
+	    for (Map.Entry<String, Object> field : originalCoreFields
+		    .entrySet())
+		writeCoreField(field.getKey(), field.getValue());
+	    originalCoreFields.clear();
+	}
+    }
+
+    private static void setCoreField(String name, Object value) {
+	synchronized (originalCoreFields) {
+	    if (!originalCoreFields.containsKey(name))
+		originalCoreFields.put(name, readCoreField(name));
+	    writeCoreField(name, value);
+	}
+    }
+
+    private static Object readCoreField(String name) {
+	try {
+	    Field field = MZmineCore.class.getDeclaredField(name);
+	    field.setAccessible(true);
+	    return field.get(null);
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    private static void writeCoreField(String name, Object value) {
+	try {
+	    Field field = MZmineCore.class.getDeclaredField(name);
+	    field.setAccessible(true);
+	    field.set(null, value);
+	} catch (ReflectiveOperationException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+}
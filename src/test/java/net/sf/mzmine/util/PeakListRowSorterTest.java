@@ -0,0 +1,153 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PeakListRowSorterTest {
+
+    /**
+     * Sorting arrays and lists gives the order of sorting with the
+     * comparator, including the order of rows of equal values
+     */
+    @Test
+    public void testSameOrderAsComparator() {
+
+	Random random = new Random(1);
+	AtomicInteger valueCalls = new AtomicInteger();
+	for (SortingProperty property : new SortingProperty[] {
+		SortingProperty.Area, SortingProperty.Intensity,
+		SortingProperty.Height, SortingProperty.MZ,
+		SortingProperty.RT, SortingProperty.ID }) {
+	    for (SortingDirection direction : SortingDirection.values()) {
+		PeakListRowSorter sorter = new PeakListRowSorter(property,
+			direction);
+		for (int n = 0; n < 20; n++) {
+		    PeakListRow rows[] = createRows(random,
+			    random.nextInt(200), valueCalls);
+
+		    PeakListRow expected[] = rows.clone();
+		    Arrays.sort(expected, sorter);
+
+		    PeakListRow sortedArray[] = rows.clone();
+		    sorter.sort(sortedArray);
+		    Assert.assertArrayEquals(expected, sortedArray);
+
+		    List<PeakListRow> sortedList = new Vector<PeakListRow>(
+			    Arrays.asList(rows));
+		    sorter.sort(sortedList);
+		    Assert.assertArrayEquals(expected,
+			    sortedList.toArray(new PeakListRow[0]));
+		}
+	    }
+	}
+
+    }
+
+    /**
+     * The value of each row is calculated once per sort
+     */
+    @Test
+    public void testValuesCalculatedOnce() {
+
+	AtomicInteger valueCalls = new AtomicInteger();
+	PeakListRow rows[] = createRows(new Random(2), 1000, valueCalls);
+	for (SortingProperty property : new SortingProperty[] {
+		SortingProperty.Area, SortingProperty.MZ }) {
+	    valueCalls.set(0);
+	    new PeakListRowSorter(property, SortingDirection.Descending)
+		    .sort(rows);
+	    Assert.assertEquals(rows.length, valueCalls.get());
+	}
+
+    }
+
+    /**
+     * Rows with few distinct values, so many rows have equal values
+     */
+    private static PeakListRow[] createRows(Random random, int numOfRows,
+	    AtomicInteger valueCalls) {
+	PeakListRow rows[] = new PeakListRow[numOfRows];
+	for (int i = 0; i < numOfRows; i++) {
+	    Feature peaks[] = new Feature[1 + random.nextInt(5)];
+	    for (int j = 0; j < peaks.length; j++)
+		peaks[j] = createPeak(random.nextInt(10) * 100.0,
+			random.nextInt(10) * 10.0);
+	    rows[i] = createRow(i, peaks, 100 + random.nextInt(20),
+		    random.nextInt(20) * 0.5, valueCalls);
+	}
+	return rows;
+    }
+
+    /**
+     * Row which counts the calls of the methods the values are calculated
+     * from
+     */
+    private static PeakListRow createRow(final int id, final Feature peaks[],
+	    final double mz, final double rt, final AtomicInteger valueCalls) {
+	return FixtureUtils.createStub(PeakListRow.class, "row " + id,
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getPeak") && (args[0] instanceof Integer))
+			    return peaks[(Integer) args[0]];
+			if (name.equals("getNumberOfPeaks")) {
+			    valueCalls.incrementAndGet();
+			    return peaks.length;
+			}
+			if (name.equals("getAverageMZ")) {
+			    valueCalls.incrementAndGet();
+			    return mz;
+			}
+			if (name.equals("getAverageRT"))
+			    return rt;
+			if (name.equals("getID"))
+			    return id;
+			throw new UnsupportedOperationException(name);
+		    }
+		});
+    }
+
+    private static Feature createPeak(final double area, final double height) {
+	return FixtureUtils.createStub(Feature.class, "peak",
+		new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[]) {
+			if (name.equals("getArea"))
+			    return area;
+			if (name.equals("getHeight"))
+			    return height;
+			throw new UnsupportedOperationException(name);
+		    }
+		});
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2006-2015 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * MZmine 2; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.util.concurrent.CountDownLatch;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.util.FixtureUtils.StubMethods;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+public class PrecursorIndexTest {
+
+    private RawDataFileImpl dataFile;
+
+    /**
+     * Creates a data file with an MS scan followed by four MS/MS scans, twice,
+     * and an MS3 scan at the end
+     */
+    @Before
+    public void createDataFile() throws Exception {
+	dataFile = new RawDataFileImpl("test");
+	final double precursors[] = { 500.0, 300.0, 300.002, 400.0 };
+	final double basePeaks[] = { 100.0, 200.0, 200.0, 0.0 };
+	int scanNumber = 1;
+	for (int cycle = 0; cycle < 2; cycle++) {
+	    addScan(scanNumber++, 1, cycle, 0, 1000.0);
+	    for (int i = 0; i < precursors.length; i++)
+		addScan(scanNumber++, 2, cycle + 0.1 * (i + 1), precursors[i],
+			basePeaks[i] * (cycle + 1));
+	}
+	addScan(scanNumber++, 3, 1.5, 300.0, 1000.0);
+	dataFile.finishWriting();
+    }
+
+    private void addScan(int scanNumber, int msLevel, double rt,
+	    double precursorMZ, double basePeak) throws Exception {
+	DataPoint dataPoints[] = { new SimpleDataPoint(100.0, basePeak / 2),
+		new SimpleDataPoint(150.0, basePeak) };
+	dataFile.addScan(new SimpleScan(dataFile, scanNumber, msLevel, rt,
+		precursorMZ, 1, null, dataPoints, MassSpectrumType.CENTROIDED,
+		PolarityType.POSITIVE, "", Range.closed(100.0, 150.0)));
+    }
+
+    @After
+    public void closeDataFile() {
+	dataFile.close();
+    }
+
+    /**
+     * The best fragment scan is the same as the one found by reading all
+     * MS/MS scans in scan number order
+     */
+    @Test
+    public void testFindBestFragmentScan() {
+
+	final PrecursorIndex index = PrecursorIndex.getIndex(dataFile);
+	Assert.assertSame(index, PrecursorIndex.getIndex(dataFile));
+
+	// Equal base peaks in the same cycle: the first scan wins
+	Assert.assertEquals(3, index.findBestFragmentScan(
+		Range.closed(0.0, 0.5), Range.closed(299.0, 301.0)));
+
+	// The second cycle has higher intensities
+	Assert.assertEquals(8, index.findBestFragmentScan(Range.<Double> all(),
+		Range.closed(299.0, 301.0)));
+	Assert.assertEquals(9, index.findBestFragmentScan(Range.<Double> all(),
+		Range.closed(300.001, 301.0)));
+
+	// Scans with zero intensity or outside the ranges are not found
+	Assert.assertEquals(-1, index.findBestFragmentScan(
+		Range.<Double> all(), Range.closed(399.0, 401.0)));
+	Assert.assertEquals(-1, index.findBestFragmentScan(
+		Range.closed(0.5, 0.9), Range.closed(299.0, 501.0)));
+
+    }
+
+    @Test
+    public void testFindFragmentScans() {
+
+	final PrecursorIndex index = PrecursorIndex.getIndex(dataFile);
+	final int positions[] = index.findFragmentScans(Range.closed(0.0, 1.5),
+		Range.closed(300.0, 450.0));
+
+	// The MS3 scan is found too, but it is not the best fragment scan
+	final int expectedScans[] = { 3, 4, 5, 8, 9, 10, 11 };
+	Assert.assertEquals(expectedScans.length, positions.length);
+	for (int i = 0; i < positions.length; i++) {
+	    Assert.assertEquals(expectedScans[i],
+		    index.getScanNumber(positions[i]));
+	    Assert.assertEquals(expectedScans[i] < 11 ? 2 : 3,
+		    index.getMSLevel(positions[i]));
+	    Assert.assertEquals(expectedScans[i] < 6 ? 1 : 6,
+		    index.getParentScanNumber(positions[i]));
+	}
+	Assert.assertEquals(8, index.findBestFragmentScan(Range.<Double> all(),
+		Range.closed(299.0, 301.0)));
+
+    }
+
+    /**
+     * Building the index of a data file does not block getting the index of
+     * another data file
+     */
+    @Test(timeout = 10000)
+    public void testIndexesBuiltIndependently() throws Exception {
+
+	final CountDownLatch buildingStarted = new CountDownLatch(1);
+	final CountDownLatch finishBuilding = new CountDownLatch(1);
+	final RawDataFile slowDataFile = FixtureUtils.createStub(
+		RawDataFile.class, "slow file", new StubMethods() {
+		    @Override
+		    public Object invoke(String name, Object args[])
+			    throws InterruptedException {
+			if (name.equals("getScanNumbers")) {
+			    buildingStarted.countDown();
+			    finishBuilding.await();
+			    return new int[0];
+			}
+			return null;
+		    }
+		});
+
+	Thread slowThread = new Thread(new Runnable() {
+	    @Override
+	    public void run() {
+		PrecursorIndex.getIndex(slowDataFile);
+	    }
+	});
+	slowThread.start();
+	try {
+	    buildingStarted.await();
+	    Assert.assertEquals(8, PrecursorIndex.getIndex(dataFile)
+		    .findBestFragmentScan(Range.<Double> all(),
+			    Range.closed(299.0, 301.0)));
+	} finally {
+	    finishBuilding.countDown();
+	}
+	slowThread.join();
+
+    }
+
+}